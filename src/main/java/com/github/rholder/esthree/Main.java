@@ -16,8 +16,10 @@
 
 package com.github.rholder.esthree;
 
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.github.rholder.esthree.cli.DuCommand;
 import com.github.rholder.esthree.cli.EsthreeCommand;
 import com.github.rholder.esthree.cli.GetCommand;
 import com.github.rholder.esthree.cli.GetMultipartCommand;
@@ -26,6 +28,7 @@ import com.github.rholder.esthree.cli.LbCommand;
 import com.github.rholder.esthree.cli.LsCommand;
 import com.github.rholder.esthree.cli.MbCommand;
 import com.github.rholder.esthree.cli.PutCommand;
+import com.github.rholder.esthree.cli.UploadsCommand;
 import io.airlift.command.Cli;
 import io.airlift.command.model.MetadataLoader;
 
@@ -54,12 +57,14 @@ public class Main {
                 .withDefaultCommand(HelpCommand.class)
                 .withCommands(
                         HelpCommand.class,
+                        DuCommand.class,
                         GetCommand.class,
                         GetMultipartCommand.class,
                         LbCommand.class,
                         LsCommand.class,
                         MbCommand.class,
-                        PutCommand.class)
+                        PutCommand.class,
+                        UploadsCommand.class)
                 .build();
     }
 
@@ -69,10 +74,11 @@ public class Main {
         command.output = new PrintStream(new BufferedOutputStream(System.out));
 
         // override if keys are specified
+        ClientConfiguration clientConfiguration = command.getClientConfiguration();
         if(command.accessKey != null && command.secretKey != null) {
-            command.amazonS3Client = new AmazonS3Client(new BasicAWSCredentials(command.accessKey, command.secretKey));
+            command.amazonS3Client = new AmazonS3Client(new BasicAWSCredentials(command.accessKey, command.secretKey), clientConfiguration);
         } else {
-            command.amazonS3Client = new AmazonS3Client();
+            command.amazonS3Client = new AmazonS3Client(clientConfiguration);
         }
 
         // override S3 endpoint if specified
@@ -91,7 +97,8 @@ public class Main {
             if(command != null && command.verbose) {
                 e.printStackTrace();
             } else {
-                System.out.println(e.getMessage());
+                // stdout may be carrying an object that's being streamed
+                System.err.println(e.getMessage());
             }
             System.exit(1);
         } finally {
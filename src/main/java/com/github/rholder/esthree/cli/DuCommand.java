@@ -0,0 +1,113 @@
+/*
+ * Copyright 2014 Ray Holder
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rholder.esthree.cli;
+
+import com.amazonaws.ClientConfiguration;
+import com.github.rholder.esthree.command.Du;
+import com.github.rholder.esthree.command.LsRecursive;
+import com.github.rholder.esthree.util.S3PathUtils;
+import io.airlift.command.Arguments;
+import io.airlift.command.Command;
+import io.airlift.command.Option;
+
+import java.util.List;
+
+import static com.google.common.base.Objects.firstNonNull;
+import static java.util.Collections.emptyList;
+
+@Command(name = "du", description = "Add up the number and size of the objects under a prefix by storage class")
+public class DuCommand extends EsthreeCommand {
+
+    @Option(name = {"-d", "--depth"}, arity = 1,
+            description = "Add up each directory this many levels beneath the prefix separately, or 0 for only the total, defaults to 1")
+    public Integer depth;
+
+    @Option(name = {"-t", "--concurrency"}, arity = 1,
+            description = "The number of directories to list at the same time, defaults to 16")
+    public Integer concurrency;
+
+    @Option(name = {"-df", "--du-format"}, arity = 1, title = "format",
+            description = "The format to use for displaying each line, defaulting to \"" + Du.DEFAULT_DU_FORMAT + "\"")
+    public String duFormat;
+
+    @Arguments(usage = "[target bucket and optional prefix]",
+            description = "Add up the target bucket (with an optional prefix), as in \"s3://bucket\" or \"s3://bucket/prefix\"")
+    public List<String> parameters;
+
+    public String bucket;
+    public String prefix;
+
+    @Override
+    public void parse() {
+        if (help) {
+            showUsage(commandMetadata);
+            return;
+        }
+
+        if (firstNonNull(parameters, emptyList()).size() == 0) {
+            showUsage(commandMetadata);
+            throw new IllegalArgumentException("No arguments specified");
+        }
+
+        String target = parameters.get(0);
+        bucket = S3PathUtils.getBucket(target);
+        prefix = S3PathUtils.getPrefix(target);
+
+        depth = depth == null ? Du.DEFAULT_DEPTH : depth;
+        duFormat = duFormat == null ? Du.DEFAULT_DU_FORMAT : duFormat;
+
+        if (depth < 0) {
+            throw new IllegalArgumentException("Depth must be at least 0");
+        }
+
+        if (concurrency != null && concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be at least 1");
+        }
+
+        if (bucket == null) {
+            throw new IllegalArgumentException("Could not determine target bucket from: " + target);
+        }
+    }
+
+    /**
+     * Allow a connection for every directory that's being listed at the same
+     * time.
+     */
+    @Override
+    public ClientConfiguration getClientConfiguration() {
+        ClientConfiguration clientConfiguration = super.getClientConfiguration();
+        int connections = firstNonNull(concurrency, LsRecursive.DEFAULT_CONCURRENCY);
+        clientConfiguration.setMaxConnections(Math.max(clientConfiguration.getMaxConnections(), connections));
+        return clientConfiguration;
+    }
+
+    @Override
+    public void run() {
+        if (!help) {
+            try {
+                new Du(amazonS3Client, bucket, prefix, verbose)
+                        .withDepth(depth)
+                        .withConcurrency(concurrency)
+                        .withDuFormat(duFormat)
+                        .withPrintStream(output)
+                        .call();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.github.rholder.esthree.cli;
 
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.services.s3.AmazonS3Client;
 import io.airlift.command.CommandUsage;
 import io.airlift.command.Option;
@@ -26,6 +27,9 @@ import java.io.PrintStream;
 
 public abstract class EsthreeCommand implements Runnable {
 
+    // stands in for a file to read from stdin or write to stdout instead
+    public static final String STANDARD_STREAM = "-";
+
     public CommandMetadata commandMetadata;
     public AmazonS3Client amazonS3Client;
     public PrintStream output;
@@ -47,6 +51,14 @@ public abstract class EsthreeCommand implements Runnable {
 
     public abstract void parse();
 
+    /**
+     * Return the configuration to create the client with, given the options
+     * that were passed in.
+     */
+    public ClientConfiguration getClientConfiguration() {
+        return new ClientConfiguration();
+    }
+
     public void run() {
         System.out.println(getClass().getSimpleName());
     }
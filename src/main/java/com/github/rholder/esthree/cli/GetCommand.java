@@ -16,7 +16,10 @@
 
 package com.github.rholder.esthree.cli;
 
+import com.amazonaws.ClientConfiguration;
 import com.github.rholder.esthree.command.Get;
+import com.github.rholder.esthree.command.GetRecursive;
+import com.github.rholder.esthree.command.GetStream;
 import com.github.rholder.esthree.progress.MutableProgressListener;
 import com.github.rholder.esthree.progress.PrintingProgressListener;
 import com.github.rholder.esthree.progress.TimeProvider;
@@ -25,7 +28,12 @@ import io.airlift.command.Arguments;
 import io.airlift.command.Command;
 import io.airlift.command.Option;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.util.List;
 
 import static com.google.common.base.Objects.firstNonNull;
@@ -34,16 +42,41 @@ import static java.util.Collections.emptyList;
 @Command(name = "get", description = "Download a file from S3 with the target bucket and key")
 public class GetCommand extends EsthreeCommand {
 
+    @Option(name = {"-r", "--recursive"}, description = "Download every object under a prefix into a directory, mirroring the path of each key relative to the prefix")
+    public Boolean recursive;
+
+    @Option(name = {"-ft", "--file-concurrency"}, arity = 1, description = "The number of objects to download at the same time with --recursive, defaults to 16")
+    public Integer fileConcurrency;
+
+    @Option(name = {"-t", "--concurrency"}, arity = 1, description = "The number of ranges of each large object to download at the same time with --recursive, defaults to 4")
+    public Integer concurrency;
+
+    @Option(name = {"-mt", "--multipart-threshold"}, arity = 1, description = "The size in bytes at which objects are downloaded in ranges with --recursive, defaults to 64MB")
+    public Long multipartThreshold;
+
     @Option(name = {"-np", "--no-progress"}, description = "Don't print a progress bar")
     public Boolean progress;
 
-    @Arguments(usage = "<target bucket and key> [optional target file]", description = "The target bucket and key, as in \"s3://bucket/foo.html\"")
+    @Option(name = {"-io", "--io-size"}, arity = 1, description = "The number of bytes to buffer before each write to disk, defaults to 1MB")
+    public Integer ioSize;
+
+    @Option(name = {"-nr", "--no-resume"}, description = "Don't resume from or keep a journal of previously downloaded chunks")
+    public Boolean resume;
+
+    @Option(name = {"-z", "--gunzip"}, description = "Decompress a gzip object while it's downloaded, on every core when it was uploaded with put --gzip")
+    public Boolean gunzip;
+
+    @Option(name = {"--read-ahead"}, arity = 1, description = "When the target file is - for stdout, the most bytes to fetch ahead of what's been written, defaults to 64MB")
+    public Long readAhead;
+
+    @Arguments(usage = "<target bucket and key> [optional target file, or - for stdout, or directory with --recursive]", description = "The target bucket and key, as in \"s3://bucket/foo.html\"")
     public List<String> parameters;
 
     public String bucket;
     public String key;
     public MutableProgressListener progressListener;
     public File outputFile;
+    public OutputStream outputStream;
 
     @Override
     public void parse() {
@@ -61,15 +94,60 @@ public class GetCommand extends EsthreeCommand {
         bucket = S3PathUtils.getBucket(target);
         key = S3PathUtils.getPrefix(target);
         progress = progress == null;
+        resume = resume == null;
+        recursive = recursive != null;
+        gunzip = gunzip != null;
+
+        if (ioSize != null && ioSize < 1) {
+            throw new IllegalArgumentException("I/O size must be at least 1");
+        }
+
+        if (readAhead != null && readAhead < 1) {
+            throw new IllegalArgumentException("Read-ahead must be at least 1");
+        }
+
+        if (fileConcurrency != null && fileConcurrency < 1) {
+            throw new IllegalArgumentException("File concurrency must be at least 1");
+        }
+
+        if (concurrency != null && concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be at least 1");
+        }
+
+        if (multipartThreshold != null && multipartThreshold < 1) {
+            throw new IllegalArgumentException("Multipart threshold must be at least 1");
+        }
+
+        if (gunzip && recursive) {
+            throw new IllegalArgumentException("Can't decompress while downloading recursively");
+        }
 
         // TODO validate get params here
-        if(parameters.size() > 1) {
+        if (recursive) {
+            if (parameters.size() > 1 && STANDARD_STREAM.equals(parameters.get(1))) {
+                throw new IllegalArgumentException("Can't download recursively to stdout");
+            }
+            outputFile = new File(parameters.size() > 1 ? parameters.get(1) : ".");
+            if (outputFile.exists() && !outputFile.isDirectory()) {
+                throw new IllegalArgumentException("Not a directory: " + outputFile);
+            }
+
+            // there's a summary at the end instead
+            progress = false;
+        } else if (parameters.size() > 1 && STANDARD_STREAM.equals(parameters.get(1))) {
+            // keep stdout clean for the content, the progress bar goes to stderr instead
+            output = new PrintStream(new BufferedOutputStream(System.err));
+            outputStream = new FileOutputStream(FileDescriptor.out);
+        } else if(parameters.size() > 1) {
             outputFile = new File(parameters.get(1));
         } else {
             String filename = S3PathUtils.getFilename(target);
             if(filename == null) {
                 throw new IllegalArgumentException("Could not determine target filename from " + target);
             }
+            if (gunzip && filename.endsWith(".gz") && filename.length() > 3) {
+                filename = filename.substring(0, filename.length() - 3);
+            }
             outputFile = new File(filename);
         }
 
@@ -78,11 +156,66 @@ public class GetCommand extends EsthreeCommand {
         }
     }
 
+    /**
+     * Allow a connection for every range of every object that's being
+     * downloaded at the same time when downloading recursively.
+     */
+    @Override
+    public ClientConfiguration getClientConfiguration() {
+        ClientConfiguration clientConfiguration = super.getClientConfiguration();
+        if (Boolean.TRUE.equals(recursive)) {
+            int connections = firstNonNull(fileConcurrency, GetRecursive.DEFAULT_CONCURRENCY)
+                    * firstNonNull(concurrency, GetRecursive.DEFAULT_PART_CONCURRENCY);
+            clientConfiguration.setMaxConnections(Math.max(clientConfiguration.getMaxConnections(), connections));
+        }
+        return clientConfiguration;
+    }
+
     @Override
     public void run() {
-        if(!help) {
+        if (!help && recursive) {
+            int failed;
+            try {
+                failed = new GetRecursive(amazonS3Client, bucket, key, outputFile, verbose)
+                        .withConcurrency(fileConcurrency)
+                        .withPartConcurrency(concurrency)
+                        .withMultipartThreshold(multipartThreshold)
+                        .withResume(resume)
+                        .withPrintStream(output)
+                        .call();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            if (failed > 0) {
+                throw new RuntimeException(failed + " files failed to download");
+            }
+        } else if(!help) {
             try {
+                if (outputStream != null) {
+                    new GetStream(amazonS3Client, bucket, key, outputStream, verbose)
+                            .withReadAhead(readAhead)
+                            .withGunzip(gunzip)
+                            .withProgressListener(progressListener)
+                            .call();
+                    return;
+                }
+                if (gunzip) {
+                    // the decompressed file can't be resumed from, so it's streamed instead
+                    OutputStream fileOutput = new BufferedOutputStream(new FileOutputStream(outputFile));
+                    try {
+                        new GetStream(amazonS3Client, bucket, key, fileOutput, verbose)
+                                .withReadAhead(readAhead)
+                                .withGunzip(true)
+                                .withProgressListener(progressListener)
+                                .call();
+                    } finally {
+                        fileOutput.close();
+                    }
+                    return;
+                }
                 new Get(amazonS3Client, bucket, key, outputFile, verbose)
+                        .withIoSize(ioSize)
+                        .withResume(resume)
                         .withProgressListener(progressListener)
                         .call();
             } catch (Exception e) {
@@ -16,7 +16,9 @@
 
 package com.github.rholder.esthree.cli;
 
+import com.amazonaws.ClientConfiguration;
 import com.github.rholder.esthree.command.GetMultipart;
+import com.github.rholder.esthree.command.GetStream;
 import com.github.rholder.esthree.progress.MutableProgressListener;
 import com.github.rholder.esthree.progress.PrintingProgressListener;
 import com.github.rholder.esthree.progress.TimeProvider;
@@ -25,7 +27,12 @@ import io.airlift.command.Arguments;
 import io.airlift.command.Command;
 import io.airlift.command.Option;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.util.List;
 
 import static com.google.common.base.Objects.firstNonNull;
@@ -37,15 +44,40 @@ public class GetMultipartCommand extends EsthreeCommand {
     @Option(name = {"-c", "--chunk-size"}, arity = 1, description = "The request chunk size in bytes (e.g. 10485760 for 10MB chunks), defaults to 5MB")
     public Integer chunkSize;
 
+    @Option(name = {"-a", "--auto-chunk-size"}, description = "Start with small chunks and size each following chunk by the measured throughput")
+    public Boolean autoChunkSize;
+
+    @Option(name = {"--min-chunk-size"}, arity = 1, description = "The smallest chunk size in bytes when sizing chunks automatically, defaults to 1MB")
+    public Integer minChunkSize;
+
+    @Option(name = {"--max-chunk-size"}, arity = 1, description = "The largest chunk size in bytes when sizing chunks automatically, defaults to 32MB")
+    public Integer maxChunkSize;
+
+    @Option(name = {"-t", "--concurrency"}, arity = 1, description = "The number of ranged requests to run at the same time, defaults to 1")
+    public Integer concurrency;
+
+    @Option(name = {"--hedge-percentile"}, arity = 1, description = "Race any concurrent range running twice as long as this percentile (e.g. 95) of the completed ranges with a second request for the rest of it, which takes up to another chunk of memory for each range being raced, disabled by default")
+    public Double hedgePercentile;
+
     @Option(name = {"-np", "--no-progress"}, description = "Don't print a progress bar")
     public Boolean progress;
 
-    @Arguments(usage = "<target bucket and key> [optional target file]", description = "The target bucket and key, as in \"s3://bucket/foo.html\"")
+    @Option(name = {"-io", "--io-size"}, arity = 1, description = "The number of bytes to buffer before each write to disk, defaults to 1MB")
+    public Integer ioSize;
+
+    @Option(name = {"-nr", "--no-resume"}, description = "Don't resume from or keep a journal of previously downloaded chunks")
+    public Boolean resume;
+
+    @Option(name = {"--read-ahead"}, arity = 1, description = "When the target file is - for stdout, the most bytes to fetch ahead of what's been written, defaults to 64MB")
+    public Long readAhead;
+
+    @Arguments(usage = "<target bucket and key> [optional target file, or - for stdout]", description = "The target bucket and key, as in \"s3://bucket/foo.html\"")
     public List<String> parameters;
 
     public String bucket;
     public String key;
     public File outputFile;
+    public OutputStream outputStream;
     public MutableProgressListener progressListener;
 
     @Override
@@ -64,9 +96,38 @@ public class GetMultipartCommand extends EsthreeCommand {
         bucket = S3PathUtils.getBucket(target);
         key = S3PathUtils.getPrefix(target);
         progress = progress == null;
+        resume = resume == null;
+        autoChunkSize = autoChunkSize != null;
+
+        if (concurrency != null && concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be at least 1");
+        }
+        if (hedgePercentile != null && (hedgePercentile <= 0 || hedgePercentile > 100)) {
+            throw new IllegalArgumentException("Hedge percentile must be greater than 0 and at most 100");
+        }
+        if (ioSize != null && ioSize < 1) {
+            throw new IllegalArgumentException("I/O size must be at least 1");
+        }
+        if (minChunkSize != null && minChunkSize < 1) {
+            throw new IllegalArgumentException("Minimum chunk size must be at least 1");
+        }
+        if (maxChunkSize != null && maxChunkSize < 1) {
+            throw new IllegalArgumentException("Maximum chunk size must be at least 1");
+        }
+        if (minChunkSize != null && maxChunkSize != null && maxChunkSize < minChunkSize) {
+            throw new IllegalArgumentException("Maximum chunk size must be at least the minimum chunk size");
+        }
+
+        if (readAhead != null && readAhead < 1) {
+            throw new IllegalArgumentException("Read-ahead must be at least 1");
+        }
 
         // TODO validate get-multi params here
-        if (parameters.size() > 1) {
+        if (parameters.size() > 1 && STANDARD_STREAM.equals(parameters.get(1))) {
+            // keep stdout clean for the content, the progress bar goes to stderr instead
+            output = new PrintStream(new BufferedOutputStream(System.err));
+            outputStream = new FileOutputStream(FileDescriptor.out);
+        } else if (parameters.size() > 1) {
             outputFile = new File(parameters.get(1));
         } else {
             String filename = S3PathUtils.getFilename(target);
@@ -81,12 +142,41 @@ public class GetMultipartCommand extends EsthreeCommand {
         }
     }
 
+    /**
+     * Allow a connection for every range that's being fetched at the same
+     * time, and another for each of them when any could be raced by a hedged
+     * request.
+     */
+    @Override
+    public ClientConfiguration getClientConfiguration() {
+        ClientConfiguration clientConfiguration = super.getClientConfiguration();
+        int connections = firstNonNull(concurrency, GetMultipart.DEFAULT_CONCURRENCY) * (hedgePercentile != null ? 2 : 1);
+        clientConfiguration.setMaxConnections(Math.max(clientConfiguration.getMaxConnections(), connections));
+        return clientConfiguration;
+    }
+
     @Override
     public void run() {
         if (!help) {
             try {
+                if (outputStream != null) {
+                    new GetStream(amazonS3Client, bucket, key, outputStream, verbose)
+                            .withChunkSize(chunkSize)
+                            .withConcurrency(concurrency)
+                            .withReadAhead(readAhead)
+                            .withProgressListener(progressListener)
+                            .call();
+                    return;
+                }
                 new GetMultipart(amazonS3Client, bucket, key, outputFile, verbose)
                         .withChunkSize(chunkSize)
+                        .withAutoChunkSize(autoChunkSize)
+                        .withMinChunkSize(minChunkSize)
+                        .withMaxChunkSize(maxChunkSize)
+                        .withConcurrency(concurrency)
+                        .withHedgePercentile(hedgePercentile)
+                        .withIoSize(ioSize)
+                        .withResume(resume)
                         .withProgressListener(progressListener)
                         .call();
             } catch (Exception e) {
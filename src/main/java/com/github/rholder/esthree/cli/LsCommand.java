@@ -16,7 +16,10 @@
 
 package com.github.rholder.esthree.cli;
 
+import com.amazonaws.ClientConfiguration;
 import com.github.rholder.esthree.command.Ls;
+import com.github.rholder.esthree.command.LsRecursive;
+import com.github.rholder.esthree.util.ListEncoder;
 import com.github.rholder.esthree.util.S3PathUtils;
 import io.airlift.command.Arguments;
 import io.airlift.command.Command;
@@ -24,6 +27,7 @@ import io.airlift.command.Option;
 
 import java.math.BigInteger;
 import java.util.List;
+import java.util.Locale;
 
 import static com.google.common.base.Objects.firstNonNull;
 import static java.util.Collections.emptyList;
@@ -47,12 +51,37 @@ public class LsCommand extends EsthreeCommand {
             description = "The list directory format to use for displaying directories, defaulting to \"" + DEFAULT_LIST_DIR_FORMAT + "\"")
     public String listDirFormat;
 
+    @Option(name = {"-r", "--recursive"},
+            description = "List every key under the prefix no matter how deep, listing each directory found at the same time as the others")
+    public Boolean recursive;
+
+    @Option(name = {"-t", "--concurrency"}, arity = 1,
+            description = "The number of directories to list at the same time with --recursive, defaults to 16")
+    public Integer concurrency;
+
+    @Option(name = {"-s", "--sorted"},
+            description = "Print keys in sorted order with --recursive instead of as soon as they're listed")
+    public Boolean sorted;
+
+    @Option(name = {"-sh", "--shard"},
+            description = "List every key under the prefix by splitting the keys into ranges to list at the same time instead of directories, for flat keys such as hashes")
+    public Boolean shard;
+
+    @Option(name = {"-a", "--alphabet"}, arity = 1, title = "characters",
+            description = "With --shard, the characters keys start with after the prefix to split into ranges up front, or hex for 0123456789abcdef, instead of splitting ranges as they're listed")
+    public String alphabet;
+
+    @Option(name = {"-o", "--output"}, arity = 1, title = "format",
+            description = "Write every field of each object as text with the list formats, ndjson or csv, defaulting to text")
+    public String outputFormat;
+
     @Arguments(usage = "[target bucket and optional prefix]",
             description = "List the target bucket (with an optional prefix), as in \"s3://bucket\" or \"s3://bucket/prefix\"")
     public List<String> parameters;
 
     public String bucket;
     public String prefix;
+    public ListEncoder.Format format;
 
     @Override
     public void parse() {
@@ -72,21 +101,73 @@ public class LsCommand extends EsthreeCommand {
 
         listFormat = listFormat == null ? DEFAULT_LIST_FORMAT : listFormat;
         listDirFormat = listDirFormat == null ? DEFAULT_LIST_DIR_FORMAT : listDirFormat;
+        shard = shard != null || alphabet != null;
+        recursive = recursive != null || shard;
+        sorted = sorted != null;
+
+        if (outputFormat != null && !"text".equals(outputFormat)) {
+            try {
+                format = ListEncoder.Format.valueOf(outputFormat.toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Output must be one of text, ndjson or csv, not " + outputFormat);
+            }
+        }
+
+        if ("hex".equals(alphabet)) {
+            alphabet = LsRecursive.HEX;
+        } else if (alphabet != null && alphabet.isEmpty()) {
+            throw new IllegalArgumentException("Alphabet must have at least 1 character");
+        }
+
+        if (concurrency != null && concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be at least 1");
+        }
 
         if (bucket == null) {
             throw new IllegalArgumentException("Could not determine target bucket from: " + target);
         }
     }
 
+    /**
+     * Allow a connection for every directory or range that's being listed at
+     * the same time when listing recursively. This runs before parse(), so
+     * sharding still has to be taken to mean recursive here.
+     */
+    @Override
+    public ClientConfiguration getClientConfiguration() {
+        ClientConfiguration clientConfiguration = super.getClientConfiguration();
+        if (Boolean.TRUE.equals(recursive) || Boolean.TRUE.equals(shard) || alphabet != null) {
+            int connections = firstNonNull(concurrency, LsRecursive.DEFAULT_CONCURRENCY);
+            clientConfiguration.setMaxConnections(Math.max(clientConfiguration.getMaxConnections(), connections));
+        }
+        return clientConfiguration;
+    }
+
     @Override
     public void run() {
-        if (!help) {
+        if (!help && recursive) {
+            try {
+                new LsRecursive(amazonS3Client, bucket, prefix, verbose)
+                        .withLimit(limit)
+                        .withConcurrency(concurrency)
+                        .withSorted(sorted)
+                        .withSharded(shard)
+                        .withAlphabet(alphabet)
+                        .withListFormat(listFormat)
+                        .withOutputFormat(format)
+                        .withPrintStream(output)
+                        .call();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        } else if (!help) {
             try {
                 Ls ls = new Ls(amazonS3Client, bucket)
                         .withPrefix(prefix)
                         .withLimit(limit)
                         .withListFormat(listFormat)
                         .withListDirFormat(listDirFormat)
+                        .withOutputFormat(format)
                         .withPrintStream(output);
 
                 ls.call();
@@ -16,7 +16,9 @@
 
 package com.github.rholder.esthree.cli;
 
+import com.amazonaws.ClientConfiguration;
 import com.github.rholder.esthree.command.Put;
+import com.github.rholder.esthree.command.PutRecursive;
 import com.github.rholder.esthree.progress.MutableProgressListener;
 import com.github.rholder.esthree.progress.PrintingProgressListener;
 import com.github.rholder.esthree.progress.TimeProvider;
@@ -26,6 +28,7 @@ import io.airlift.command.Command;
 import io.airlift.command.Option;
 
 import java.io.File;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -36,22 +39,47 @@ import static java.util.Collections.emptyList;
 @Command(name = "put", description = "Upload a file to S3 in the target bucket")
 public class PutCommand extends EsthreeCommand {
 
+    @Option(name = {"-r", "--recursive"}, description = "Upload every file under a directory, keyed by its path relative to the directory")
+    public Boolean recursive;
+
+    @Option(name = {"-ft", "--file-concurrency"}, arity = 1, description = "The number of files to upload at the same time with --recursive, defaults to 16")
+    public Integer fileConcurrency;
+
     @Option(name = {"-np", "--no-progress"}, description = "Don't print a progress bar")
     public Boolean progress;
 
     @Option(name = {"-sse", "--server-side-encryption"}, description = "Enable server side encryption with AES256")
     public Boolean sse;
 
+    @Option(name = {"-ps", "--part-size"}, arity = 1, description = "The size in bytes of each part of a multipart upload (e.g. 16777216 for 16MB parts), planned from the size of the file and the concurrency by default, or 8MB from stdin")
+    public Long partSize;
+
+    @Option(name = {"-t", "--concurrency"}, arity = 1, description = "The number of parts to upload at the same time, defaults to 4")
+    public Integer concurrency;
+
+    @Option(name = {"-nr", "--no-resume"}, description = "Don't resume from or keep a journal of previously uploaded parts, aborting any unfinished upload of the file instead")
+    public Boolean resume;
+
+    @Option(name = {"-mm", "--memory-map"}, description = "Map each part of the file into memory instead of reading it onto the heap")
+    public Boolean memoryMap;
+
+    @Option(name = {"-sis", "--skip-if-same"}, description = "Don't upload the file when the target already has the same content, judging by its ETag")
+    public Boolean skipIfSame;
+
+    @Option(name = {"-z", "--gzip"}, description = "Compress with gzip on every core on the way up, and set the Content-Encoding to gzip")
+    public Boolean gzip;
+
     @Option(name = {"-meta", "--metadata"}, arity = 2, description = "Add additional metadata to an uploaded S3 object, as in --metadata is-potato \"totally a potato\"")
     public List<String> metadata;
 
     @Arguments(description = "Upload a file to S3 with the target bucket and optionally the key, as in \"foo.txt s3://bucket/foo.html\"",
-            usage = "[filename] [target bucket and key]")
+            usage = "[filename, or - for stdin] [target bucket and key]")
     public List<String> parameters;
 
     public String bucket;
     public String key;
     public File outputFile;
+    public InputStream inputStream;
     public MutableProgressListener progressListener;
     public Map<String, String> convertedMetadata;
 
@@ -88,15 +116,63 @@ public class PutCommand extends EsthreeCommand {
         // by default, don't enable server side encryption
         sse = sse != null;
 
-        // infer name from passed in file if it's not specified in the s3:// String
-        if (key == null) {
+        // by default, resume an unfinished upload of the same file
+        resume = resume == null;
+
+        // by default, read parts onto the heap
+        memoryMap = memoryMap != null;
+
+        // by default, upload whether or not the target is the same
+        skipIfSame = skipIfSame != null;
+
+        // by default, upload a single file
+        recursive = recursive != null;
+
+        // by default, upload as is
+        gzip = gzip != null;
+        if (gzip && skipIfSame) {
+            throw new IllegalArgumentException("Unchanged uploads can't be skipped when compressing");
+        }
+
+        if (partSize != null && partSize < Put.MIN_PART_SIZE) {
+            throw new IllegalArgumentException("Part size must be at least " + Put.MIN_PART_SIZE);
+        }
+        // every part is read into a single buffer or mapping
+        if (partSize != null && partSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Part size must be at most " + Integer.MAX_VALUE);
+        }
+        if (concurrency != null && concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be at least 1");
+        }
+        if (fileConcurrency != null && fileConcurrency < 1) {
+            throw new IllegalArgumentException("File concurrency must be at least 1");
+        }
+
+        if (recursive) {
+            // keys are relative to the target prefix
+            if (!outputFile.isDirectory()) {
+                throw new IllegalArgumentException("Not a directory: " + parameters.get(0));
+            }
+        } else if (STANDARD_STREAM.equals(parameters.get(0))) {
+            // there's no file to name the key after
+            if (key == null || key.endsWith("/")) {
+                throw new IllegalArgumentException("A target key is required when uploading from stdin");
+            }
+            if (skipIfSame) {
+                throw new IllegalArgumentException("Unchanged uploads can't be skipped when uploading from stdin");
+            }
+            inputStream = System.in;
+            outputFile = null;
+        } else if (key == null) {
+            // infer name from passed in file if it's not specified in the s3:// String
             key = outputFile.getName();
         } else if (key.endsWith("/")) {
             // if file ends with "/", also infer name from passed in file
             key = key + outputFile.getName();
         }
 
-        if (progress) {
+        // there's no telling how far along stdin is without knowing how long it is
+        if (progress && inputStream == null && !recursive && !gzip) {
             progressListener = new PrintingProgressListener(output, new TimeProvider());
         }
 
@@ -108,11 +184,55 @@ public class PutCommand extends EsthreeCommand {
         }
     }
 
+    /**
+     * Allow a connection for every part that's being uploaded at the same
+     * time, for every file that's being uploaded at the same time when
+     * uploading recursively.
+     */
+    @Override
+    public ClientConfiguration getClientConfiguration() {
+        ClientConfiguration clientConfiguration = super.getClientConfiguration();
+        int connections = firstNonNull(concurrency, Put.DEFAULT_CONCURRENCY);
+        if (recursive != null) {
+            connections *= firstNonNull(fileConcurrency, PutRecursive.DEFAULT_CONCURRENCY);
+        }
+        clientConfiguration.setMaxConnections(Math.max(clientConfiguration.getMaxConnections(), connections));
+        return clientConfiguration;
+    }
+
     @Override
     public void run() {
-        if (!help) {
+        if (!help && recursive) {
+            int failed;
+            try {
+                failed = new PutRecursive(amazonS3Client, bucket, key, outputFile, convertedMetadata, sse)
+                        .withConcurrency(fileConcurrency)
+                        .withPartSize(partSize)
+                        .withPartConcurrency(concurrency)
+                        .withResume(resume)
+                        .withSkipIfSame(skipIfSame)
+                        .withMemoryMap(memoryMap)
+                        .withGzip(gzip)
+                        .withVerbose(verbose)
+                        .withPrintStream(output)
+                        .call();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            if (failed > 0) {
+                throw new RuntimeException(failed + " files failed to upload");
+            }
+        } else if (!help) {
             try {
                 new Put(amazonS3Client, bucket, key, outputFile, convertedMetadata, sse)
+                        .withInputStream(inputStream)
+                        .withPartSize(partSize)
+                        .withConcurrency(concurrency)
+                        .withResume(resume)
+                        .withMemoryMap(memoryMap)
+                        .withSkipIfSame(skipIfSame)
+                        .withGzip(gzip)
+                        .withVerbose(verbose)
                         .withProgressListener(progressListener)
                         .call();
             } catch (Exception e) {
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 Ray Holder
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rholder.esthree.cli;
+
+import com.github.rholder.esthree.command.Uploads;
+import com.github.rholder.esthree.util.S3PathUtils;
+import io.airlift.command.Arguments;
+import io.airlift.command.Command;
+import io.airlift.command.Option;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Objects.firstNonNull;
+import static java.util.Collections.emptyList;
+
+@Command(name = "uploads", description = "List or abort the unfinished multipart uploads in the target bucket with an optional prefix")
+public class UploadsCommand extends EsthreeCommand {
+
+    public static final String DEFAULT_LIST_FORMAT = "%1$tF %1$tR   %2$s   s3://%3$s/%4$s   %5$s";
+
+    @Option(name = {"-a", "--abort"}, description = "Abort each of the listed uploads, discarding any parts they already have")
+    public Boolean abort;
+
+    @Option(name = {"-o", "--older-than"}, arity = 1,
+            description = "Only include uploads started more than this many hours ago, to leave the ones still running alone")
+    public Integer olderThan;
+
+    @Option(name = {"-lf", "--list-format"}, arity = 1, title = "format",
+            description = "The list format to use for displaying uploads, defaulting to \"" + DEFAULT_LIST_FORMAT + "\"")
+    public String listFormat;
+
+    @Arguments(usage = "[target bucket and optional prefix]",
+            description = "The target bucket (with an optional prefix), as in \"s3://bucket\" or \"s3://bucket/prefix\"")
+    public List<String> parameters;
+
+    public String bucket;
+    public String prefix;
+    public Date initiatedBefore;
+
+    @Override
+    public void parse() {
+        if (help) {
+            showUsage(commandMetadata);
+            return;
+        }
+
+        if (firstNonNull(parameters, emptyList()).size() == 0) {
+            showUsage(commandMetadata);
+            throw new IllegalArgumentException("No arguments specified");
+        }
+
+        String target = parameters.get(0);
+        bucket = S3PathUtils.getBucket(target);
+        prefix = S3PathUtils.getPrefix(target);
+        abort = abort != null;
+        listFormat = listFormat == null ? DEFAULT_LIST_FORMAT : listFormat;
+
+        if (bucket == null) {
+            throw new IllegalArgumentException("Could not determine target bucket from: " + target);
+        }
+        if (olderThan != null) {
+            if (olderThan < 0) {
+                throw new IllegalArgumentException("Older than must be at least 0 hours");
+            }
+            initiatedBefore = new Date(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(olderThan));
+        }
+    }
+
+    @Override
+    public void run() {
+        if (!help) {
+            try {
+                new Uploads(amazonS3Client, bucket)
+                        .withPrefix(prefix)
+                        .withInitiatedBefore(initiatedBefore)
+                        .withAbort(abort)
+                        .withListFormat(listFormat)
+                        .withPrintStream(output)
+                        .call();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2014 Ray Holder
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rholder.esthree.command;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Add up the number of objects and their total size under a prefix, broken
+ * down by storage class for each common prefix a given number of levels
+ * beneath it, the way du does for directories. Every common prefix that turns
+ * up is listed as a separate task on a fixed pool of workers, just like
+ * {@link LsRecursive}, but keys are counted by the worker that lists them
+ * instead of being handed to the calling thread. Only a page of prefixes for
+ * each worker can be waiting to be listed at once, and a worker lists any
+ * more than that itself as it comes across them, so a bucket with a directory
+ * for every object doesn't pile them all up in the queue.
+ *
+ * Each task counts its own keys in a few primitive counters for each storage
+ * class it sees, and only adds those to the totals for its group once it's
+ * done, so memory depends on the number of groups and storage classes, not on
+ * the number of keys. Keys that sit above the given depth are counted in a
+ * group of their own for the prefix they're directly under.
+ */
+public class Du implements Callable<Integer> {
+
+    public static final int DEFAULT_DEPTH = 1;
+
+    // bytes, objects, storage class, bucket, prefix
+    public static final String DEFAULT_DU_FORMAT = "%1$15d %2$10d  %3$-20s s3://%4$s/%5$s";
+
+    // S3 leaves it out of a listing for some of the oldest objects, which are all standard
+    private static final String DEFAULT_STORAGE_CLASS = "STANDARD";
+
+    private static final Object END = new Object();
+
+    public AmazonS3Client amazonS3Client;
+    public String bucket;
+    public String prefix;
+    public boolean verbose;
+
+    public String duFormat = DEFAULT_DU_FORMAT;
+    public PrintStream printStream;
+
+    private int depth = DEFAULT_DEPTH;
+    private Integer concurrency;
+
+    private volatile boolean stopped;
+    private Semaphore pending;
+    private final BlockingQueue<Object> finished = new LinkedBlockingQueue<Object>();
+    private final ConcurrentMap<String, Usage> groups = new ConcurrentHashMap<String, Usage>();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicLong listings = new AtomicLong();
+
+    public Du(AmazonS3Client amazonS3Client, String bucket, String prefix, boolean verbose) {
+        this.amazonS3Client = amazonS3Client;
+        this.bucket = bucket;
+        this.prefix = prefix;
+        this.verbose = verbose;
+    }
+
+    /**
+     * Set how many levels of common prefixes beneath the prefix to add up
+     * separately, such as 0 for only the total.
+     *
+     * @param depth the number of levels, defaults to {@link #DEFAULT_DEPTH}
+     */
+    public Du withDepth(Integer depth) {
+        this.depth = depth == null ? DEFAULT_DEPTH : depth;
+        return this;
+    }
+
+    /**
+     * Set the number of prefixes to list at the same time.
+     *
+     * @param concurrency the number of prefixes, defaults to {@link LsRecursive#DEFAULT_CONCURRENCY}
+     */
+    public Du withConcurrency(Integer concurrency) {
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    public Du withDuFormat(String duFormat) {
+        this.duFormat = duFormat;
+        return this;
+    }
+
+    public Du withPrintStream(PrintStream printStream) {
+        this.printStream = printStream;
+        return this;
+    }
+
+    /**
+     * Print a line for each storage class in each group, in sorted order, and
+     * then the totals for the whole prefix if there was more than one group.
+     */
+    @Override
+    public Integer call() throws Exception {
+        concurrency = concurrency == null ? LsRecursive.DEFAULT_CONCURRENCY : concurrency;
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        long started = System.nanoTime();
+        String keyPrefix = prefix == null ? "" : prefix;
+        pending = new Semaphore(concurrency * Ls.AWS_MAX_KEYS);
+        try {
+            pending.acquire();
+            submit(executor, keyPrefix, 0, keyPrefix);
+            Object o = finished.take();
+            if (o instanceof Exception) {
+                throw (Exception) o;
+            }
+        } finally {
+            stopped = true;
+            executor.shutdownNow();
+        }
+
+        Usage total = new Usage();
+        Map<String, Usage> sorted = new TreeMap<String, Usage>(groups);
+        for (Map.Entry<String, Usage> e : sorted.entrySet()) {
+            print(e.getKey(), e.getValue());
+            total.add(e.getValue());
+        }
+        if (sorted.size() != 1 || !sorted.containsKey(keyPrefix)) {
+            print(keyPrefix, total);
+        }
+
+        if (verbose) {
+            double seconds = (System.nanoTime() - started) / 1e9;
+            long count = total.objects();
+            System.err.println(String.format("Counted %d keys from %d prefixes in %.1f s (%.1f keys/s)",
+                    count, listings.get(), seconds, count / Math.max(seconds, 0.001)));
+        }
+        return 0;
+    }
+
+    private void print(String group, Usage usage) {
+        if (usage.size == 0) {
+            // nothing at all under the prefix
+            printStream.println(String.format(duFormat, 0L, 0L, "-", bucket, group));
+        }
+        for (int i = 0; i < usage.size; i++) {
+            printStream.println(String.format(duFormat, usage.bytes[i], usage.objects[i], usage.storageClasses[i], bucket, group));
+        }
+    }
+
+    /**
+     * Hand a prefix to the next idle worker, which releases the permit that
+     * was taken for it once it's done.
+     */
+    private void submit(final ThreadPoolExecutor executor, final String prefix, final int level, final String group) {
+        outstanding.incrementAndGet();
+        listings.incrementAndGet();
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    if (!stopped) {
+                        list(executor, prefix, level, group);
+                    }
+                    if (outstanding.decrementAndGet() == 0) {
+                        finished.put(END);
+                    }
+                } catch (InterruptedException e) {
+                    // it's all been stopped
+                } catch (Exception e) {
+                    finished.offer(e);
+                } finally {
+                    pending.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Page through one prefix, counting its keys toward the given group and
+     * handing out each prefix beneath it, or listing it right here when too
+     * many are already waiting. Each prefix starts a group of its own until
+     * the depth is reached.
+     */
+    private void list(ThreadPoolExecutor executor, String prefix, int level, String group) throws Exception {
+        Ls ls = new Ls(amazonS3Client, bucket).withPrefix(prefix);
+        Usage usage = new Usage();
+        String marker = null;
+        ObjectListing o;
+        do {
+            o = ls.list(marker, Ls.AWS_MAX_KEYS);
+            List<S3ObjectSummary> summaries = o.getObjectSummaries();
+            List<String> commonPrefixes = o.getCommonPrefixes();
+            for (S3ObjectSummary os : summaries) {
+                usage.add(os.getStorageClass(), 1, os.getSize());
+            }
+            for (String commonPrefix : commonPrefixes) {
+                String childGroup = level < depth ? commonPrefix : group;
+                if (pending.tryAcquire()) {
+                    submit(executor, commonPrefix, level + 1, childGroup);
+                } else {
+                    // waiting for room could wait on a worker that's waiting on this one
+                    listings.incrementAndGet();
+                    list(executor, commonPrefix, level + 1, childGroup);
+                }
+            }
+
+            marker = Ls.nextMarker(o);
+        } while (!stopped && o.isTruncated());
+
+        if (usage.size > 0) {
+            Usage totals = groups.get(group);
+            if (totals == null) {
+                Usage created = new Usage();
+                totals = groups.putIfAbsent(group, created);
+                totals = totals == null ? created : totals;
+            }
+            synchronized (totals) {
+                totals.add(usage);
+            }
+        }
+    }
+
+    /**
+     * The number of objects and their total size for each storage class,
+     * which there are only ever a handful of, so they're just searched in
+     * order.
+     */
+    static class Usage {
+        String[] storageClasses = new String[4];
+        long[] objects = new long[4];
+        long[] bytes = new long[4];
+        int size;
+
+        void add(String storageClass, long objectCount, long byteCount) {
+            if (storageClass == null) {
+                storageClass = DEFAULT_STORAGE_CLASS;
+            }
+            int i = 0;
+            while (i < size && !storageClass.equals(storageClasses[i])) {
+                i++;
+            }
+            if (i == size) {
+                if (size == storageClasses.length) {
+                    storageClasses = grow(storageClasses);
+                    objects = grow(objects);
+                    bytes = grow(bytes);
+                }
+                // keep them sorted as they're added, since there's so few
+                while (i > 0 && storageClasses[i - 1].compareTo(storageClass) > 0) {
+                    storageClasses[i] = storageClasses[i - 1];
+                    objects[i] = objects[i - 1];
+                    bytes[i] = bytes[i - 1];
+                    i--;
+                }
+                storageClasses[i] = storageClass;
+                objects[i] = 0;
+                bytes[i] = 0;
+                size++;
+            }
+            objects[i] += objectCount;
+            bytes[i] += byteCount;
+        }
+
+        void add(Usage other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.storageClasses[i], other.objects[i], other.bytes[i]);
+            }
+        }
+
+        long objects() {
+            long count = 0;
+            for (int i = 0; i < size; i++) {
+                count += objects[i];
+            }
+            return count;
+        }
+
+        private static String[] grow(String[] a) {
+            String[] grown = new String[a.length * 2];
+            System.arraycopy(a, 0, grown, 0, a.length);
+            return grown;
+        }
+
+        private static long[] grow(long[] a) {
+            long[] grown = new long[a.length * 2];
+            System.arraycopy(a, 0, grown, 0, a.length);
+            return grown;
+        }
+    }
+}
@@ -24,9 +24,13 @@ import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.transfer.TransferProgress;
 import com.amazonaws.util.BinaryUtils;
+import com.github.rholder.esthree.digest.MultipartDigest;
+import com.github.rholder.esthree.journal.DownloadJournal;
 import com.github.rholder.esthree.progress.MutableProgressListener;
 import com.github.rholder.esthree.progress.Progress;
 import com.github.rholder.esthree.progress.TransferProgressWrapper;
+import com.github.rholder.esthree.util.ChannelCopier;
+import com.github.rholder.esthree.util.ETagUtils;
 import com.github.rholder.esthree.util.RetryUtils;
 import com.github.rholder.retry.RetryException;
 import org.apache.commons.io.IOUtils;
@@ -36,14 +40,18 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 
 public class Get implements Callable<Integer> {
 
     public static final int DEFAULT_BUF_SIZE = 4096 * 4;
+    public static final int DEFAULT_CHECKPOINT_SIZE = 1024 * 1024 * 16; // 16 MB
 
     public AmazonS3Client amazonS3Client;
     public String bucket;
@@ -52,10 +60,22 @@ public class Get implements Callable<Integer> {
     public boolean verbose;
     public RandomAccessFile output;
 
+    private boolean resume = true;
     private MutableProgressListener progressListener;
     private MessageDigest currentDigest;
     private long contentLength;
     private String fullETag;
+    private DownloadJournal journal;
+    private long resumeFrom;
+    private long checkpoint;
+    private long hashedTo;
+    private long writtenTo;
+    private Integer ioSize;
+    private ChannelCopier copier;
+    private boolean sharedCopier;
+    private List<Long> partSizes;
+    private MultipartDigest multipartDigest;
+    private MultipartDigest.Range currentRange;
 
     public Get(AmazonS3Client amazonS3Client, String bucket, String key, File outputFile, boolean verbose) throws FileNotFoundException {
         this.amazonS3Client = amazonS3Client;
@@ -70,37 +90,185 @@ public class Get implements Callable<Integer> {
         return this;
     }
 
+    /**
+     * Set the number of bytes to accumulate from the network before each write
+     * to the output file, defaults to {@link ChannelCopier#DEFAULT_IO_SIZE}.
+     *
+     * @param ioSize the size of each write in bytes
+     */
+    public Get withIoSize(Integer ioSize) {
+        this.ioSize = ioSize;
+        return this;
+    }
+
+    /**
+     * Copy with the given copier instead of one of its own, such that a
+     * caller fetching many objects one after another can reuse its buffers
+     * and threads. The caller closes it when it's done with it.
+     *
+     * @param copier the copier to use, which overrides {@link #withIoSize(Integer)}
+     */
+    public Get withCopier(ChannelCopier copier) {
+        this.copier = copier;
+        this.sharedCopier = copier != null;
+        return this;
+    }
+
+    /**
+     * When enabled (the default), periodically checkpoint what's been written
+     * to a journal next to the output file and pick up from the last checkpoint
+     * when a previous attempt didn't finish.
+     *
+     * @param resume false to always start over from the beginning
+     */
+    public Get withResume(boolean resume) {
+        this.resume = resume;
+        return this;
+    }
+
     @Override
     public Integer call() throws Exception {
+        try {
+            return download();
+        } finally {
+            close();
+        }
+    }
+
+    private Integer download() throws Exception {
 
         // this is the most up to date digest, it's initialized here but later holds the most up to date valid digest
         currentDigest = MessageDigest.getInstance("MD5");
-        currentDigest = retryingGet();
+
+        if (resume) {
+            journal = DownloadJournal.forFile(outputFile);
+            if (outputFile.exists() && journal.load()) {
+                fullETag = journal.getETag();
+                contentLength = journal.getContentLength();
+                resumeFrom = journal.getFinishedPrefix();
+                checkpoint = resumeFrom;
+                journal.open(fullETag, contentLength, DEFAULT_CHECKPOINT_SIZE);
+                if (verbose) {
+                    System.err.println("Resuming with " + resumeFrom + " bytes already downloaded");
+                }
+
+                // the digest state can't be saved, so rebuild it from what's already on disk
+                initMultipartDigest();
+                if (currentRange != null) {
+                    hashLocalPrefix(currentRange, resumeFrom);
+                } else {
+                    hashLocalPrefix(currentDigest, resumeFrom);
+                }
+            } else {
+                journal.delete();
+            }
+        }
+
+        // skip straight to verification when everything was already downloaded
+        if (resumeFrom == 0 || resumeFrom < contentLength) {
+            currentDigest = retryingGet();
+        }
 
         if(progressListener != null) {
             progressListener.progressChanged(new ProgressEvent(ProgressEventType.TRANSFER_STARTED_EVENT));
         }
 
-        if (!fullETag.contains("-")) {
+        if (multipartDigest != null) {
+            verifyMultipart();
+        } else if (!ETagUtils.isMultipart(fullETag)) {
             byte[] expected = BinaryUtils.fromHex(fullETag);
             byte[] current = currentDigest.digest();
             if (!Arrays.equals(expected, current)) {
+                // there's no telling where the bad bytes are, so don't resume from any of them
+                if (journal != null) {
+                    journal.delete();
+                }
                 throw new AmazonClientException("Unable to verify integrity of data download.  "
                         + "Client calculated content hash didn't match hash calculated by Amazon S3.  "
                         + "The data may be corrupt.");
             }
         } else {
-            // TODO log warning that we can't validate the MD5
-            // TODO implement this algorithm for several common chunk sizes http://stackoverflow.com/questions/6591047/etag-definition-changed-in-amazon-s3
             if(verbose) {
-                System.err.println("\nMD5 does not exist on AWS for file, calculated value: " + BinaryUtils.toHex(currentDigest.digest()));
+                System.err.println("\nUnable to determine the part size of " + fullETag + ", calculated MD5: " + BinaryUtils.toHex(currentDigest.digest()));
             }
         }
-        // TODO add ability to resume from previously downloaded chunks
         // TODO add rate limiter
 
+        if (journal != null) {
+            journal.delete();
+        }
         return 0;
+    }
+
+    /**
+     * Let go of the output file, the journal, and the copier, unless it's
+     * shared, whether or not the download finished.
+     */
+    private void close() {
+        IOUtils.closeQuietly(output);
+        output = null;
+        if (journal != null) {
+            journal.close();
+        }
+        if (copier != null && !sharedCopier) {
+            copier.close();
+            copier = null;
+        }
+    }
+
+    /**
+     * Open the output file unless it's already open. An interrupted write
+     * closes the channel along with the file, so a retry opens it again.
+     */
+    private FileChannel openOutput() throws IOException {
+        if (output == null || !output.getChannel().isOpen()) {
+            IOUtils.closeQuietly(output);
+            output = new RandomAccessFile(outputFile, "rw");
+        }
+        return output.getChannel();
+    }
+
+    /**
+     * When the object was uploaded in multiple parts, hash each of those parts
+     * on its own so the result can be checked against its multipart ETag.
+     */
+    private void initMultipartDigest() {
+        multipartDigest = null;
+        currentRange = null;
+        if (ETagUtils.isMultipart(fullETag)) {
+            partSizes = ETagUtils.getPartSizes(amazonS3Client, bucket, key, contentLength, fullETag);
+            if (!partSizes.isEmpty()) {
+                multipartDigest = new MultipartDigest(contentLength, partSizes.get(0));
+                currentRange = multipartDigest.range(0);
+                if (verbose) {
+                    System.err.println("Verifying " + multipartDigest.getPartCount() + " parts of " + partSizes.get(0) + " bytes");
+                }
+            }
+        }
+    }
 
+    /**
+     * Compare the multipart ETag computed from each of the parts with the one
+     * from S3. When the part size was only inferred, the other likely part
+     * sizes are tried against the downloaded file before giving up.
+     */
+    private void verifyMultipart() throws IOException {
+        String computedETag = multipartDigest.getETag();
+        if (verbose) {
+            System.err.println("\nCalculated multipart ETag: " + computedETag);
+        }
+        if (computedETag.equalsIgnoreCase(fullETag)
+                || ETagUtils.findPartSize(output, contentLength, fullETag, partSizes.subList(1, partSizes.size())) != null) {
+            return;
+        }
+
+        // there's no telling where the bad bytes are, so don't resume from any of them
+        if (journal != null) {
+            journal.delete();
+        }
+        throw new AmazonClientException("Unable to verify integrity of data download.  "
+                + "Client calculated multipart ETag didn't match the one calculated by Amazon S3.  "
+                + "The data may be corrupt.");
     }
 
     public MessageDigest retryingGet()
@@ -109,14 +277,21 @@ public class Get implements Callable<Integer> {
         return (MessageDigest) RetryUtils.AWS_RETRYER.call(new Callable<Object>() {
             public MessageDigest call() throws Exception {
 
-                GetObjectRequest req = new GetObjectRequest(bucket, key);
-
-                S3Object s3Object = amazonS3Client.getObject(req);
-                contentLength = s3Object.getObjectMetadata().getContentLength();
+                S3Object s3Object = getObject();
+                contentLength = s3Object.getObjectMetadata().getInstanceLength();
                 fullETag = s3Object.getObjectMetadata().getETag();
+                if (resumeFrom == 0) {
+                    if (multipartDigest == null) {
+                        initMultipartDigest();
+                    }
+                    if (journal != null) {
+                        journal.open(fullETag, contentLength, DEFAULT_CHECKPOINT_SIZE);
+                    }
+                }
 
                 Progress progress = new TransferProgressWrapper(new TransferProgress());
                 progress.setTotalBytesToTransfer(contentLength);
+                progress.updateProgress(resumeFrom);
                 if (progressListener != null) {
                     progressListener.withTransferProgress(progress)
                             .withCompleted(0.0)
@@ -126,15 +301,11 @@ public class Get implements Callable<Integer> {
                 InputStream input = null;
                 try {
                     // create the output file, now that we know it actually exists
-                    if(output == null) {
-                        output = new RandomAccessFile(outputFile, "rw");
-                    }
+                    openOutput();
 
-                    // seek to the start of the chunk in the file, just in case we're retrying
-                    output.seek(0);
                     input = s3Object.getObjectContent();
 
-                    return copyAndHash(input, contentLength, progress);
+                    return copyAndHash(input, contentLength - resumeFrom, progress);
                 } finally {
                     IOUtils.closeQuietly(input);
                 }
@@ -142,29 +313,130 @@ public class Get implements Callable<Integer> {
         });
     }
 
-    public MessageDigest copyAndHash(InputStream input, long totalBytes, Progress progress)
+    public MessageDigest copyAndHash(InputStream input, long totalBytes, final Progress progress)
             throws IOException, CloneNotSupportedException {
 
         // clone the current digest, such that it remains unchanged in this method
-        MessageDigest computedDigest = (MessageDigest) currentDigest.clone();
-        byte[] buffer = new byte[DEFAULT_BUF_SIZE];
+        final MessageDigest computedDigest = (MessageDigest) currentDigest.clone();
+        final MultipartDigest.Range computedRange = currentRange == null ? null : currentRange.clone();
+        if (copier == null) {
+            copier = new ChannelCopier(ioSize == null ? ChannelCopier.DEFAULT_IO_SIZE : ioSize);
+        }
+
+        final long start = resumeFrom;
+        hashedTo = start;
+        writtenTo = start;
+
+        // writes are positional, so each attempt starts exactly where it should in the file
+        long count;
+        try {
+            count = copier.copy(input, output.getChannel(), start, new ChannelCopier.Listener() {
+                public void received(int bytes) {
+                    if (progressListener != null) {
+                        progress.updateProgress(bytes);
+                        progressListener.progressChanged(new ProgressEvent(ProgressEventType.RESPONSE_BYTE_TRANSFER_EVENT, bytes));
+                    }
+                }
+
+                public void update(byte[] buffer, int offset, int length) {
+                    if (computedRange != null) {
+                        computedRange.update(buffer, offset, length);
+                    } else {
+                        computedDigest.update(buffer, offset, length);
+                    }
+                    hashedTo += length;
+                }
 
-        long count = 0;
-        int n;
-        while (-1 != (n = input.read(buffer))) {
-            output.write(buffer, 0, n);
-            if (progressListener != null) {
-                progress.updateProgress(n);
-                progressListener.progressChanged(new ProgressEvent(ProgressEventType.RESPONSE_BYTE_TRANSFER_EVENT, n));
+                public void written(long position) throws IOException {
+                    writtenTo = position;
+
+                    // make what's been written so far durable before noting it in the journal
+                    if (journal != null && position - checkpoint >= DEFAULT_CHECKPOINT_SIZE) {
+                        output.getChannel().force(false);
+                        while (position - checkpoint >= DEFAULT_CHECKPOINT_SIZE) {
+                            journal.finished(checkpoint, checkpoint + DEFAULT_CHECKPOINT_SIZE - 1);
+                            checkpoint += DEFAULT_CHECKPOINT_SIZE;
+                        }
+                    }
+                }
+                });
+        } finally {
+            // keep whatever made it through both hashing and out to the file, such that a retry only asks for what's left
+            if (hashedTo == writtenTo && writtenTo - start <= totalBytes) {
+                currentDigest = computedDigest;
+                currentRange = computedRange;
+                resumeFrom = writtenTo;
             }
-            computedDigest.update(buffer, 0, n);
-            count += n;
         }
 
-        // verify that at least this many bytes were read
+        // verify that exactly this many bytes were read
         if (totalBytes != count) {
             throw new IOException(String.format("%d bytes downloaded instead of expected %d bytes", count, totalBytes));
         }
         return computedDigest;
     }
+
+    /**
+     * Request whatever is left of the object. When resuming, this only returns
+     * bytes from the same version of the object that was previously recorded,
+     * otherwise the download starts over from the beginning.
+     */
+    private S3Object getObject() {
+        if (resumeFrom > 0) {
+            GetObjectRequest req = new GetObjectRequest(bucket, key)
+                    .withRange(resumeFrom)
+                    .withMatchingETagConstraint(fullETag);
+
+            S3Object s3Object = amazonS3Client.getObject(req);
+            if (s3Object != null) {
+                return s3Object;
+            }
+
+            // the object changed since the journal was written, so start over
+            if (verbose) {
+                System.err.println("ETag no longer matches " + fullETag + ", starting over");
+            }
+            resumeFrom = 0;
+            checkpoint = 0;
+            currentDigest.reset();
+            multipartDigest = null;
+        }
+        return amazonS3Client.getObject(new GetObjectRequest(bucket, key));
+    }
+
+    /**
+     * Feed the given number of bytes that were already downloaded back through
+     * the given digest.
+     *
+     * @param digest update this digest
+     * @param length the number of bytes from the start of the output file
+     */
+    public void hashLocalPrefix(MessageDigest digest, long length) throws IOException {
+        FileChannel channel = openOutput();
+        byte[] buffer = new byte[DEFAULT_BUF_SIZE];
+        ByteBuffer bb = ByteBuffer.wrap(buffer);
+        long position = 0;
+        while (position < length) {
+            bb.clear();
+            bb.limit((int) Math.min(buffer.length, length - position));
+            int n = channel.read(bb, position);
+            if (n < 0) {
+                throw new IOException(String.format("Unexpected end of file after %d of %d bytes", position, length));
+            }
+            digest.update(buffer, 0, n);
+            position += n;
+        }
+    }
+
+    /**
+     * Feed the given number of bytes that were already downloaded back through
+     * the given part digests.
+     *
+     * @param range  update this range, which must start at the beginning of the file
+     * @param length the number of bytes from the start of the output file
+     */
+    public void hashLocalPrefix(MultipartDigest.Range range, long length) throws IOException {
+        openOutput();
+        range.update(output, length);
+    }
 }
@@ -17,39 +17,66 @@
 package com.github.rholder.esthree.command;
 
 import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.event.ProgressEvent;
 import com.amazonaws.event.ProgressEventType;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
 import com.amazonaws.services.s3.transfer.TransferProgress;
 import com.amazonaws.util.BinaryUtils;
+import com.github.rholder.esthree.digest.MultipartDigest;
+import com.github.rholder.esthree.journal.DownloadJournal;
+import com.github.rholder.esthree.plan.ChunkPlanner;
+import com.github.rholder.esthree.plan.LatencyTracker;
 import com.github.rholder.esthree.progress.MutableProgressListener;
 import com.github.rholder.esthree.progress.Progress;
 import com.github.rholder.esthree.progress.TransferProgressWrapper;
+import com.github.rholder.esthree.util.ChannelCopier;
+import com.github.rholder.esthree.util.ETagUtils;
 import com.github.rholder.esthree.util.RetryUtils;
 import com.github.rholder.moar.concurrent.partition.Part;
-import com.github.rholder.moar.concurrent.partition.Parts;
 import com.github.rholder.retry.RetryException;
+import com.google.common.primitives.Ints;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class GetMultipart implements Callable<Integer> {
 
     // TODO parameterize internal buffer size?
     public static final int DEFAULT_BUF_SIZE = 4096 * 4;
     public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024 * 5; // 5 MB
+    public static final int DEFAULT_CONCURRENCY = 1;
+    public static final long HEDGE_CHECK_MILLIS = 50;
+
+    // how far past the percentile a range has to run before it's hedged, so only real stragglers are
+    public static final double HEDGE_MULTIPLIER = 2.0;
 
     public AmazonS3Client amazonS3Client;
     public String bucket;
@@ -59,11 +86,29 @@ public class GetMultipart implements Callable<Integer> {
     public RandomAccessFile output;
 
     private Integer chunkSize;
+    private boolean autoChunkSize;
+    private Integer minChunkSize;
+    private Integer maxChunkSize;
+    private Integer concurrency;
+    private Double hedgePercentile;
+    private boolean resume = true;
     private MutableProgressListener progressListener;
 
     private MessageDigest currentDigest;
-    private List<Part> fileParts;
+    private S3Object probe;
+    private long probeEnd = -1;
+    private ChunkPlanner planner;
     private long contentLength;
+    private String fullETag;
+    private DownloadJournal journal;
+    private Integer ioSize;
+    private ChannelCopier copier;
+    private boolean sharedCopier;
+    private List<Long> partSizes;
+    private MultipartDigest multipartDigest;
+    private LatencyTracker latencies;
+    private ExecutorService hedgeExecutor;
+    private final Set<RangeFetch> inFlight = Collections.newSetFromMap(new ConcurrentHashMap<RangeFetch, Boolean>());
 
     public GetMultipart(AmazonS3Client amazonS3Client, String bucket, String key, File outputFile, boolean verbose) throws FileNotFoundException {
         this.amazonS3Client = amazonS3Client;
@@ -83,24 +128,216 @@ public class GetMultipart implements Callable<Integer> {
         return this;
     }
 
+    /**
+     * When enabled, start with small ranges and size each following range by
+     * the throughput measured so far, instead of using a fixed chunk size. Any
+     * chunk size that was set is used for the first range.
+     *
+     * @param autoChunkSize true to adapt the chunk size as the download goes
+     */
+    public GetMultipart withAutoChunkSize(boolean autoChunkSize) {
+        this.autoChunkSize = autoChunkSize;
+        return this;
+    }
+
+    /**
+     * Set the smallest range to request when the chunk size adapts, defaults
+     * to {@link ChunkPlanner#DEFAULT_MIN_CHUNK_SIZE}.
+     *
+     * @param minChunkSize the smallest chunk size in bytes
+     */
+    public GetMultipart withMinChunkSize(Integer minChunkSize) {
+        this.minChunkSize = minChunkSize;
+        return this;
+    }
+
+    /**
+     * Set the largest range to request when the chunk size adapts, defaults
+     * to {@link ChunkPlanner#DEFAULT_MAX_CHUNK_SIZE}.
+     *
+     * @param maxChunkSize the largest chunk size in bytes
+     */
+    public GetMultipart withMaxChunkSize(Integer maxChunkSize) {
+        this.maxChunkSize = maxChunkSize;
+        return this;
+    }
+
+    public GetMultipart withConcurrency(Integer concurrency) {
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * When downloading concurrently, race any range that runs longer than
+     * {@link #HEDGE_MULTIPLIER} times the given percentile of the ranges
+     * completed so far with a second request for whatever it hasn't received
+     * yet. Hedging is disabled by default.
+     *
+     * A hedge buffers the rest of its range separately, so on top of the two
+     * chunks per concurrent range that are otherwise held in memory, each
+     * range that's being hedged can hold up to one more.
+     *
+     * @param hedgePercentile a percentile from 0.0 - 100.0, or null to disable hedging
+     */
+    public GetMultipart withHedgePercentile(Double hedgePercentile) {
+        this.hedgePercentile = hedgePercentile;
+        return this;
+    }
+
+    /**
+     * Set the number of bytes to accumulate from the network before each write
+     * to the output file, defaults to {@link ChannelCopier#DEFAULT_IO_SIZE}.
+     *
+     * @param ioSize the size of each write in bytes
+     */
+    public GetMultipart withIoSize(Integer ioSize) {
+        this.ioSize = ioSize;
+        return this;
+    }
+
+    /**
+     * Copy ranges with the given copier instead of one of its own, such that
+     * a caller fetching many objects one after another can reuse its buffers
+     * and threads. The caller closes it when it's done with it.
+     *
+     * @param copier the copier to use, which overrides {@link #withIoSize(Integer)}
+     */
+    public GetMultipart withCopier(ChannelCopier copier) {
+        this.copier = copier;
+        this.sharedCopier = copier != null;
+        return this;
+    }
+
+    /**
+     * When enabled (the default), keep a journal of finished chunks next to the
+     * output file and pick up from it when a previous attempt didn't finish.
+     *
+     * @param resume false to always start over from the beginning
+     */
+    public GetMultipart withResume(boolean resume) {
+        this.resume = resume;
+        return this;
+    }
+
     @Override
     public Integer call() throws Exception {
-        ObjectMetadata om = amazonS3Client.getObjectMetadata(bucket, key);
-        contentLength = om.getContentLength();
-
         // this is the most up to date digest, it's initialized here but later holds the most up to date valid digest
         currentDigest = MessageDigest.getInstance("MD5");
-        chunkSize = chunkSize == null ? DEFAULT_CHUNK_SIZE : chunkSize;
-        fileParts = Parts.among(contentLength, chunkSize);
-        for (Part fp : fileParts) {
+        minChunkSize = minChunkSize == null ? Ints.checkedCast(ChunkPlanner.DEFAULT_MIN_CHUNK_SIZE) : minChunkSize;
+        maxChunkSize = maxChunkSize == null ? Ints.checkedCast(ChunkPlanner.DEFAULT_MAX_CHUNK_SIZE) : maxChunkSize;
+        if (chunkSize == null) {
+            chunkSize = autoChunkSize ? minChunkSize : DEFAULT_CHUNK_SIZE;
+        }
+        concurrency = concurrency == null ? DEFAULT_CONCURRENCY : concurrency;
+
+        try {
+            probe();
+            return download();
+        } finally {
+            // whatever happened, don't leave the first response hanging
+            abortProbe();
+            close();
+        }
+    }
+
+    /**
+     * Request the first chunk of the object without knowing anything about it
+     * yet, and take the size and ETag of the whole object from that response
+     * instead of asking for them separately. The response is held on to so
+     * the first chunk can be read from it. An object too small to have a first
+     * chunk, as in one that's empty, falls back to asking for the metadata.
+     */
+    private void probe() throws ExecutionException, RetryException {
+        final long end = chunkSize - 1L;
+        S3Object first = (S3Object) RetryUtils.AWS_RETRYER.call(new Callable<Object>() {
+            public S3Object call() throws Exception {
+                try {
+                    return amazonS3Client.getObject(new GetObjectRequest(bucket, key).withRange(0, end));
+                } catch (AmazonServiceException e) {
+                    if (e.getStatusCode() == 416) {
+                        return null;
+                    }
+                    throw e;
+                }
+            }
+        });
+
+        if (first == null) {
+            ObjectMetadata om = amazonS3Client.getObjectMetadata(bucket, key);
+            contentLength = om.getContentLength();
+            fullETag = om.getETag();
+            return;
+        }
+
+        // the total size comes from Content-Range, or Content-Length when the whole object came back
+        ObjectMetadata om = first.getObjectMetadata();
+        contentLength = om.getInstanceLength();
+        fullETag = om.getETag();
+        probe = first;
+        probeEnd = Math.min(end, contentLength - 1);
+        if (verbose) {
+            System.err.println("Found " + contentLength + " bytes with ETag " + fullETag + " from the first range");
+        }
+    }
+
+    private Integer download() throws Exception {
+        if (ETagUtils.isMultipart(fullETag)) {
+            alignToParts();
+        }
+
+        if (resume) {
+            journal = DownloadJournal.forFile(outputFile);
+            if (!outputFile.exists()) {
+                // nothing left on disk to resume from
+                journal.delete();
+            }
+            // ranges vary in size when they adapt, so those are recorded with a chunk size of 0
+            if (journal.open(fullETag, contentLength, autoChunkSize ? 0 : chunkSize) && verbose) {
+                System.err.println("Resuming with " + journal.getFinishedBytes() + " bytes already downloaded");
+            }
+        }
+
+        planner = new ChunkPlanner(contentLength, chunkSize)
+                .withJournal(journal)
+                .withVerbose(verbose);
+        if (multipartDigest != null) {
+            planner.withAlignment(multipartDigest.getPartSize());
+        }
+        if (autoChunkSize) {
+            planner.withBounds(minChunkSize, maxChunkSize);
+        }
 
-            /*
-             * We'll need to compute the digest on the full incoming stream for
-             * each valid chunk that comes in. Invalid chunks will need to be
-             * recomputed and fed through a copy of the MD5 that was valid up
-             * until the latest chunk.
-             */
-            currentDigest = retryingGetWithRange(fp.start, fp.end);
+        // the first response is only any good if the plan still starts with a range it covers
+        boolean firstPlanned = Math.min(chunkSize, contentLength) - 1 <= probeEnd
+                && (journal == null || journal.getFinishedEnd(0) == null);
+        if (!firstPlanned) {
+            abortProbe();
+        }
+
+        if (concurrency > 1) {
+            currentDigest = concurrentGet();
+        } else {
+            Part fp;
+            while ((fp = planner.next()) != null) {
+                if (isFinished(fp)) {
+                    // the digest state can't be saved, so rebuild it from what's already on disk
+                    if (multipartDigest != null) {
+                        hashLocalRange(multipartDigest.range(fp.start), fp.start, fp.end);
+                    } else {
+                        hashLocalRange(currentDigest, fp.start, fp.end);
+                    }
+                    continue;
+                }
+
+                /*
+                 * We'll need to compute the digest on the full incoming stream for
+                 * each valid chunk that comes in. Invalid chunks will need to be
+                 * recomputed and fed through a copy of the MD5 that was valid up
+                 * until the latest chunk.
+                 */
+                currentDigest = retryingGetWithRange(fp.start, fp.end);
+                recordFinished(fp.start, fp.end);
+            }
         }
 
         // TODO fix total content length progress bar
@@ -108,59 +345,110 @@ public class GetMultipart implements Callable<Integer> {
             progressListener.progressChanged(new ProgressEvent(ProgressEventType.TRANSFER_STARTED_EVENT));
         }
 
-        String fullETag = om.getETag();
-        if (!fullETag.contains("-")) {
+        if (multipartDigest != null) {
+            verifyMultipart();
+        } else if (!ETagUtils.isMultipart(fullETag)) {
             byte[] expected = BinaryUtils.fromHex(fullETag);
             byte[] current = currentDigest.digest();
             if (!Arrays.equals(expected, current)) {
+                // there's no telling which chunks are bad, so don't resume from any of them
+                if (journal != null) {
+                    journal.delete();
+                }
                 throw new AmazonClientException("Unable to verify integrity of data download.  "
                         + "Client calculated content hash didn't match hash calculated by Amazon S3.  "
                         + "The data may be corrupt.");
             }
         } else {
-            // TODO log warning that we can't validate the MD5
             if(verbose) {
-                System.err.println("\nMD5 does not exist on AWS for file, calculated value: " + BinaryUtils.toHex(currentDigest.digest()));
+                System.err.println("\nUnable to determine the part size of " + fullETag + ", calculated MD5: " + BinaryUtils.toHex(currentDigest.digest()));
             }
         }
-        // TODO add ability to resume from previously downloaded chunks
         // TODO add rate limiter
 
+        if (journal != null) {
+            journal.delete();
+        }
         return 0;
     }
 
+    /**
+     * Line the chunks up with the parts the object was originally uploaded in,
+     * such that each chunk covers whole parts that can be hashed on their own.
+     */
+    private void alignToParts() {
+        partSizes = ETagUtils.getPartSizes(amazonS3Client, bucket, key, contentLength, fullETag);
+        if (partSizes.isEmpty() || partSizes.get(0) > Integer.MAX_VALUE) {
+            return;
+        }
+        long partSize = partSizes.get(0);
+        multipartDigest = new MultipartDigest(contentLength, partSize);
+        long partsPerChunk = Math.max(1, Math.round((double) chunkSize / partSize));
+        chunkSize = Ints.checkedCast(Math.min(partsPerChunk, Integer.MAX_VALUE / partSize) * partSize);
+        if (verbose) {
+            System.err.println("Verifying " + multipartDigest.getPartCount() + " parts of " + partSize + " bytes, using chunks of " + chunkSize + " bytes");
+        }
+    }
+
+    /**
+     * Compare the multipart ETag computed from each of the parts with the one
+     * from S3. When the part size was only inferred, the other likely part
+     * sizes are tried against the downloaded file before giving up.
+     */
+    private void verifyMultipart() throws IOException {
+        String computedETag = multipartDigest.getETag();
+        if (verbose) {
+            System.err.println("\nCalculated multipart ETag: " + computedETag);
+        }
+        if (computedETag.equalsIgnoreCase(fullETag)
+                || ETagUtils.findPartSize(output, contentLength, fullETag, partSizes.subList(1, partSizes.size())) != null) {
+            return;
+        }
+
+        // there's no telling which chunks are bad, so don't resume from any of them
+        if (journal != null) {
+            journal.delete();
+        }
+        throw new AmazonClientException("Unable to verify integrity of data download.  "
+                + "Client calculated multipart ETag didn't match the one calculated by Amazon S3.  "
+                + "The data may be corrupt.");
+    }
+
     public MessageDigest retryingGetWithRange(final long start, final long end)
-            throws ExecutionException, RetryException {
+            throws ExecutionException, RetryException, CloneNotSupportedException {
 
+        final RangeCopy rangeCopy = new RangeCopy(start, end);
         return (MessageDigest) RetryUtils.AWS_RETRYER.call(new Callable<Object>() {
+            private int attempts;
+
             public MessageDigest call() throws Exception {
 
+                attempts++;
                 long totalBytes = end - start + 1;
                 Progress progress = new TransferProgressWrapper(new TransferProgress());
                 progress.setTotalBytesToTransfer(totalBytes);
+                progress.updateProgress(rangeCopy.getCompleted());
 
                 if (progressListener != null) {
                     progressListener.withTransferProgress(progress)
                             .withCompleted((100.0 * start) / contentLength)
-                            .withMultiplier((1.0 * totalBytes / (Math.min(contentLength, chunkSize))) / fileParts.size());
+                            .withMultiplier((1.0 * totalBytes) / contentLength);
                 }
 
-                GetObjectRequest req = new GetObjectRequest(bucket, key)
-                        .withRange(start, end);
-
-                S3Object s3Object = amazonS3Client.getObject(req);
+                // only ask for what's left after whatever made it through the last attempt
+                long completed = rangeCopy.getCompleted();
+                long requested = System.nanoTime();
+                S3Object s3Object = getObjectRange(start + completed, end);
+                long firstByte = System.nanoTime();
                 InputStream input = null;
                 try {
                     // create the output file, now that we know it actually exists
-                    if(output == null) {
-                        output = new RandomAccessFile(outputFile, "rw");
-                    }
+                    openOutput();
 
-                    // seek to the start of the chunk in the file, just in case we're retrying
-                    output.seek(start);
                     input = s3Object.getObjectContent();
-
-                    return copyAndHash(input, totalBytes, progress);
+                    MessageDigest computedDigest = rangeCopy.copyAndHash(input, progress);
+                    planner.record(totalBytes - completed, firstByte - requested, System.nanoTime() - requested, attempts > 1);
+                    return computedDigest;
                 } finally {
                     IOUtils.closeQuietly(input);
                 }
@@ -168,29 +456,558 @@ public class GetMultipart implements Callable<Integer> {
         });
     }
 
-    public MessageDigest copyAndHash(InputStream input, long totalBytes, Progress progress)
-            throws IOException, CloneNotSupportedException {
+    /**
+     * Fetch all of the file parts with up to the configured concurrency of
+     * ranged requests in flight at once. Each part is buffered in memory and
+     * written at its own offset as soon as it arrives, while the calling thread
+     * feeds completed parts into the current digest strictly in file order.
+     * For a multipart object, each part is instead hashed by the thread that
+     * fetched it, since those parts can be hashed in any order. No
+     * more than twice the concurrency worth of parts are ever held in memory,
+     * no matter what order they happen to complete in. When hedging is enabled,
+     * the parts in flight are checked every {@link #HEDGE_CHECK_MILLIS} to see
+     * if any of them are straggling.
+     *
+     * @return the digest of the entire file
+     */
+    public MessageDigest concurrentGet() throws Exception {
+        // create the output file, now that we know it actually exists
+        openOutput();
+
+        // a single progress tracks the whole file since parts complete out of order
+        final Progress progress = new TransferProgressWrapper(new TransferProgress());
+        progress.setTotalBytesToTransfer(contentLength);
+        if (progressListener != null) {
+            progressListener.withTransferProgress(progress)
+                    .withCompleted(0.0)
+                    .withMultiplier(1.0);
+        }
+
+        ScheduledExecutorService hedgeMonitor = null;
+        if (hedgePercentile != null) {
+            latencies = new LatencyTracker(hedgePercentile);
+            hedgeExecutor = Executors.newCachedThreadPool();
+            hedgeMonitor = Executors.newSingleThreadScheduledExecutor();
+            hedgeMonitor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    long now = System.nanoTime();
+                    for (RangeFetch fetch : inFlight) {
+                        fetch.maybeHedge(now);
+                    }
+                }
+            }, HEDGE_CHECK_MILLIS, HEDGE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        int window = concurrency * 2;
+        Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>(window);
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        try {
+            Part part;
+            while ((part = planner.next()) != null) {
+                final Part fp = part;
+
+                // wait on the oldest part before letting another one in
+                if (pending.size() >= window) {
+                    updateInOrder(pending.removeFirst().get());
+                }
+                pending.addLast(executor.submit(new Callable<byte[]>() {
+                    public byte[] call() throws Exception {
+                        byte[] buffer;
+                        if (isFinished(fp)) {
+                            buffer = readLocalRange(fp.start, fp.end);
+                            updateProgress(progress, buffer.length);
+                        } else {
+                            buffer = retryingGetRangeBuffer(fp.start, fp.end, progress);
+                            recordFinished(fp.start, fp.end);
+                        }
+                        if (multipartDigest != null) {
+                            multipartDigest.range(fp.start).update(buffer, 0, buffer.length);
+                        }
+                        return buffer;
+                    }
+                }));
+            }
+            while (!pending.isEmpty()) {
+                updateInOrder(pending.removeFirst().get());
+            }
+        } finally {
+            executor.shutdownNow();
+            if (hedgeMonitor != null) {
+                hedgeMonitor.shutdownNow();
+                hedgeExecutor.shutdownNow();
+            }
+        }
+        return currentDigest;
+    }
+
+    private void updateInOrder(byte[] buffer) {
+        // multipart objects were already hashed part by part
+        if (multipartDigest == null) {
+            currentDigest.update(buffer);
+        }
+    }
+
+    /**
+     * Fetch the given range into memory and write it out at its offset in the
+     * output file, retrying the whole range as needed.
+     *
+     * @param start    the first byte of the range
+     * @param end      the last byte of the range, inclusive
+     * @param progress the progress for the whole file
+     * @return the bytes of the range, in order
+     */
+    public byte[] retryingGetRangeBuffer(long start, long end, Progress progress)
+            throws ExecutionException, RetryException {
+
+        return (byte[]) RetryUtils.AWS_RETRYER.call(new RangeFetch(start, end, progress));
+    }
+
+    /**
+     * Fetch a single range into memory and write it out at its offset in the
+     * output file. What's been received so far is kept from one attempt to the
+     * next, such that a retry only asks for what's left. When hedging is
+     * enabled, an attempt that runs well past how long ranges usually take is
+     * raced by a second request for whatever it hasn't received yet. Whichever
+     * of the two finishes first wins and the other one is aborted. Either way,
+     * the bytes end up in the same buffer, so they're written to the same
+     * offsets and hashed in the same order.
+     */
+    private class RangeFetch implements Callable<Object> {
+
+        private static final int NO_WINNER = 0;
+        private static final int PRIMARY_WON = 1;
+        private static final int HEDGE_WON = 2;
+
+        private final long start;
+        private final long end;
+        private final Progress progress;
+        private final byte[] buffer;
+        private volatile int count;
+        private int attempts;
 
-        // clone the current digest, such that it remains unchanged in this method
-        MessageDigest computedDigest = (MessageDigest) currentDigest.clone();
+        // what the hedge monitor needs to know about the current attempt
+        private volatile long attemptStarted;
+        private volatile int attemptBytes;
+        private volatile S3ObjectInputStream input;
+
+        // a range is only ever hedged once
+        private boolean hedged;
+        private volatile Future<byte[]> hedge;
+        private volatile int hedgeFrom;
+        private volatile S3ObjectInputStream hedgeInput;
+        private final AtomicInteger winner = new AtomicInteger(NO_WINNER);
+
+        RangeFetch(long start, long end, Progress progress) {
+            this.start = start;
+            this.end = end;
+            this.progress = progress;
+            this.buffer = new byte[Ints.checkedCast(end - start + 1)];
+        }
+
+        public byte[] call() throws Exception {
+
+            attempts++;
+            int completed = count;
+            long requested = System.nanoTime();
+            long firstByte = requested;
+            attemptStarted = requested;
+            attemptBytes = buffer.length - completed;
+
+            if (count == buffer.length) {
+                // everything already came in during an earlier attempt, only the write failed
+                return write(completed, requested, firstByte);
+            }
+
+            Exception failure = null;
+            inFlight.add(this);
+            try {
+                S3Object s3Object = getObjectRange(start + count, end);
+                firstByte = System.nanoTime();
+                input = s3Object.getObjectContent();
+                int n;
+                while (winner.get() != HEDGE_WON && count < buffer.length
+                        && -1 != (n = input.read(buffer, count, buffer.length - count))) {
+                    updateProgress(progress, n);
+                    count += n;
+                }
+
+                // verify that exactly this many bytes were read
+                if (count == buffer.length && input.read() != -1) {
+                    // there's no telling which bytes were the extra ones, so start this range over without any hedge
+                    abortHedge();
+                    updateProgress(progress, -count);
+                    count = 0;
+                    throw new IOException(String.format("Unexpected number of bytes downloaded for range %d-%d", start, end));
+                }
+            } catch (Exception e) {
+                failure = e;
+            } finally {
+                inFlight.remove(this);
+                IOUtils.closeQuietly(input);
+            }
+
+            if (count == buffer.length) {
+                if (winner.compareAndSet(NO_WINNER, PRIMARY_WON)) {
+                    abortHedge();
+                }
+            } else if (hedge != null) {
+                // this attempt was either beaten or failed, but the hedge might still come through
+                byte[] rest;
+                try {
+                    rest = hedge.get();
+                } catch (ExecutionException e) {
+                    throw failure != null ? failure : new IOException(e.getCause());
+                } finally {
+                    hedge = null;
+                }
+                System.arraycopy(rest, 0, buffer, hedgeFrom, rest.length);
+                updateProgress(progress, buffer.length - count);
+                count = buffer.length;
+            } else if (failure != null) {
+                throw failure;
+            } else {
+                throw new IOException(String.format("%d of %d bytes downloaded for range %d-%d", count, buffer.length, start, end));
+            }
+            return write(completed, requested, firstByte);
+        }
+
+        private byte[] write(int completed, long requested, long firstByte) throws IOException {
+            // positional writes are safe to run alongside the other parts
+            FileChannel channel = openOutput();
+            ByteBuffer bb = ByteBuffer.wrap(buffer);
+            long position = start;
+            while (bb.hasRemaining()) {
+                position += channel.write(bb, position);
+            }
+
+            long elapsed = System.nanoTime() - requested;
+            planner.record(buffer.length - completed, firstByte - requested, elapsed, attempts > 1);
+            if (latencies != null) {
+                latencies.record(buffer.length - completed, elapsed);
+            }
+            return buffer;
+        }
+
+        /**
+         * Start racing the current attempt with a request for the rest of the
+         * range if it's been running well past how long ranges usually take.
+         *
+         * @param now the current System.nanoTime()
+         */
+        synchronized void maybeHedge(long now) {
+            if (hedged || winner.get() != NO_WINNER) {
+                return;
+            }
+            Long threshold = latencies.getThresholdNanos(attemptBytes);
+            if (threshold == null || now - attemptStarted <= threshold * HEDGE_MULTIPLIER) {
+                return;
+            }
+
+            hedged = true;
+            final int from = count;
+            hedgeFrom = from;
+            if (verbose) {
+                System.err.println(String.format("Hedging range %d-%d from byte %d after %d ms",
+                        start, end, start + from, TimeUnit.NANOSECONDS.toMillis(now - attemptStarted)));
+            }
+            hedge = hedgeExecutor.submit(new Callable<byte[]>() {
+                public byte[] call() throws Exception {
+                    try {
+                        S3Object s3Object = getObjectRange(start + from, end);
+                        hedgeInput = s3Object.getObjectContent();
+                        byte[] rest = new byte[buffer.length - from];
+                        int received = 0;
+                        int n;
+                        while (winner.get() != PRIMARY_WON && received < rest.length
+                                && -1 != (n = hedgeInput.read(rest, received, rest.length - received))) {
+                            received += n;
+                        }
+                        if (received != rest.length) {
+                            throw new IOException(String.format("%d of %d bytes downloaded for hedged range %d-%d", received, rest.length, start + from, end));
+                        }
+
+                        if (winner.compareAndSet(NO_WINNER, HEDGE_WON)) {
+                            if (verbose) {
+                                System.err.println(String.format("Hedge won for range %d-%d", start, end));
+                            }
+                            S3ObjectInputStream primary = input;
+                            if (primary != null) {
+                                primary.abort();
+                            }
+                        }
+                        return rest;
+                    } finally {
+                        IOUtils.closeQuietly(hedgeInput);
+                    }
+                }
+            });
+        }
+
+        private synchronized void abortHedge() {
+            S3ObjectInputStream loser = hedgeInput;
+            if (loser != null) {
+                loser.abort();
+            }
+            if (hedge != null) {
+                hedge.cancel(false);
+                hedge = null;
+            }
+        }
+    }
+
+    /**
+     * Request the given range, but only from the same version of the object
+     * that all of the other ranges are coming from.
+     *
+     * @param start the first byte of the range
+     * @param end   the last byte of the range, inclusive
+     */
+    private S3Object getObjectRange(long start, long end) {
+        S3Object first = takeProbe(start, end);
+        if (first != null) {
+            return first;
+        }
+
+        GetObjectRequest req = new GetObjectRequest(bucket, key)
+                .withRange(start, end)
+                .withMatchingETagConstraint(fullETag);
+
+        S3Object s3Object = amazonS3Client.getObject(req);
+        if (s3Object == null) {
+            throw new AmazonClientException("The object changed while it was being downloaded, ETag no longer matches " + fullETag);
+        }
+        return s3Object;
+    }
+
+    /**
+     * Hand over the response to the first request if it starts with the given
+     * range and hasn't been read from yet, cut off at the end of the range
+     * when it covers more than that, as in when the chunks were lined up with
+     * the parts after it was sent. It can only be used once.
+     *
+     * @param start the first byte of the range
+     * @param end   the last byte of the range, inclusive
+     * @return the response to the first request, or null if it doesn't cover the range or is already taken
+     */
+    private synchronized S3Object takeProbe(long start, long end) {
+        S3Object first = probe;
+        if (first == null || start != 0 || end > probeEnd) {
+            return null;
+        }
+        probe = null;
+        if (end < probeEnd) {
+            S3ObjectInputStream content = first.getObjectContent();
+            first.setObjectContent(new S3ObjectInputStream(new BoundedInputStream(content, end + 1), content.getHttpRequest()));
+        }
+        return first;
+    }
+
+    /**
+     * Drop the response to the first request without reading the rest of it,
+     * if it hasn't been taken already.
+     */
+    private synchronized void abortProbe() {
+        if (probe != null) {
+            probe.getObjectContent().abort();
+            probe = null;
+        }
+    }
+
+    /**
+     * Let go of the output file, the journal, and the copier, unless it's
+     * shared, whether or not the download finished.
+     */
+    private synchronized void close() {
+        IOUtils.closeQuietly(output);
+        output = null;
+        if (journal != null) {
+            journal.close();
+        }
+        if (copier != null && !sharedCopier) {
+            copier.close();
+            copier = null;
+        }
+    }
+
+    /**
+     * Open the output file unless it's already open. An interrupted write
+     * closes the channel along with the file, so a retry opens it again.
+     */
+    private synchronized FileChannel openOutput() throws IOException {
+        if (output == null || !output.getChannel().isOpen()) {
+            IOUtils.closeQuietly(output);
+            output = new RandomAccessFile(outputFile, "rw");
+        }
+        return output.getChannel();
+    }
+
+    private boolean isFinished(Part fp) {
+        return journal != null && journal.isFinished(fp.start, fp.end);
+    }
+
+    /**
+     * Make sure the bytes of the given range are on disk before the range is
+     * recorded in the journal as finished.
+     */
+    private void recordFinished(long start, long end) throws IOException {
+        if (journal != null) {
+            output.getChannel().force(false);
+            journal.finished(start, end);
+        }
+    }
+
+    /**
+     * Read a range that was already downloaded back in from the output file.
+     *
+     * @param start the first byte of the range
+     * @param end   the last byte of the range, inclusive
+     */
+    public byte[] readLocalRange(long start, long end) throws IOException {
+        FileChannel channel = openOutput();
+        byte[] buffer = new byte[Ints.checkedCast(end - start + 1)];
+        ByteBuffer bb = ByteBuffer.wrap(buffer);
+        while (bb.hasRemaining()) {
+            if (channel.read(bb, start + bb.position()) < 0) {
+                throw new IOException(String.format("Unexpected end of file while reading range %d-%d", start, end));
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Feed a range that was already downloaded back through the given digest.
+     *
+     * @param digest update this digest
+     * @param start  the first byte of the range
+     * @param end    the last byte of the range, inclusive
+     */
+    public void hashLocalRange(MessageDigest digest, long start, long end) throws IOException {
+        FileChannel channel = openOutput();
         byte[] buffer = new byte[DEFAULT_BUF_SIZE];
+        ByteBuffer bb = ByteBuffer.wrap(buffer);
+        long position = start;
+        while (position <= end) {
+            bb.clear();
+            bb.limit(Ints.checkedCast(Math.min(buffer.length, end - position + 1)));
+            int n = channel.read(bb, position);
+            if (n < 0) {
+                throw new IOException(String.format("Unexpected end of file while reading range %d-%d", start, end));
+            }
+            digest.update(buffer, 0, n);
+            position += n;
+        }
+    }
 
-        long count = 0;
-        int n;
-        while (-1 != (n = input.read(buffer))) {
-            output.write(buffer, 0, n);
+    /**
+     * Feed a range that was already downloaded back through the given part digests.
+     *
+     * @param range  update this range, which must start at the given start
+     * @param start  the first byte of the range
+     * @param end    the last byte of the range, inclusive
+     */
+    public void hashLocalRange(MultipartDigest.Range range, long start, long end) throws IOException {
+        openOutput();
+        range.update(output, end - start + 1);
+    }
+
+    private void updateProgress(Progress progress, long bytes) {
+        if (progressListener != null) {
+            synchronized (progressListener) {
+                progress.updateProgress(bytes);
+                progressListener.progressChanged(new ProgressEvent(ProgressEventType.REQUEST_BYTE_TRANSFER_EVENT, bytes));
+            }
+        }
+    }
+
+    /**
+     * Copy a single range into the output file one attempt at a time. Whatever
+     * makes it all the way through hashing and out to the file is kept from
+     * one attempt to the next, such that a retry only has to ask for the bytes
+     * that were actually lost.
+     */
+    private class RangeCopy implements ChannelCopier.Listener {
+
+        private final long start;
+        private final long totalBytes;
+        private MessageDigest computedDigest;
+        private MultipartDigest.Range range;
+        private long hashed;
+        private long written;
+        private Progress progress;
+
+        RangeCopy(long start, long end) throws CloneNotSupportedException {
+            this.start = start;
+            this.totalBytes = end - start + 1;
+            reset();
+        }
+
+        /**
+         * Start the range over from the beginning with a clone of the current
+         * digest, such that the current digest remains unchanged here.
+         */
+        private void reset() throws CloneNotSupportedException {
+            computedDigest = (MessageDigest) currentDigest.clone();
+            range = multipartDigest == null ? null : multipartDigest.range(start);
+            hashed = 0;
+            written = 0;
+        }
+
+        /**
+         * Return the number of bytes from the start of the range that have been
+         * hashed and written out so far.
+         */
+        long getCompleted() {
+            return written;
+        }
+
+        MessageDigest copyAndHash(InputStream input, Progress progress)
+                throws IOException, CloneNotSupportedException {
+
+            this.progress = progress;
+            if (copier == null) {
+                copier = new ChannelCopier(ioSize == null ? ChannelCopier.DEFAULT_IO_SIZE : ioSize);
+            }
+
+            try {
+                // writes are positional, so a retried range lands right where it should in the file
+                copier.copy(input, output.getChannel(), start + written, this);
+            } finally {
+                // only bytes that were both hashed and written can be carried over to the next attempt
+                if (hashed != written) {
+                    reset();
+                }
+            }
+
+            // verify that exactly this many bytes were read
+            if (totalBytes != written) {
+                String message = String.format("%d bytes downloaded instead of expected %d bytes", written, totalBytes);
+                if (written > totalBytes) {
+                    // there's no telling which bytes were the extra ones, so start this range over
+                    reset();
+                }
+                throw new IOException(message);
+            }
+            return computedDigest;
+        }
+
+        public void received(int bytes) {
             if (progressListener != null) {
-                progress.updateProgress(n);
-                progressListener.progressChanged(new ProgressEvent(ProgressEventType.REQUEST_BYTE_TRANSFER_EVENT, n));
+                progress.updateProgress(bytes);
+                progressListener.progressChanged(new ProgressEvent(ProgressEventType.REQUEST_BYTE_TRANSFER_EVENT, bytes));
+            }
+        }
+
+        public void update(byte[] buffer, int offset, int length) {
+            if (range != null) {
+                range.update(buffer, offset, length);
+            } else {
+                computedDigest.update(buffer, offset, length);
             }
-            computedDigest.update(buffer, 0, n);
-            count += n;
+            hashed += length;
         }
 
-        // verify that at least this many bytes were read
-        if (totalBytes != count) {
-            throw new IOException(String.format("%d bytes downloaded instead of expected %d bytes", count, totalBytes));
+        public void written(long position) {
+            written = position - start;
         }
-        return computedDigest;
     }
 }
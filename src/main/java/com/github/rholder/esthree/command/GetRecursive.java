@@ -0,0 +1,234 @@
+/*
+ * Copyright 2014 Ray Holder
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rholder.esthree.command;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.github.rholder.esthree.util.ChannelCopier;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Download every object under a prefix into a local directory, creating the
+ * directories that mirror each key's path relative to the prefix. Each page of
+ * the listing is handed to a fixed pool of workers as soon as it arrives
+ * rather than after the whole prefix has been listed, and listing waits for
+ * the workers whenever they fall behind. Small objects are downloaded with a
+ * single request, large ones in ranges. Each worker copies with the same
+ * buffers and threads from one object to the next.
+ *
+ * An object that fails to download doesn't stop the others. The number of
+ * objects that failed is returned once everything else is done.
+ */
+public class GetRecursive implements Callable<Integer> {
+
+    public static final int DEFAULT_CONCURRENCY = 16;
+    public static final int DEFAULT_PART_CONCURRENCY = 4;
+    public static final long DEFAULT_MULTIPART_THRESHOLD = 1024 * 1024 * 64; // 64 MB
+
+    public AmazonS3Client amazonS3Client;
+    public String bucket;
+    public String prefix;
+    public File directory;
+    public boolean verbose;
+
+    public PrintStream printStream;
+
+    private Integer concurrency;
+    private Integer partConcurrency;
+    private Long multipartThreshold;
+    private boolean resume = true;
+
+    // a worker only copies one object at a time, so there's never more of these than workers
+    private final BlockingQueue<ChannelCopier> copiers = new LinkedBlockingQueue<ChannelCopier>();
+
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public GetRecursive(AmazonS3Client amazonS3Client, String bucket, String prefix, File directory, boolean verbose) {
+        this.amazonS3Client = amazonS3Client;
+        this.bucket = bucket;
+        this.prefix = prefix;
+        this.directory = directory;
+        this.verbose = verbose;
+    }
+
+    /**
+     * Set the number of objects to download at the same time.
+     *
+     * @param concurrency the number of objects, defaults to {@link #DEFAULT_CONCURRENCY}
+     */
+    public GetRecursive withConcurrency(Integer concurrency) {
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * Set the number of ranges of each large object to download at the same
+     * time, on top of the objects that are being downloaded at the same time.
+     *
+     * @param partConcurrency the number of ranges, defaults to {@link #DEFAULT_PART_CONCURRENCY}
+     */
+    public GetRecursive withPartConcurrency(Integer partConcurrency) {
+        this.partConcurrency = partConcurrency;
+        return this;
+    }
+
+    /**
+     * Set the size at which objects are downloaded in ranges instead of with a
+     * single request.
+     *
+     * @param multipartThreshold the number of bytes, defaults to {@link #DEFAULT_MULTIPART_THRESHOLD}
+     */
+    public GetRecursive withMultipartThreshold(Long multipartThreshold) {
+        this.multipartThreshold = multipartThreshold;
+        return this;
+    }
+
+    public GetRecursive withResume(boolean resume) {
+        this.resume = resume;
+        return this;
+    }
+
+    public GetRecursive withPrintStream(PrintStream printStream) {
+        this.printStream = printStream;
+        return this;
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        concurrency = concurrency == null ? DEFAULT_CONCURRENCY : concurrency;
+        partConcurrency = partConcurrency == null ? DEFAULT_PART_CONCURRENCY : partConcurrency;
+        multipartThreshold = multipartThreshold == null ? DEFAULT_MULTIPART_THRESHOLD : multipartThreshold;
+        String keyPrefix = prefix == null ? "" : prefix.isEmpty() || prefix.endsWith("/") ? prefix : prefix + "/";
+        String root = directory.getCanonicalPath() + File.separator;
+
+        Ls ls = new Ls(amazonS3Client, bucket).withPrefix(keyPrefix).withDelimiter(null);
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+
+        // a page is at most 1000 keys, so keep about that many queued up for the workers
+        Semaphore queued = new Semaphore(Math.max(concurrency * 2, Ls.AWS_MAX_KEYS));
+        long started = System.nanoTime();
+        try {
+            String marker = null;
+            do {
+                ObjectListing listing = ls.list(marker, Ls.AWS_MAX_KEYS);
+                List<S3ObjectSummary> summaries = listing.getObjectSummaries();
+                for (S3ObjectSummary summary : summaries) {
+                    String relative = summary.getKey().substring(keyPrefix.length());
+                    File file = new File(directory, relative);
+                    if (relative.isEmpty()) {
+                        // only a marker for the prefix itself
+                        continue;
+                    } else if (!file.getCanonicalPath().startsWith(root)) {
+                        fail(summary.getKey(), new IOException("Refusing to write outside of " + directory));
+                    } else if (relative.endsWith("/")) {
+                        // only a marker for an empty directory
+                        file.mkdirs();
+                    } else {
+                        queued.acquire();
+                        executor.execute(download(summary, file, queued));
+                    }
+                }
+
+                // S3 only returns the next marker when there's a delimiter, otherwise it's the last key
+                marker = null;
+                if (listing.isTruncated() && !summaries.isEmpty()) {
+                    marker = listing.getNextMarker() != null ? listing.getNextMarker() : summaries.get(summaries.size() - 1).getKey();
+                }
+            } while (marker != null);
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } finally {
+            executor.shutdownNow();
+            ChannelCopier copier;
+            while ((copier = copiers.poll()) != null) {
+                copier.close();
+            }
+        }
+
+        if (printStream != null) {
+            double seconds = Math.max(1, System.nanoTime() - started) / 1e9;
+            printStream.print(String.format("Downloaded %d files, %d bytes in %.1f s (%.1f files/s, %.1f MB/s)",
+                    files.get(), bytes.get(), seconds, files.get() / seconds, bytes.get() / (1024.0 * 1024.0) / seconds));
+            if (failed.get() > 0) {
+                printStream.print(String.format(", %d failed", failed.get()));
+            }
+            printStream.println();
+        }
+        return (int) Math.min(Integer.MAX_VALUE, failed.get());
+    }
+
+    private Runnable download(final S3ObjectSummary summary, final File file, final Semaphore queued) {
+        return new Runnable() {
+            public void run() {
+                ChannelCopier copier = copiers.poll();
+                if (copier == null) {
+                    copier = new ChannelCopier(ChannelCopier.DEFAULT_IO_SIZE);
+                }
+                try {
+                    File parent = file.getParentFile();
+                    if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+                        throw new IOException("Unable to create directory " + parent);
+                    }
+                    if (summary.getSize() >= multipartThreshold) {
+                        new GetMultipart(amazonS3Client, bucket, summary.getKey(), file, verbose)
+                                .withConcurrency(partConcurrency)
+                                .withCopier(copier)
+                                .withResume(resume)
+                                .call();
+                    } else {
+                        new Get(amazonS3Client, bucket, summary.getKey(), file, verbose)
+                                .withCopier(copier)
+                                .withResume(resume)
+                                .call();
+                    }
+                    files.incrementAndGet();
+                    bytes.addAndGet(summary.getSize());
+                    if (verbose) {
+                        System.err.println("s3://" + bucket + "/" + summary.getKey() + " -> " + file);
+                    }
+                } catch (Exception e) {
+                    fail(summary.getKey(), e);
+                } finally {
+                    copiers.add(copier);
+                    queued.release();
+                }
+            }
+        };
+    }
+
+    private void fail(String key, Exception e) {
+        failed.incrementAndGet();
+        System.err.println("Failed to download s3://" + bucket + "/" + key + ": " + e.getMessage());
+        if (verbose) {
+            e.printStackTrace();
+        }
+    }
+}
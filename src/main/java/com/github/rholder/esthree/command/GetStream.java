@@ -0,0 +1,315 @@
+/*
+ * Copyright 2014 Ray Holder
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rholder.esthree.command;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressEventType;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.transfer.TransferProgress;
+import com.amazonaws.util.BinaryUtils;
+import com.github.rholder.esthree.digest.MultipartDigest;
+import com.github.rholder.esthree.progress.MutableProgressListener;
+import com.github.rholder.esthree.progress.Progress;
+import com.github.rholder.esthree.progress.TransferProgressWrapper;
+import com.github.rholder.esthree.util.ETagUtils;
+import com.github.rholder.esthree.util.ParallelGunzipOutputStream;
+import com.github.rholder.esthree.util.RetryUtils;
+import com.github.rholder.moar.concurrent.partition.Part;
+import com.github.rholder.moar.concurrent.partition.Parts;
+import com.github.rholder.retry.RetryException;
+import com.google.common.primitives.Ints;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Download an object straight into an {@link OutputStream}, such as stdout,
+ * instead of a file. Ranges are fetched concurrently ahead of where the stream
+ * is at, up to a read-ahead window worth of bytes, and are written out strictly
+ * in order. Since nothing is staged on disk, the download can't be resumed,
+ * and by the time the object is verified all of its bytes have already been
+ * written, so a mismatch can only be reported by failing afterwards.
+ *
+ * A gzip object can be decompressed on the way out, in which case the object
+ * is still verified as it was stored, before it's decompressed.
+ */
+public class GetStream implements Callable<Integer> {
+
+    public static final int DEFAULT_CONCURRENCY = 4;
+    public static final long DEFAULT_READ_AHEAD = 1024 * 1024 * 64; // 64 MB
+
+    public AmazonS3Client amazonS3Client;
+    public String bucket;
+    public String key;
+    public OutputStream output;
+    public boolean verbose;
+
+    private Integer chunkSize;
+    private Integer concurrency;
+    private Long readAhead;
+    private boolean gunzip;
+    private MutableProgressListener progressListener;
+
+    private long contentLength;
+    private String fullETag;
+    private MessageDigest currentDigest;
+    private List<MultipartDigest.Range> multipartRanges;
+    private List<MultipartDigest> multipartDigests;
+    private OutputStream sink;
+
+    public GetStream(AmazonS3Client amazonS3Client, String bucket, String key, OutputStream output, boolean verbose) {
+        this.amazonS3Client = amazonS3Client;
+        this.bucket = bucket;
+        this.key = key;
+        this.output = output;
+        this.verbose = verbose;
+    }
+
+    public GetStream withProgressListener(MutableProgressListener progressListener) {
+        this.progressListener = progressListener;
+        return this;
+    }
+
+    public GetStream withChunkSize(Integer chunkSize) {
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Set the number of ranged requests to run at the same time.
+     *
+     * @param concurrency the number of requests, defaults to {@link #DEFAULT_CONCURRENCY}
+     */
+    public GetStream withConcurrency(Integer concurrency) {
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * Set the most bytes that can be requested ahead of what's been written to
+     * the stream so far. At least one range is always in flight, no matter how
+     * small this is.
+     *
+     * @param readAhead the number of bytes, defaults to {@link #DEFAULT_READ_AHEAD}
+     */
+    public GetStream withReadAhead(Long readAhead) {
+        this.readAhead = readAhead;
+        return this;
+    }
+
+    /**
+     * Decompress the object as it's written, inflating each member of a
+     * multi-member gzip object on every core when its header says how big it
+     * is, as those written by {@link Put#withGzip(boolean)} do.
+     *
+     * @param gunzip true to decompress the object, defaults to false
+     */
+    public GetStream withGunzip(boolean gunzip) {
+        this.gunzip = gunzip;
+        return this;
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        ObjectMetadata om = amazonS3Client.getObjectMetadata(bucket, key);
+        contentLength = om.getContentLength();
+        fullETag = om.getETag();
+
+        chunkSize = chunkSize == null ? GetMultipart.DEFAULT_CHUNK_SIZE : chunkSize;
+        concurrency = concurrency == null ? DEFAULT_CONCURRENCY : concurrency;
+        readAhead = readAhead == null ? DEFAULT_READ_AHEAD : readAhead;
+
+        currentDigest = MessageDigest.getInstance("MD5");
+        if (ETagUtils.isMultipart(fullETag)) {
+            // the stream can't be read back again, so every likely part size is hashed as it goes by
+            multipartDigests = new ArrayList<MultipartDigest>();
+            multipartRanges = new ArrayList<MultipartDigest.Range>();
+            for (Long partSize : ETagUtils.getPartSizes(amazonS3Client, bucket, key, contentLength, fullETag)) {
+                MultipartDigest digest = new MultipartDigest(contentLength, partSize);
+                multipartDigests.add(digest);
+                multipartRanges.add(digest.range(0));
+            }
+        }
+
+        final Progress progress = new TransferProgressWrapper(new TransferProgress());
+        progress.setTotalBytesToTransfer(contentLength);
+        if (progressListener != null) {
+            progressListener.withTransferProgress(progress)
+                    .withCompleted(0.0)
+                    .withMultiplier(1.0);
+        }
+
+        long buffered = 0;
+        Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        ExecutorService gunzipExecutor = null;
+        ParallelGunzipOutputStream gunzipOutput = null;
+        sink = output;
+        if (gunzip) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            gunzipExecutor = Executors.newFixedThreadPool(threads);
+            gunzipOutput = new ParallelGunzipOutputStream(output, gunzipExecutor, threads * 2);
+            sink = gunzipOutput;
+        }
+        try {
+            for (final Part fp : Parts.among(contentLength, chunkSize)) {
+                long size = fp.end - fp.start + 1;
+
+                // write out the oldest ranges until there's room in the window for another one
+                while (!pending.isEmpty() && buffered + size > readAhead) {
+                    buffered -= writeInOrder(pending.removeFirst().get());
+                }
+                pending.addLast(executor.submit(new Callable<byte[]>() {
+                    public byte[] call() throws Exception {
+                        return retryingGetRangeBuffer(fp.start, fp.end, progress);
+                    }
+                }));
+                buffered += size;
+            }
+            while (!pending.isEmpty()) {
+                writeInOrder(pending.removeFirst().get());
+            }
+            if (gunzipOutput != null) {
+                gunzipOutput.finish();
+            }
+            output.flush();
+        } finally {
+            executor.shutdownNow();
+            if (gunzipExecutor != null) {
+                gunzipExecutor.shutdownNow();
+            }
+        }
+
+        if (progressListener != null) {
+            progressListener.progressChanged(new ProgressEvent(ProgressEventType.TRANSFER_STARTED_EVENT));
+        }
+        verify();
+        return 0;
+    }
+
+    private int writeInOrder(byte[] buffer) throws IOException {
+        sink.write(buffer);
+        if (multipartRanges != null) {
+            for (MultipartDigest.Range range : multipartRanges) {
+                range.update(buffer, 0, buffer.length);
+            }
+        } else {
+            currentDigest.update(buffer);
+        }
+        return buffer.length;
+    }
+
+    private void verify() {
+        if (multipartDigests == null) {
+            byte[] expected = BinaryUtils.fromHex(fullETag);
+            byte[] current = currentDigest.digest();
+            if (!Arrays.equals(expected, current)) {
+                throw new AmazonClientException("Unable to verify integrity of data download.  "
+                        + "Client calculated content hash didn't match hash calculated by Amazon S3.  "
+                        + "The data may be corrupt.");
+            }
+        } else if (multipartDigests.isEmpty()) {
+            if (verbose) {
+                System.err.println("\nUnable to determine the part size of " + fullETag);
+            }
+        } else {
+            for (MultipartDigest digest : multipartDigests) {
+                if (digest.getETag().equalsIgnoreCase(fullETag)) {
+                    return;
+                }
+            }
+            throw new AmazonClientException("Unable to verify integrity of data download.  "
+                    + "Client calculated multipart ETag didn't match the one calculated by Amazon S3.  "
+                    + "The data may be corrupt.");
+        }
+    }
+
+    /**
+     * Buffer the given range in memory, picking up where a dropped connection
+     * left off on each retry.
+     *
+     * @param start    the first byte of the range
+     * @param end      the last byte of the range, inclusive
+     * @param progress the progress of the whole object
+     */
+    public byte[] retryingGetRangeBuffer(final long start, final long end, final Progress progress)
+            throws ExecutionException, RetryException {
+
+        final byte[] buffer = new byte[Ints.checkedCast(end - start + 1)];
+        return (byte[]) RetryUtils.AWS_RETRYER.call(new Callable<Object>() {
+            private int count;
+
+            public byte[] call() throws Exception {
+                GetObjectRequest req = new GetObjectRequest(bucket, key)
+                        .withRange(start + count, end)
+                        .withMatchingETagConstraint(fullETag);
+
+                S3Object s3Object = amazonS3Client.getObject(req);
+                if (s3Object == null) {
+                    throw new AmazonClientException("The object changed while it was being downloaded, ETag no longer matches " + fullETag);
+                }
+                InputStream input = s3Object.getObjectContent();
+                try {
+                    int n;
+                    while (count < buffer.length && -1 != (n = input.read(buffer, count, buffer.length - count))) {
+                        updateProgress(progress, n);
+                        count += n;
+                    }
+                    if (count < buffer.length) {
+                        throw new IOException(String.format("%d of %d bytes downloaded for range %d-%d", count, buffer.length, start, end));
+                    }
+
+                    // verify that exactly this many bytes were read
+                    if (input.read() != -1) {
+                        updateProgress(progress, -count);
+                        count = 0;
+                        throw new IOException(String.format("Unexpected number of bytes downloaded for range %d-%d", start, end));
+                    }
+                } finally {
+                    IOUtils.closeQuietly(input);
+                }
+                return buffer;
+            }
+        });
+    }
+
+    private void updateProgress(Progress progress, long bytes) {
+        if (progressListener != null) {
+            synchronized (progressListener) {
+                progress.updateProgress(bytes);
+                progressListener.progressChanged(new ProgressEvent(ProgressEventType.REQUEST_BYTE_TRANSFER_EVENT, bytes));
+            }
+        }
+    }
+}
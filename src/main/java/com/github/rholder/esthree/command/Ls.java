@@ -20,30 +20,37 @@ import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.ListObjectsRequest;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.github.rholder.esthree.util.ListEncoder;
+import com.github.rholder.esthree.util.ListFormatter;
 import com.github.rholder.esthree.util.RetryUtils;
 import com.github.rholder.retry.RetryException;
 
 import java.io.PrintStream;
 import java.math.BigInteger;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Ls implements Callable<Integer> {
 
     public static final Integer AWS_MAX_KEYS = 1000;
 
-    public static final BigInteger AWS_MAX_KEYS_BIG = new BigInteger(AWS_MAX_KEYS.toString());
-    public static final BigInteger ONE = new BigInteger("1");
-
     public AmazonS3Client amazonS3Client;
     public String bucket;
     public String prefix;
     public BigInteger limit;
+    public String delimiter = "/";
 
     public String listFormat;
     public String listDirFormat;
     public PrintStream printStream;
 
+    private ListEncoder.Format outputFormat;
+    private ListFormatter formatter;
+
     public Ls(AmazonS3Client amazonS3Client, String bucket) {
         this.amazonS3Client = amazonS3Client;
         this.bucket = bucket;
@@ -59,8 +66,20 @@ public class Ls implements Callable<Integer> {
         return this;
     }
 
+    /**
+     * Set the delimiter that groups keys into directories, such as null to list
+     * every key under the prefix no matter how deep it is.
+     *
+     * @param delimiter the delimiter, defaults to "/"
+     */
+    public Ls withDelimiter(String delimiter) {
+        this.delimiter = delimiter;
+        return this;
+    }
+
     public Ls withListFormat(String listFormat) {
         this.listFormat = listFormat;
+        this.formatter = null;
         return this;
     }
 
@@ -69,53 +88,128 @@ public class Ls implements Callable<Integer> {
         return this;
     }
 
+    /**
+     * Write every field of each object as NDJSON or CSV instead of with the
+     * list formats.
+     *
+     * @param outputFormat the format, defaults to null for the list formats
+     */
+    public Ls withOutputFormat(ListEncoder.Format outputFormat) {
+        this.outputFormat = outputFormat;
+        return this;
+    }
+
     public Ls withPrintStream(PrintStream printStream) {
         this.printStream = printStream;
         return this;
     }
 
+    /**
+     * Print every page, fetching the next one while the current one is being
+     * printed.
+     */
     @Override
     public Integer call() throws Exception {
+        // anything past what fits in a long may as well be unlimited
+        long max = limit == null || limit.bitLength() > 63 ? Long.MAX_VALUE : limit.longValue();
+        ListFormatter dirFormatter = new ListFormatter(listDirFormat);
+        ListEncoder encoder = outputFormat == null ? null : new ListEncoder(printStream, outputFormat);
 
-        BigInteger count = new BigInteger("0");
+        long count = 0;
         String nextMarker = null;
-        int nextLimit;
-        do {
-            // no limit always requests the max
-            nextLimit = AWS_MAX_KEYS;
-            if(limit != null) {
-                // if it is set, limit the next request to no more than the max that are still available
-                nextLimit = limit.subtract(count).min(AWS_MAX_KEYS_BIG).intValue();
-            }
+        int nextLimit = (int) Math.min(max, AWS_MAX_KEYS);
+        ExecutorService prefetcher = Executors.newSingleThreadExecutor();
+        try {
+            Future<ObjectListing> next = nextLimit > 0 ? prefetch(prefetcher, nextMarker, nextLimit) : null;
+            while (next != null) {
+                ObjectListing o = take(next);
 
-            if(nextLimit > 0) {
-                ObjectListing o = list(nextMarker, nextLimit);
-                for(String dir : o.getCommonPrefixes()) {
-                    printStream.println(String.format(listDirFormat, "DIR", o.getBucketName(), dir));
+                // every object on a page is printed, which is all it takes to know where the next one starts
+                if (!o.getObjectSummaries().isEmpty()) {
+                    nextMarker = o.getNextMarker();
+                }
+                nextLimit = (int) Math.min(max - count - o.getObjectSummaries().size(), AWS_MAX_KEYS);
+                next = nextMarker != null && nextLimit > 0 ? prefetch(prefetcher, nextMarker, nextLimit) : null;
+
+                for (String dir : o.getCommonPrefixes()) {
+                    if (encoder != null) {
+                        encoder.writePrefix(o.getBucketName(), dir);
+                    } else {
+                        printStream.println(dirFormatter.format("DIR", o.getBucketName(), dir));
+                    }
                 }
                 for (S3ObjectSummary os : o.getObjectSummaries()) {
-                    if (limit == null || count.compareTo(limit) <= 0) {
-                        printStream.println(String.format(listFormat,
-                                os.getLastModified(),
-                                os.getSize(),
-                                os.getBucketName(),
-                                os.getKey(),
-                                os.getETag(),
-                                os.getOwner(),
-                                os.getStorageClass()));
-                        nextMarker = o.getNextMarker();
-                        count = count.add(ONE);
+                    if (encoder != null) {
+                        encoder.writeObject(os);
                     } else {
-                        // bail out when we've printed all we can
-                        nextMarker = null;
+                        printStream.println(format(os));
                     }
+                    count++;
                 }
             }
-        } while (nextMarker != null && nextLimit > 0);
+        } finally {
+            prefetcher.shutdownNow();
+            if (encoder != null) {
+                encoder.flush();
+            }
+        }
 
         return 0;
     }
 
+    private static ObjectListing take(Future<ObjectListing> next) throws Exception {
+        try {
+            return next.get();
+        } catch (ExecutionException e) {
+            // fail the same way as listing it here would have
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private Future<ObjectListing> prefetch(ExecutorService prefetcher, final String marker, final int limit) {
+        return prefetcher.submit(new Callable<ObjectListing>() {
+            public ObjectListing call() throws Exception {
+                return list(marker, limit);
+            }
+        });
+    }
+
+    /**
+     * Return the given object formatted with the list format.
+     *
+     * @param os the object to format
+     */
+    public String format(S3ObjectSummary os) {
+        if (formatter == null) {
+            formatter = new ListFormatter(listFormat);
+        }
+        return formatter.format(os);
+    }
+
+    /**
+     * Compare keys in the order S3 lists them in, which is by their UTF-8
+     * bytes. That's the same as comparing their code points, but not their
+     * chars, since a surrogate pair sorts below U+E000 - U+FFFF as a String.
+     *
+     * @param a the first key
+     * @param b the second key
+     */
+    public static int compareKeys(String a, String b) {
+        int i = 0;
+        while (i < a.length() && i < b.length()) {
+            int x = a.codePointAt(i);
+            int y = b.codePointAt(i);
+            if (x != y) {
+                return x - y;
+            }
+            i += Character.charCount(x);
+        }
+        return (a.length() - i) - (b.length() - i);
+    }
+
     /**
      * Return the ObjectListing starting at the given marker. The number of
      * ObjectSummaries is bounded to be 1000 (this is the Amazon S3 default,
@@ -132,7 +226,7 @@ public class Ls implements Callable<Integer> {
                 ListObjectsRequest lor = new ListObjectsRequest()
                         .withBucketName(bucket)
                         .withMarker(marker)
-                        .withDelimiter("/")
+                        .withDelimiter(delimiter)
                         .withMaxKeys(limit);
                 if (prefix != null) {
                     lor.withPrefix(prefix);
@@ -141,4 +235,25 @@ public class Ls implements Callable<Integer> {
             }
         });
     }
+
+    /**
+     * Return the marker to list the page after the given one from, or null if
+     * it's the last page. S3 doesn't always say what it is, in which case
+     * it's whichever of the last key and the last common prefix sorts later.
+     *
+     * @param o a page from {@link #list(String, int)}
+     */
+    public static String nextMarker(ObjectListing o) {
+        if (!o.isTruncated()) {
+            return null;
+        }
+        if (o.getNextMarker() != null) {
+            return o.getNextMarker();
+        }
+        List<S3ObjectSummary> summaries = o.getObjectSummaries();
+        List<String> commonPrefixes = o.getCommonPrefixes();
+        String lastKey = summaries.isEmpty() ? "" : summaries.get(summaries.size() - 1).getKey();
+        String lastPrefix = commonPrefixes.isEmpty() ? "" : commonPrefixes.get(commonPrefixes.size() - 1);
+        return compareKeys(lastKey, lastPrefix) > 0 ? lastKey : lastPrefix;
+    }
 }
@@ -0,0 +1,498 @@
+/*
+ * Copyright 2014 Ray Holder
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rholder.esthree.command;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.github.rholder.esthree.util.ListEncoder;
+
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * List every key under a prefix, no matter how deep, by listing each common
+ * prefix that turns up as a separate task on a fixed pool of workers instead
+ * of paging through the whole prefix one marker at a time. Workers only find
+ * keys, and everything is printed by the calling thread, either in the order
+ * the keys arrive in or in the same sorted order as a single listing would.
+ *
+ * Arriving keys wait in a bounded queue, so workers are held back whenever
+ * printing falls behind. Sorted keys wait until everything before them has
+ * been printed, which could be a lot of them, though the earliest prefixes
+ * are always listed first to keep that to a minimum.
+ *
+ * Flat keys, such as ones that start with a hash, have no common prefixes to
+ * fan out across, so those can be sharded into ranges of keys instead. Each
+ * range is listed from its own marker up to where the next one starts, and
+ * whenever a worker is idle the rest of a range that's still being listed is
+ * split in half at a key in between. Ranges can also be split up front on
+ * each character keys may start with, such as {@link #HEX}.
+ */
+public class LsRecursive implements Callable<Integer> {
+
+    public static final int DEFAULT_CONCURRENCY = 16;
+    public static final String HEX = "0123456789abcdef";
+
+    private static final Object END = new Object();
+
+    // every code point but the surrogates can be a digit of a key
+    private static final int SURROGATES = Character.MAX_SURROGATE - Character.MIN_SURROGATE + 1;
+    private static final int DIGITS = Character.MAX_CODE_POINT + 1 - SURROGATES;
+
+    public AmazonS3Client amazonS3Client;
+    public String bucket;
+    public String prefix;
+    public boolean verbose;
+
+    public String listFormat;
+    public PrintStream printStream;
+
+    private BigInteger limit;
+    private Integer concurrency;
+    private boolean sorted;
+    private boolean sharded;
+    private String alphabet;
+    private ListEncoder.Format outputFormat;
+
+    private volatile boolean stopped;
+    private BlockingQueue<Object> arrived;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicLong listings = new AtomicLong();
+
+    public LsRecursive(AmazonS3Client amazonS3Client, String bucket, String prefix, boolean verbose) {
+        this.amazonS3Client = amazonS3Client;
+        this.bucket = bucket;
+        this.prefix = prefix;
+        this.verbose = verbose;
+    }
+
+    public LsRecursive withLimit(BigInteger limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * Set the number of prefixes to list at the same time.
+     *
+     * @param concurrency the number of prefixes, defaults to {@link #DEFAULT_CONCURRENCY}
+     */
+    public LsRecursive withConcurrency(Integer concurrency) {
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * Print keys in sorted order instead of as soon as they arrive.
+     *
+     * @param sorted true to sort the keys, defaults to false
+     */
+    public LsRecursive withSorted(boolean sorted) {
+        this.sorted = sorted;
+        return this;
+    }
+
+    /**
+     * List ranges of keys at the same time instead of each common prefix.
+     *
+     * @param sharded true to shard the keys into ranges, defaults to false
+     */
+    public LsRecursive withSharded(boolean sharded) {
+        this.sharded = sharded;
+        return this;
+    }
+
+    /**
+     * Set the characters keys may start with after the prefix, such as
+     * {@link #HEX}, to shard into a range for each of them up front, which
+     * implies {@link #withSharded(boolean)}. Keys that start with anything else
+     * are still listed, these only decide where ranges start.
+     *
+     * @param alphabet the characters, defaults to splitting ranges as they're listed
+     */
+    public LsRecursive withAlphabet(String alphabet) {
+        this.alphabet = alphabet;
+        return this;
+    }
+
+    /**
+     * Write every field of each object as NDJSON or CSV instead of with the
+     * list format.
+     *
+     * @param outputFormat the format, defaults to null for the list format
+     */
+    public LsRecursive withOutputFormat(ListEncoder.Format outputFormat) {
+        this.outputFormat = outputFormat;
+        return this;
+    }
+
+    public LsRecursive withListFormat(String listFormat) {
+        this.listFormat = listFormat;
+        return this;
+    }
+
+    public LsRecursive withPrintStream(PrintStream printStream) {
+        this.printStream = printStream;
+        return this;
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        concurrency = concurrency == null ? DEFAULT_CONCURRENCY : concurrency;
+        sharded = sharded || alphabet != null;
+        arrived = new LinkedBlockingQueue<Object>(Ls.AWS_MAX_KEYS * Math.max(2, concurrency));
+
+        // the pool runs the earliest prefix that's waiting first
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>());
+        long started = System.nanoTime();
+        long count = 0;
+        ListEncoder encoder = outputFormat == null ? null : new ListEncoder(printStream, outputFormat);
+        try {
+            String keyPrefix = prefix == null ? "" : prefix;
+            Listing root = new Listing(keyPrefix, null, null);
+            if (alphabet != null) {
+                // the first range ends where the second starts, and the last one doesn't end
+                int[] codePoints = new int[alphabet.codePointCount(0, alphabet.length())];
+                for (int i = 0, j = 0; i < alphabet.length(); i += Character.charCount(codePoints[j++])) {
+                    codePoints[j] = alphabet.codePointAt(i);
+                }
+                Arrays.sort(codePoints);
+                Listing previous = root;
+                for (int c : codePoints) {
+                    if (c == 0 || (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)) {
+                        // S3 can't start a listing after either of these
+                        continue;
+                    }
+                    String split = keyPrefix + new String(Character.toChars(c));
+                    if (previous.from != null && previous.from.equals(split)) {
+                        continue;
+                    }
+                    previous.to = split;
+                    previous = new Listing(keyPrefix, split, null);
+                    root.children.addLast(previous);
+                }
+            }
+
+            // count them all before any of them can finish
+            List<Listing> ranges = new ArrayList<Listing>(root.children);
+            ranges.add(0, root);
+            outstanding.addAndGet(ranges.size());
+            for (Listing range : ranges) {
+                execute(executor, range);
+            }
+
+            Deque<Listing> stack = new ArrayDeque<Listing>();
+            stack.push(root);
+            while (limit == null || BigInteger.valueOf(count).compareTo(limit) < 0) {
+                Object entry;
+                if (sorted) {
+                    if (stack.isEmpty()) {
+                        break;
+                    }
+                    entry = stack.peek().entries.take();
+                } else {
+                    entry = arrived.take();
+                }
+
+                if (entry == END) {
+                    if (!sorted || stack.pop() == root) {
+                        break;
+                    }
+                } else if (entry instanceof Listing) {
+                    stack.push((Listing) entry);
+                } else if (entry instanceof Exception) {
+                    throw (Exception) entry;
+                } else if (entry instanceof S3ObjectSummary) {
+                    encoder.writeObject((S3ObjectSummary) entry);
+                    count++;
+                } else {
+                    printStream.println(entry);
+                    count++;
+                }
+            }
+        } finally {
+            stopped = true;
+            executor.shutdownNow();
+            if (encoder != null) {
+                encoder.flush();
+            }
+        }
+
+        if (verbose) {
+            double seconds = (System.nanoTime() - started) / 1e9;
+            System.err.println(String.format("Listed %d keys from %d %s in %.1f s (%.1f keys/s)",
+                    count, listings.get(), sharded ? "ranges" : "prefixes", seconds, count / Math.max(seconds, 0.001)));
+        }
+        return 0;
+    }
+
+    private void submit(ThreadPoolExecutor executor, Listing listing) {
+        outstanding.incrementAndGet();
+        execute(executor, listing);
+    }
+
+    private void execute(ThreadPoolExecutor executor, Listing listing) {
+        listings.incrementAndGet();
+        executor.execute(new ListingTask(executor, listing));
+    }
+
+    /**
+     * Page through one prefix, handing out its keys and the prefixes beneath it
+     * in the order they're listed in.
+     */
+    private void list(ThreadPoolExecutor executor, Listing listing) throws Exception {
+        if (sharded) {
+            listRange(executor, listing);
+            return;
+        }
+        Ls ls = new Ls(amazonS3Client, bucket).withPrefix(listing.prefix).withListFormat(listFormat);
+        String marker = null;
+        ObjectListing o;
+        do {
+            o = ls.list(marker, Ls.AWS_MAX_KEYS);
+            List<S3ObjectSummary> summaries = o.getObjectSummaries();
+            List<String> commonPrefixes = o.getCommonPrefixes();
+
+            // both are sorted, and every key under a common prefix sorts right where the prefix does
+            int s = 0;
+            int p = 0;
+            while (!stopped && (s < summaries.size() || p < commonPrefixes.size())) {
+                if (p == commonPrefixes.size()
+                        || (s < summaries.size() && Ls.compareKeys(summaries.get(s).getKey(), commonPrefixes.get(p)) < 0)) {
+                    listing.entries.put(entry(ls, summaries.get(s++)));
+                } else {
+                    Listing child = new Listing(commonPrefixes.get(p++), null, null);
+                    submit(executor, child);
+                    if (sorted) {
+                        listing.entries.put(child);
+                    }
+                }
+            }
+
+            marker = Ls.nextMarker(o);
+        } while (!stopped && o.isTruncated());
+    }
+
+    /**
+     * Page through one range of keys, splitting off the rest of it for each
+     * idle worker after each page while there's more to come.
+     */
+    private void listRange(ThreadPoolExecutor executor, Listing listing) throws Exception {
+        Ls ls = new Ls(amazonS3Client, bucket).withPrefix(listing.prefix).withDelimiter(null).withListFormat(listFormat);
+        String marker = listing.from;
+        boolean done = false;
+        while (!stopped && !done) {
+            ObjectListing o = ls.list(marker, Ls.AWS_MAX_KEYS);
+            for (S3ObjectSummary os : o.getObjectSummaries()) {
+                if (listing.to != null && Ls.compareKeys(os.getKey(), listing.to) > 0) {
+                    // the rest belongs to the next range
+                    done = true;
+                    break;
+                }
+                listing.entries.put(entry(ls, os));
+                marker = os.getKey();
+            }
+            done = done || !o.isTruncated() || o.getObjectSummaries().isEmpty();
+
+            while (!done && outstanding.get() < concurrency) {
+                // the last range has no end, so split short of anything but the rarest keys
+                String ceiling = listing.to;
+                if (ceiling == null) {
+                    boolean ascii = marker.length() <= listing.prefix.length() || marker.charAt(listing.prefix.length()) < 0x7f;
+                    ceiling = listing.prefix + (ascii ? "\u007f" : new String(Character.toChars(Character.MAX_CODE_POINT)));
+                }
+                String split = midpoint(marker, ceiling);
+                if (split == null) {
+                    break;
+                }
+                Listing child = new Listing(listing.prefix, split, listing.to);
+                listing.to = split;
+                listing.children.addFirst(child);
+                submit(executor, child);
+            }
+        }
+    }
+
+    /**
+     * Return what to hand to the writer for the given object, which is the
+     * object itself when it's encoded, so workers do the formatting otherwise.
+     */
+    private Object entry(Ls ls, S3ObjectSummary os) {
+        return outputFormat == null ? ls.format(os) : os;
+    }
+
+    /**
+     * Return a key that sorts strictly between the given ones, in the order S3
+     * lists them, about halfway between them when their code points are read
+     * as the digits of a number, or null if there isn't one that's usable as a
+     * marker. Surrogates aren't code points on their own, so they're skipped
+     * over to keep the digits in the same order as the keys.
+     *
+     * @param low  the lower key
+     * @param high the higher key
+     */
+    static String midpoint(String low, String high) {
+        int[] lowDigits = digits(low);
+        int[] highDigits = digits(high);
+        int base = isAscii(low) && isAscii(high) ? 0x80 : DIGITS;
+        int i = 0;
+        while (i < lowDigits.length && i < highDigits.length && lowDigits[i] == highDigits[i]) {
+            i++;
+        }
+
+        // a few more digits past where they first differ is plenty
+        for (int n = i + 1; n <= i + 4; n++) {
+            BigInteger sum = value(lowDigits, n, base).add(value(highDigits, n, base));
+            BigInteger value = sum.shiftRight(1);
+            int[] midDigits = new int[n];
+            for (int j = n - 1; j >= 0; j--) {
+                BigInteger[] qr = value.divideAndRemainder(BigInteger.valueOf(base));
+                midDigits[j] = qr[1].intValue();
+                value = qr[0];
+            }
+            int length = n;
+            while (length > 0 && midDigits[length - 1] == 0) {
+                length--;
+            }
+            StringBuilder mid = new StringBuilder();
+            for (int j = 0; j < length; j++) {
+                mid.appendCodePoint(midDigits[j] < Character.MIN_SURROGATE ? midDigits[j] : midDigits[j] + SURROGATES);
+            }
+            String key = mid.toString();
+            if (Ls.compareKeys(key, low) > 0 && Ls.compareKeys(key, high) < 0 && isMarker(key)) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    private static int[] digits(String s) {
+        int[] digits = new int[s.codePointCount(0, s.length())];
+        for (int i = 0, j = 0; i < s.length(); j++) {
+            int c = s.codePointAt(i);
+            // a lone surrogate can't be in a key, but it shouldn't sort below the ones before it either
+            digits[j] = c < Character.MIN_SURROGATE ? c : Math.max(c - SURROGATES, Character.MIN_SURROGATE);
+            i += Character.charCount(c);
+        }
+        return digits;
+    }
+
+    private static BigInteger value(int[] digits, int n, int base) {
+        BigInteger value = BigInteger.ZERO;
+        for (int j = 0; j < n; j++) {
+            value = value.multiply(BigInteger.valueOf(base)).add(BigInteger.valueOf(j < digits.length ? digits[j] : 0));
+        }
+        return value;
+    }
+
+    private static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isMarker(String s) {
+        for (int i = 0; i < s.length(); ) {
+            int c = s.codePointAt(i);
+            if (c == 0 || (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)) {
+                return false;
+            }
+            i += Character.charCount(c);
+        }
+        return true;
+    }
+
+    /**
+     * A prefix, or a range of keys after one key up to and including another,
+     * along with whatever's been found in it so far, which is just the queue
+     * of every key that's arrived unless they're sorted. Ranges split off from
+     * this one come after all of its own keys, lowest first.
+     */
+    private class Listing {
+        final String prefix;
+        final String from;
+        volatile String to;
+        final BlockingQueue<Object> entries;
+        final Deque<Listing> children = new ArrayDeque<Listing>();
+
+        Listing(String prefix, String from, String to) {
+            this.prefix = prefix;
+            this.from = from;
+            this.to = to;
+            this.entries = sorted ? new LinkedBlockingQueue<Object>() : arrived;
+        }
+
+        String start() {
+            return from == null ? prefix : from;
+        }
+    }
+
+    private class ListingTask implements Runnable, Comparable<ListingTask> {
+        private final ThreadPoolExecutor executor;
+        private final Listing listing;
+
+        ListingTask(ThreadPoolExecutor executor, Listing listing) {
+            this.executor = executor;
+            this.listing = listing;
+        }
+
+        public int compareTo(ListingTask other) {
+            return Ls.compareKeys(listing.start(), other.listing.start());
+        }
+
+        public void run() {
+            try {
+                if (!stopped) {
+                    list(executor, listing);
+                }
+                if (sorted) {
+                    for (Listing child : listing.children) {
+                        listing.entries.put(child);
+                    }
+                    listing.entries.put(END);
+                }
+                if (outstanding.decrementAndGet() == 0 && !sorted) {
+                    arrived.put(END);
+                }
+            } catch (InterruptedException e) {
+                // it's all been stopped
+            } catch (Exception e) {
+                try {
+                    listing.entries.put(e);
+                } catch (InterruptedException ignored) {
+                    // it's all been stopped
+                }
+            }
+        }
+    }
+}
@@ -16,30 +16,92 @@
 
 package com.github.rholder.esthree.command;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressEventType;
+import com.amazonaws.event.ProgressListener;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.SSEAlgorithm;
-import com.amazonaws.services.s3.transfer.TransferManager;
-import com.amazonaws.services.s3.transfer.Upload;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.transfer.TransferProgress;
+import com.amazonaws.util.BinaryUtils;
+import com.amazonaws.util.Md5Utils;
+import com.github.rholder.esthree.journal.UploadJournal;
+import com.github.rholder.esthree.plan.UploadPlanner;
 import com.github.rholder.esthree.progress.MutableProgressListener;
+import com.github.rholder.esthree.progress.Progress;
 import com.github.rholder.esthree.progress.TransferProgressWrapper;
+import com.github.rholder.esthree.util.ByteBufferInputStream;
+import com.github.rholder.esthree.util.ETagUtils;
+import com.github.rholder.esthree.util.ParallelGzipInputStream;
+import com.github.rholder.esthree.util.RetryUtils;
+import com.github.rholder.moar.concurrent.partition.Part;
+import com.github.rholder.moar.concurrent.partition.Parts;
+import com.github.rholder.retry.RetryException;
+import com.google.common.primitives.Ints;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Put implements Callable<Integer> {
 
+    public static final long DEFAULT_PART_SIZE = 1024 * 1024 * 8; // 8 MB
+    public static final long MIN_PART_SIZE = 1024 * 1024 * 5; // 5 MB, the smallest S3 allows
+    public static final int MAX_PARTS = 10000;
+    public static final int DEFAULT_CONCURRENCY = 4;
+
     public AmazonS3Client amazonS3Client;
     public String bucket;
     public String key;
     public File inputFile;
+    public InputStream inputStream;
     public Map<String, String> metadata;
     public boolean sse;
 
     public MutableProgressListener progressListener;
 
+    private Long partSize;
+    private boolean planned;
+    private UploadPlanner planner;
+    private Integer concurrency;
+    private boolean verbose;
+    private boolean resume = true;
+    private volatile boolean memoryMap;
+    private boolean skipIfSame;
+    private boolean gzip;
+    private volatile Exception partFailure;
+
     public Put(AmazonS3Client amazonS3Client, String bucket, String key, File inputFile, Map<String, String> metadata, boolean sse) {
         this.amazonS3Client = amazonS3Client;
         this.bucket = bucket;
@@ -54,9 +116,114 @@ public class Put implements Callable<Integer> {
         return this;
     }
 
+    /**
+     * Upload whatever comes out of the given stream instead of a file, such as
+     * stdin. Since the length isn't known up front, the stream is read a part
+     * at a time and can't be resumed.
+     *
+     * @param inputStream the stream to upload until it runs out
+     */
+    public Put withInputStream(InputStream inputStream) {
+        this.inputStream = inputStream;
+        return this;
+    }
+
+    /**
+     * Set the size of each part of a multipart upload. Files no bigger than
+     * this are uploaded in a single request. The part size is raised as needed
+     * to keep a file within {@link #MAX_PARTS} parts. The parts of a stream are
+     * always this size, which limits how big the stream can be.
+     *
+     * @param partSize the number of bytes in each part, by default the parts of a
+     *                 file are planned by an {@link UploadPlanner} and the parts of
+     *                 a stream are {@link #DEFAULT_PART_SIZE}
+     */
+    public Put withPartSize(Long partSize) {
+        this.partSize = partSize;
+        return this;
+    }
+
+    /**
+     * Plan the part size of the file with the given planner, such as one that's
+     * shared between uploads so the parts of each file are sized by the
+     * throughput of the ones before it.
+     *
+     * @param planner the planner to use, or null for a new one
+     */
+    public Put withPlanner(UploadPlanner planner) {
+        this.planner = planner;
+        return this;
+    }
+
+    /**
+     * Set the number of parts to upload at the same time. Each one of them is
+     * held in memory while it's being uploaded.
+     *
+     * @param concurrency the number of parts, defaults to {@link #DEFAULT_CONCURRENCY}
+     */
+    public Put withConcurrency(Integer concurrency) {
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * Keep a journal next to the file of the parts that have been uploaded,
+     * such that a failed multipart upload can be resumed instead of aborted.
+     *
+     * @param resume true to resume, which is the default
+     */
+    public Put withResume(boolean resume) {
+        this.resume = resume;
+        return this;
+    }
+
+    /**
+     * Map each part of the file into memory instead of reading it onto the
+     * heap, such that the part is hashed and sent straight from the page cache.
+     * Parts that can't be mapped fall back to being read as usual.
+     *
+     * @param memoryMap true to map parts, which isn't the default
+     */
+    public Put withMemoryMap(boolean memoryMap) {
+        this.memoryMap = memoryMap;
+        return this;
+    }
+
+    /**
+     * Don't upload the file when the target already exists with the same
+     * length and an ETag that matches one computed from the file. Objects that
+     * were uploaded in parts are compared at their most likely part sizes.
+     *
+     * @param skipIfSame true to skip unchanged files, which isn't the default
+     */
+    public Put withSkipIfSame(boolean skipIfSame) {
+        this.skipIfSame = skipIfSame;
+        return this;
+    }
+
+    /**
+     * Compress the file or stream with gzip on every core on the way up, and
+     * mark the object as gzip encoded. Since the compressed length isn't known
+     * up front, it's uploaded like any other stream and can't be resumed.
+     *
+     * @param gzip true to compress, which isn't the default
+     */
+    public Put withGzip(boolean gzip) {
+        this.gzip = gzip;
+        return this;
+    }
+
+    public Put withVerbose(boolean verbose) {
+        this.verbose = verbose;
+        return this;
+    }
+
     @Override
     public Integer call() throws Exception {
-        TransferManager t = new TransferManager(amazonS3Client);
+        planned = partSize == null;
+        partSize = planned ? DEFAULT_PART_SIZE : partSize;
+        concurrency = concurrency == null ? DEFAULT_CONCURRENCY : concurrency;
+        planner = planner == null ? new UploadPlanner(concurrency).withVerbose(verbose) : planner;
 
         ObjectMetadata objectMetadata = new ObjectMetadata();
         objectMetadata.setUserMetadata(metadata);
@@ -64,18 +231,598 @@ public class Put implements Callable<Integer> {
             objectMetadata.setSSEAlgorithm(SSEAlgorithm.AES256.getAlgorithm());
         }
 
-        Upload u = t.upload(new PutObjectRequest(bucket, key, inputFile).withMetadata(objectMetadata));
+        if (skipIfSame && !gzip && inputStream == null && inputFile != null && isSame()) {
+            if (verbose) {
+                System.err.println("Skipping " + inputFile + ", s3://" + bucket + "/" + key + " is the same");
+            }
+            return 0;
+        }
+
+        if (gzip && (inputStream != null || inputFile != null)) {
+            gzipPut(objectMetadata);
+        } else if (inputStream != null) {
+            streamPut(objectMetadata);
+        } else if (inputFile == null || inputFile.length() <= (planned ? MIN_PART_SIZE : partSize)) {
+            retryingPut(objectMetadata);
+        } else {
+            multipartPut(objectMetadata);
+        }
 
-        // TODO this listener spews out garbage >100% on a retry, add a test to verify
         if (progressListener != null) {
-            progressListener.withTransferProgress(new TransferProgressWrapper(u.getProgress()));
-            u.addProgressListener(progressListener);
+            progressListener.progressChanged(new ProgressEvent(ProgressEventType.TRANSFER_COMPLETED_EVENT));
         }
+        return 0;
+    }
+
+    /**
+     * Return true if the target object has the same content as the file. The
+     * lengths are compared first, so a changed file is usually caught without
+     * reading it. A single part ETag is a plain MD5 of the file, otherwise the
+     * parts of the file are hashed across all of the available cores for each
+     * part size that could have produced the ETag.
+     */
+    private boolean isSame() throws Exception {
+        ObjectMetadata om;
         try {
-            u.waitForCompletion();
+            om = amazonS3Client.getObjectMetadata(bucket, key);
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() == 404) {
+                return false;
+            }
+            throw e;
+        }
+
+        long contentLength = inputFile.length();
+        String etag = om.getETag();
+        if (etag == null || om.getContentLength() != contentLength) {
+            return false;
+        }
+        if (!ETagUtils.isMultipart(etag)) {
+            FileInputStream input = new FileInputStream(inputFile);
+            try {
+                return etag.equalsIgnoreCase(BinaryUtils.toHex(Md5Utils.computeMD5Hash(input)));
+            } finally {
+                input.close();
+            }
+        }
+
+        List<Long> partSizes = ETagUtils.getPartSizes(amazonS3Client, bucket, key, contentLength, etag);
+        RandomAccessFile file = new RandomAccessFile(inputFile, "r");
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            return ETagUtils.findPartSize(file, contentLength, etag, partSizes, executor) != null;
         } finally {
-            t.shutdownNow();
+            executor.shutdownNow();
+            file.close();
+        }
+    }
+
+    private void retryingPut(final ObjectMetadata objectMetadata) throws ExecutionException, RetryException {
+        final Progress progress = startProgress(inputFile == null ? 0 : inputFile.length());
+        RetryUtils.AWS_RETRYER.call(new Callable<Object>() {
+            public Object call() throws Exception {
+                PutObjectRequest req = new PutObjectRequest(bucket, key, inputFile).withMetadata(objectMetadata);
+                AttemptProgress attempt = new AttemptProgress(progress);
+                req.setGeneralProgressListener(attempt);
+                try {
+                    return amazonS3Client.putObject(req);
+                } catch (AmazonClientException e) {
+                    attempt.reset();
+                    throw retryable(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Compress the file or stream in blocks on every core, and upload the
+     * compressed parts as they fill up the same way as any other stream.
+     */
+    private void gzipPut(ObjectMetadata objectMetadata) throws Exception {
+        objectMetadata.setContentEncoding("gzip");
+        if (planned && inputStream == null) {
+            // compressing hardly ever makes a file bigger, so parts that fit the file fit what comes out
+            partSize = planner.getPartSize(inputFile.length());
+        }
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        InputStream source = inputStream != null ? inputStream : new FileInputStream(inputFile);
+        boolean ownSource = inputStream == null;
+        inputStream = new ParallelGzipInputStream(source, executor, threads * 2);
+        try {
+            streamPut(objectMetadata);
+        } finally {
+            executor.shutdownNow();
+            if (ownSource) {
+                source.close();
+            }
+        }
+    }
+
+    /**
+     * Upload the input stream, whose length isn't known up front, in parts. The
+     * parts are read into a fixed pool of buffers, one more than the number of
+     * parts uploaded at once or however many fit in the planner's memory limit,
+     * whichever is fewer, and each buffer goes back to the pool once its
+     * part is uploaded. Reading from the stream blocks whenever the pool runs
+     * out, so a fast producer can't get more than the pool ahead of S3. An
+     * input that fits in a single buffer is uploaded in a single request.
+     */
+    private void streamPut(final ObjectMetadata objectMetadata) throws Exception {
+        int poolSize = concurrency + 1;
+        final BlockingQueue<byte[]> pool = new ArrayBlockingQueue<byte[]>(poolSize);
+        planner.reserve(partSize);
+        byte[] buffer = new byte[Ints.checkedCast(partSize)];
+        int allocated = 1;
+        try {
+            int length = fill(buffer);
+
+            final Progress progress = startProgress(0);
+            if (length < buffer.length) {
+                final byte[] content = buffer;
+                final int contentLength = length;
+                objectMetadata.setContentLength(contentLength);
+                objectMetadata.setContentMD5(md5AsBase64(content, contentLength));
+                RetryUtils.AWS_RETRYER.call(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        PutObjectRequest req = new PutObjectRequest(bucket, key,
+                                new ByteArrayInputStream(content, 0, contentLength), objectMetadata);
+                        AttemptProgress attempt = new AttemptProgress(progress);
+                        req.setGeneralProgressListener(attempt);
+                        try {
+                            return amazonS3Client.putObject(req);
+                        } catch (AmazonClientException e) {
+                            attempt.reset();
+                            throw retryable(e);
+                        }
+                    }
+                });
+                return;
+            }
+
+            final String uploadId = retryingInitiate(objectMetadata);
+            ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+            boolean completed = false;
+            try {
+                List<Future<PartETag>> pending = new ArrayList<Future<PartETag>>();
+                int partNumber = 1;
+                while (length > 0) {
+                    if (partNumber > MAX_PARTS) {
+                        throw new IOException("The input doesn't fit in " + MAX_PARTS + " parts of " + partSize + " bytes, try a bigger part size");
+                    }
+                    final byte[] part = buffer;
+                    final int partLength = length;
+                    final int number = partNumber++;
+                    pending.add(executor.submit(new Callable<PartETag>() {
+                        public PartETag call() throws Exception {
+                            try {
+                                return retryingUploadPart(uploadId, number, part, partLength, progress);
+                            } catch (Exception e) {
+                                partFailure = e;
+                                throw e;
+                            } finally {
+                                pool.offer(part);
+                            }
+                        }
+                    }));
+
+                    // wait for a free buffer once they've all been handed out, or there's no room for another
+                    if (allocated < poolSize && planner.tryReserve(partSize)) {
+                        buffer = new byte[buffer.length];
+                        allocated++;
+                    } else {
+                        buffer = pool.take();
+                    }
+                    if (partFailure != null) {
+                        throw partFailure;
+                    }
+                    length = fill(buffer);
+                }
+
+                List<PartETag> partETags = new ArrayList<PartETag>(pending.size());
+                for (Future<PartETag> future : pending) {
+                    partETags.add(future.get());
+                }
+                retryingComplete(uploadId, partETags);
+                completed = true;
+            } finally {
+                executor.shutdownNow();
+                if (!completed) {
+                    // there's no going back to the parts of a stream, so there's nothing to resume from
+                    abort(bucket, key, uploadId);
+                }
+            }
+        } finally {
+            planner.release(allocated * partSize);
+        }
+    }
+
+    /**
+     * Read from the input stream until the given buffer is full or the stream
+     * runs out.
+     *
+     * @return the number of bytes read, which is only short of the buffer at the end of the stream
+     */
+    private int fill(byte[] buffer) throws IOException {
+        int count = 0;
+        int n;
+        while (count < buffer.length && -1 != (n = inputStream.read(buffer, count, buffer.length - count))) {
+            count += n;
+        }
+        return count;
+    }
+
+    private static String md5AsBase64(byte[] buffer, int length) {
+        return md5AsBase64(ByteBuffer.wrap(buffer, 0, length));
+    }
+
+    private static String md5AsBase64(ByteBuffer buffer) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            md5.update(buffer.duplicate());
+            return BinaryUtils.toBase64(md5.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Upload the file in parts, with up to the configured concurrency of parts
+     * in flight at once. Each part is read into memory with positional reads,
+     * or mapped when configured to, and retried on its own. When resuming, a previous upload of the same
+     * unchanged file picks up with only the parts S3 doesn't already have.
+     * Otherwise, an upload that can't be finished is aborted such that S3
+     * doesn't hold on to the parts that did make it.
+     */
+    private void multipartPut(ObjectMetadata objectMetadata) throws Exception {
+        long contentLength = inputFile.length();
+        long lastModified = inputFile.lastModified();
+
+        UploadJournal journal = UploadJournal.forFile(inputFile);
+        Map<Integer, String> done = new TreeMap<Integer, String>();
+        String uploadId = null;
+        if (journal.load()) {
+            if (resume && journal.matches(bucket, key, contentLength, lastModified)) {
+                Map<Integer, String> uploaded = retryingListParts(journal.getUploadId());
+                if (uploaded != null) {
+                    uploadId = journal.getUploadId();
+                    partSize = journal.getPartSize();
+
+                    // only trust the parts S3 still has exactly as they were recorded
+                    for (Map.Entry<Integer, String> e : journal.getFinished().entrySet()) {
+                        if (e.getValue().equals(uploaded.get(e.getKey()))) {
+                            done.put(e.getKey(), e.getValue());
+                        }
+                    }
+                    journal.resume(done);
+                    if (verbose) {
+                        System.err.println("Resuming upload " + uploadId + " with " + done.size() + " parts already uploaded");
+                    }
+                }
+            } else {
+                // the file changed or is going somewhere else now, so the old upload can never be completed
+                if (verbose) {
+                    System.err.println("Aborting stale upload " + journal.getUploadId() + " to s3://" + journal.getBucket() + "/" + journal.getKey());
+                }
+                abort(journal.getBucket(), journal.getKey(), journal.getUploadId());
+                journal.delete();
+            }
+        }
+
+        if (uploadId == null) {
+            if (planned) {
+                partSize = planner.getPartSize(contentLength);
+            }
+
+            // S3 only allows so many parts, so make them as big as they need to be to fit
+            long minPartSize = (contentLength + MAX_PARTS - 1) / MAX_PARTS;
+            if (partSize < minPartSize) {
+                if (verbose) {
+                    System.err.println("Raising part size from " + partSize + " to " + minPartSize + " bytes to stay within " + MAX_PARTS + " parts");
+                }
+                partSize = minPartSize;
+            }
+
+            uploadId = retryingInitiate(objectMetadata);
+            journal = resume ? startJournal(journal, uploadId, contentLength, lastModified) : null;
+        }
+
+        final Progress progress = startProgress(contentLength);
+        final String id = uploadId;
+        final UploadJournal partJournal = journal;
+        RandomAccessFile input = new RandomAccessFile(inputFile, "r");
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        boolean completed = false;
+        try {
+            final FileChannel channel = input.getChannel();
+            Map<Integer, Future<PartETag>> pending = new TreeMap<Integer, Future<PartETag>>();
+            int partNumber = 1;
+            for (final Part part : Parts.among(contentLength, partSize)) {
+                final int number = partNumber++;
+                if (done.containsKey(number)) {
+                    updateProgress(progress, part.end - part.start + 1);
+                    continue;
+                }
+                pending.put(number, executor.submit(new Callable<PartETag>() {
+                    public PartETag call() throws Exception {
+                        PartETag partETag = retryingUploadPart(channel, id, number, part.start, part.end, progress);
+                        if (partJournal != null) {
+                            partJournal.finished(number, partETag.getETag());
+                        }
+                        return partETag;
+                    }
+                }));
+            }
+
+            List<PartETag> partETags = new ArrayList<PartETag>(partNumber - 1);
+            for (int number = 1; number < partNumber; number++) {
+                Future<PartETag> future = pending.get(number);
+                partETags.add(future == null ? new PartETag(number, done.get(number)) : future.get());
+            }
+            retryingComplete(uploadId, partETags);
+            completed = true;
+        } finally {
+            executor.shutdownNow();
+            input.close();
+            if (completed) {
+                if (journal != null) {
+                    journal.delete();
+                }
+            } else if (journal != null) {
+                journal.close();
+                if (verbose) {
+                    System.err.println("\nKeeping upload " + uploadId + " to resume from, see " + journal.journalFile);
+                }
+            } else {
+                abort(bucket, key, uploadId);
+            }
+        }
+    }
+
+    /**
+     * Start the journal over for the given upload, or carry on without one if
+     * it can't be written next to the file.
+     */
+    private UploadJournal startJournal(UploadJournal journal, String uploadId, long contentLength, long lastModified) {
+        try {
+            journal.start(bucket, key, uploadId, partSize, contentLength, lastModified);
+            return journal;
+        } catch (IOException e) {
+            if (verbose) {
+                System.err.println("Unable to keep a journal of this upload at " + journal.journalFile + ", it won't be resumable: " + e.getMessage());
+            }
+            journal.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Return the ETag of each part S3 already has for the given upload, by
+     * part number, or null if the upload doesn't exist anymore.
+     */
+    private Map<Integer, String> retryingListParts(final String uploadId) throws ExecutionException, RetryException {
+        @SuppressWarnings("unchecked")
+        Map<Integer, String> parts = (Map<Integer, String>) RetryUtils.AWS_RETRYER.call(new Callable<Object>() {
+            public Map<Integer, String> call() throws Exception {
+                Map<Integer, String> parts = new TreeMap<Integer, String>();
+                Integer marker = null;
+                PartListing listing;
+                do {
+                    try {
+                        listing = amazonS3Client.listParts(new ListPartsRequest(bucket, key, uploadId)
+                                .withPartNumberMarker(marker));
+                    } catch (AmazonServiceException e) {
+                        if (e.getStatusCode() == 404) {
+                            // it was completed or aborted since, or expired
+                            return null;
+                        }
+                        throw e;
+                    } catch (AmazonClientException e) {
+                        throw retryable(e);
+                    }
+                    for (PartSummary part : listing.getParts()) {
+                        parts.put(part.getPartNumber(), part.getETag());
+                    }
+                    marker = listing.getNextPartNumberMarker();
+                } while (listing.isTruncated());
+                return parts;
+            }
+        });
+        return parts;
+    }
+
+    private String retryingInitiate(final ObjectMetadata objectMetadata) throws ExecutionException, RetryException {
+        return (String) RetryUtils.AWS_RETRYER.call(new Callable<Object>() {
+            public String call() throws Exception {
+                try {
+                    return amazonS3Client.initiateMultipartUpload(
+                            new InitiateMultipartUploadRequest(bucket, key, objectMetadata)).getUploadId();
+                } catch (AmazonClientException e) {
+                    throw retryable(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Read or map the given part of the file into memory and upload it,
+     * retrying just this part whenever it fails.
+     */
+    private PartETag retryingUploadPart(FileChannel channel, String uploadId, int partNumber,
+                                        long start, long end, Progress progress)
+            throws IOException, ExecutionException, RetryException {
+
+        if (memoryMap) {
+            MappedByteBuffer mapped = null;
+            try {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start + 1);
+            } catch (IOException e) {
+                // some file systems can't be mapped, and a 32-bit JVM runs out of address space
+                memoryMap = false;
+                if (verbose) {
+                    System.err.println("\nCould not map part " + partNumber + " of " + inputFile + ", reading parts instead: " + e.getMessage());
+                }
+            }
+            if (mapped != null) {
+                return retryingUploadPart(uploadId, partNumber, mapped, progress);
+            }
+        }
+
+        // a mapped part is only the page cache, but one that's read in counts toward the planner's memory limit
+        long length = end - start + 1;
+        try {
+            planner.reserve(length);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for memory to read part " + partNumber, e);
+        }
+        try {
+            byte[] buffer = new byte[Ints.checkedCast(length)];
+            ByteBuffer bb = ByteBuffer.wrap(buffer);
+            long position = start;
+            while (bb.hasRemaining()) {
+                int n = channel.read(bb, position);
+                if (n < 0) {
+                    throw new EOFException(String.format("%s ended at byte %d while reading part %d", inputFile, position, partNumber));
+                }
+                position += n;
+            }
+            return retryingUploadPart(uploadId, partNumber, buffer, buffer.length, progress);
+        } finally {
+            planner.release(length);
+        }
+    }
+
+    /**
+     * Upload the first length bytes of the given buffer as a part, retrying
+     * just this part whenever it fails.
+     */
+    private PartETag retryingUploadPart(String uploadId, int partNumber, byte[] buffer,
+                                        int length, Progress progress)
+            throws ExecutionException, RetryException {
+
+        return retryingUploadPart(uploadId, partNumber, ByteBuffer.wrap(buffer, 0, length), progress);
+    }
+
+    /**
+     * Upload the remaining bytes of the given buffer as a part, retrying just
+     * this part whenever it fails. Every attempt reads from the start of the
+     * buffer without copying it.
+     */
+    private PartETag retryingUploadPart(final String uploadId, final int partNumber, final ByteBuffer buffer,
+                                        final Progress progress)
+            throws ExecutionException, RetryException {
+
+        final int length = buffer.remaining();
+        final String md5 = md5AsBase64(buffer);
+        return (PartETag) RetryUtils.AWS_RETRYER.call(new Callable<Object>() {
+            public PartETag call() throws Exception {
+                UploadPartRequest req = new UploadPartRequest()
+                        .withBucketName(bucket)
+                        .withKey(key)
+                        .withUploadId(uploadId)
+                        .withPartNumber(partNumber)
+                        .withPartSize(length)
+                        .withMD5Digest(md5)
+                        .withInputStream(new ByteBufferInputStream(buffer));
+                AttemptProgress attempt = new AttemptProgress(progress);
+                req.setGeneralProgressListener(attempt);
+                try {
+                    long started = System.nanoTime();
+                    PartETag partETag = amazonS3Client.uploadPart(req).getPartETag();
+                    planner.record(length, System.nanoTime() - started);
+                    return partETag;
+                } catch (AmazonClientException e) {
+                    attempt.reset();
+                    if (verbose) {
+                        System.err.println("\nFailed to upload part " + partNumber + ": " + e.getMessage());
+                    }
+                    throw retryable(e);
+                }
+            }
+        });
+    }
+
+    private void retryingComplete(final String uploadId, final List<PartETag> partETags) throws ExecutionException, RetryException {
+        RetryUtils.AWS_RETRYER.call(new Callable<Object>() {
+            public Object call() throws Exception {
+                try {
+                    return amazonS3Client.completeMultipartUpload(
+                            new CompleteMultipartUploadRequest(bucket, key, uploadId, partETags));
+                } catch (AmazonClientException e) {
+                    throw retryable(e);
+                }
+            }
+        });
+    }
+
+    private void abort(String bucket, String key, String uploadId) {
+        try {
+            amazonS3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+        } catch (AmazonClientException e) {
+            // the original failure is the one worth reporting
+            if (verbose) {
+                System.err.println("\nUnable to abort multipart upload " + uploadId + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The client gives up on a dropped connection by wrapping the IOException,
+     * so unwrap it again such that it's retried like any other IOException.
+     */
+    private static Exception retryable(AmazonClientException e) {
+        if (e.getCause() instanceof IOException) {
+            return (IOException) e.getCause();
+        }
+        return e;
+    }
+
+    private Progress startProgress(long contentLength) {
+        Progress progress = new TransferProgressWrapper(new TransferProgress());
+        progress.setTotalBytesToTransfer(contentLength);
+        if (progressListener != null) {
+            progressListener.withTransferProgress(progress)
+                    .withCompleted(0.0)
+                    .withMultiplier(1.0);
+        }
+        return progress;
+    }
+
+    private void updateProgress(Progress progress, long bytes) {
+        if (progressListener != null) {
+            synchronized (progressListener) {
+                progress.updateProgress(bytes);
+                progressListener.progressChanged(new ProgressEvent(ProgressEventType.REQUEST_BYTE_TRANSFER_EVENT, bytes));
+            }
+        }
+    }
+
+    /**
+     * Count the bytes sent by a single attempt, such that they can be taken
+     * back out of the progress when the attempt fails and is retried.
+     */
+    private class AttemptProgress implements ProgressListener {
+
+        private final Progress progress;
+        private long sent;
+
+        AttemptProgress(Progress progress) {
+            this.progress = progress;
+        }
+
+        @Override
+        public void progressChanged(ProgressEvent progressEvent) {
+            if (progressEvent.getEventType() == ProgressEventType.REQUEST_BYTE_TRANSFER_EVENT) {
+                sent += progressEvent.getBytesTransferred();
+                updateProgress(progress, progressEvent.getBytesTransferred());
+            }
+        }
+
+        void reset() {
+            updateProgress(progress, -sent);
+            sent = 0;
         }
-        return 0;
     }
 }
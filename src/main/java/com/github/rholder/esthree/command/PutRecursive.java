@@ -0,0 +1,279 @@
+/*
+ * Copyright 2014 Ray Holder
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rholder.esthree.command;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.github.rholder.esthree.journal.DownloadJournal;
+import com.github.rholder.esthree.journal.UploadJournal;
+import com.github.rholder.esthree.plan.UploadPlanner;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Upload every file under a directory, keyed by its path relative to that
+ * directory under the target prefix. The tree is walked as it goes rather than
+ * up front, feeding a fixed pool of workers that share the same client and its
+ * connections, such that small files go up as single requests many at a time.
+ * Files big enough for a multipart upload have their parts uploaded in
+ * parallel too, sized by a planner that's shared between all of the files.
+ * That planner also caps the parts held in memory across all of the files at
+ * once, at half of the heap unless it's given a limit, so the number of files
+ * times the parts of each one in flight times the part size can't run out of
+ * memory. Files wait on each other for room instead.
+ *
+ * A file that fails to upload doesn't stop the others. The number of files
+ * that failed is returned once everything else is done.
+ */
+public class PutRecursive implements Callable<Integer> {
+
+    public static final int DEFAULT_CONCURRENCY = 16;
+
+    public AmazonS3Client amazonS3Client;
+    public String bucket;
+    public String prefix;
+    public File directory;
+    public Map<String, String> metadata;
+    public boolean sse;
+
+    public PrintStream printStream;
+
+    private Integer concurrency;
+    private Long partSize;
+    private Integer partConcurrency;
+    private Long memoryLimit;
+    private boolean resume = true;
+    private boolean skipIfSame;
+    private boolean memoryMap;
+    private boolean gzip;
+    private boolean verbose;
+
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public PutRecursive(AmazonS3Client amazonS3Client, String bucket, String prefix, File directory, Map<String, String> metadata, boolean sse) {
+        this.amazonS3Client = amazonS3Client;
+        this.bucket = bucket;
+        this.prefix = prefix;
+        this.directory = directory;
+        this.metadata = metadata;
+        this.sse = sse;
+    }
+
+    /**
+     * Set the number of files to upload at the same time.
+     *
+     * @param concurrency the number of files, defaults to {@link #DEFAULT_CONCURRENCY}
+     */
+    public PutRecursive withConcurrency(Integer concurrency) {
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * @see Put#withPartSize(Long)
+     */
+    public PutRecursive withPartSize(Long partSize) {
+        this.partSize = partSize;
+        return this;
+    }
+
+    /**
+     * Set the number of parts of each multipart upload to upload at the same
+     * time, on top of the files that are being uploaded at the same time.
+     *
+     * @param partConcurrency the number of parts, defaults to {@link Put#DEFAULT_CONCURRENCY}
+     */
+    public PutRecursive withPartConcurrency(Integer partConcurrency) {
+        this.partConcurrency = partConcurrency;
+        return this;
+    }
+
+    /**
+     * Set the most bytes of parts to hold in memory at once across all of the
+     * files that are being uploaded at the same time.
+     *
+     * @param memoryLimit the number of bytes, defaults to half of the maximum heap size
+     */
+    public PutRecursive withMemoryLimit(Long memoryLimit) {
+        this.memoryLimit = memoryLimit;
+        return this;
+    }
+
+    public PutRecursive withResume(boolean resume) {
+        this.resume = resume;
+        return this;
+    }
+
+    public PutRecursive withSkipIfSame(boolean skipIfSame) {
+        this.skipIfSame = skipIfSame;
+        return this;
+    }
+
+    public PutRecursive withMemoryMap(boolean memoryMap) {
+        this.memoryMap = memoryMap;
+        return this;
+    }
+
+    public PutRecursive withGzip(boolean gzip) {
+        this.gzip = gzip;
+        return this;
+    }
+
+    public PutRecursive withPrintStream(PrintStream printStream) {
+        this.printStream = printStream;
+        return this;
+    }
+
+    public PutRecursive withVerbose(boolean verbose) {
+        this.verbose = verbose;
+        return this;
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        concurrency = concurrency == null ? DEFAULT_CONCURRENCY : concurrency;
+        partConcurrency = partConcurrency == null ? Put.DEFAULT_CONCURRENCY : partConcurrency;
+        String keyPrefix = prefix == null || prefix.isEmpty() || prefix.endsWith("/") ? prefix : prefix + "/";
+
+        memoryLimit = memoryLimit == null ? Runtime.getRuntime().maxMemory() / 2 : memoryLimit;
+
+        UploadPlanner planner = new UploadPlanner(partConcurrency)
+                .withMemoryLimit(memoryLimit)
+                .withVerbose(verbose);
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+
+        // a few files queued up per worker is plenty, the rest of the tree can wait
+        Semaphore queued = new Semaphore(concurrency * 2);
+        long started = System.nanoTime();
+        try {
+            Deque<File> directories = new ArrayDeque<File>();
+            directories.push(directory);
+            while (!directories.isEmpty()) {
+                File dir = directories.pop();
+                File[] children = dir.listFiles();
+                if (children == null) {
+                    fail(dir, new IOException("Unable to list directory"));
+                    continue;
+                }
+                Arrays.sort(children);
+
+                // push in reverse such that the tree is uploaded in order
+                for (int i = children.length - 1; i >= 0; i--) {
+                    File child = children[i];
+                    if (child.isDirectory()) {
+                        // following links to directories could go around in circles
+                        if (!FileUtils.isSymlink(child)) {
+                            directories.push(child);
+                        } else if (verbose) {
+                            System.err.println("Skipping linked directory " + child);
+                        }
+                    }
+                }
+                for (File child : children) {
+                    if (child.isFile() && !isJournal(child)) {
+                        queued.acquire();
+                        executor.execute(upload(child, key(keyPrefix, child), planner, queued));
+                    }
+                }
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (printStream != null) {
+            double seconds = Math.max(1, System.nanoTime() - started) / 1e9;
+            printStream.print(String.format("Uploaded %d files, %d bytes in %.1f s (%.1f files/s, %.1f MB/s)",
+                    files.get(), bytes.get(), seconds, files.get() / seconds, bytes.get() / (1024.0 * 1024.0) / seconds));
+            if (failed.get() > 0) {
+                printStream.print(String.format(", %d failed", failed.get()));
+            }
+            printStream.println();
+        }
+        return (int) Math.min(Integer.MAX_VALUE, failed.get());
+    }
+
+    private Runnable upload(final File file, final String key, final UploadPlanner planner, final Semaphore queued) {
+        return new Runnable() {
+            public void run() {
+                try {
+                    new Put(amazonS3Client, bucket, key, file, metadata, sse)
+                            .withPlanner(planner)
+                            .withPartSize(partSize)
+                            .withConcurrency(partConcurrency)
+                            .withResume(resume)
+                            .withSkipIfSame(skipIfSame)
+                            .withMemoryMap(memoryMap)
+                            .withGzip(gzip)
+                            .withVerbose(verbose)
+                            .call();
+                    files.incrementAndGet();
+                    bytes.addAndGet(file.length());
+                    if (verbose) {
+                        System.err.println(file + " -> s3://" + bucket + "/" + key);
+                    }
+                } catch (Exception e) {
+                    fail(file, e);
+                } finally {
+                    queued.release();
+                }
+            }
+        };
+    }
+
+    private void fail(File file, Exception e) {
+        failed.incrementAndGet();
+        System.err.println("Failed to upload " + file + ": " + e.getMessage());
+        if (verbose) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Return the key for the given file, which is its path relative to the
+     * directory being uploaded with "/" between each part.
+     */
+    private String key(String keyPrefix, File file) {
+        StringBuilder relative = new StringBuilder(file.getName());
+        for (File parent = file.getParentFile(); !parent.equals(directory); parent = parent.getParentFile()) {
+            relative.insert(0, '/').insert(0, parent.getName());
+        }
+        return keyPrefix == null ? relative.toString() : keyPrefix + relative;
+    }
+
+    /**
+     * Return true for the journals that are kept next to files while they're
+     * being transferred, which were never meant to be uploaded.
+     */
+    private static boolean isJournal(File file) {
+        return file.getName().endsWith(UploadJournal.SUFFIX) || file.getName().endsWith(DownloadJournal.SUFFIX);
+    }
+}
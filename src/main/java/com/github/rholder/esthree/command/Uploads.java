@@ -0,0 +1,141 @@
+/*
+ * Copyright 2014 Ray Holder
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rholder.esthree.command;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListMultipartUploadsRequest;
+import com.amazonaws.services.s3.model.MultipartUpload;
+import com.amazonaws.services.s3.model.MultipartUploadListing;
+import com.github.rholder.esthree.util.RetryUtils;
+import com.github.rholder.retry.RetryException;
+
+import java.io.PrintStream;
+import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * List the multipart uploads that were started but never completed or
+ * aborted, optionally aborting them. S3 keeps charging for the parts of these
+ * until they're aborted, such as when a put died and was never resumed.
+ */
+public class Uploads implements Callable<Integer> {
+
+    public AmazonS3Client amazonS3Client;
+    public String bucket;
+    public String prefix;
+    public Date initiatedBefore;
+    public boolean abort;
+
+    public String listFormat;
+    public PrintStream printStream;
+
+    public Uploads(AmazonS3Client amazonS3Client, String bucket) {
+        this.amazonS3Client = amazonS3Client;
+        this.bucket = bucket;
+    }
+
+    public Uploads withPrefix(String prefix) {
+        this.prefix = prefix;
+        return this;
+    }
+
+    /**
+     * Only include uploads that were started before the given time, such as to
+     * leave uploads that are still running alone.
+     *
+     * @param initiatedBefore the time, or null to include every upload
+     */
+    public Uploads withInitiatedBefore(Date initiatedBefore) {
+        this.initiatedBefore = initiatedBefore;
+        return this;
+    }
+
+    public Uploads withAbort(boolean abort) {
+        this.abort = abort;
+        return this;
+    }
+
+    public Uploads withListFormat(String listFormat) {
+        this.listFormat = listFormat;
+        return this;
+    }
+
+    public Uploads withPrintStream(PrintStream printStream) {
+        this.printStream = printStream;
+        return this;
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        String keyMarker = null;
+        String uploadIdMarker = null;
+        MultipartUploadListing listing;
+        do {
+            listing = list(keyMarker, uploadIdMarker);
+            for (MultipartUpload upload : listing.getMultipartUploads()) {
+                if (initiatedBefore != null && !upload.getInitiated().before(initiatedBefore)) {
+                    continue;
+                }
+                // only claim it's aborted once it is
+                if (abort) {
+                    retryingAbort(upload.getKey(), upload.getUploadId());
+                }
+                printStream.println(String.format(listFormat,
+                        upload.getInitiated(),
+                        upload.getUploadId(),
+                        bucket,
+                        upload.getKey(),
+                        abort ? "aborted" : ""));
+            }
+            keyMarker = listing.getNextKeyMarker();
+            uploadIdMarker = listing.getNextUploadIdMarker();
+        } while (listing.isTruncated());
+
+        return 0;
+    }
+
+    /**
+     * Return the page of multipart uploads starting at the given markers.
+     *
+     * @param keyMarker      the next key marker from a previous call or null
+     * @param uploadIdMarker the next upload id marker from a previous call or null
+     */
+    public MultipartUploadListing list(final String keyMarker, final String uploadIdMarker) throws ExecutionException, RetryException {
+        return (MultipartUploadListing) RetryUtils.AWS_RETRYER.call(new Callable<Object>() {
+            public MultipartUploadListing call() throws Exception {
+                ListMultipartUploadsRequest req = new ListMultipartUploadsRequest(bucket)
+                        .withKeyMarker(keyMarker)
+                        .withUploadIdMarker(uploadIdMarker);
+                if (prefix != null) {
+                    req.withPrefix(prefix);
+                }
+                return amazonS3Client.listMultipartUploads(req);
+            }
+        });
+    }
+
+    private void retryingAbort(final String key, final String uploadId) throws ExecutionException, RetryException {
+        RetryUtils.AWS_RETRYER.call(new Callable<Object>() {
+            public Object call() throws Exception {
+                amazonS3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2014 Ray Holder
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rholder.esthree.digest;
+
+import com.amazonaws.util.BinaryUtils;
+import com.google.common.base.Throwables;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Compute the ETag S3 assigns to an object uploaded in multiple parts, which is
+ * the MD5 of the concatenated binary MD5's of each of its parts. Since each
+ * part is hashed independently, ranges that start on a part boundary can be
+ * hashed from any number of threads in any order.
+ */
+public class MultipartDigest {
+
+    public static final int DEFAULT_BUF_SIZE = 4096 * 4;
+
+    private final long contentLength;
+    private final long partSize;
+    private final byte[][] partDigests;
+
+    /**
+     * @param contentLength the total number of bytes of the object
+     * @param partSize      the size of every part except possibly the last one
+     */
+    public MultipartDigest(long contentLength, long partSize) {
+        this.contentLength = contentLength;
+        this.partSize = partSize;
+        this.partDigests = new byte[(int) ((contentLength + partSize - 1) / partSize)][];
+    }
+
+    public long getPartSize() {
+        return partSize;
+    }
+
+    public int getPartCount() {
+        return partDigests.length;
+    }
+
+    /**
+     * Return a new {@link Range} that starts hashing at the given position.
+     *
+     * @param start a position that falls on a part boundary
+     */
+    public Range range(long start) {
+        if (start % partSize != 0) {
+            throw new IllegalArgumentException(String.format("%d is not on a part boundary of %d", start, partSize));
+        }
+        return new Range(start);
+    }
+
+    /**
+     * Return true once every part has been hashed.
+     */
+    public synchronized boolean isComplete() {
+        for (byte[] partDigest : partDigests) {
+            if (partDigest == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the multipart ETag computed from all of the parts.
+     */
+    public synchronized String getETag() {
+        if (!isComplete()) {
+            throw new IllegalStateException("Not all parts have been hashed");
+        }
+        MessageDigest digest = newMD5();
+        for (byte[] partDigest : partDigests) {
+            digest.update(partDigest);
+        }
+        return BinaryUtils.toHex(digest.digest()) + "-" + partDigests.length;
+    }
+
+    private synchronized void finishPart(int partIndex, byte[] partDigest) {
+        partDigests[partIndex] = partDigest;
+    }
+
+    /**
+     * Hash the given number of bytes from the start of a local file using the
+     * given part size.
+     *
+     * @param file          the file to read from
+     * @param contentLength the number of bytes to hash
+     * @param partSize      the size of every part except possibly the last one
+     */
+    public static MultipartDigest digestFile(RandomAccessFile file, long contentLength, long partSize) throws IOException {
+        MultipartDigest multipartDigest = new MultipartDigest(contentLength, partSize);
+        multipartDigest.range(0).update(file, contentLength);
+        return multipartDigest;
+    }
+
+    /**
+     * Hash the given number of bytes from the start of a local file using the
+     * given part size, with each part hashed on its own by the given executor.
+     * Reads are positional, so the parts don't get in each other's way.
+     *
+     * @param file          the file to read from
+     * @param contentLength the number of bytes to hash
+     * @param partSize      the size of every part except possibly the last one
+     * @param executor      the executor to hash the parts with
+     */
+    public static MultipartDigest digestFile(final RandomAccessFile file, long contentLength, long partSize,
+                                             ExecutorService executor) throws IOException, InterruptedException {
+        final MultipartDigest multipartDigest = new MultipartDigest(contentLength, partSize);
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for (long start = 0; start < contentLength; start += partSize) {
+            final long partStart = start;
+            final long partLength = Math.min(partSize, contentLength - start);
+            futures.add(executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    multipartDigest.range(partStart).update(file, partLength);
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<Object> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            // interrupting a read would close the file's channel out from under everyone else
+            for (Future<Object> future : futures) {
+                future.cancel(false);
+            }
+        }
+        return multipartDigest;
+    }
+
+    static MessageDigest newMD5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A stream of bytes that starts on a part boundary. The digest of each part
+     * is saved as soon as the last byte of that part passes through.
+     */
+    public class Range implements Cloneable {
+
+        private long position;
+        private MessageDigest digest;
+
+        private Range(long start) {
+            this.position = start;
+            this.digest = newMD5();
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        public void update(byte[] buffer, int offset, int length) {
+            while (length > 0) {
+                long partEnd = Math.min((position / partSize + 1) * partSize, contentLength);
+                int n = (int) Math.min(length, partEnd - position);
+                if (n <= 0) {
+                    throw new IllegalStateException(String.format("Position %d is past the end of %d bytes", position, contentLength));
+                }
+
+                digest.update(buffer, offset, n);
+                position += n;
+                offset += n;
+                length -= n;
+
+                if (position == partEnd) {
+                    finishPart((int) ((position - 1) / partSize), digest.digest());
+                }
+            }
+        }
+
+        /**
+         * Hash the next given number of bytes from the same position in a local file.
+         *
+         * @param file   the file to read from
+         * @param length the number of bytes to hash
+         */
+        public void update(RandomAccessFile file, long length) throws IOException {
+            byte[] buffer = new byte[DEFAULT_BUF_SIZE];
+            ByteBuffer bb = ByteBuffer.wrap(buffer);
+            FileChannel channel = file.getChannel();
+            long end = position + length;
+            while (position < end) {
+                bb.clear();
+                bb.limit((int) Math.min(buffer.length, end - position));
+                int n = channel.read(bb, position);
+                if (n < 0) {
+                    throw new IOException(String.format("Unexpected end of file at %d", position));
+                }
+                update(buffer, 0, n);
+            }
+        }
+
+        /**
+         * Return an independent copy of this range, such that a failed attempt
+         * can start over from where this one currently is.
+         */
+        @Override
+        public Range clone() {
+            try {
+                Range copy = (Range) super.clone();
+                copy.digest = (MessageDigest) digest.clone();
+                return copy;
+            } catch (CloneNotSupportedException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
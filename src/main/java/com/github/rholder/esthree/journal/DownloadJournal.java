@@ -0,0 +1,228 @@
+/*
+ * Copyright 2014 Ray Holder
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rholder.esthree.journal;
+
+import org.apache.commons.io.Charsets;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An append-only sidecar journal of the byte ranges of a download that have
+ * already been written out to disk. Each range is only recorded after its
+ * bytes have been forced to disk, and each record is forced before moving on,
+ * so whatever is in the journal can be trusted after a crash. A record that was
+ * only partially written when the process died is simply ignored.
+ */
+public class DownloadJournal {
+
+    public static final String SUFFIX = ".esthree-journal";
+    public static final String HEADER = "esthree-download 1";
+
+    public File journalFile;
+
+    private String etag;
+    private long contentLength;
+    private long chunkSize;
+    private TreeMap<Long, Long> finished = new TreeMap<Long, Long>();
+    private FileOutputStream out;
+    private boolean torn;
+
+    public DownloadJournal(File journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * Return the journal that sits next to the given file being downloaded.
+     *
+     * @param outputFile the file being downloaded
+     */
+    public static DownloadJournal forFile(File outputFile) {
+        return new DownloadJournal(new File(outputFile.getPath() + SUFFIX));
+    }
+
+    /**
+     * Load whatever was previously recorded in the journal, if anything.
+     *
+     * @return true if a valid header was found
+     */
+    public boolean load() throws IOException {
+        etag = null;
+        finished.clear();
+        if (!journalFile.exists()) {
+            return false;
+        }
+
+        // anything after the last newline is a torn record from a crash, everything before it is still good
+        String contents = FileUtils.readFileToString(journalFile, Charsets.UTF_8);
+        String[] lines = contents.substring(0, contents.lastIndexOf('\n') + 1).split("\n");
+        torn = !contents.endsWith("\n");
+        if (!HEADER.equals(lines[0])) {
+            return false;
+        }
+
+        for (String line : lines) {
+            String[] fields = line.split(" ");
+            if ("etag".equals(fields[0]) && fields.length == 2) {
+                etag = fields[1];
+            } else if ("length".equals(fields[0]) && fields.length == 2) {
+                contentLength = Long.parseLong(fields[1]);
+            } else if ("chunk".equals(fields[0]) && fields.length == 2) {
+                chunkSize = Long.parseLong(fields[1]);
+            } else if ("part".equals(fields[0]) && fields.length == 3) {
+                finished.put(Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+            }
+        }
+        return etag != null;
+    }
+
+    /**
+     * Open the journal for the given object, keeping previously recorded ranges
+     * only if they were recorded against the same version of the same object
+     * with the same chunking. Otherwise, the journal starts over from scratch.
+     *
+     * @param etag          the ETag of the object being downloaded
+     * @param contentLength the full length of the object being downloaded
+     * @param chunkSize     the size of the ranges being recorded, or 0 when they vary
+     * @return true if previously recorded ranges can be resumed from
+     */
+    public synchronized boolean open(String etag, long contentLength, long chunkSize) throws IOException {
+        close();
+        boolean resumable = load()
+                && etag.equals(this.etag)
+                && contentLength == this.contentLength
+                && chunkSize == this.chunkSize;
+
+        if (resumable) {
+            out = new FileOutputStream(journalFile, true);
+
+            // cut off a torn record so the next one starts on its own line
+            if (torn) {
+                append("\n");
+            }
+        } else {
+            this.etag = etag;
+            this.contentLength = contentLength;
+            this.chunkSize = chunkSize;
+            finished.clear();
+
+            out = new FileOutputStream(journalFile, false);
+            append(HEADER + "\netag " + etag + "\nlength " + contentLength + "\nchunk " + chunkSize + "\n");
+        }
+        return resumable && !finished.isEmpty();
+    }
+
+    /**
+     * Record that the given range has been durably written out. The bytes of
+     * the range must already have been forced to disk before calling this.
+     *
+     * @param start the first byte of the range
+     * @param end   the last byte of the range, inclusive
+     */
+    public synchronized void finished(long start, long end) throws IOException {
+        finished.put(start, end);
+        append("part " + start + " " + end + "\n");
+    }
+
+    /**
+     * Return true if exactly this range has already been recorded.
+     *
+     * @param start the first byte of the range
+     * @param end   the last byte of the range, inclusive
+     */
+    public synchronized boolean isFinished(long start, long end) {
+        Long recordedEnd = finished.get(start);
+        return recordedEnd != null && recordedEnd == end;
+    }
+
+    /**
+     * Return the last byte of the range recorded as starting at the given
+     * position, or null if there isn't one.
+     *
+     * @param start the first byte of the range
+     */
+    public synchronized Long getFinishedEnd(long start) {
+        return finished.get(start);
+    }
+
+    /**
+     * Return the first byte of the next range recorded after the given
+     * position, or null if there isn't one.
+     *
+     * @param position look for a range starting after this position
+     */
+    public synchronized Long getNextFinishedStart(long position) {
+        return finished.higherKey(position);
+    }
+
+    /**
+     * Return the number of bytes from the start of the file that have been
+     * recorded without any gaps.
+     */
+    public synchronized long getFinishedPrefix() {
+        long position = 0;
+        Long end;
+        while ((end = finished.get(position)) != null) {
+            position = end + 1;
+        }
+        return position;
+    }
+
+    /**
+     * Return the total number of bytes that have been recorded.
+     */
+    public synchronized long getFinishedBytes() {
+        long total = 0;
+        for (Map.Entry<Long, Long> e : finished.entrySet()) {
+            total += e.getValue() - e.getKey() + 1;
+        }
+        return total;
+    }
+
+    public synchronized String getETag() {
+        return etag;
+    }
+
+    public synchronized long getContentLength() {
+        return contentLength;
+    }
+
+    public synchronized void close() {
+        IOUtils.closeQuietly(out);
+        out = null;
+    }
+
+    /**
+     * Close and remove the journal, such as after a download has been verified.
+     */
+    public synchronized void delete() {
+        close();
+        journalFile.delete();
+        finished.clear();
+    }
+
+    private void append(String record) throws IOException {
+        out.write(record.getBytes(Charsets.UTF_8));
+        out.flush();
+        out.getFD().sync();
+    }
+}
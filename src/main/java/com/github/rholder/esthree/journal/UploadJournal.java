@@ -0,0 +1,233 @@
+/*
+ * Copyright 2014 Ray Holder
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rholder.esthree.journal;
+
+import org.apache.commons.io.Charsets;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An append-only sidecar journal of a multipart upload, kept next to the file
+ * being uploaded. It records which upload the parts went to, what the file
+ * looked like when the upload started, and the ETag of each part as soon as S3
+ * accepts it, so a later run can pick up with only the missing parts. As with
+ * the {@link DownloadJournal}, a record that was only partially written when
+ * the process died is simply ignored.
+ */
+public class UploadJournal {
+
+    public static final String SUFFIX = ".esthree-upload";
+    public static final String HEADER = "esthree-upload 1";
+
+    public File journalFile;
+
+    private String bucket;
+    private String key;
+    private String uploadId;
+    private long partSize;
+    private long contentLength;
+    private long lastModified;
+    private TreeMap<Integer, String> finished = new TreeMap<Integer, String>();
+    private FileOutputStream out;
+    private boolean torn;
+
+    public UploadJournal(File journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * Return the journal that sits next to the given file being uploaded.
+     *
+     * @param inputFile the file being uploaded
+     */
+    public static UploadJournal forFile(File inputFile) {
+        return new UploadJournal(new File(inputFile.getPath() + SUFFIX));
+    }
+
+    /**
+     * Load whatever was previously recorded in the journal, if anything.
+     *
+     * @return true if a valid header and upload were found
+     */
+    public synchronized boolean load() throws IOException {
+        bucket = null;
+        key = null;
+        uploadId = null;
+        finished.clear();
+        if (!journalFile.exists()) {
+            return false;
+        }
+
+        // anything after the last newline is a torn record from a crash, everything before it is still good
+        String contents = FileUtils.readFileToString(journalFile, Charsets.UTF_8);
+        String[] lines = contents.substring(0, contents.lastIndexOf('\n') + 1).split("\n");
+        torn = !contents.endsWith("\n");
+        if (!HEADER.equals(lines[0])) {
+            return false;
+        }
+
+        for (String line : lines) {
+            // keys may have spaces in them, so only split off the name of the field
+            int space = line.indexOf(' ');
+            if (space < 0) {
+                continue;
+            }
+            String name = line.substring(0, space);
+            String value = line.substring(space + 1);
+            if ("bucket".equals(name)) {
+                bucket = value;
+            } else if ("key".equals(name)) {
+                key = value;
+            } else if ("upload".equals(name)) {
+                uploadId = value;
+            } else if ("part-size".equals(name)) {
+                partSize = Long.parseLong(value);
+            } else if ("length".equals(name)) {
+                contentLength = Long.parseLong(value);
+            } else if ("modified".equals(name)) {
+                lastModified = Long.parseLong(value);
+            } else if ("part".equals(name)) {
+                String[] fields = value.split(" ");
+                if (fields.length == 2) {
+                    finished.put(Integer.parseInt(fields[0]), fields[1]);
+                }
+            }
+        }
+        return bucket != null && key != null && uploadId != null;
+    }
+
+    /**
+     * Return true if what was loaded was recorded for an upload of a file that
+     * looked exactly like the given one to the same bucket and key.
+     *
+     * @param bucket        the bucket being uploaded to
+     * @param key           the key being uploaded to
+     * @param contentLength the current length of the file
+     * @param lastModified  the current modification time of the file
+     */
+    public synchronized boolean matches(String bucket, String key, long contentLength, long lastModified) {
+        return bucket.equals(this.bucket)
+                && key.equals(this.key)
+                && contentLength == this.contentLength
+                && lastModified == this.lastModified;
+    }
+
+    /**
+     * Start the journal over for a new upload, forgetting anything recorded
+     * before.
+     *
+     * @param bucket        the bucket being uploaded to
+     * @param key           the key being uploaded to
+     * @param uploadId      the id of the new multipart upload
+     * @param partSize      the size of every part except possibly the last one
+     * @param contentLength the length of the file
+     * @param lastModified  the modification time of the file
+     */
+    public synchronized void start(String bucket, String key, String uploadId, long partSize,
+                                   long contentLength, long lastModified) throws IOException {
+        close();
+        this.bucket = bucket;
+        this.key = key;
+        this.uploadId = uploadId;
+        this.partSize = partSize;
+        this.contentLength = contentLength;
+        this.lastModified = lastModified;
+        finished.clear();
+
+        out = new FileOutputStream(journalFile, false);
+        append(HEADER + "\nbucket " + bucket + "\nkey " + key + "\nupload " + uploadId + "\npart-size " + partSize
+                + "\nlength " + contentLength + "\nmodified " + lastModified + "\n");
+    }
+
+    /**
+     * Keep appending to what was loaded, leaving only the given parts as
+     * finished, such as the ones S3 still has.
+     *
+     * @param parts the ETag of each part number to keep
+     */
+    public synchronized void resume(Map<Integer, String> parts) throws IOException {
+        close();
+        finished.clear();
+        finished.putAll(parts);
+        out = new FileOutputStream(journalFile, true);
+
+        // cut off a torn record so the next one starts on its own line
+        if (torn) {
+            append("\n");
+        }
+    }
+
+    /**
+     * Record that S3 accepted the given part.
+     *
+     * @param partNumber the number of the part, starting from 1
+     * @param etag       the ETag S3 returned for the part
+     */
+    public synchronized void finished(int partNumber, String etag) throws IOException {
+        finished.put(partNumber, etag);
+        append("part " + partNumber + " " + etag + "\n");
+    }
+
+    /**
+     * Return the ETag of each part recorded as finished, by part number.
+     */
+    public synchronized Map<Integer, String> getFinished() {
+        return new TreeMap<Integer, String>(finished);
+    }
+
+    public synchronized String getBucket() {
+        return bucket;
+    }
+
+    public synchronized String getKey() {
+        return key;
+    }
+
+    public synchronized String getUploadId() {
+        return uploadId;
+    }
+
+    public synchronized long getPartSize() {
+        return partSize;
+    }
+
+    public synchronized void close() {
+        IOUtils.closeQuietly(out);
+        out = null;
+    }
+
+    /**
+     * Close and remove the journal, such as after an upload has been completed.
+     */
+    public synchronized void delete() {
+        close();
+        journalFile.delete();
+        finished.clear();
+    }
+
+    private void append(String record) throws IOException {
+        out.write(record.getBytes(Charsets.UTF_8));
+        out.flush();
+        out.getFD().sync();
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2014 Ray Holder
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rholder.esthree.plan;
+
+import com.github.rholder.esthree.journal.DownloadJournal;
+import com.github.rholder.moar.concurrent.partition.Part;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hand out the ranges of a download one at a time, in order. By default every
+ * range is the same size. With bounds set, the size of the next range adapts to
+ * how the previous ones went: ranges grow while the time to first byte is a
+ * large fraction of each request and shrink when a range takes too long or had
+ * to be retried, such that a lossy link doesn't throw away as much each time.
+ *
+ * Ranges that were already recorded as finished in a journal are handed out
+ * exactly as they were recorded, and new ranges never overlap them.
+ */
+public class ChunkPlanner {
+
+    public static final long DEFAULT_MIN_CHUNK_SIZE = 1024 * 1024; // 1 MB
+    public static final long DEFAULT_MAX_CHUNK_SIZE = 1024 * 1024 * 32; // 32 MB
+
+    /**
+     * Grow ranges until the time to first byte is no more than this fraction of each request.
+     */
+    public static final double TARGET_OVERHEAD = 0.1;
+    public static final long MIN_TARGET_MILLIS = 1000;
+    public static final long MAX_TARGET_MILLIS = 10000;
+
+    private final long contentLength;
+    private long chunkSize;
+    private long minChunkSize;
+    private long maxChunkSize;
+    private boolean adaptive;
+    private long alignment = 1;
+    private DownloadJournal journal;
+    private boolean verbose;
+
+    private long position;
+
+    /**
+     * @param contentLength the total number of bytes to plan ranges for
+     * @param chunkSize     the size of each range, or of the first one when adaptive
+     */
+    public ChunkPlanner(long contentLength, long chunkSize) {
+        this.contentLength = contentLength;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Adapt the size of each range to the measured throughput, within the
+     * given bounds.
+     *
+     * @param minChunkSize the smallest range to plan
+     * @param maxChunkSize the largest range to plan
+     */
+    public ChunkPlanner withBounds(long minChunkSize, long maxChunkSize) {
+        this.minChunkSize = minChunkSize;
+        this.maxChunkSize = maxChunkSize;
+        this.adaptive = true;
+        this.chunkSize = Math.max(minChunkSize, Math.min(maxChunkSize, chunkSize));
+        return this;
+    }
+
+    /**
+     * Keep every range a multiple of the given size, such as the part size of
+     * a multipart upload.
+     *
+     * @param alignment start every range on a multiple of this
+     */
+    public ChunkPlanner withAlignment(long alignment) {
+        this.alignment = alignment;
+        return this;
+    }
+
+    /**
+     * Hand out the ranges that were already recorded in the given journal as
+     * they were recorded.
+     *
+     * @param journal a journal of finished ranges, or null
+     */
+    public ChunkPlanner withJournal(DownloadJournal journal) {
+        this.journal = journal;
+        return this;
+    }
+
+    public ChunkPlanner withVerbose(boolean verbose) {
+        this.verbose = verbose;
+        return this;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    public synchronized long getChunkSize() {
+        return align(chunkSize);
+    }
+
+    /**
+     * Return the next range, or null once the whole content has been planned.
+     */
+    public synchronized Part next() {
+        if (position >= contentLength) {
+            return null;
+        }
+
+        Part part;
+        Long finishedEnd = journal == null ? null : journal.getFinishedEnd(position);
+        if (finishedEnd != null) {
+            part = new Part(position, finishedEnd);
+        } else {
+            long end = Math.min(position + align(chunkSize), contentLength) - 1;
+            Long nextFinished = journal == null ? null : journal.getNextFinishedStart(position);
+            if (nextFinished != null) {
+                end = Math.min(end, nextFinished - 1);
+            }
+            part = new Part(position, end);
+        }
+        position = part.end + 1;
+        return part;
+    }
+
+    /**
+     * Record how a range went and use it to size the ones that haven't been
+     * planned yet. This does nothing unless bounds were set.
+     *
+     * @param bytes          the number of bytes that were transferred
+     * @param firstByteNanos the time from sending the request to getting a response
+     * @param elapsedNanos   the time from sending the request to receiving the last byte
+     * @param retried        true if the range failed at least once along the way
+     */
+    public synchronized void record(long bytes, long firstByteNanos, long elapsedNanos, boolean retried) {
+        if (!adaptive) {
+            return;
+        }
+
+        long firstByteMillis = TimeUnit.NANOSECONDS.toMillis(firstByteNanos);
+        long transferMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(elapsedNanos - firstByteNanos));
+        long bytesPerSecond = bytes * 1000 / transferMillis;
+
+        long next;
+        String reason;
+        if (retried) {
+            next = chunkSize / 2;
+            reason = "retried";
+        } else {
+            // aim for requests long enough that the time to first byte doesn't matter, but not so long that a failure hurts
+            long targetMillis = Math.max(MIN_TARGET_MILLIS, Math.min(MAX_TARGET_MILLIS, (long) (firstByteMillis / TARGET_OVERHEAD)));
+            next = Math.max(chunkSize / 2, Math.min(chunkSize * 2, bytesPerSecond * targetMillis / 1000));
+            reason = "target " + targetMillis + " ms";
+        }
+        next = Math.max(minChunkSize, Math.min(maxChunkSize, next));
+
+        if (verbose) {
+            System.err.println(String.format("Range of %d bytes: first byte %d ms, %d bytes/s, %s, next chunk %d -> %d bytes",
+                    bytes, firstByteMillis, bytesPerSecond, reason, align(chunkSize), align(next)));
+        }
+        chunkSize = next;
+    }
+
+    private long align(long size) {
+        return Math.max(alignment, size - size % alignment);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2014 Ray Holder
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rholder.esthree.plan;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Keep track of how long recently completed ranges took, normalized by their
+ * size, such that a range that's taking much longer than usual can be spotted
+ * while it's still in flight, regardless of how big it is.
+ */
+public class LatencyTracker {
+
+    public static final int MIN_SAMPLES = 5;
+    public static final int MAX_SAMPLES = 1000;
+
+    private final double percentile;
+    private final LinkedList<Double> nanosPerByte = new LinkedList<Double>();
+
+    /**
+     * @param percentile the percentile of past ranges, from 0.0 - 100.0, that a range has to run past
+     */
+    public LatencyTracker(double percentile) {
+        this.percentile = percentile;
+    }
+
+    /**
+     * Record how long a completed range took.
+     *
+     * @param bytes        the number of bytes in the range
+     * @param elapsedNanos the time from sending the request to receiving the last byte
+     */
+    public synchronized void record(long bytes, long elapsedNanos) {
+        if (bytes <= 0) {
+            return;
+        }
+        nanosPerByte.addLast((double) elapsedNanos / bytes);
+        if (nanosPerByte.size() > MAX_SAMPLES) {
+            nanosPerByte.removeFirst();
+        }
+    }
+
+    /**
+     * Return how long a range of the given size can run before it's past the
+     * configured percentile of the recent ranges, or null if not enough ranges
+     * have completed yet to tell.
+     *
+     * @param bytes the number of bytes in the range
+     */
+    public synchronized Long getThresholdNanos(long bytes) {
+        if (nanosPerByte.size() < MIN_SAMPLES) {
+            return null;
+        }
+        List<Double> sorted = new ArrayList<Double>(nanosPerByte);
+        Collections.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        index = Math.max(0, Math.min(sorted.size() - 1, index));
+        return (long) (sorted.get(index) * bytes);
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2014 Ray Holder
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rholder.esthree.plan;
+
+import java.util.concurrent.Semaphore;
+
+import static com.github.rholder.esthree.util.ETagUtils.MAX_PARTS;
+import static com.github.rholder.esthree.util.ETagUtils.MB;
+import static com.github.rholder.esthree.util.ETagUtils.MIN_PART_SIZE;
+
+/**
+ * Choose the part size of a multipart upload. Parts are made small enough that
+ * every one of the parts uploaded at the same time gets several of them, such
+ * that the link stays busy to the end, but never smaller than S3 allows or so
+ * small that the file doesn't fit in {@link com.github.rholder.esthree.util.ETagUtils#MAX_PARTS}
+ * parts. Once some parts have been uploaded, their measured throughput keeps
+ * the parts of the next file long enough that the request overhead doesn't
+ * matter and short enough that a failed part doesn't throw much away.
+ *
+ * Every part of a file is the same size, rounded to a whole MB where that
+ * doesn't change the number of parts, since that's what lets a download
+ * verify the multipart ETag later on.
+ *
+ * Each part that's being uploaded is held in memory, so a planner that's
+ * shared between files can also limit how much of that there is across all
+ * of them at once, in whole MB, by having each upload reserve its buffers
+ * before it fills them.
+ */
+public class UploadPlanner {
+
+    public static final int DEFAULT_PARTS_PER_THREAD = 4;
+    public static final long DEFAULT_MAX_PART_SIZE = 64 * MB;
+
+    /**
+     * Aim for parts that take at least this long at the measured throughput.
+     */
+    public static final long MIN_TARGET_MILLIS = 500;
+
+    /**
+     * Aim for parts that take no longer than this at the measured throughput.
+     */
+    public static final long MAX_TARGET_MILLIS = 10000;
+
+    /**
+     * The weight of the newest part in the measured throughput.
+     */
+    public static final double SMOOTHING = 0.3;
+
+    private final int concurrency;
+    private int partsPerThread = DEFAULT_PARTS_PER_THREAD;
+    private long maxPartSize = DEFAULT_MAX_PART_SIZE;
+    private boolean verbose;
+    private Semaphore memory;
+    private int memoryPermits;
+
+    private double bytesPerSecond;
+
+    /**
+     * @param concurrency the number of parts that are uploaded at the same time
+     */
+    public UploadPlanner(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Set the number of parts to aim for per part uploaded at the same time.
+     *
+     * @param partsPerThread the number of parts, defaults to {@link #DEFAULT_PARTS_PER_THREAD}
+     */
+    public UploadPlanner withPartsPerThread(int partsPerThread) {
+        this.partsPerThread = partsPerThread;
+        return this;
+    }
+
+    /**
+     * Set the largest part to plan, unless a file needs bigger parts to fit.
+     * Each part that's being uploaded is held in memory.
+     *
+     * @param maxPartSize the number of bytes, defaults to {@link #DEFAULT_MAX_PART_SIZE}
+     */
+    public UploadPlanner withMaxPartSize(long maxPartSize) {
+        this.maxPartSize = maxPartSize;
+        return this;
+    }
+
+    /**
+     * Limit the parts held in memory at once by every upload that plans with
+     * this planner to about the given number of bytes. A part that's bigger
+     * than the whole limit can still be uploaded, just not alongside any
+     * other part.
+     *
+     * @param memoryLimit the number of bytes, unlimited by default
+     */
+    public UploadPlanner withMemoryLimit(long memoryLimit) {
+        this.memoryPermits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryLimit / MB));
+        this.memory = new Semaphore(memoryPermits, true);
+        return this;
+    }
+
+    public UploadPlanner withVerbose(boolean verbose) {
+        this.verbose = verbose;
+        return this;
+    }
+
+    /**
+     * Return the measured throughput of a single part, or 0 when no parts have
+     * been uploaded yet.
+     */
+    public synchronized long getBytesPerSecond() {
+        return (long) bytesPerSecond;
+    }
+
+    /**
+     * Return the size of every part of a file of the given length.
+     *
+     * @param contentLength the total number of bytes to upload
+     */
+    public synchronized long getPartSize(long contentLength) {
+        long fit = (contentLength + MAX_PARTS - 1) / MAX_PARTS;
+        long target = Math.max(1, (long) concurrency * partsPerThread);
+        long size = (contentLength + target - 1) / target;
+
+        String reason = concurrency + " at a time";
+        if (bytesPerSecond > 0) {
+            long shortest = (long) (bytesPerSecond * MIN_TARGET_MILLIS / 1000);
+            long longest = (long) (bytesPerSecond * MAX_TARGET_MILLIS / 1000);
+            size = Math.min(Math.max(size, shortest), longest);
+            reason += ", " + (long) bytesPerSecond + " bytes/s per part";
+        }
+        size = Math.max(Math.min(size, maxPartSize), Math.max(MIN_PART_SIZE, fit));
+
+        // the smallest whole MB that keeps the same number of parts evens them out and is easy to infer from an ETag
+        long parts = (contentLength + size - 1) / size;
+        long even = (contentLength + parts - 1) / parts;
+        size = Math.max(MIN_PART_SIZE, (even + MB - 1) / MB * MB);
+
+        if (verbose) {
+            System.err.println(String.format("Planned %d parts of %d bytes for %d bytes (%s)",
+                    (contentLength + size - 1) / size, size, contentLength, reason));
+        }
+        return size;
+    }
+
+    /**
+     * Wait until there's room under the memory limit for a buffer of the given
+     * size, which has to be released once it's no longer used.
+     *
+     * @param bytes the size of the buffer
+     */
+    public void reserve(long bytes) throws InterruptedException {
+        if (memory != null) {
+            memory.acquire(permits(bytes));
+        }
+    }
+
+    /**
+     * Reserve room for a buffer of the given size only if there's room for it
+     * under the memory limit right now.
+     *
+     * @param bytes the size of the buffer
+     * @return true if it was reserved and has to be released later
+     */
+    public boolean tryReserve(long bytes) {
+        return memory == null || memory.tryAcquire(permits(bytes));
+    }
+
+    /**
+     * Give back the room reserved for a buffer of the given size.
+     *
+     * @param bytes the size of the buffer
+     */
+    public void release(long bytes) {
+        if (memory != null) {
+            memory.release(permits(bytes));
+        }
+    }
+
+    private int permits(long bytes) {
+        return (int) Math.min((bytes + MB - 1) / MB, memoryPermits);
+    }
+
+    /**
+     * Record how long it took to upload a part, to size the parts of the files
+     * that are planned after this.
+     *
+     * @param bytes        the number of bytes in the part
+     * @param elapsedNanos the time it took to upload the part
+     */
+    public synchronized void record(long bytes, long elapsedNanos) {
+        double sample = bytes * 1e9 / Math.max(1, elapsedNanos);
+        bytesPerSecond = bytesPerSecond == 0 ? sample : SMOOTHING * sample + (1 - SMOOTHING) * bytesPerSecond;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2014 Ray Holder
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rholder.esthree.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copy an InputStream into a FileChannel at a given position as a pipeline of
+ * three stages, each on its own thread: reading from the stream, hashing, and
+ * writing to the channel. The stages hand off a fixed ring of large, pooled
+ * buffers, so the reader only ever waits on hashing or disk when every buffer
+ * in the ring is still in use. Reads are accumulated until a buffer is full and
+ * each buffer is written out with a single positional write, so any number of
+ * copiers can write into the same channel at once.
+ *
+ * A copier reuses its buffers and the threads for the hashing and writing
+ * stages from one copy to the next, so it must only be used for one copy at a
+ * time. The threads go away on their own once the copier has been idle for a
+ * while, or right away when it's closed.
+ */
+public class ChannelCopier {
+
+    public static final int DEFAULT_IO_SIZE = 1024 * 1024; // 1 MB
+    public static final int DEFAULT_RING_SIZE = 4;
+
+    private static final long POLL_MILLIS = 100;
+    private static final long IDLE_SECONDS = 60;
+
+    /**
+     * Receives each stage of a copy as it happens. Each method is called from
+     * the thread of its own stage, but always in the order of the bytes in the
+     * stream, and everything has been called by the time a copy returns.
+     */
+    public interface Listener {
+
+        /**
+         * Called from the reading stage after each read from the input.
+         *
+         * @param bytes the number of bytes that were just read
+         */
+        void received(int bytes) throws IOException;
+
+        /**
+         * Called from the hashing stage with each buffer, in order. The buffer
+         * is only valid until this returns.
+         *
+         * @param buffer the bytes that were read
+         * @param offset the offset of the first byte in the buffer
+         * @param length the number of bytes that were read
+         */
+        void update(byte[] buffer, int offset, int length) throws IOException;
+
+        /**
+         * Called from the writing stage after each buffer has been written out.
+         *
+         * @param position the position in the channel just after the bytes that were written
+         */
+        void written(long position) throws IOException;
+    }
+
+    private final int ioSize;
+    private final Slot[] slots;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param ioSize the number of bytes to accumulate before each write
+     */
+    public ChannelCopier(int ioSize) {
+        this(ioSize, DEFAULT_RING_SIZE);
+    }
+
+    /**
+     * @param ioSize   the number of bytes to accumulate before each write
+     * @param ringSize the number of buffers the stages hand off to each other
+     */
+    public ChannelCopier(int ioSize, int ringSize) {
+        this.ioSize = ioSize;
+        this.slots = new Slot[ringSize];
+        for (int i = 0; i < ringSize; i++) {
+            slots[i] = new Slot(ioSize);
+        }
+
+        // one thread for hashing and one for writing, kept between copies
+        this.executor = new ThreadPoolExecutor(2, 2, IDLE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("esthree-copy-%d").build());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public int getIoSize() {
+        return ioSize;
+    }
+
+    /**
+     * Let the threads for the stages go as soon as they're idle, instead of
+     * holding on to them until they time out. The copier can't be used after
+     * this.
+     */
+    public void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * Copy everything that's left in the input into the channel, starting at
+     * the given position. When any stage fails, whatever was already handed
+     * off is allowed to drain before the failure is thrown from here.
+     *
+     * @param input    read until the end of this stream
+     * @param channel  write into this channel
+     * @param position the position in the channel to start writing at
+     * @param listener notified of each stage of the copy
+     * @return the number of bytes that were copied
+     */
+    public long copy(InputStream input, final FileChannel channel, long position, final Listener listener) throws IOException {
+        final BlockingQueue<Slot> free = new ArrayBlockingQueue<Slot>(slots.length);
+        final BlockingQueue<Slot> toHash = new ArrayBlockingQueue<Slot>(slots.length + 1);
+        final BlockingQueue<Slot> toWrite = new ArrayBlockingQueue<Slot>(slots.length + 1);
+        for (Slot slot : slots) {
+            free.add(slot);
+        }
+
+        // stages never interrupt each other, since an interrupted write closes the channel
+        Future<Object> hasher = executor.submit(new Callable<Object>() {
+            public Object call() throws Exception {
+                try {
+                    Slot slot;
+                    while ((slot = toHash.take()) != Slot.END) {
+                        listener.update(slot.buffer, 0, slot.length);
+                        toWrite.add(slot);
+                    }
+                    return null;
+                } finally {
+                    toWrite.add(Slot.END);
+                }
+            }
+        });
+        Future<Object> writer = executor.submit(new Callable<Object>() {
+            public Object call() throws Exception {
+                Slot slot;
+                while ((slot = toWrite.take()) != Slot.END) {
+                    ByteBuffer bb = ByteBuffer.wrap(slot.buffer, 0, slot.length);
+                    long slotPosition = slot.position;
+                    while (bb.hasRemaining()) {
+                        slotPosition += channel.write(bb, slotPosition);
+                    }
+                    listener.written(slotPosition);
+                    free.add(slot);
+                }
+                return null;
+            }
+        });
+
+        long count = 0;
+        try {
+            boolean eof = false;
+            while (!eof) {
+                Slot slot = null;
+                while (slot == null) {
+                    if (hasher.isDone() || writer.isDone()) {
+                        // a stage failed, stop reading and go find out why
+                        return count;
+                    }
+                    slot = free.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                }
+
+                slot.position = position;
+                slot.length = 0;
+                int n;
+                while (slot.length < ioSize && -1 != (n = input.read(slot.buffer, slot.length, ioSize - slot.length))) {
+                    listener.received(n);
+                    slot.length += n;
+                }
+                eof = slot.length < ioSize;
+                count += slot.length;
+                position += slot.length;
+                if (slot.length > 0) {
+                    toHash.add(slot);
+                }
+            }
+            return count;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting on a free buffer", e);
+        } finally {
+            // let the other stages drain whatever was handed off before returning or throwing from here
+            toHash.add(Slot.END);
+            try {
+                hasher.get();
+                writer.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting on the copy to finish", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Copy failed", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * A buffer along with where its bytes belong in the channel.
+     */
+    private static class Slot {
+
+        static final Slot END = new Slot(0);
+
+        final byte[] buffer;
+        int length;
+        long position;
+
+        Slot(int size) {
+            this.buffer = new byte[size];
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2014 Ray Holder
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rholder.esthree.util;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.github.rholder.esthree.digest.MultipartDigest;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Here's a collection of methods for making sense of S3 ETags, particularly the
+ * ones for objects that were uploaded in multiple parts. Those look like
+ * "d41d8cd98f00b204e9800998ecf8427e-42", where the first part is the MD5 of the
+ * concatenated binary MD5's of each part and the number after the "-" is the
+ * number of parts. See http://stackoverflow.com/questions/6591047/etag-definition-changed-in-amazon-s3
+ * for the gory details.
+ */
+public abstract class ETagUtils {
+
+    public static final long MB = 1024 * 1024;
+    public static final long MIN_PART_SIZE = 5 * MB;
+    public static final int MAX_PARTS = 10000;
+
+    /**
+     * Part sizes used by common tools, most likely first: 8MB is the AWS CLI
+     * default, 15MB is the s3cmd default, the rest are nice round numbers.
+     */
+    public static final long[] COMMON_PART_SIZES = {
+            5 * MB, 8 * MB, 15 * MB, 16 * MB, 10 * MB, 25 * MB, 32 * MB,
+            50 * MB, 64 * MB, 100 * MB, 128 * MB, 256 * MB, 512 * MB, 1024 * MB};
+
+    /**
+     * Return true if this ETag is for an object that was uploaded in multiple parts.
+     *
+     * @param etag an S3 ETag
+     */
+    public static boolean isMultipart(String etag) {
+        return etag != null && etag.contains("-");
+    }
+
+    /**
+     * Return the number of parts from a multipart ETag (e.g. 42 from
+     * d41d8cd98f00b204e9800998ecf8427e-42).
+     *
+     * @param etag a multipart S3 ETag
+     */
+    public static int getPartCount(String etag) {
+        return Integer.parseInt(etag.substring(etag.indexOf('-') + 1));
+    }
+
+    /**
+     * Return true if splitting the given number of bytes into parts of the
+     * given size results in exactly the given number of parts.
+     *
+     * @param contentLength the total number of bytes
+     * @param partCount     the expected number of parts
+     * @param partSize      the size of every part except possibly the last one
+     */
+    public static boolean isConsistent(long contentLength, int partCount, long partSize) {
+        return partSize > 0 && (contentLength + partSize - 1) / partSize == partCount;
+    }
+
+    /**
+     * Return the part sizes that could have produced the given number of parts
+     * for the given number of bytes, most likely first. This includes the
+     * sizing Amazon's TransferManager uses, the defaults of common tools, and
+     * finally the smallest whole MB and the smallest exact size that fit.
+     *
+     * @param contentLength the total number of bytes
+     * @param partCount     the number of parts
+     */
+    public static List<Long> getCandidatePartSizes(long contentLength, int partCount) {
+        Set<Long> candidates = new LinkedHashSet<Long>();
+        candidates.add(Math.max((contentLength + MAX_PARTS - 1) / MAX_PARTS, MIN_PART_SIZE));
+        for (long partSize : COMMON_PART_SIZES) {
+            candidates.add(partSize);
+        }
+        long smallest = (contentLength + partCount - 1) / partCount;
+        candidates.add(((smallest + MB - 1) / MB) * MB);
+        candidates.add(smallest);
+
+        List<Long> consistent = new ArrayList<Long>();
+        for (Long partSize : candidates) {
+            if (isConsistent(contentLength, partCount, partSize)) {
+                consistent.add(partSize);
+            }
+        }
+        return consistent;
+    }
+
+    /**
+     * Return the size of the first part of the given object by asking S3 for
+     * just the metadata of part 1, or null if that isn't possible, such as when
+     * the S3 endpoint doesn't support the partNumber parameter.
+     *
+     * @param amazonS3Client the client to make the request with
+     * @param bucket         the bucket of the object
+     * @param key            the key of the object
+     */
+    public static Long getFirstPartSize(AmazonS3Client amazonS3Client, String bucket, String key) {
+        GetObjectMetadataRequest req = new GetObjectMetadataRequest(bucket, key);
+        req.putCustomQueryParameter("partNumber", "1");
+        try {
+            ObjectMetadata om = amazonS3Client.getObjectMetadata(req);
+            return om == null ? null : om.getContentLength();
+        } catch (AmazonClientException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Return the part sizes that could have produced the given multipart ETag,
+     * most likely first. When S3 can tell us the size of the first part, that's
+     * the only one returned, otherwise they're inferred from the part count.
+     *
+     * @param amazonS3Client the client to make the request with
+     * @param bucket         the bucket of the object
+     * @param key            the key of the object
+     * @param contentLength  the full length of the object
+     * @param etag           the multipart ETag of the object
+     */
+    public static List<Long> getPartSizes(AmazonS3Client amazonS3Client, String bucket, String key, long contentLength, String etag) {
+        int partCount = getPartCount(etag);
+        Long firstPartSize = getFirstPartSize(amazonS3Client, bucket, key);
+        if (firstPartSize != null && isConsistent(contentLength, partCount, firstPartSize)) {
+            return Collections.singletonList(firstPartSize);
+        }
+        return getCandidatePartSizes(contentLength, partCount);
+    }
+
+    /**
+     * Return the first of the given part sizes that produces the given
+     * multipart ETag for a local file, or null if none of them do.
+     *
+     * @param file          the file to hash
+     * @param contentLength the number of bytes to hash
+     * @param etag          the expected multipart ETag
+     * @param partSizes     the part sizes to try, in order
+     */
+    public static Long findPartSize(RandomAccessFile file, long contentLength, String etag, List<Long> partSizes) throws IOException {
+        for (Long partSize : partSizes) {
+            if (etag.equalsIgnoreCase(MultipartDigest.digestFile(file, contentLength, partSize).getETag())) {
+                return partSize;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the first of the given part sizes that produces the given
+     * multipart ETag for a local file, or null if none of them do. The parts
+     * of each attempt are hashed in parallel by the given executor.
+     *
+     * @param file          the file to hash
+     * @param contentLength the number of bytes to hash
+     * @param etag          the expected multipart ETag
+     * @param partSizes     the part sizes to try, in order
+     * @param executor      the executor to hash the parts with
+     */
+    public static Long findPartSize(RandomAccessFile file, long contentLength, String etag, List<Long> partSizes,
+                                    ExecutorService executor) throws IOException, InterruptedException {
+        for (Long partSize : partSizes) {
+            if (etag.equalsIgnoreCase(MultipartDigest.digestFile(file, contentLength, partSize, executor).getETag())) {
+                return partSize;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,450 @@
+/*
+ * Copyright 2014 Ray Holder
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rholder.esthree.util;
+
+import com.amazonaws.services.s3.model.Owner;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+
+/**
+ * Write each object of a listing as a line of NDJSON or CSV, encoded as UTF-8
+ * straight into one large buffer that's only written out when it fills up, so
+ * that no intermediate strings are built along the way. Every field of an
+ * object is written, with nulls for any that are missing in NDJSON and empty
+ * values in CSV, and times are in UTC as in "2015-10-21T07:28:00.000Z".
+ *
+ * Common prefixes are written as {"bucket":...,"prefix":...} in NDJSON and
+ * with a type of "prefix" instead of "object" in CSV, which starts with a
+ * header. Lines end with \n in both.
+ *
+ * An instance isn't safe to use from more than one thread at a time.
+ */
+public class ListEncoder {
+
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024; // 1 MB
+
+    public static final String CSV_HEADER = "type,bucket,key,size,last_modified,etag,storage_class,owner_id,owner_display_name";
+
+    public enum Format {
+        NDJSON, CSV
+    }
+
+    // the most bytes any one char can take up, as a JSON escape
+    private static final int MAX_CHAR_BYTES = 6;
+    private static final byte[] HEX = ascii("0123456789abcdef");
+
+    private static final boolean[] JSON_PLAIN = new boolean[0x80];
+    private static final boolean[] CSV_PLAIN = new boolean[0x80];
+
+    static {
+        for (char c = 0; c < 0x80; c++) {
+            JSON_PLAIN[c] = c >= 0x20 && c != '"' && c != '\\';
+            CSV_PLAIN[c] = c != ',' && c != '"' && c != '\n' && c != '\r';
+        }
+    }
+
+    private static final byte[] NULL = ascii("null");
+    private static final byte[] QUOTE = ascii("\"");
+    private static final byte[] COMMA = ascii(",");
+    private static final byte[] NEWLINE = ascii("\n");
+    private static final byte[] JSON_BUCKET = ascii("{\"bucket\":");
+    private static final byte[] JSON_KEY = ascii(",\"key\":");
+    private static final byte[] JSON_SIZE = ascii(",\"size\":");
+    private static final byte[] JSON_LAST_MODIFIED = ascii(",\"lastModified\":");
+    private static final byte[] JSON_ETAG = ascii(",\"eTag\":");
+    private static final byte[] JSON_STORAGE_CLASS = ascii(",\"storageClass\":");
+    private static final byte[] JSON_NO_OWNER = ascii(",\"owner\":null}\n");
+    private static final byte[] JSON_OWNER_ID = ascii(",\"owner\":{\"id\":");
+    private static final byte[] JSON_OWNER_DISPLAY_NAME = ascii(",\"displayName\":");
+    private static final byte[] JSON_OWNER_END = ascii("}}\n");
+    private static final byte[] JSON_PREFIX = ascii(",\"prefix\":");
+    private static final byte[] JSON_PREFIX_END = ascii("}\n");
+    private static final byte[] CSV_OBJECT = ascii("object,");
+    private static final byte[] CSV_PREFIX = ascii("prefix,");
+    private static final byte[] CSV_PREFIX_END = ascii(",,,,,,\n");
+
+    private final OutputStream out;
+    private final Format format;
+    private final byte[] buffer;
+    private int position;
+    private boolean started;
+
+    // what's being copied, a string at a time
+    private char[] chars = new char[1024];
+
+    // the date of the last day that was written
+    private long day;
+    private byte[] dayBytes;
+
+    public ListEncoder(OutputStream out, Format format) {
+        this(out, format, DEFAULT_BUFFER_SIZE);
+    }
+
+    public ListEncoder(OutputStream out, Format format, int bufferSize) {
+        this.out = out;
+        this.format = format;
+        this.buffer = new byte[Math.max(bufferSize, 256)];
+    }
+
+    /**
+     * Write every field of the given object as a line.
+     *
+     * @param os the object to write
+     */
+    public void writeObject(S3ObjectSummary os) throws IOException {
+        start();
+        Owner owner = os.getOwner();
+        if (format == Format.NDJSON) {
+            raw(JSON_BUCKET);
+            jsonString(os.getBucketName());
+            raw(JSON_KEY);
+            jsonString(os.getKey());
+            raw(JSON_SIZE);
+            number(os.getSize());
+            raw(JSON_LAST_MODIFIED);
+            if (os.getLastModified() == null) {
+                raw(NULL);
+            } else {
+                raw(QUOTE);
+                time(os.getLastModified());
+                raw(QUOTE);
+            }
+            raw(JSON_ETAG);
+            jsonString(os.getETag());
+            raw(JSON_STORAGE_CLASS);
+            jsonString(os.getStorageClass());
+            if (owner == null) {
+                raw(JSON_NO_OWNER);
+            } else {
+                raw(JSON_OWNER_ID);
+                jsonString(owner.getId());
+                raw(JSON_OWNER_DISPLAY_NAME);
+                jsonString(owner.getDisplayName());
+                raw(JSON_OWNER_END);
+            }
+        } else {
+            raw(CSV_OBJECT);
+            csvString(os.getBucketName());
+            raw(COMMA);
+            csvString(os.getKey());
+            raw(COMMA);
+            number(os.getSize());
+            raw(COMMA);
+            if (os.getLastModified() != null) {
+                time(os.getLastModified());
+            }
+            raw(COMMA);
+            csvString(os.getETag());
+            raw(COMMA);
+            csvString(os.getStorageClass());
+            raw(COMMA);
+            csvString(owner == null ? null : owner.getId());
+            raw(COMMA);
+            csvString(owner == null ? null : owner.getDisplayName());
+            raw(NEWLINE);
+        }
+    }
+
+    /**
+     * Write a common prefix as a line.
+     *
+     * @param bucket the bucket it's in
+     * @param prefix the common prefix
+     */
+    public void writePrefix(String bucket, String prefix) throws IOException {
+        start();
+        if (format == Format.NDJSON) {
+            raw(JSON_BUCKET);
+            jsonString(bucket);
+            raw(JSON_PREFIX);
+            jsonString(prefix);
+            raw(JSON_PREFIX_END);
+        } else {
+            raw(CSV_PREFIX);
+            csvString(bucket);
+            raw(COMMA);
+            csvString(prefix);
+            raw(CSV_PREFIX_END);
+        }
+    }
+
+    /**
+     * Write out everything that's been buffered so far, including the CSV
+     * header when nothing else has been written.
+     */
+    public void flush() throws IOException {
+        start();
+        drain();
+        out.flush();
+    }
+
+    private void start() throws IOException {
+        if (!started) {
+            started = true;
+            if (format == Format.CSV) {
+                raw(ascii(CSV_HEADER + "\n"));
+            }
+        }
+    }
+
+    private void drain() throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (position + bytes > buffer.length) {
+            drain();
+        }
+    }
+
+    private void raw(byte[] ascii) throws IOException {
+        ensure(ascii.length);
+        System.arraycopy(ascii, 0, buffer, position, ascii.length);
+        position += ascii.length;
+    }
+
+    private void number(long value) throws IOException {
+        ensure(20);
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                raw(ascii(Long.toString(value)));
+                return;
+            }
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        digits(value, digits);
+    }
+
+    /**
+     * Write the given time in UTC as yyyy-MM-ddTHH:mm:ss.SSSZ, working out the
+     * date from the days since the epoch without a Calendar, once a day.
+     */
+    private void time(Date date) throws IOException {
+        long millis = date.getTime();
+        long days = floorDiv(millis, 86400000L);
+        long ofDay = millis - days * 86400000L;
+        if (days != day || dayBytes == null) {
+            day = days;
+            dayBytes = date(days);
+        }
+
+        raw(dayBytes);
+        ensure(14);
+        buffer[position++] = 'T';
+        digits(ofDay / 3600000, 2);
+        buffer[position++] = ':';
+        digits(ofDay / 60000 % 60, 2);
+        buffer[position++] = ':';
+        digits(ofDay / 1000 % 60, 2);
+        buffer[position++] = '.';
+        digits(ofDay % 1000, 3);
+        buffer[position++] = 'Z';
+    }
+
+    private static byte[] date(long days) {
+        // http://howardhinnant.github.io/date_algorithms.html#civil_from_days
+        long z = days + 719468;
+        long era = floorDiv(z, 146097);
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        long day = doy - (153 * mp + 2) / 5 + 1;
+        long month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+
+        // a year that doesn't fit in 4 digits can't be anything sensible, but it's still a number
+        String y = year >= 0 && year <= 9999 ? Long.toString(10000 + year).substring(1) : Long.toString(year);
+        return ascii(y + (month < 10 ? "-0" : "-") + month + (day < 10 ? "-0" : "-") + day);
+    }
+
+    /**
+     * Write the given value with exactly the given number of digits, which
+     * there must be room for.
+     */
+    private void digits(long value, int length) {
+        for (int i = position + length - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        position += length;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+    }
+
+    private void jsonString(String s) throws IOException {
+        if (s == null) {
+            raw(NULL);
+            return;
+        }
+
+        // checking for room once is all it takes for the usual key, otherwise it's checked for every char
+        int length = s.length();
+        boolean room = length * MAX_CHAR_BYTES + 2 <= buffer.length;
+        ensure(room ? length * MAX_CHAR_BYTES + 2 : 1);
+        buffer[position++] = '"';
+        for (int i = room ? copy(s, JSON_PLAIN) : 0; i < length; i++) {
+            if (!room) {
+                ensure(MAX_CHAR_BYTES);
+            }
+            char c = s.charAt(i);
+            if (c < 0x80 && JSON_PLAIN[c]) {
+                buffer[position++] = (byte) c;
+            } else if (c == '"' || c == '\\') {
+                buffer[position++] = '\\';
+                buffer[position++] = (byte) c;
+            } else if (c == '\n') {
+                buffer[position++] = '\\';
+                buffer[position++] = 'n';
+            } else if (c == '\r') {
+                buffer[position++] = '\\';
+                buffer[position++] = 'r';
+            } else if (c == '\t') {
+                buffer[position++] = '\\';
+                buffer[position++] = 't';
+            } else if (c < 0x20 || (Character.isHighSurrogate(c) && !isPair(s, i)) || Character.isLowSurrogate(c)) {
+                // control characters, and halves of surrogate pairs that aren't part of one
+                buffer[position++] = '\\';
+                buffer[position++] = 'u';
+                buffer[position++] = HEX[c >> 12];
+                buffer[position++] = HEX[(c >> 8) & 0xf];
+                buffer[position++] = HEX[(c >> 4) & 0xf];
+                buffer[position++] = HEX[c & 0xf];
+            } else {
+                i = utf8(s, i);
+            }
+        }
+        ensure(1);
+        buffer[position++] = '"';
+    }
+
+    private void csvString(String s) throws IOException {
+        if (s == null) {
+            return;
+        }
+        int length = s.length();
+
+        // doubled quotes take up no more room than escapes do
+        boolean room = length * MAX_CHAR_BYTES + 2 <= buffer.length;
+        ensure(room ? length * MAX_CHAR_BYTES + 2 : 2);
+        int start = position;
+        int i = room ? copy(s, CSV_PLAIN) : 0;
+
+        // most fields never need quotes, so they're only looked for past what's plain
+        boolean quoted = false;
+        for (int j = i; j < length && !quoted; j++) {
+            char c = s.charAt(j);
+            quoted = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (quoted) {
+            System.arraycopy(buffer, start, buffer, start + 1, position - start);
+            buffer[start] = '"';
+            position++;
+        }
+        for (; i < length; i++) {
+            if (!room) {
+                ensure(MAX_CHAR_BYTES);
+            }
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (c == '"') {
+                    buffer[position++] = '"';
+                }
+                buffer[position++] = (byte) c;
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE && !isPair(s, i)) {
+                buffer[position++] = '?';
+            } else {
+                i = utf8(s, i);
+            }
+        }
+        ensure(1);
+        if (quoted) {
+            buffer[position++] = '"';
+        }
+    }
+
+    /**
+     * Copy chars of the given string straight across for as long as they're
+     * plain ASCII, returning the index of the first one that isn't.
+     */
+    private int copy(String s, boolean[] plain) {
+        byte[] b = buffer;
+        int p = position;
+        int length = s.length();
+        if (chars.length < length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+        }
+        char[] cs = chars;
+        s.getChars(0, length, cs, 0);
+        int i = 0;
+        for (; i < length; i++) {
+            char c = cs[i];
+            if (c >= 0x80 || !plain[c]) {
+                break;
+            }
+            b[p++] = (byte) c;
+        }
+        position = p;
+        return i;
+    }
+
+    private static boolean isPair(String s, int i) {
+        return Character.isHighSurrogate(s.charAt(i)) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1));
+    }
+
+    /**
+     * Write the non-ASCII char at the given index, or the pair of them that
+     * starts there, as UTF-8, returning the index of the last char written.
+     */
+    private int utf8(String s, int i) {
+        char c = s.charAt(i);
+        if (c < 0x800) {
+            buffer[position++] = (byte) (0xc0 | (c >> 6));
+            buffer[position++] = (byte) (0x80 | (c & 0x3f));
+        } else if (!Character.isHighSurrogate(c)) {
+            buffer[position++] = (byte) (0xe0 | (c >> 12));
+            buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            buffer[position++] = (byte) (0x80 | (c & 0x3f));
+        } else {
+            int cp = Character.toCodePoint(c, s.charAt(++i));
+            buffer[position++] = (byte) (0xf0 | (cp >> 18));
+            buffer[position++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+            buffer[position++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+            buffer[position++] = (byte) (0x80 | (cp & 0x3f));
+        }
+        return i;
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+}
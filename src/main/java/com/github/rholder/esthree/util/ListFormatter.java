@@ -0,0 +1,410 @@
+/*
+ * Copyright 2014 Ray Holder
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rholder.esthree.util;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Formattable;
+import java.util.Formatter;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A list format that's been parsed once up front, such that each line can be
+ * formatted without parsing it again or boxing any arguments. Plain strings,
+ * numbers and the %tF and %tR date conversions, optionally padded to a width,
+ * are written straight into a reusable buffer, and anything else is handed to
+ * a {@link Formatter} one conversion at a time. The output is always exactly
+ * what {@link String#format(String, Object...)} returns, which is used for the
+ * whole format whenever it isn't something that can be parsed.
+ *
+ * An instance isn't safe to use from more than one thread at a time.
+ */
+public class ListFormatter {
+
+    // the same as Formatter's
+    private static final Pattern SPECIFIER = Pattern.compile("%(\\d+\\$)?([-#+ 0,(\\<]*)?(\\d+)?(\\.\\d+)?([tT])?([a-zA-Z%])");
+
+    private static final char[] SPACES = "                                ".toCharArray();
+
+    private final String format;
+    private final List<Piece> pieces;
+    private final StringBuilder buffer = new StringBuilder(256);
+    private final Formatter formatter = new Formatter(buffer);
+    private final boolean plainDigits;
+    private final Calendar calendar;
+
+    private final SummaryArguments summaryArguments = new SummaryArguments();
+    private final ArrayArguments arrayArguments = new ArrayArguments();
+
+    // the date and time of the last minute that was formatted
+    private long minuteStart = 1;
+    private long minuteEnd = 0;
+    private final char[] date = new char[10];
+    private final char[] time = new char[5];
+
+    public ListFormatter(String format) {
+        this.format = format;
+        this.pieces = format == null ? null : compile(format);
+
+        // dates come out just like Formatter's only when its locale uses plain digits
+        this.plainDigits = DecimalFormatSymbols.getInstance(formatter.locale()).getZeroDigit() == '0';
+        this.calendar = Calendar.getInstance(formatter.locale());
+    }
+
+    /**
+     * Return the given object formatted with the arguments of a list format,
+     * which are its last modified date, size, bucket, key, ETag, owner and
+     * storage class.
+     *
+     * @param os the object to format
+     */
+    public String format(S3ObjectSummary os) {
+        summaryArguments.summary = os;
+        try {
+            return format(summaryArguments);
+        } finally {
+            summaryArguments.summary = null;
+        }
+    }
+
+    /**
+     * Return the given arguments formatted.
+     *
+     * @param args the arguments to format
+     */
+    public String format(Object... args) {
+        arrayArguments.args = args;
+        try {
+            return format(arrayArguments);
+        } finally {
+            arrayArguments.args = null;
+        }
+    }
+
+    private String format(Arguments args) {
+        if (pieces == null) {
+            Object[] all = new Object[args.count()];
+            for (int i = 0; i < all.length; i++) {
+                all[i] = args.get(i);
+            }
+            return String.format(format, all);
+        }
+        buffer.setLength(0);
+        for (Piece piece : pieces) {
+            piece.append(args);
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Return the pieces of the given format, or null if it's anything but
+     * exactly what Formatter would parse it as.
+     */
+    private List<Piece> compile(String format) {
+        List<Piece> pieces = new ArrayList<Piece>();
+        Matcher m = SPECIFIER.matcher(format);
+        int ordinary = -1;
+        int last = -1;
+        int i = 0;
+        while (i < format.length()) {
+            int percent = format.indexOf('%', i);
+            if (percent < 0) {
+                pieces.add(new Literal(format.substring(i)));
+                break;
+            }
+            if (percent > i) {
+                pieces.add(new Literal(format.substring(i, percent)));
+            }
+            if (!m.find(percent) || m.start() != percent) {
+                return null;
+            }
+            i = m.end();
+
+            String explicit = m.group(1);
+            String flags = m.group(2) == null ? "" : m.group(2);
+            String width = m.group(3);
+            String precision = m.group(4);
+            String time = m.group(5);
+            char conversion = m.group(6).charAt(0);
+
+            if (conversion == '%' || conversion == 'n') {
+                if (m.group().equals("%%")) {
+                    pieces.add(new Literal("%"));
+                } else if (m.group().equals("%n")) {
+                    pieces.add(new Literal(System.getProperty("line.separator")));
+                } else {
+                    // let Formatter decide what any flags or width mean
+                    pieces.add(new Fallback(-1, m.group()));
+                }
+                continue;
+            }
+
+            int index;
+            if (flags.indexOf('<') >= 0) {
+                if (last < 0) {
+                    return null;
+                }
+                index = last;
+                flags = flags.replace("<", "");
+            } else if (explicit != null) {
+                index = parse(explicit.substring(0, explicit.length() - 1)) - 1;
+                if (index < 0) {
+                    return null;
+                }
+            } else {
+                index = ++ordinary;
+            }
+            last = index;
+
+            int w = width == null ? -1 : parse(width);
+            if (width != null && w < 0) {
+                return null;
+            }
+            boolean left = flags.equals("-");
+            boolean simple = precision == null && (flags.isEmpty() || (left && w >= 0));
+            String spec = "%" + flags + (width == null ? "" : width) + (precision == null ? "" : precision)
+                    + (time == null ? "" : time) + conversion;
+            if (simple && time == null && conversion == 's') {
+                pieces.add(new Text(index, w, left, spec));
+            } else if (simple && "t".equals(time) && (conversion == 'F' || conversion == 'R')) {
+                pieces.add(new DateTime(index, w, left, conversion == 'F', spec));
+            } else {
+                pieces.add(new Fallback(index, spec));
+            }
+        }
+        return pieces;
+    }
+
+    private static int parse(String number) {
+        try {
+            return Integer.parseInt(number);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Pad what's been appended since the given start with spaces up to the
+     * given width, or do nothing if the width is -1.
+     */
+    private void justify(int start, int width, boolean left) {
+        int padding = width - (buffer.length() - start);
+        while (padding > 0) {
+            int n = Math.min(padding, SPACES.length);
+            if (left) {
+                buffer.append(SPACES, 0, n);
+            } else {
+                buffer.insert(start, SPACES, 0, n);
+            }
+            padding -= n;
+        }
+    }
+
+    /**
+     * Make the date and time of the minute of the given time ready to append,
+     * returning false if the year doesn't fit in 4 digits.
+     */
+    private boolean updateMinute(long millis) {
+        if (millis >= minuteStart && millis < minuteEnd) {
+            return true;
+        }
+        calendar.setTimeInMillis(millis);
+        int year = calendar.get(Calendar.YEAR);
+        if (year > 9999) {
+            return false;
+        }
+        digits(date, 0, 4, year);
+        date[4] = '-';
+        digits(date, 5, 2, calendar.get(Calendar.MONTH) + 1);
+        date[7] = '-';
+        digits(date, 8, 2, calendar.get(Calendar.DAY_OF_MONTH));
+        digits(time, 0, 2, calendar.get(Calendar.HOUR_OF_DAY));
+        time[2] = ':';
+        digits(time, 3, 2, calendar.get(Calendar.MINUTE));
+        minuteStart = millis - calendar.get(Calendar.SECOND) * 1000L - calendar.get(Calendar.MILLISECOND);
+        minuteEnd = minuteStart + 60 * 1000L;
+        return true;
+    }
+
+    private static void digits(char[] chars, int offset, int length, int value) {
+        for (int i = offset + length - 1; i >= offset; i--) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private abstract static class Arguments {
+        abstract int count();
+
+        abstract Object get(int index);
+
+        boolean isLong(int index) {
+            return false;
+        }
+
+        long getLong(int index) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class SummaryArguments extends Arguments {
+        S3ObjectSummary summary;
+
+        int count() {
+            return 7;
+        }
+
+        Object get(int index) {
+            switch (index) {
+                case 0: return summary.getLastModified();
+                case 1: return summary.getSize();
+                case 2: return summary.getBucketName();
+                case 3: return summary.getKey();
+                case 4: return summary.getETag();
+                case 5: return summary.getOwner();
+                default: return summary.getStorageClass();
+            }
+        }
+
+        @Override
+        boolean isLong(int index) {
+            return index == 1;
+        }
+
+        @Override
+        long getLong(int index) {
+            return summary.getSize();
+        }
+    }
+
+    private static class ArrayArguments extends Arguments {
+        Object[] args;
+
+        int count() {
+            return args == null ? 0 : args.length;
+        }
+
+        Object get(int index) {
+            return args[index];
+        }
+    }
+
+    private abstract class Piece {
+        abstract void append(Arguments args);
+    }
+
+    private class Literal extends Piece {
+        private final String text;
+
+        Literal(String text) {
+            this.text = text;
+        }
+
+        void append(Arguments args) {
+            buffer.append(text);
+        }
+    }
+
+    /**
+     * Any conversion, handed to Formatter on its own.
+     */
+    private class Fallback extends Piece {
+        final int index;
+        final String spec;
+
+        Fallback(int index, String spec) {
+            this.index = index;
+            this.spec = spec;
+        }
+
+        void append(Arguments args) {
+            if (index < 0 || index >= args.count()) {
+                // either it needs no argument, or it's missing and Formatter says so
+                formatter.format(spec);
+            } else {
+                formatter.format(spec, args.get(index));
+            }
+        }
+    }
+
+    /**
+     * A %s conversion with no flags but an optional width.
+     */
+    private class Text extends Fallback {
+        private final int width;
+        private final boolean left;
+
+        Text(int index, int width, boolean left, String spec) {
+            super(index, spec);
+            this.width = width;
+            this.left = left;
+        }
+
+        @Override
+        void append(Arguments args) {
+            if (index >= args.count()) {
+                super.append(args);
+                return;
+            }
+            int start = buffer.length();
+            if (args.isLong(index)) {
+                buffer.append(args.getLong(index));
+            } else {
+                Object arg = args.get(index);
+                if (arg instanceof Formattable) {
+                    super.append(args);
+                    return;
+                }
+                buffer.append(arg == null ? "null" : arg.toString());
+            }
+            justify(start, width, left);
+        }
+    }
+
+    /**
+     * A %tF or %tR conversion of a Date with no flags but an optional width.
+     */
+    private class DateTime extends Fallback {
+        private final int width;
+        private final boolean left;
+        private final boolean isDate;
+
+        DateTime(int index, int width, boolean left, boolean isDate, String spec) {
+            super(index, spec);
+            this.width = width;
+            this.left = left;
+            this.isDate = isDate;
+        }
+
+        @Override
+        void append(Arguments args) {
+            Object arg = index < args.count() ? args.get(index) : null;
+            if (!plainDigits || !(arg instanceof Date) || !updateMinute(((Date) arg).getTime())) {
+                super.append(args);
+                return;
+            }
+            int start = buffer.length();
+            buffer.append(isDate ? date : time);
+            justify(start, width, left);
+        }
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2014 Ray Holder
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rholder.esthree.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompress a gzip stream that's written to this one into another stream, on
+ * any number of threads at once. A gzip stream may be made of any number of
+ * members, and there's no telling where a member ends without inflating all of
+ * it, unless its header says how big it is. Members written by
+ * {@link ParallelGzipInputStream} and by BGZF do, so each of those is inflated
+ * on its own by the given executor as soon as all of it has been written,
+ * while any other member is inflated as it's written, one at a time. Either
+ * way, the decompressed output comes out in order.
+ *
+ * No more than the given number of members are inflated ahead of what's been
+ * written out, which bounds how much is held in memory.
+ */
+public class ParallelGunzipOutputStream extends OutputStream {
+
+    private static final int FHCRC = 0x02;
+    private static final int FEXTRA = 0x04;
+    private static final int FNAME = 0x08;
+    private static final int FCOMMENT = 0x10;
+
+    private static final int TRAILER_SIZE = 8;
+    private static final int MAX_INITIAL_OUTPUT = 16 * 1024 * 1024;
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+    // what's been written that hasn't been made sense of yet
+    private byte[] buffer = new byte[64 * 1024];
+    private int position;
+    private int limit;
+
+    // the member that's being inflated as it's written, if any
+    private Inflater inflater;
+    private CRC32 crc;
+    private long inflated;
+    private byte[] inflateBuffer;
+    private long members;
+
+    /**
+     * @param out        the stream to write the decompressed output to
+     * @param executor   the executor to inflate each member with
+     * @param maxPending the most members to inflate ahead, such as twice the number of threads
+     */
+    public ParallelGunzipOutputStream(OutputStream out, ExecutorService executor, int maxPending) {
+        this.out = out;
+        this.executor = executor;
+        this.maxPending = Math.max(1, maxPending);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (limit == buffer.length) {
+                compact();
+            }
+            int n = Math.min(len, buffer.length - limit);
+            System.arraycopy(b, off, buffer, limit, n);
+            limit += n;
+            off += n;
+            len -= n;
+            process();
+        }
+    }
+
+    /**
+     * Write out every member that's been fully written so far.
+     */
+    @Override
+    public void flush() throws IOException {
+        while (!pending.isEmpty()) {
+            out.write(take(pending.removeFirst()));
+        }
+        out.flush();
+    }
+
+    /**
+     * Write out everything that's left, failing if the gzip stream ended
+     * part way through a member. This doesn't close the underlying stream.
+     */
+    public void finish() throws IOException {
+        flush();
+        if (inflater != null || position < limit || members == 0) {
+            throw new IOException("Unexpected end of gzip stream");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            for (Future<byte[]> future : pending) {
+                future.cancel(true);
+            }
+            if (inflater != null) {
+                inflater.end();
+            }
+            out.close();
+        }
+    }
+
+    /**
+     * Make sense of as much of what's been written as possible.
+     */
+    private void process() throws IOException {
+        while (true) {
+            if (inflater != null) {
+                if (!inflateInline()) {
+                    return;
+                }
+                continue;
+            }
+
+            int headerLength = headerLength();
+            if (headerLength < 0) {
+                return;
+            }
+            long memberSize = memberSize();
+            if (memberSize > 0) {
+                if (memberSize < headerLength + TRAILER_SIZE || memberSize > Integer.MAX_VALUE) {
+                    throw new IOException("Corrupt gzip member size " + memberSize);
+                }
+                if (limit - position < memberSize) {
+                    // make room for the rest of it
+                    if (memberSize > buffer.length - position) {
+                        compact();
+                        if (memberSize > buffer.length) {
+                            buffer = Arrays.copyOf(buffer, (int) memberSize);
+                        }
+                    }
+                    return;
+                }
+                final byte[] member = Arrays.copyOfRange(buffer, position, position + (int) memberSize);
+                final int offset = headerLength;
+                position += memberSize;
+                members++;
+                while (pending.size() >= maxPending) {
+                    out.write(take(pending.removeFirst()));
+                }
+                pending.addLast(executor.submit(new Callable<byte[]>() {
+                    public byte[] call() throws Exception {
+                        return inflate(member, offset);
+                    }
+                }));
+            } else {
+                // everything before this member has to come out before any of it can
+                flush();
+                position += headerLength;
+                members++;
+                inflater = new Inflater(true);
+                crc = new CRC32();
+                inflated = 0;
+                if (inflateBuffer == null) {
+                    inflateBuffer = new byte[64 * 1024];
+                }
+            }
+        }
+    }
+
+    /**
+     * Inflate as much of the current member as has been written, returning true
+     * once all of it including the trailer has been.
+     */
+    private boolean inflateInline() throws IOException {
+        try {
+            if (!inflater.finished()) {
+                inflater.setInput(buffer, position, limit - position);
+                int n;
+                while ((n = inflater.inflate(inflateBuffer)) > 0 || !(inflater.finished() || inflater.needsInput())) {
+                    if (inflater.needsDictionary()) {
+                        throw new IOException("Corrupt gzip member");
+                    }
+                    crc.update(inflateBuffer, 0, n);
+                    inflated += n;
+                    out.write(inflateBuffer, 0, n);
+                }
+                position = limit - inflater.getRemaining();
+                if (!inflater.finished()) {
+                    return false;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt gzip member", e);
+        }
+
+        if (limit - position < TRAILER_SIZE) {
+            return false;
+        }
+        checkTrailer(buffer, position, crc.getValue(), inflated);
+        position += TRAILER_SIZE;
+        inflater.end();
+        inflater = null;
+        return true;
+    }
+
+    /**
+     * Return the length of the header that starts at the current position, or
+     * -1 if not all of it has been written yet.
+     */
+    private int headerLength() throws IOException {
+        int available = limit - position;
+        if (available < 10) {
+            return -1;
+        }
+        if ((buffer[position] & 0xff) != 0x1f || (buffer[position + 1] & 0xff) != 0x8b || buffer[position + 2] != 8) {
+            throw new IOException("Not in gzip format");
+        }
+        int flags = buffer[position + 3] & 0xff;
+        int length = 10;
+        if ((flags & FEXTRA) != 0) {
+            if (available < length + 2) {
+                return -1;
+            }
+            length += 2 + readShortLE(buffer, position + length);
+        }
+        for (int flag : new int[]{FNAME, FCOMMENT}) {
+            if ((flags & flag) != 0) {
+                // a zero terminated string
+                do {
+                    if (available <= length) {
+                        return -1;
+                    }
+                } while (buffer[position + length++] != 0);
+            }
+        }
+        if ((flags & FHCRC) != 0) {
+            length += 2;
+        }
+        return available < length ? -1 : length;
+    }
+
+    /**
+     * Return the size of the whole member whose header starts at the current
+     * position as recorded in its extra field, or -1 if it doesn't say.
+     */
+    private long memberSize() {
+        if ((buffer[position + 3] & FEXTRA) == 0) {
+            return -1;
+        }
+        int end = position + 12 + readShortLE(buffer, position + 10);
+        for (int i = position + 12; i + 4 <= end; ) {
+            byte si1 = buffer[i];
+            byte si2 = buffer[i + 1];
+            int length = readShortLE(buffer, i + 2);
+            if (si1 == ParallelGzipInputStream.SIZE_SI1 && si2 == ParallelGzipInputStream.SIZE_SI2 && length == 4 && i + 8 <= end) {
+                return readIntLE(buffer, i + 4);
+            } else if (si1 == 'B' && si2 == 'C' && length == 2 && i + 6 <= end) {
+                return readShortLE(buffer, i + 4) + 1;
+            }
+            i += 4 + length;
+        }
+        return -1;
+    }
+
+    /**
+     * Return the decompressed content of the given member, whose deflated data
+     * starts at the given offset.
+     */
+    static byte[] inflate(byte[] member, int offset) throws IOException {
+        int trailer = member.length - TRAILER_SIZE;
+        long size = readIntLE(member, trailer + 4);
+        ByteArrayOutputStream content = new ByteArrayOutputStream((int) Math.min(size, MAX_INITIAL_OUTPUT));
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(member, offset, trailer - offset);
+            byte[] chunk = new byte[64 * 1024];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(chunk);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Corrupt gzip member");
+                }
+                content.write(chunk, 0, n);
+            }
+            if (inflater.getRemaining() != 0) {
+                throw new IOException("Corrupt gzip member");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt gzip member", e);
+        } finally {
+            inflater.end();
+        }
+
+        byte[] bytes = content.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        checkTrailer(member, trailer, crc.getValue(), bytes.length);
+        return bytes;
+    }
+
+    private static void checkTrailer(byte[] b, int offset, long crc, long size) throws IOException {
+        if (readIntLE(b, offset) != crc || readIntLE(b, offset + 4) != (size & 0xffffffffL)) {
+            throw new IOException("Corrupt gzip member, the checksum or size doesn't match");
+        }
+    }
+
+    private static byte[] take(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decompressing", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Unable to decompress", e.getCause());
+        }
+    }
+
+    private void compact() {
+        System.arraycopy(buffer, position, buffer, 0, limit - position);
+        limit -= position;
+        position = 0;
+        if (limit == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+    }
+
+    private static int readShortLE(byte[] b, int offset) {
+        return (b[offset] & 0xff) | (b[offset + 1] & 0xff) << 8;
+    }
+
+    private static long readIntLE(byte[] b, int offset) {
+        return ((long) readShortLE(b, offset)) | ((long) readShortLE(b, offset + 2)) << 16;
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2014 Ray Holder
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rholder.esthree.util;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compress another stream into gzip on any number of threads at once. The
+ * source is read in blocks and each block is deflated on its own by the given
+ * executor into a complete gzip member, then the members are handed out in
+ * order. Concatenated members are still a standard gzip stream, which gzip,
+ * browsers and {@link java.util.zip.GZIPInputStream} read back as a whole, at
+ * the cost of a little compression since no block can refer back to the one
+ * before it. Each member records its own compressed size in an extra field of
+ * its header, the same way BGZF does, such that {@link ParallelGunzipOutputStream}
+ * can find where each one ends and inflate them in parallel too.
+ *
+ * No more than the given number of blocks are read ahead of what's been
+ * handed out, which bounds how much is held in memory.
+ */
+public class ParallelGzipInputStream extends InputStream {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024; // 1 MB
+
+    /**
+     * The ID of the extra subfield that holds the size of the whole member as a
+     * 4 byte little endian integer.
+     */
+    public static final byte SIZE_SI1 = 'E';
+    public static final byte SIZE_SI2 = 'S';
+
+    // an extra field with just the size, no file name or modification time, and an unknown OS
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0x04, 0, 0, 0, 0, 0, (byte) 0xff,
+            8, 0, SIZE_SI1, SIZE_SI2, 4, 0};
+
+    private final InputStream source;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private int level = Deflater.DEFAULT_COMPRESSION;
+
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+    private boolean sourceDone;
+    private long blocks;
+    private byte[] current;
+    private int position;
+
+    /**
+     * @param source     the stream to compress
+     * @param executor   the executor to deflate each block with
+     * @param maxPending the most blocks to read ahead, such as twice the number of threads
+     */
+    public ParallelGzipInputStream(InputStream source, ExecutorService executor, int maxPending) {
+        this.source = source;
+        this.executor = executor;
+        this.maxPending = Math.max(1, maxPending);
+    }
+
+    /**
+     * @param blockSize the number of bytes to compress at a time, defaults to {@link #DEFAULT_BLOCK_SIZE}
+     */
+    public ParallelGzipInputStream withBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+        return this;
+    }
+
+    /**
+     * @param level the {@link Deflater} compression level, defaults to {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    public ParallelGzipInputStream withLevel(int level) {
+        this.level = level;
+        return this;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (current == null || position == current.length) {
+            submit();
+            if (pending.isEmpty()) {
+                return -1;
+            }
+            current = take(pending.poll());
+            position = 0;
+        }
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    /**
+     * Return the number of compressed bytes that are ready to be read, which
+     * includes every block that's already been deflated.
+     */
+    @Override
+    public int available() throws IOException {
+        long available = current == null ? 0 : current.length - position;
+        for (Future<byte[]> future : pending) {
+            if (!future.isDone()) {
+                break;
+            }
+            try {
+                available += future.get().length;
+            } catch (Exception e) {
+                // let read report it
+                break;
+            }
+        }
+        return (int) Math.min(Integer.MAX_VALUE, available);
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Future<byte[]> future : pending) {
+            future.cancel(true);
+        }
+        pending.clear();
+        source.close();
+    }
+
+    /**
+     * Read blocks from the source and start deflating them until enough are
+     * pending or the source runs out. An empty source still gets a single
+     * empty member, since a gzip stream with no members isn't valid.
+     */
+    private void submit() throws IOException {
+        while (!sourceDone && pending.size() < maxPending) {
+            final byte[] block = new byte[blockSize];
+            final int length = IOUtils.read(source, block);
+            if (length < block.length) {
+                sourceDone = true;
+                if (length == 0 && blocks > 0) {
+                    return;
+                }
+            }
+            blocks++;
+            pending.add(executor.submit(new Callable<byte[]>() {
+                public byte[] call() throws Exception {
+                    return deflate(block, length, level);
+                }
+            }));
+        }
+    }
+
+    private static byte[] take(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to compress", e.getCause());
+        }
+    }
+
+    /**
+     * Return the first length bytes of the given block as a complete gzip
+     * member.
+     */
+    static byte[] deflate(byte[] block, int length, int level) {
+        ByteArrayOutputStream member = new ByteArrayOutputStream(length / 2 + 64);
+        member.write(HEADER, 0, HEADER.length);
+        writeIntLE(member, 0); // the size, filled in at the end
+
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(block, 0, length);
+            deflater.finish();
+            byte[] buffer = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                member.write(buffer, 0, n);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(block, 0, length);
+        writeIntLE(member, crc.getValue());
+        writeIntLE(member, length);
+
+        byte[] bytes = member.toByteArray();
+        for (int i = 0; i < 4; i++) {
+            bytes[HEADER.length + i] = (byte) (bytes.length >>> (8 * i));
+        }
+        return bytes;
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream out, long value) {
+        out.write((int) (value & 0xff));
+        out.write((int) ((value >> 8) & 0xff));
+        out.write((int) ((value >> 16) & 0xff));
+        out.write((int) ((value >> 24) & 0xff));
+    }
+}
@@ -1,24 +1,56 @@
 package com.github.rholder.esthree;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
 import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.amazonaws.util.BinaryUtils;
+import com.amazonaws.util.Md5Utils;
 import com.github.rholder.moar.concurrent.partition.Part;
 import com.github.rholder.moar.concurrent.partition.Parts;
+import com.google.common.base.Charsets;
 import com.google.common.primitives.Ints;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.apache.commons.lang.StringUtils;
 import org.junit.Assert;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -59,4 +91,331 @@ public class AmazonS3ClientMockUtils {
 
         return client;
     }
+
+    /**
+     * Return a client that serves whatever range of the given content is
+     * requested, regardless of the order the requests come in.
+     *
+     * @param content the full content of the fake object
+     */
+    public static AmazonS3Client createRangeMockedClient(final byte[] content) {
+        return createRangeMockedClient(content, BinaryUtils.toHex(Md5Utils.computeMD5Hash(content)), -1);
+    }
+
+    /**
+     * Return a client that serves whatever range of the given content is
+     * requested, except that the connection of the very first request drops
+     * after the given number of bytes.
+     *
+     * @param content   the full content of the fake object
+     * @param failAfter the number of bytes the first response gets through
+     */
+    public static AmazonS3Client createFlakyRangeMockedClient(final byte[] content, int failAfter) {
+        return createRangeMockedClient(content, BinaryUtils.toHex(Md5Utils.computeMD5Hash(content)), failAfter);
+    }
+
+    /**
+     * Return a client that serves ranges of the given content, except that the
+     * first request for the range starting at the given offset stalls after the
+     * given number of bytes until it's closed or aborted.
+     *
+     * @param content    the full content of the fake object
+     * @param stallStart the first byte of the range to stall
+     * @param stallAfter the number of bytes to serve before stalling
+     */
+    public static AmazonS3Client createStallingRangeMockedClient(final byte[] content, final long stallStart, final int stallAfter) {
+        AmazonS3Client client = createRangeMockedClient(content);
+        doAnswer(new Answer<S3Object>() {
+            private boolean stalled;
+
+            @Override
+            public synchronized S3Object answer(InvocationOnMock invocation) throws Throwable {
+                GetObjectRequest req = (GetObjectRequest) invocation.getArguments()[0];
+                long[] range = req.getRange();
+                int start = Ints.checkedCast(range[0]);
+                int end = Ints.checkedCast(Math.min(range[1], content.length - 1));
+
+                ObjectMetadata rangeMetadata = new ObjectMetadata();
+                rangeMetadata.setContentLength(end - start + 1);
+                rangeMetadata.setHeader(Headers.ETAG, BinaryUtils.toHex(Md5Utils.computeMD5Hash(content)));
+                rangeMetadata.setHeader(Headers.CONTENT_RANGE, String.format("bytes %d-%d/%d", start, end, content.length));
+
+                S3Object o = new S3Object();
+                o.setObjectMetadata(rangeMetadata);
+                InputStream input = new ByteArrayInputStream(content, start, end - start + 1);
+                if (!stalled && start == stallStart) {
+                    stalled = true;
+                    final CountDownLatch closed = new CountDownLatch(1);
+                    input = new SequenceInputStream(new BoundedInputStream(input, stallAfter), new InputStream() {
+                        @Override
+                        public int read() throws IOException {
+                            try {
+                                closed.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            throw new IOException("Connection aborted");
+                        }
+
+                        @Override
+                        public void close() {
+                            closed.countDown();
+                        }
+                    });
+                }
+                o.setObjectContent(input);
+                return o;
+            }
+        }).when(client).getObject(any(GetObjectRequest.class));
+        return client;
+    }
+
+    /**
+     * Return a client that accepts multipart uploads, keeping each part that
+     * comes in by its part number. The connection drops on the given number of
+     * part uploads before any of them go through. Listing the parts of the
+     * upload lists whatever is kept, and any other upload doesn't exist.
+     *
+     * @param uploadedParts where to keep the content of each part
+     * @param failures      the number of part uploads to fail first
+     */
+    public static AmazonS3Client createMultipartUploadMockedClient(final Map<Integer, byte[]> uploadedParts, final int failures) {
+        AmazonS3Client client = mock(AmazonS3Client.class);
+        InitiateMultipartUploadResult initiated = new InitiateMultipartUploadResult();
+        initiated.setUploadId("testUploadId");
+        when(client.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(initiated);
+        when(client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class))).thenReturn(new CompleteMultipartUploadResult());
+        when(client.listParts(any(ListPartsRequest.class))).thenAnswer(new Answer<PartListing>() {
+            @Override
+            public PartListing answer(InvocationOnMock invocation) throws Throwable {
+                ListPartsRequest req = (ListPartsRequest) invocation.getArguments()[0];
+                if (!"testUploadId".equals(req.getUploadId())) {
+                    AmazonS3Exception noSuchUpload = new AmazonS3Exception("The specified upload does not exist");
+                    noSuchUpload.setStatusCode(404);
+                    throw noSuchUpload;
+                }
+                PartListing listing = new PartListing();
+                for (Map.Entry<Integer, byte[]> e : new TreeMap<Integer, byte[]>(uploadedParts).entrySet()) {
+                    PartSummary part = new PartSummary();
+                    part.setPartNumber(e.getKey());
+                    part.setETag(BinaryUtils.toHex(Md5Utils.computeMD5Hash(e.getValue())));
+                    listing.getParts().add(part);
+                }
+                return listing;
+            }
+        });
+        when(client.uploadPart(any(UploadPartRequest.class))).thenAnswer(new Answer<UploadPartResult>() {
+            private final AtomicInteger failed = new AtomicInteger();
+
+            @Override
+            public UploadPartResult answer(InvocationOnMock invocation) throws Throwable {
+                if (failed.incrementAndGet() <= failures) {
+                    throw new AmazonClientException("Unable to execute HTTP request", new IOException("Connection reset"));
+                }
+                UploadPartRequest req = (UploadPartRequest) invocation.getArguments()[0];
+                byte[] part = IOUtils.toByteArray(req.getInputStream());
+                Assert.assertEquals(req.getPartSize(), part.length);
+                Assert.assertEquals(req.getMd5Digest(), Md5Utils.md5AsBase64(part));
+                uploadedParts.put(req.getPartNumber(), part);
+
+                UploadPartResult result = new UploadPartResult();
+                result.setPartNumber(req.getPartNumber());
+                result.setETag(BinaryUtils.toHex(Md5Utils.computeMD5Hash(part)));
+                return result;
+            }
+        });
+        return client;
+    }
+
+    /**
+     * Return a client that serves ranges of the given content as if it had been
+     * uploaded in parts of the given size.
+     *
+     * @param content      the full content of the fake object
+     * @param partSize     the size of each uploaded part
+     * @param partNumbers  true to answer requests for the metadata of part 1
+     */
+    public static AmazonS3Client createMultipartMockedClient(byte[] content, int partSize, boolean partNumbers) {
+        AmazonS3Client client = createRangeMockedClient(content, multipartETag(content, partSize), -1);
+        if (partNumbers) {
+            ObjectMetadata partMetadata = new ObjectMetadata();
+            partMetadata.setContentLength(Math.min(partSize, content.length));
+            when(client.getObjectMetadata(any(GetObjectMetadataRequest.class))).thenReturn(partMetadata);
+        }
+        return client;
+    }
+
+    /**
+     * Return the ETag S3 would assign the given content when uploaded in parts
+     * of the given size.
+     */
+    public static String multipartETag(byte[] content, int partSize) {
+        ByteArrayOutputStream partDigests = new ByteArrayOutputStream();
+        int parts = 0;
+        for (int start = 0; start < content.length; start += partSize) {
+            byte[] part = Arrays.copyOfRange(content, start, Math.min(start + partSize, content.length));
+            partDigests.write(Md5Utils.computeMD5Hash(part), 0, 16);
+            parts++;
+        }
+        return BinaryUtils.toHex(Md5Utils.computeMD5Hash(partDigests.toByteArray())) + "-" + parts;
+    }
+
+    private static AmazonS3Client createRangeMockedClient(final byte[] content, final String etag, final int failAfter) {
+        ObjectMetadata om = new ObjectMetadata();
+        om.setContentLength(content.length);
+        om.setHeader(Headers.ETAG, etag);
+
+        AmazonS3Client client = mock(AmazonS3Client.class);
+        when(client.getObjectMetadata(anyString(), anyString())).thenReturn(om);
+        when(client.getObject(any(GetObjectRequest.class))).thenAnswer(new Answer<S3Object>() {
+            private boolean failed = failAfter < 0;
+
+            @Override
+            public S3Object answer(InvocationOnMock invocation) throws Throwable {
+                GetObjectRequest req = (GetObjectRequest) invocation.getArguments()[0];
+                long[] range = req.getRange();
+                int start = range == null ? 0 : Ints.checkedCast(range[0]);
+                int end = range == null ? content.length - 1 : Ints.checkedCast(Math.min(range[1], content.length - 1));
+
+                ObjectMetadata rangeMetadata = new ObjectMetadata();
+                rangeMetadata.setContentLength(end - start + 1);
+                rangeMetadata.setHeader(Headers.ETAG, etag);
+                if (range != null) {
+                    rangeMetadata.setHeader(Headers.CONTENT_RANGE, String.format("bytes %d-%d/%d", start, end, content.length));
+                }
+
+                S3Object o = new S3Object();
+                o.setObjectMetadata(rangeMetadata);
+                InputStream input = new ByteArrayInputStream(content, start, end - start + 1);
+                if (!failed) {
+                    failed = true;
+                    input = new SequenceInputStream(new BoundedInputStream(input, failAfter), new InputStream() {
+                        @Override
+                        public int read() throws IOException {
+                            throw new IOException("Connection reset");
+                        }
+                    });
+                }
+                o.setObjectContent(input);
+                return o;
+            }
+        });
+        return client;
+    }
+
+    /**
+     * Orders keys by their UTF-8 bytes, the way S3 lists them, which isn't how
+     * Strings sort once there are characters outside the Basic Multilingual
+     * Plane.
+     */
+    public static final Comparator<String> UTF8_ORDER = new Comparator<String>() {
+        public int compare(String a, String b) {
+            byte[] x = a.getBytes(Charsets.UTF_8);
+            byte[] y = b.getBytes(Charsets.UTF_8);
+            for (int i = 0; i < x.length && i < y.length; i++) {
+                if (x[i] != y[i]) {
+                    return (x[i] & 0xff) - (y[i] & 0xff);
+                }
+            }
+            return x.length - y.length;
+        }
+    };
+
+    /**
+     * Return a client for a bucket holding the given objects by key. Listing
+     * the bucket returns no more than the given number of keys per page, and
+     * each object can be fetched whole or in ranges.
+     *
+     * @param objects  the content of each object by its key
+     * @param pageSize the most keys to return in each page of a listing
+     */
+    public static AmazonS3Client createBucketMockedClient(final Map<String, byte[]> objects, final int pageSize) {
+        final TreeMap<String, byte[]> sorted = new TreeMap<String, byte[]>(UTF8_ORDER);
+        sorted.putAll(objects);
+        AmazonS3Client client = mock(AmazonS3Client.class);
+        when(client.listObjects(any(ListObjectsRequest.class))).thenAnswer(new Answer<ObjectListing>() {
+            @Override
+            public ObjectListing answer(InvocationOnMock invocation) throws Throwable {
+                ListObjectsRequest req = (ListObjectsRequest) invocation.getArguments()[0];
+                String prefix = req.getPrefix() == null ? "" : req.getPrefix();
+                String delimiter = req.getDelimiter();
+                int maxKeys = Math.min(pageSize, req.getMaxKeys() == null ? 1000 : req.getMaxKeys());
+                ObjectListing listing = new ObjectListing();
+                listing.setBucketName(req.getBucketName());
+                Map<String, byte[]> after = req.getMarker() == null ? sorted : sorted.tailMap(req.getMarker(), false);
+                String last = null;
+                for (Map.Entry<String, byte[]> e : after.entrySet()) {
+                    if (!e.getKey().startsWith(prefix)) {
+                        continue;
+                    }
+
+                    // keys past the delimiter roll up into one common prefix, which is never repeated
+                    int d = delimiter == null ? -1 : e.getKey().indexOf(delimiter, prefix.length());
+                    String common = d < 0 ? null : e.getKey().substring(0, d + delimiter.length());
+                    if (common != null && (common.equals(last) || (req.getMarker() != null && UTF8_ORDER.compare(common, req.getMarker()) <= 0))) {
+                        continue;
+                    }
+                    if (listing.getObjectSummaries().size() + listing.getCommonPrefixes().size() == maxKeys) {
+                        listing.setTruncated(true);
+                        if (delimiter != null) {
+                            listing.setNextMarker(last);
+                        }
+                        break;
+                    }
+                    if (common != null) {
+                        listing.getCommonPrefixes().add(common);
+                        last = common;
+                        continue;
+                    }
+                    S3ObjectSummary summary = new S3ObjectSummary();
+                    summary.setBucketName(req.getBucketName());
+                    summary.setKey(e.getKey());
+                    summary.setSize(e.getValue().length);
+                    listing.getObjectSummaries().add(summary);
+                    last = e.getKey();
+                }
+                return listing;
+            }
+        });
+        when(client.getObject(any(GetObjectRequest.class))).thenAnswer(new Answer<S3Object>() {
+            @Override
+            public S3Object answer(InvocationOnMock invocation) throws Throwable {
+                GetObjectRequest req = (GetObjectRequest) invocation.getArguments()[0];
+                byte[] content = sorted.get(req.getKey());
+                if (content == null) {
+                    AmazonS3Exception noSuchKey = new AmazonS3Exception("The specified key does not exist");
+                    noSuchKey.setStatusCode(404);
+                    throw noSuchKey;
+                }
+                long[] range = req.getRange();
+                int start = range == null ? 0 : Ints.checkedCast(range[0]);
+                int end = range == null ? content.length - 1 : Ints.checkedCast(Math.min(range[1], content.length - 1));
+
+                ObjectMetadata om = new ObjectMetadata();
+                om.setContentLength(end - start + 1);
+                om.setHeader(Headers.ETAG, BinaryUtils.toHex(Md5Utils.computeMD5Hash(content)));
+                if (range != null) {
+                    om.setHeader(Headers.CONTENT_RANGE, String.format("bytes %d-%d/%d", start, end, content.length));
+                }
+                S3Object o = new S3Object();
+                o.setObjectMetadata(om);
+                o.setObjectContent(new ByteArrayInputStream(content, start, end - start + 1));
+                return o;
+            }
+        });
+        return client;
+    }
+
+    /**
+     * Return some predictable content that doesn't repeat every byte.
+     *
+     * @param length the number of bytes to generate
+     */
+    public static byte[] createContent(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) (i * 31 + i / 256);
+        }
+        return content;
+    }
 }
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2014 Ray Holder
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rholder.esthree.bench;
+
+import com.github.rholder.esthree.util.ChannelCopier;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.security.MessageDigest;
+
+/**
+ * Compare the throughput and CPU cost of the original 16KB read/write/hash
+ * loop against {@link ChannelCopier} at a few I/O sizes. The input is
+ * generated in memory and handed out in slices, the way a socket tends to
+ * return data, so only the copy, hash and write are being measured. CPU time
+ * is for the whole process, since the copier hashes and writes on threads of
+ * its own.
+ *
+ * Usage: CopyBenchmark [megabytes to copy] [bytes per read] [output directory]
+ */
+public class CopyBenchmark {
+
+    public static final int OLD_BUF_SIZE = 4096 * 4;
+    public static final int[] IO_SIZES = {OLD_BUF_SIZE, 256 * 1024, 1024 * 1024, 4 * 1024 * 1024};
+    public static final int ROUNDS = 3;
+
+    private static final OperatingSystemMXBean OS = ManagementFactory.getOperatingSystemMXBean();
+
+    public static void main(String[] args) throws Exception {
+        long totalBytes = (args.length > 0 ? Long.parseLong(args[0]) : 1024) * 1024 * 1024;
+        int readSize = args.length > 1 ? Integer.parseInt(args[1]) : 64 * 1024;
+        File dir = new File(args.length > 2 ? args[2] : System.getProperty("java.io.tmpdir"));
+
+        File file = File.createTempFile("copy-benchmark", ".bin", dir);
+        file.deleteOnExit();
+        System.out.println(String.format("copying %d MB in reads of up to %d bytes to %s", totalBytes / (1024 * 1024), readSize, file));
+        System.out.println(String.format("%-24s %12s %12s", "method", "MB/s", "cpu ms/GB"));
+
+        for (int round = 0; round < ROUNDS; round++) {
+            report("loop 16KB", totalBytes, runLoop(file, totalBytes, readSize));
+            for (int ioSize : IO_SIZES) {
+                report("channel " + ioSize / 1024 + "KB", totalBytes, runChannel(file, totalBytes, readSize, ioSize));
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * The copy loop as it was, one write and one digest update per read.
+     */
+    private static long[] runLoop(File file, long totalBytes, int readSize) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        InputStream input = new SlicedInputStream(totalBytes, readSize);
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        long[] start = start();
+        try {
+            byte[] buffer = new byte[OLD_BUF_SIZE];
+            int n;
+            while (-1 != (n = input.read(buffer))) {
+                output.write(buffer, 0, n);
+                digest.update(buffer, 0, n);
+            }
+        } finally {
+            output.close();
+        }
+        return stop(start);
+    }
+
+    private static long[] runChannel(File file, long totalBytes, int readSize, int ioSize) throws Exception {
+        final MessageDigest digest = MessageDigest.getInstance("MD5");
+        InputStream input = new SlicedInputStream(totalBytes, readSize);
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        long[] start = start();
+        try {
+            new ChannelCopier(ioSize).copy(input, output.getChannel(), 0, new ChannelCopier.Listener() {
+                public void received(int bytes) {
+                }
+
+                public void update(byte[] buffer, int offset, int length) {
+                    digest.update(buffer, offset, length);
+                }
+
+                public void written(long position) {
+                }
+            });
+        } finally {
+            output.close();
+        }
+        return stop(start);
+    }
+
+    private static long[] start() {
+        return new long[]{System.nanoTime(), getProcessCpuTime()};
+    }
+
+    private static long[] stop(long[] start) {
+        return new long[]{System.nanoTime() - start[0], getProcessCpuTime() - start[1]};
+    }
+
+    private static long getProcessCpuTime() {
+        return ((com.sun.management.OperatingSystemMXBean) OS).getProcessCpuTime();
+    }
+
+    private static void report(String method, long totalBytes, long[] elapsed) {
+        double megabytes = totalBytes / (1024.0 * 1024.0);
+        double seconds = elapsed[0] / 1e9;
+        double cpuMillisPerGB = (elapsed[1] / 1e6) / (megabytes / 1024.0);
+        System.out.println(String.format("%-24s %12.1f %12.1f", method, megabytes / seconds, cpuMillisPerGB));
+    }
+
+    /**
+     * Hand out a fixed number of generated bytes, no more than a given number
+     * of them per read.
+     */
+    public static class SlicedInputStream extends InputStream {
+
+        private final byte[] source;
+        private final int readSize;
+        private long remaining;
+
+        public SlicedInputStream(long totalBytes, int readSize) {
+            this.source = new byte[readSize];
+            for (int i = 0; i < source.length; i++) {
+                source[i] = (byte) (i * 31);
+            }
+            this.readSize = readSize;
+            this.remaining = totalBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int n = (int) Math.min(Math.min(len, readSize), remaining);
+            System.arraycopy(source, 0, b, off, n);
+            remaining -= n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014 Ray Holder
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rholder.esthree.bench;
+
+import com.amazonaws.services.s3.model.Owner;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.github.rholder.esthree.cli.LsCommand;
+import com.github.rholder.esthree.util.ListEncoder;
+import com.github.rholder.esthree.util.ListFormatter;
+
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Date;
+
+/**
+ * Compare the lines per second that ls writes in each of its output modes,
+ * along with the CPU time and heap churn for each line. The same page of
+ * objects is written over and over to a stream that throws the bytes away,
+ * so only formatting and encoding are being measured, the way they'd run
+ * against a listing that's arriving faster than it can be printed. The list
+ * format as it was formatted before it was precompiled is included as a
+ * baseline.
+ *
+ * Usage: ListOutputBenchmark [millions of lines]
+ */
+public class ListOutputBenchmark {
+
+    public static final int PAGE_SIZE = 1000;
+    public static final int ROUNDS = 3;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        long lines = (long) ((args.length > 0 ? Double.parseDouble(args[0]) : 2) * 1000 * 1000);
+        S3ObjectSummary[] page = page();
+
+        System.out.println(String.format("writing %d lines", lines));
+        System.out.println(String.format("%-24s %12s %12s %12s", "method", "lines/s", "cpu ns/line", "alloc B/line"));
+        for (int round = 0; round < ROUNDS; round++) {
+            report("text (String.format)", lines, runStringFormat(page, lines));
+            report("text", lines, runText(page, lines));
+            report("ndjson", lines, runEncoder(page, lines, ListEncoder.Format.NDJSON));
+            report("csv", lines, runEncoder(page, lines, ListEncoder.Format.CSV));
+        }
+    }
+
+    private static S3ObjectSummary[] page() {
+        S3ObjectSummary[] page = new S3ObjectSummary[PAGE_SIZE];
+        for (int i = 0; i < page.length; i++) {
+            S3ObjectSummary os = new S3ObjectSummary();
+            os.setBucketName("some-bucket");
+            os.setKey(String.format("logs/2015/10/21/%08x/part-%05d.gz", i * 2654435761L & 0xffffffffL, i));
+            os.setSize(i * 7919L);
+            os.setLastModified(new Date(1445412480000L + i * 1000L));
+            os.setETag("d41d8cd98f00b204e9800998ecf8427e");
+            os.setStorageClass("STANDARD");
+            os.setOwner(new Owner("75aa57f09aa0c8caeab4f8c24e99d10f8e7faeebf76c078efc7c6caea54ba06a", "some-owner"));
+            page[i] = os;
+        }
+        return page;
+    }
+
+    private static long[] runStringFormat(S3ObjectSummary[] page, long lines) {
+        PrintStream printStream = printStream();
+        long[] start = start();
+        for (long i = 0; i < lines; i++) {
+            S3ObjectSummary os = page[(int) (i % page.length)];
+            printStream.println(String.format(LsCommand.DEFAULT_LIST_FORMAT, os.getLastModified(), os.getSize(),
+                    os.getBucketName(), os.getKey(), os.getETag(), os.getOwner(), os.getStorageClass()));
+        }
+        printStream.flush();
+        return stop(start);
+    }
+
+    private static long[] runText(S3ObjectSummary[] page, long lines) {
+        PrintStream printStream = printStream();
+        ListFormatter formatter = new ListFormatter(LsCommand.DEFAULT_LIST_FORMAT);
+        long[] start = start();
+        for (long i = 0; i < lines; i++) {
+            printStream.println(formatter.format(page[(int) (i % page.length)]));
+        }
+        printStream.flush();
+        return stop(start);
+    }
+
+    private static long[] runEncoder(S3ObjectSummary[] page, long lines, ListEncoder.Format format) throws Exception {
+        ListEncoder encoder = new ListEncoder(printStream(), format);
+        long[] start = start();
+        for (long i = 0; i < lines; i++) {
+            encoder.writeObject(page[(int) (i % page.length)]);
+        }
+        encoder.flush();
+        return stop(start);
+    }
+
+    /**
+     * Return a stream like the one ls writes to, which throws everything away.
+     */
+    private static PrintStream printStream() {
+        return new PrintStream(new BufferedOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                // discarded
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                // discarded
+            }
+        }, 64 * 1024), false);
+    }
+
+    private static long[] start() {
+        return new long[]{System.nanoTime(), getThreadCpuTime(), getAllocatedBytes()};
+    }
+
+    private static long[] stop(long[] start) {
+        return new long[]{System.nanoTime() - start[0], getThreadCpuTime() - start[1], getAllocatedBytes() - start[2]};
+    }
+
+    private static long getThreadCpuTime() {
+        return THREADS.getCurrentThreadCpuTime();
+    }
+
+    private static long getAllocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void report(String method, long lines, long[] elapsed) {
+        double seconds = elapsed[0] / 1e9;
+        System.out.println(String.format("%-24s %12.0f %12.1f %12.1f", method, lines / seconds,
+                elapsed[1] / (double) lines, elapsed[2] / (double) lines));
+    }
+}
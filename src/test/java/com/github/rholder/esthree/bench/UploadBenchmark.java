@@ -0,0 +1,152 @@
+/*
+ * Copyright 2014 Ray Holder
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rholder.esthree.bench;
+
+import com.github.rholder.esthree.util.ByteBufferInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * Compare reading each part of an upload onto the heap against mapping it
+ * into memory, for throughput, CPU cost and heap churn. Each part is hashed
+ * for its Content-MD5 and then drained the way the SDK sends a request body,
+ * so only the source side of an upload is being measured. The file is read
+ * once up front so that both methods are served from the page cache.
+ *
+ * Usage: UploadBenchmark [megabytes to upload] [part size in megabytes] [file directory]
+ */
+public class UploadBenchmark {
+
+    public static final int SEND_BUF_SIZE = 128 * 1024;
+    public static final int ROUNDS = 3;
+
+    private static final OperatingSystemMXBean OS = ManagementFactory.getOperatingSystemMXBean();
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        long totalBytes = (args.length > 0 ? Long.parseLong(args[0]) : 1024) * 1024 * 1024;
+        int partSize = (args.length > 1 ? Integer.parseInt(args[1]) : 8) * 1024 * 1024;
+        File dir = new File(args.length > 2 ? args[2] : System.getProperty("java.io.tmpdir"));
+
+        File file = File.createTempFile("upload-benchmark", ".bin", dir);
+        file.deleteOnExit();
+        write(file, totalBytes);
+        System.out.println(String.format("uploading %d MB in parts of %d MB from %s", totalBytes / (1024 * 1024), partSize / (1024 * 1024), file));
+        System.out.println(String.format("%-24s %12s %12s %12s", "method", "MB/s", "cpu ms/GB", "alloc MB/GB"));
+
+        RandomAccessFile source = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = source.getChannel();
+            for (int round = 0; round < ROUNDS; round++) {
+                report("heap", totalBytes, runHeap(channel, totalBytes, partSize));
+                report("memory map", totalBytes, runMapped(channel, totalBytes, partSize));
+            }
+        } finally {
+            source.close();
+        }
+        file.delete();
+    }
+
+    private static void write(File file, long totalBytes) throws Exception {
+        InputStream input = new CopyBenchmark.SlicedInputStream(totalBytes, 1024 * 1024);
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[1024 * 1024];
+            int n;
+            while (-1 != (n = input.read(buffer))) {
+                output.write(buffer, 0, n);
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Each part read into a new array with positional reads, as parts of a
+     * file are uploaded by default.
+     */
+    private static long[] runHeap(FileChannel channel, long totalBytes, int partSize) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        byte[] sendBuffer = new byte[SEND_BUF_SIZE];
+        long[] start = start();
+        for (long position = 0; position < totalBytes; position += partSize) {
+            byte[] part = new byte[(int) Math.min(partSize, totalBytes - position)];
+            ByteBuffer bb = ByteBuffer.wrap(part);
+            while (bb.hasRemaining()) {
+                channel.read(bb, position + bb.position());
+            }
+            digest.update(part);
+            digest.digest();
+            drain(new ByteArrayInputStream(part), sendBuffer);
+        }
+        return stop(start);
+    }
+
+    private static long[] runMapped(FileChannel channel, long totalBytes, int partSize) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        byte[] sendBuffer = new byte[SEND_BUF_SIZE];
+        long[] start = start();
+        for (long position = 0; position < totalBytes; position += partSize) {
+            MappedByteBuffer part = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(partSize, totalBytes - position));
+            digest.update(part.duplicate());
+            digest.digest();
+            drain(new ByteBufferInputStream(part), sendBuffer);
+        }
+        return stop(start);
+    }
+
+    private static void drain(InputStream input, byte[] sendBuffer) throws Exception {
+        while (-1 != input.read(sendBuffer)) {
+            // the bytes would be written to the socket here
+        }
+    }
+
+    private static long[] start() {
+        return new long[]{System.nanoTime(), getProcessCpuTime(), getAllocatedBytes()};
+    }
+
+    private static long[] stop(long[] start) {
+        return new long[]{System.nanoTime() - start[0], getProcessCpuTime() - start[1], getAllocatedBytes() - start[2]};
+    }
+
+    private static long getProcessCpuTime() {
+        return ((com.sun.management.OperatingSystemMXBean) OS).getProcessCpuTime();
+    }
+
+    private static long getAllocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void report(String method, long totalBytes, long[] elapsed) {
+        double megabytes = totalBytes / (1024.0 * 1024.0);
+        double seconds = elapsed[0] / 1e9;
+        double cpuMillisPerGB = (elapsed[1] / 1e6) / (megabytes / 1024.0);
+        double allocMegabytesPerGB = (elapsed[2] / (1024.0 * 1024.0)) / (megabytes / 1024.0);
+        System.out.println(String.format("%-24s %12.1f %12.1f %12.1f", method, megabytes / seconds, cpuMillisPerGB, allocMegabytesPerGB));
+    }
+}
@@ -0,0 +1,79 @@
+package com.github.rholder.esthree.cli;
+
+
+import com.github.rholder.esthree.Main;
+import com.github.rholder.esthree.command.Du;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static com.github.rholder.esthree.TestUtils.expectParseException;
+
+public class DuCommandTest extends DuCommand {
+
+    @Test
+    public void noParameters() {
+        Main main = new Main();
+        main.parseGlobalCli("du");
+        expectParseException(main.command, "No arguments specified");
+    }
+
+    @Test
+    public void help() {
+        Main main = new Main();
+        main.parseGlobalCli("du", "-h");
+        main.command.parse();
+    }
+
+    @Test
+    public void happyPath() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("du", "s3://foo");
+        main.command.parse();
+
+        DuCommand c = (DuCommand) main.command;
+        Assert.assertEquals("foo", c.bucket);
+        Assert.assertNull(c.prefix);
+        Assert.assertEquals(1, c.depth.intValue());
+        Assert.assertEquals(Du.DEFAULT_DU_FORMAT, c.duFormat);
+    }
+
+    @Test
+    public void happyPathWithDepth() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("du", "-d", "0", "-t", "64", "s3://foo/bar/");
+        main.command.parse();
+
+        DuCommand c = (DuCommand) main.command;
+        Assert.assertEquals("bar/", c.prefix);
+        Assert.assertEquals(0, c.depth.intValue());
+
+        // a connection for every directory
+        Assert.assertEquals(64, c.getClientConfiguration().getMaxConnections());
+    }
+
+    @Test
+    public void badDepth() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("du", "-d", "-1", "s3://foo");
+
+        expectParseException(main.command, "Depth must be at least 0");
+    }
+
+    @Test
+    public void badConcurrency() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("du", "-t", "0", "s3://foo");
+
+        expectParseException(main.command, "Concurrency must be at least 1");
+    }
+
+    @Test
+    public void garbagePath() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("du", "potato");
+
+        expectParseException(main.command, "Could not determine target bucket");
+    }
+}
@@ -4,7 +4,9 @@ import com.github.rholder.esthree.Main;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
 
 import static com.github.rholder.esthree.TestUtils.expectParseException;
 
@@ -72,6 +74,110 @@ public class GetCommandTest extends GetCommand {
         Assert.assertEquals("baz.txt", c.outputFile.getName());
     }
 
+    @Test
+    public void happyPathWithIoSize() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("get", "-io", "4194304", "s3://foo/bar.txt");
+        main.command.parse();
+
+        GetCommand c = (GetCommand) main.command;
+        Assert.assertEquals(4194304, (int) c.ioSize);
+    }
+
+    @Test
+    public void happyPathToStdout() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("get", "--read-ahead", "1048576", "s3://foo/bar.txt", "-");
+        PrintStream stdout = main.command.output;
+        main.command.parse();
+
+        GetCommand c = (GetCommand) main.command;
+        Assert.assertEquals(Long.valueOf(1048576), c.readAhead);
+        Assert.assertNull(c.outputFile);
+        Assert.assertNotNull(c.outputStream);
+        Assert.assertNotSame(stdout, c.output);
+    }
+
+    @Test
+    public void badReadAhead() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("get", "--read-ahead", "0", "s3://foo/bar.txt", "-");
+
+        expectParseException(main.command, "Read-ahead must be at least 1");
+    }
+
+    @Test
+    public void happyPathGunzip() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("get", "-z", "s3://foo/bar.txt.gz");
+        main.command.parse();
+
+        GetCommand c = (GetCommand) main.command;
+        Assert.assertTrue(c.gunzip);
+        Assert.assertEquals("bar.txt.gz", c.key);
+        Assert.assertEquals("bar.txt", c.outputFile.getName());
+    }
+
+    @Test
+    public void gunzipRecursive() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("get", "-r", "--gunzip", "s3://foo/bar/");
+
+        expectParseException(main.command, "Can't decompress while downloading recursively");
+    }
+
+    @Test
+    public void happyPathRecursive() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("get", "-r", "-ft", "8", "s3://foo/bar/", "some-dir");
+        main.command.parse();
+
+        GetCommand c = (GetCommand) main.command;
+        Assert.assertTrue(c.recursive);
+        Assert.assertEquals("foo", c.bucket);
+        Assert.assertEquals("bar/", c.key);
+        Assert.assertEquals(new File("some-dir"), c.outputFile);
+        Assert.assertNull(c.progressListener);
+
+        // a connection for every range of every object
+        Assert.assertEquals(50, c.getClientConfiguration().getMaxConnections());
+        c.fileConcurrency = 32;
+        Assert.assertEquals(128, c.getClientConfiguration().getMaxConnections());
+    }
+
+    @Test
+    public void recursiveToCurrentDirectory() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("get", "-r", "s3://foo/bar/");
+        main.command.parse();
+
+        Assert.assertEquals(new File("."), ((GetCommand) main.command).outputFile);
+    }
+
+    @Test
+    public void recursiveToStdout() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("get", "-r", "s3://foo/bar/", "-");
+
+        expectParseException(main.command, "Can't download recursively to stdout");
+    }
+
+    @Test
+    public void badMultipartThreshold() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("get", "-r", "-mt", "0", "s3://foo/bar/");
+
+        expectParseException(main.command, "Multipart threshold must be at least 1");
+    }
+
+    @Test
+    public void badIoSize() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("get", "-io", "0", "s3://foo/bar.txt");
+
+        expectParseException(main.command, "I/O size must be at least 1");
+    }
+
     @Test
     public void garbagePath() throws IOException {
         Main main = new Main();
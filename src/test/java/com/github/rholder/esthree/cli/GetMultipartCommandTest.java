@@ -5,6 +5,7 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.io.PrintStream;
 
 import static com.github.rholder.esthree.TestUtils.expectParseException;
 
@@ -61,6 +62,74 @@ public class GetMultipartCommandTest extends GetMultipartCommand {
         Assert.assertEquals("baz.txt", c.outputFile.getName());
     }
 
+    @Test
+    public void happyPathWithConcurrency() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("get-multi", "-t", "8", "s3://foo/bar.txt");
+        main.command.parse();
+
+        GetMultipartCommand c = (GetMultipartCommand) main.command;
+        Assert.assertEquals(8, c.concurrency.intValue());
+    }
+
+    @Test
+    public void happyPathWithAutoChunkSize() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("get-multi", "-a", "--min-chunk-size", "1048576", "--max-chunk-size", "67108864", "s3://foo/bar.txt");
+        main.command.parse();
+
+        GetMultipartCommand c = (GetMultipartCommand) main.command;
+        Assert.assertTrue(c.autoChunkSize);
+        Assert.assertEquals(1048576, c.minChunkSize.intValue());
+        Assert.assertEquals(67108864, c.maxChunkSize.intValue());
+    }
+
+    @Test
+    public void badChunkSizeBounds() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("get-multi", "-a", "--min-chunk-size", "2000", "--max-chunk-size", "1000", "s3://foo/bar.txt");
+
+        expectParseException(main.command, "Maximum chunk size must be at least the minimum chunk size");
+    }
+
+    @Test
+    public void badHedgePercentile() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("get-multi", "-t", "4", "--hedge-percentile", "0", "s3://foo/bar.txt");
+
+        expectParseException(main.command, "Hedge percentile must be greater than 0 and at most 100");
+    }
+
+    @Test
+    public void happyPathToStdout() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("get-multi", "-t", "4", "--read-ahead", "1048576", "s3://foo/bar.txt", "-");
+        PrintStream stdout = main.command.output;
+        main.command.parse();
+
+        GetMultipartCommand c = (GetMultipartCommand) main.command;
+        Assert.assertEquals(Long.valueOf(1048576), c.readAhead);
+        Assert.assertNull(c.outputFile);
+        Assert.assertNotNull(c.outputStream);
+        Assert.assertNotSame(stdout, c.output);
+    }
+
+    @Test
+    public void badReadAhead() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("get-multi", "--read-ahead", "0", "s3://foo/bar.txt", "-");
+
+        expectParseException(main.command, "Read-ahead must be at least 1");
+    }
+
+    @Test
+    public void badConcurrency() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("get-multi", "-t", "0", "s3://foo/bar.txt");
+
+        expectParseException(main.command, "Concurrency must be at least 1");
+    }
+
     @Test
     public void garbagePath() throws IOException {
         Main main = new Main();
@@ -84,4 +153,20 @@ public class GetMultipartCommandTest extends GetMultipartCommand {
 
         expectParseException(main.command, "target filename");
     }
+
+    @Test
+    public void concurrencySizesConnectionsBeforeParsing() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("get-multi", "-t", "100", "s3://foo/bar.txt");
+        Assert.assertEquals(100, main.command.getClientConfiguration().getMaxConnections());
+
+        main = new Main();
+        main.parseGlobalCli("get-multi", "-t", "100", "--hedge-percentile", "95", "s3://foo/bar.txt");
+        Assert.assertEquals(200, main.command.getClientConfiguration().getMaxConnections());
+
+        // never fewer than the default
+        main = new Main();
+        main.parseGlobalCli("get-multi", "-t", "4", "s3://foo/bar.txt");
+        Assert.assertEquals(50, main.command.getClientConfiguration().getMaxConnections());
+    }
 }
@@ -2,6 +2,7 @@ package com.github.rholder.esthree.cli;
 
 
 import com.github.rholder.esthree.Main;
+import com.github.rholder.esthree.util.ListEncoder;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -67,6 +68,84 @@ public class LsCommandTest extends LsCommand {
         Assert.assertEquals("bar", c.prefix);
     }
 
+    @Test
+    public void happyPathRecursive() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("ls", "-r", "-s", "-t", "64", "s3://foo/bar/");
+        main.command.parse();
+
+        LsCommand c = (LsCommand) main.command;
+        Assert.assertTrue(c.recursive);
+        Assert.assertTrue(c.sorted);
+        Assert.assertEquals("bar/", c.prefix);
+
+        // a connection for every directory
+        Assert.assertEquals(64, c.getClientConfiguration().getMaxConnections());
+        c.concurrency = 8;
+        Assert.assertEquals(50, c.getClientConfiguration().getMaxConnections());
+    }
+
+    @Test
+    public void happyPathShard() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("ls", "--alphabet", "hex", "s3://foo/bar/");
+        main.command.parse();
+
+        LsCommand c = (LsCommand) main.command;
+        Assert.assertTrue(c.recursive);
+        Assert.assertTrue(c.shard);
+        Assert.assertFalse(c.sorted);
+        Assert.assertEquals("0123456789abcdef", c.alphabet);
+    }
+
+    @Test
+    public void shardSizesConnectionsBeforeParsing() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("ls", "-sh", "-t", "100", "s3://foo/bar/");
+        Assert.assertEquals(100, main.command.getClientConfiguration().getMaxConnections());
+
+        main = new Main();
+        main.parseGlobalCli("ls", "-a", "hex", "-t", "100", "s3://foo/bar/");
+        Assert.assertEquals(100, main.command.getClientConfiguration().getMaxConnections());
+    }
+
+    @Test
+    public void badAlphabet() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("ls", "-sh", "-a", "", "s3://foo");
+
+        expectParseException(main.command, "Alphabet must have at least 1 character");
+    }
+
+    @Test
+    public void happyPathOutput() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("ls", "--output", "ndjson", "s3://foo");
+        main.command.parse();
+        Assert.assertEquals(ListEncoder.Format.NDJSON, ((LsCommand) main.command).format);
+
+        main = new Main();
+        main.parseGlobalCli("ls", "-o", "text", "s3://foo");
+        main.command.parse();
+        Assert.assertNull(((LsCommand) main.command).format);
+    }
+
+    @Test
+    public void badOutput() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("ls", "-o", "xml", "s3://foo");
+
+        expectParseException(main.command, "Output must be one of text, ndjson or csv, not xml");
+    }
+
+    @Test
+    public void badConcurrency() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("ls", "-r", "-t", "0", "s3://foo");
+
+        expectParseException(main.command, "Concurrency must be at least 1");
+    }
+
     @Test
     public void garbagePath() throws IOException {
         Main main = new Main();
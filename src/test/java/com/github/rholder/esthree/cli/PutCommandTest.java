@@ -4,6 +4,7 @@ import com.github.rholder.esthree.Main;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
 
 import static com.github.rholder.esthree.TestUtils.expectParseException;
@@ -86,6 +87,168 @@ public class PutCommandTest extends PutCommand {
         Assert.assertEquals("bar.txt", c.key);
     }
 
+    @Test
+    public void happyPathWithPartSize() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("put", "-ps", "16777216", "-t", "8", "beep", "s3://foo/bar.txt");
+        main.command.parse();
+
+        PutCommand c = (PutCommand) main.command;
+        Assert.assertEquals(Long.valueOf(16777216), c.partSize);
+        Assert.assertEquals(Integer.valueOf(8), c.concurrency);
+        Assert.assertTrue(c.resume);
+    }
+
+    @Test
+    public void happyPathStdin() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("put", "-", "s3://foo/bar.tar");
+        main.command.parse();
+
+        PutCommand c = (PutCommand) main.command;
+        Assert.assertEquals("foo", c.bucket);
+        Assert.assertEquals("bar.tar", c.key);
+        Assert.assertSame(System.in, c.inputStream);
+        Assert.assertNull(c.outputFile);
+        Assert.assertNull(c.progressListener);
+    }
+
+    @Test
+    public void stdinWithoutKey() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("put", "-", "s3://foo/bar/");
+
+        expectParseException(main.command, "A target key is required when uploading from stdin");
+    }
+
+    @Test
+    public void happyPathNoResume() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("put", "-nr", "beep", "s3://foo/bar.txt");
+        main.command.parse();
+
+        PutCommand c = (PutCommand) main.command;
+        Assert.assertFalse(c.resume);
+        Assert.assertFalse(c.memoryMap);
+    }
+
+    @Test
+    public void happyPathMemoryMap() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("put", "-mm", "beep", "s3://foo/bar.txt");
+        main.command.parse();
+
+        PutCommand c = (PutCommand) main.command;
+        Assert.assertTrue(c.memoryMap);
+    }
+
+    @Test
+    public void happyPathRecursive() throws IOException {
+        File dir = File.createTempFile("testDir", ".test");
+        dir.delete();
+        dir.mkdirs();
+        dir.deleteOnExit();
+
+        Main main = new Main();
+        main.parseGlobalCli("put", "-r", "-ft", "32", "-t", "8", dir.getPath(), "s3://foo/bar/");
+        main.command.parse();
+
+        PutCommand c = (PutCommand) main.command;
+        Assert.assertTrue(c.recursive);
+        Assert.assertEquals("foo", c.bucket);
+        Assert.assertEquals("bar/", c.key);
+        Assert.assertNull(c.progressListener);
+
+        // a connection for every part of every file
+        Assert.assertEquals(256, c.getClientConfiguration().getMaxConnections());
+    }
+
+    @Test
+    public void concurrencySizesConnectionsBeforeParsing() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("put", "-t", "64", "beep.txt", "s3://foo/bar/");
+        Assert.assertEquals(64, main.command.getClientConfiguration().getMaxConnections());
+
+        // a stream is uploaded in parts the same way
+        main = new Main();
+        main.parseGlobalCli("put", "-t", "64", "-", "s3://foo/bar/");
+        Assert.assertEquals(64, main.command.getClientConfiguration().getMaxConnections());
+
+        main = new Main();
+        main.parseGlobalCli("put", "beep.txt", "s3://foo/bar/");
+        Assert.assertEquals(50, main.command.getClientConfiguration().getMaxConnections());
+    }
+
+    @Test
+    public void recursiveNotADirectory() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("put", "-r", "beep", "s3://foo/bar/");
+
+        expectParseException(main.command, "Not a directory: beep");
+    }
+
+    @Test
+    public void badFileConcurrency() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("put", "-r", "-ft", "0", "beep", "s3://foo/bar/");
+
+        expectParseException(main.command, "File concurrency must be at least 1");
+    }
+
+    @Test
+    public void happyPathGzip() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("put", "-z", "beep", "s3://foo/bar.txt");
+        main.command.parse();
+
+        PutCommand c = (PutCommand) main.command;
+        Assert.assertTrue(c.gzip);
+        Assert.assertEquals("bar.txt", c.key);
+
+        // there's no telling how big it'll be
+        Assert.assertNull(c.progressListener);
+    }
+
+    @Test
+    public void gzipSkipIfSame() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("put", "-z", "-sis", "beep", "s3://foo/bar.txt");
+
+        expectParseException(main.command, "Unchanged uploads can't be skipped when compressing");
+    }
+
+    @Test
+    public void stdinSkipIfSame() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("put", "-sis", "-", "s3://foo/bar.txt");
+
+        expectParseException(main.command, "Unchanged uploads can't be skipped when uploading from stdin");
+    }
+
+    @Test
+    public void badPartSize() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("put", "-ps", "1024", "beep", "s3://foo/bar.txt");
+
+        expectParseException(main.command, "Part size must be at least 5242880");
+    }
+
+    @Test
+    public void partSizeTooBigForAFile() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("put", "-ps", "3221225472", "beep", "s3://foo/bar.txt");
+
+        expectParseException(main.command, "Part size must be at most 2147483647");
+    }
+
+    @Test
+    public void badConcurrency() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("put", "-t", "0", "beep", "s3://foo/bar.txt");
+
+        expectParseException(main.command, "Concurrency must be at least 1");
+    }
+
     @Test
     public void happyPathWithMeta() throws IOException {
         Main main = new Main();
@@ -0,0 +1,67 @@
+package com.github.rholder.esthree.cli;
+
+import com.github.rholder.esthree.Main;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static com.github.rholder.esthree.TestUtils.expectParseException;
+
+public class UploadsCommandTest extends UploadsCommand {
+
+    @Test
+    public void noParameters() {
+        Main main = new Main();
+        main.parseGlobalCli("uploads");
+        expectParseException(main.command, "No arguments specified");
+    }
+
+    @Test
+    public void help() {
+        Main main = new Main();
+        main.parseGlobalCli("uploads", "-h");
+        main.command.parse();
+    }
+
+    @Test
+    public void happyPath() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("uploads", "s3://foo/bar");
+        main.command.parse();
+
+        UploadsCommand c = (UploadsCommand) main.command;
+        Assert.assertEquals("foo", c.bucket);
+        Assert.assertEquals("bar", c.prefix);
+        Assert.assertEquals(DEFAULT_LIST_FORMAT, c.listFormat);
+        Assert.assertFalse(c.abort);
+        Assert.assertNull(c.initiatedBefore);
+    }
+
+    @Test
+    public void happyPathAbortOlderThan() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("uploads", "--abort", "--older-than", "24", "s3://foo");
+        main.command.parse();
+
+        UploadsCommand c = (UploadsCommand) main.command;
+        Assert.assertTrue(c.abort);
+        Assert.assertTrue(c.initiatedBefore.getTime() <= System.currentTimeMillis() - 24 * 60 * 60 * 1000L);
+    }
+
+    @Test
+    public void badOlderThan() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("uploads", "-o", "-1", "s3://foo");
+
+        expectParseException(main.command, "Older than must be at least 0 hours");
+    }
+
+    @Test
+    public void garbagePath() throws IOException {
+        Main main = new Main();
+        main.parseGlobalCli("uploads", "potato");
+
+        expectParseException(main.command, "Could not determine target bucket");
+    }
+}
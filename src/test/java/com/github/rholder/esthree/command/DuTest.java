@@ -0,0 +1,204 @@
+package com.github.rholder.esthree.command;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+
+import static com.github.rholder.esthree.AmazonS3ClientMockUtils.createBucketMockedClient;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+
+public class DuTest {
+
+    private static final String FORMAT = "%5$s %3$s %2$d %1$d";
+
+    @Test
+    public void firstLevel() throws Exception {
+        AmazonS3Client client = createBucketMockedClient(objects(), 2);
+
+        String actual = du(new Du(client, "beep", null, false).withConcurrency(3));
+        Assert.assertEquals(""
+                + " STANDARD 1 5\n"
+                + "a/ STANDARD 13 104\n"
+                + "z/ STANDARD 1 8\n"
+                + " STANDARD 15 117\n", actual);
+        Assert.assertEquals(expected(objects(), "", 1), actual);
+    }
+
+    @Test
+    public void everyDepthAddsUp() throws Exception {
+        AmazonS3Client client = createBucketMockedClient(objects(), 3);
+
+        for (int depth = 0; depth <= 4; depth++) {
+            for (String prefix : new String[]{"", "a/", "a/b", "a/b/"}) {
+                String actual = du(new Du(client, "beep", prefix, false).withDepth(depth).withConcurrency(4));
+                Assert.assertEquals(prefix + " at " + depth, expected(objects(), prefix, depth), actual);
+            }
+        }
+    }
+
+    @Test
+    public void storageClasses() throws Exception {
+        final AmazonS3Client objects = createBucketMockedClient(objects(), 2);
+        AmazonS3Client client = createBucketMockedClient(objects(), 2);
+        doAnswer(new Answer<ObjectListing>() {
+            @Override
+            public ObjectListing answer(InvocationOnMock invocation) throws Throwable {
+                ObjectListing listing = objects.listObjects((ListObjectsRequest) invocation.getArguments()[0]);
+                for (S3ObjectSummary os : listing.getObjectSummaries()) {
+                    if (os.getKey().contains("/b")) {
+                        os.setStorageClass("GLACIER");
+                    } else if (os.getKey().startsWith("a/e/")) {
+                        os.setStorageClass("STANDARD_IA");
+                    }
+                }
+                return listing;
+            }
+        }).when(client).listObjects(any(ListObjectsRequest.class));
+
+        Assert.assertEquals(""
+                + "a/ GLACIER 7 63\n"
+                + "a/ STANDARD 4 23\n"
+                + "a/ STANDARD_IA 2 18\n", du(new Du(client, "beep", "a/", false).withDepth(0)));
+        Assert.assertEquals(""
+                + "a/ GLACIER 1 7\n"
+                + "a/ STANDARD 4 23\n"
+                + "a/b/ GLACIER 5 46\n"
+                + "a/b0/ GLACIER 1 10\n"
+                + "a/e/ STANDARD_IA 2 18\n"
+                + "a/ GLACIER 7 63\n"
+                + "a/ STANDARD 4 23\n"
+                + "a/ STANDARD_IA 2 18\n", du(new Du(client, "beep", "a/", false).withDepth(1)));
+    }
+
+    @Test
+    public void morePrefixesThanCanWait() throws Exception {
+        Map<String, byte[]> objects = new TreeMap<String, byte[]>();
+        for (int i = 0; i < 2500; i++) {
+            String key = String.format("d%04d/%d.txt", i, i % 7);
+            objects.put(key, new byte[i % 13]);
+        }
+        AmazonS3Client client = createBucketMockedClient(objects, 1000);
+
+        // only 1000 can wait for each worker, so the rest are listed by whichever one finds them
+        for (int depth = 0; depth <= 1; depth++) {
+            String actual = du(new Du(client, "beep", null, false).withDepth(depth).withConcurrency(1));
+            Assert.assertEquals(expected(objects, "", depth), actual);
+        }
+    }
+
+    @Test
+    public void empty() throws Exception {
+        AmazonS3Client client = createBucketMockedClient(objects(), 2);
+
+        Assert.assertEquals("nothing/ - 0 0\n", du(new Du(client, "beep", "nothing/", false)));
+    }
+
+    @Test
+    public void failureStopsCounting() throws Exception {
+        final AmazonS3Client objects = createBucketMockedClient(objects(), 2);
+        AmazonS3Client client = createBucketMockedClient(objects(), 2);
+        doAnswer(new Answer<ObjectListing>() {
+            @Override
+            public ObjectListing answer(InvocationOnMock invocation) throws Throwable {
+                ListObjectsRequest req = (ListObjectsRequest) invocation.getArguments()[0];
+                if ("a/b/".equals(req.getPrefix())) {
+                    AmazonS3Exception denied = new AmazonS3Exception("Access Denied");
+                    denied.setStatusCode(403);
+                    throw denied;
+                }
+                return objects.listObjects(req);
+            }
+        }).when(client).listObjects(any(ListObjectsRequest.class));
+
+        try {
+            du(new Du(client, "beep", null, false).withConcurrency(2));
+            Assert.fail("Expected counting to fail");
+        } catch (ExecutionException e) {
+            Assert.assertEquals(403, ((AmazonS3Exception) e.getCause()).getStatusCode());
+        }
+    }
+
+    @Test
+    public void usageKeepsStorageClassesSorted() {
+        Du.Usage usage = new Du.Usage();
+        for (String storageClass : new String[]{"STANDARD", "GLACIER", null, "DEEP_ARCHIVE", "ONEZONE_IA",
+                "INTELLIGENT_TIERING", "GLACIER"}) {
+            usage.add(storageClass, 1, 10);
+        }
+        Assert.assertEquals(5, usage.size);
+        Assert.assertEquals("DEEP_ARCHIVE", usage.storageClasses[0]);
+        Assert.assertEquals("GLACIER", usage.storageClasses[1]);
+        Assert.assertEquals(2, usage.objects[1]);
+        Assert.assertEquals(20, usage.bytes[1]);
+        Assert.assertEquals("STANDARD", usage.storageClasses[4]);
+        Assert.assertEquals(2, usage.objects[4]);
+        Assert.assertEquals(7, usage.objects());
+    }
+
+    /**
+     * Add up each key under the prefix in the group for the directory it's
+     * in, or the one above it at the given depth.
+     */
+    private static String expected(Map<String, byte[]> objects, String prefix, int depth) {
+        Map<String, long[]> groups = new TreeMap<String, long[]>();
+        long[] total = new long[2];
+        for (Map.Entry<String, byte[]> e : objects.entrySet()) {
+            if (!e.getKey().startsWith(prefix)) {
+                continue;
+            }
+            int end = prefix.length();
+            for (int level = 0; level < depth; level++) {
+                int slash = e.getKey().indexOf('/', end);
+                if (slash < 0) {
+                    break;
+                }
+                end = slash + 1;
+            }
+            String group = e.getKey().substring(0, end);
+            if (!groups.containsKey(group)) {
+                groups.put(group, new long[2]);
+            }
+            groups.get(group)[0]++;
+            groups.get(group)[1] += e.getValue().length;
+            total[0]++;
+            total[1] += e.getValue().length;
+        }
+
+        StringBuilder expected = new StringBuilder();
+        for (Map.Entry<String, long[]> e : groups.entrySet()) {
+            expected.append(String.format(FORMAT, e.getValue()[1], e.getValue()[0], "STANDARD", "beep", e.getKey())).append('\n');
+        }
+        if (groups.size() != 1 || !groups.containsKey(prefix)) {
+            expected.append(String.format(FORMAT, total[1], total[0], "STANDARD", "beep", prefix)).append('\n');
+        }
+        return expected.toString();
+    }
+
+    private static String du(Du du) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        du.withDuFormat(FORMAT).withPrintStream(new PrintStream(output, true)).call();
+        return output.toString();
+    }
+
+    private static Map<String, byte[]> objects() {
+        Map<String, byte[]> objects = new TreeMap<String, byte[]>();
+        for (String key : new String[]{"a.txt", "a/", "a/1.txt", "a/2.txt", "a/b/", "a/b/3.txt", "a/b/c/4.txt",
+                "a/b/c/5.txt", "a/b/d/6.txt", "a/b.txt", "a/b0/7.txt", "a/e/8.txt", "a/e/9.txt", "a/f.txt", "z/10.txt"}) {
+            objects.put(key, new byte[key.length()]);
+        }
+        return objects;
+    }
+}
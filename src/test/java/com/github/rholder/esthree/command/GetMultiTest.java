@@ -16,14 +16,33 @@
 
 package com.github.rholder.esthree.command;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.github.rholder.esthree.journal.DownloadJournal;
 import com.github.rholder.esthree.progress.PrintingProgressListener;
 import com.github.rholder.esthree.progress.TimeProvider;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 
 import java.io.File;
+import java.util.Arrays;
 
+import static com.github.rholder.esthree.AmazonS3ClientMockUtils.createContent;
+import static com.github.rholder.esthree.AmazonS3ClientMockUtils.createFlakyRangeMockedClient;
 import static com.github.rholder.esthree.AmazonS3ClientMockUtils.createMockedClient;
+import static com.github.rholder.esthree.AmazonS3ClientMockUtils.createMultipartMockedClient;
+import static com.github.rholder.esthree.AmazonS3ClientMockUtils.createRangeMockedClient;
+import static com.github.rholder.esthree.AmazonS3ClientMockUtils.createStallingRangeMockedClient;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 public class GetMultiTest {
 
@@ -54,4 +73,277 @@ public class GetMultiTest {
         gm.withProgressListener(new PrintingProgressListener(System.out, new TimeProvider()));
         gm.call();
     }
+
+    @Test
+    public void happyGetMultiConcurrent() throws Exception {
+        byte[] content = createContent(10000);
+        AmazonS3Client client = createRangeMockedClient(content);
+
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+
+        GetMultipart gm = new GetMultipart(client, "testBucket", "testKey", tmpFile, true);
+        gm.withChunkSize(CHUNK_SIZE);
+        gm.withConcurrency(4);
+        gm.withProgressListener(new PrintingProgressListener(System.out, new TimeProvider()));
+        gm.call();
+
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(tmpFile));
+    }
+
+    @Test
+    public void resumeFromJournal() throws Exception {
+        byte[] content = createContent(1000);
+        AmazonS3Client client = createRangeMockedClient(content);
+
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+
+        // pretend a previous attempt finished the first 4 chunks and the 6th before dying
+        FileUtils.writeByteArrayToFile(tmpFile, Arrays.copyOf(content, 6 * 100));
+        DownloadJournal journal = DownloadJournal.forFile(tmpFile);
+        journal.open(client.getObjectMetadata("testBucket", "testKey").getETag(), content.length, 100);
+        for (int i = 0; i < 6; i++) {
+            if (i != 4) {
+                journal.finished(i * 100, i * 100 + 99);
+            }
+        }
+        journal.close();
+
+        GetMultipart gm = new GetMultipart(client, "testBucket", "testKey", tmpFile, true);
+        gm.withChunkSize(100);
+        gm.call();
+
+        // the first chunk is already done, so the request that turned up the size and ETag goes to waste
+        verify(client, times(6)).getObject(any(GetObjectRequest.class));
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(tmpFile));
+        Assert.assertFalse(journal.journalFile.exists());
+    }
+
+    @Test
+    public void singleRequest() throws Exception {
+        byte[] content = createContent(1000);
+        AmazonS3Client client = createRangeMockedClient(content);
+
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+
+        GetMultipart gm = new GetMultipart(client, "testBucket", "testKey", tmpFile, true);
+        gm.call();
+
+        // the whole object fits in the first range, which also stands in for asking for the metadata
+        verify(client, times(1)).getObject(any(GetObjectRequest.class));
+        verify(client, never()).getObjectMetadata(anyString(), anyString());
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(tmpFile));
+    }
+
+    @Test
+    public void firstRangeUsedForFirstChunk() throws Exception {
+        byte[] content = createContent(1000);
+        AmazonS3Client client = createRangeMockedClient(content);
+
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+
+        GetMultipart gm = new GetMultipart(client, "testBucket", "testKey", tmpFile, true);
+        gm.withChunkSize(300);
+        gm.call();
+
+        verify(client, times(4)).getObject(any(GetObjectRequest.class));
+        verify(client, never()).getObjectMetadata(anyString(), anyString());
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(tmpFile));
+    }
+
+    @Test
+    public void emptyObject() throws Exception {
+        AmazonS3Client client = createRangeMockedClient(new byte[0]);
+        AmazonS3Exception invalidRange = new AmazonS3Exception("The requested range is not satisfiable");
+        invalidRange.setStatusCode(416);
+        doThrow(invalidRange).when(client).getObject(any(GetObjectRequest.class));
+
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+
+        GetMultipart gm = new GetMultipart(client, "testBucket", "testKey", tmpFile, true);
+        gm.call();
+
+        // there's no first range to ask for, so the metadata comes from asking for it instead
+        verify(client, times(1)).getObjectMetadata(anyString(), anyString());
+        Assert.assertEquals(0, tmpFile.length());
+    }
+
+    @Test
+    public void resumeFromJournalConcurrent() throws Exception {
+        byte[] content = createContent(1000);
+        AmazonS3Client client = createRangeMockedClient(content);
+
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+
+        FileUtils.writeByteArrayToFile(tmpFile, Arrays.copyOf(content, 3 * 100));
+        DownloadJournal journal = DownloadJournal.forFile(tmpFile);
+        journal.open(client.getObjectMetadata("testBucket", "testKey").getETag(), content.length, 100);
+        for (int i = 0; i < 3; i++) {
+            journal.finished(i * 100, i * 100 + 99);
+        }
+        journal.close();
+
+        GetMultipart gm = new GetMultipart(client, "testBucket", "testKey", tmpFile, true);
+        gm.withChunkSize(100);
+        gm.withConcurrency(3);
+        gm.call();
+
+        verify(client, times(8)).getObject(any(GetObjectRequest.class));
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(tmpFile));
+        Assert.assertFalse(journal.journalFile.exists());
+    }
+
+    @Test
+    public void retryFromLastReceivedByte() throws Exception {
+        byte[] content = createContent(1000);
+        AmazonS3Client client = createFlakyRangeMockedClient(content, 450);
+
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+
+        GetMultipart gm = new GetMultipart(client, "testBucket", "testKey", tmpFile, true);
+        gm.withChunkSize(1000);
+        gm.withIoSize(100);
+        gm.call();
+
+        // the first 4 buffers made it to disk before the connection dropped
+        ArgumentCaptor<GetObjectRequest> requests = ArgumentCaptor.forClass(GetObjectRequest.class);
+        verify(client, times(2)).getObject(requests.capture());
+        Assert.assertArrayEquals(new long[]{400, 999}, requests.getAllValues().get(1).getRange());
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(tmpFile));
+    }
+
+    @Test
+    public void retryFromLastReceivedByteConcurrent() throws Exception {
+        byte[] content = createContent(1000);
+        AmazonS3Client client = createFlakyRangeMockedClient(content, 450);
+
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+
+        GetMultipart gm = new GetMultipart(client, "testBucket", "testKey", tmpFile, true);
+        gm.withChunkSize(1000);
+        gm.withConcurrency(2);
+        gm.call();
+
+        ArgumentCaptor<GetObjectRequest> requests = ArgumentCaptor.forClass(GetObjectRequest.class);
+        verify(client, times(2)).getObject(requests.capture());
+        Assert.assertArrayEquals(new long[]{450, 999}, requests.getAllValues().get(1).getRange());
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(tmpFile));
+    }
+
+    @Test(timeout = 30000)
+    public void hedgeStragglingRange() throws Exception {
+        byte[] content = createContent(1000);
+        AmazonS3Client client = createStallingRangeMockedClient(content, 500, 50);
+
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+
+        GetMultipart gm = new GetMultipart(client, "testBucket", "testKey", tmpFile, true);
+        gm.withChunkSize(100);
+        gm.withConcurrency(3);
+        gm.withHedgePercentile(50.0);
+        gm.call();
+
+        // the stalled range is raced from the first byte it didn't get
+        ArgumentCaptor<GetObjectRequest> requests = ArgumentCaptor.forClass(GetObjectRequest.class);
+        verify(client, times(11)).getObject(requests.capture());
+        boolean hedged = false;
+        for (GetObjectRequest request : requests.getAllValues()) {
+            hedged |= Arrays.equals(new long[]{550, 599}, request.getRange());
+        }
+        Assert.assertTrue(hedged);
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(tmpFile));
+    }
+
+    @Test
+    public void autoChunkSize() throws Exception {
+        byte[] content = createContent(100000);
+        AmazonS3Client client = createRangeMockedClient(content);
+
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+
+        GetMultipart gm = new GetMultipart(client, "testBucket", "testKey", tmpFile, true);
+        gm.withAutoChunkSize(true);
+        gm.withMinChunkSize(100);
+        gm.withMaxChunkSize(10000);
+        gm.call();
+
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(tmpFile));
+    }
+
+    @Test
+    public void autoChunkSizeConcurrent() throws Exception {
+        byte[] content = createContent(100000);
+        AmazonS3Client client = createMultipartMockedClient(content, 300, true);
+
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+
+        GetMultipart gm = new GetMultipart(client, "testBucket", "testKey", tmpFile, true);
+        gm.withAutoChunkSize(true);
+        gm.withMinChunkSize(100);
+        gm.withMaxChunkSize(10000);
+        gm.withConcurrency(3);
+        gm.call();
+
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(tmpFile));
+    }
+
+    @Test
+    public void multipartVerified() throws Exception {
+        byte[] content = createContent(1050);
+        AmazonS3Client client = createMultipartMockedClient(content, 100, true);
+
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+
+        // chunks get lined up with the 100 byte parts, 11 parts in 6 chunks of 200
+        GetMultipart gm = new GetMultipart(client, "testBucket", "testKey", tmpFile, true);
+        gm.withChunkSize(230);
+        gm.call();
+
+        verify(client, times(6)).getObject(any(GetObjectRequest.class));
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(tmpFile));
+    }
+
+    @Test
+    public void multipartVerifiedConcurrent() throws Exception {
+        byte[] content = createContent(1050);
+        AmazonS3Client client = createMultipartMockedClient(content, 100, true);
+
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+
+        GetMultipart gm = new GetMultipart(client, "testBucket", "testKey", tmpFile, true);
+        gm.withChunkSize(CHUNK_SIZE);
+        gm.withConcurrency(4);
+        gm.call();
+
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(tmpFile));
+    }
+
+    @Test(expected = AmazonClientException.class)
+    public void multipartCorrupt() throws Exception {
+        byte[] content = createContent(1050);
+        AmazonS3Client client = createMultipartMockedClient(content, 100, true);
+
+        // flip a bit after the ETag was calculated
+        content[512] ^= 1;
+
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+
+        GetMultipart gm = new GetMultipart(client, "testBucket", "testKey", tmpFile, true);
+        gm.withChunkSize(100);
+        gm.withConcurrency(3);
+        gm.call();
+    }
 }
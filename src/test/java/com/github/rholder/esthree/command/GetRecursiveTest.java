@@ -0,0 +1,159 @@
+package com.github.rholder.esthree.command;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static com.github.rholder.esthree.AmazonS3ClientMockUtils.createBucketMockedClient;
+import static com.github.rholder.esthree.AmazonS3ClientMockUtils.createContent;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class GetRecursiveTest {
+
+    @Test
+    public void mirrorsKeys() throws Exception {
+        Map<String, byte[]> objects = objects();
+        AmazonS3Client client = createBucketMockedClient(objects, 2);
+        File dir = createDir();
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int failed = new GetRecursive(client, "beep", "some/prefix/", dir, false)
+                .withConcurrency(3)
+                .withPrintStream(new PrintStream(output, true))
+                .call();
+
+        Assert.assertEquals(0, failed);
+        Assert.assertArrayEquals(objects.get("some/prefix/a.txt"), FileUtils.readFileToByteArray(new File(dir, "a.txt")));
+        Assert.assertArrayEquals(objects.get("some/prefix/sub/b.txt"), FileUtils.readFileToByteArray(new File(dir, "sub/b.txt")));
+        Assert.assertArrayEquals(objects.get("some/prefix/sub/deeper/c.txt"), FileUtils.readFileToByteArray(new File(dir, "sub/deeper/c.txt")));
+        Assert.assertTrue(new File(dir, "empty").isDirectory());
+
+        // nothing outside of the prefix
+        Assert.assertFalse(new File(dir, "other.txt").exists());
+        Assert.assertTrue(output.toString().startsWith("Downloaded 3 files, 1000 bytes in "));
+
+        // every key in every page, without grouping them into directories
+        ArgumentCaptor<ListObjectsRequest> listed = ArgumentCaptor.forClass(ListObjectsRequest.class);
+        verify(client, times(3)).listObjects(listed.capture());
+        for (ListObjectsRequest req : listed.getAllValues()) {
+            Assert.assertNull(req.getDelimiter());
+        }
+    }
+
+    @Test
+    public void prefixWithoutSlash() throws Exception {
+        Map<String, byte[]> objects = objects();
+        AmazonS3Client client = createBucketMockedClient(objects, 1000);
+        File dir = createDir();
+
+        new GetRecursive(client, "beep", "some/prefix", dir, false).call();
+
+        Assert.assertTrue(new File(dir, "sub/deeper/c.txt").isFile());
+    }
+
+    @Test
+    public void bigObjectsInRanges() throws Exception {
+        Map<String, byte[]> objects = objects();
+        AmazonS3Client client = createBucketMockedClient(objects, 1000);
+        File dir = createDir();
+
+        int failed = new GetRecursive(client, "beep", "some/prefix/", dir, false)
+                .withMultipartThreshold(500L)
+                .call();
+
+        Assert.assertEquals(0, failed);
+        Assert.assertArrayEquals(objects.get("some/prefix/sub/deeper/c.txt"), FileUtils.readFileToByteArray(new File(dir, "sub/deeper/c.txt")));
+
+        // only the big one is fetched in ranges
+        ArgumentCaptor<GetObjectRequest> fetched = ArgumentCaptor.forClass(GetObjectRequest.class);
+        verify(client, atLeast(3)).getObject(fetched.capture());
+        for (GetObjectRequest req : fetched.getAllValues()) {
+            Assert.assertEquals(req.getKey().endsWith("c.txt"), req.getRange() != null);
+        }
+    }
+
+    @Test
+    public void outsideOfDirectoryRefused() throws Exception {
+        Map<String, byte[]> objects = objects();
+        objects.put("some/prefix/../../escaped.txt", createContent(10));
+        AmazonS3Client client = createBucketMockedClient(objects, 1000);
+        File dir = createDir();
+
+        int failed = new GetRecursive(client, "beep", "some/prefix/", dir, false).call();
+
+        Assert.assertEquals(1, failed);
+        Assert.assertFalse(new File(dir, "../../escaped.txt").exists());
+        Assert.assertTrue(new File(dir, "a.txt").isFile());
+        verify(client, times(3)).getObject(any(GetObjectRequest.class));
+    }
+
+    @Test
+    public void manyObjectsLeaveNothingOpen() throws Exception {
+        File fds = new File("/proc/self/fd");
+        Assume.assumeTrue(fds.isDirectory());
+
+        Map<String, byte[]> objects = new TreeMap<String, byte[]>();
+        for (int i = 0; i < 300; i++) {
+            objects.put(String.format("many/%03d.txt", i), createContent(100 + i));
+        }
+        AmazonS3Client client = createBucketMockedClient(objects, 1000);
+        File dir = createDir();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        int openBefore = fds.list().length;
+        int threadsBefore = threads.getThreadCount();
+
+        // about half of them in ranges, one at a time, such that those use a copier too
+        int failed = new GetRecursive(client, "beep", "many/", dir, false)
+                .withConcurrency(4)
+                .withPartConcurrency(1)
+                .withMultipartThreshold(250L)
+                .call();
+
+        Assert.assertEquals(0, failed);
+        Assert.assertTrue(new File(dir, "299.txt").isFile());
+        Assert.assertTrue(fds.list().length <= openBefore + 10);
+
+        // the copiers' threads exit as soon as they notice they've been shut down
+        long deadline = System.currentTimeMillis() + 5000;
+        while (threads.getThreadCount() > threadsBefore + 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assert.assertTrue(threads.getThreadCount() <= threadsBefore + 10);
+    }
+
+    private static File createDir() throws IOException {
+        File dir = File.createTempFile("testDir", ".test");
+        dir.delete();
+        dir.mkdirs();
+        FileUtils.forceDeleteOnExit(dir);
+        return dir;
+    }
+
+    private static Map<String, byte[]> objects() {
+        Map<String, byte[]> objects = new TreeMap<String, byte[]>();
+        objects.put("other.txt", createContent(50));
+        objects.put("some/prefix/", new byte[0]);
+        objects.put("some/prefix/a.txt", createContent(100));
+        objects.put("some/prefix/empty/", new byte[0]);
+        objects.put("some/prefix/sub/b.txt", createContent(200));
+        objects.put("some/prefix/sub/deeper/c.txt", createContent(700));
+        return objects;
+    }
+}
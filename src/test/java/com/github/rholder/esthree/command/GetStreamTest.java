@@ -0,0 +1,142 @@
+package com.github.rholder.esthree.command;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.github.rholder.esthree.AmazonS3ClientMockUtils.createContent;
+import static com.github.rholder.esthree.AmazonS3ClientMockUtils.createFlakyRangeMockedClient;
+import static com.github.rholder.esthree.AmazonS3ClientMockUtils.createMultipartMockedClient;
+import static com.github.rholder.esthree.AmazonS3ClientMockUtils.createRangeMockedClient;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+
+public class GetStreamTest {
+
+    @Test
+    public void happyPath() throws Exception {
+        byte[] content = createContent(10000);
+        AmazonS3Client client = createRangeMockedClient(content);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        GetStream gs = new GetStream(client, "testBucket", "testKey", output, true);
+        gs.withChunkSize(300);
+        gs.withConcurrency(4);
+        gs.withReadAhead(1000L);
+        gs.call();
+
+        Assert.assertArrayEquals(content, output.toByteArray());
+    }
+
+    @Test
+    public void readAheadBounded() throws Exception {
+        byte[] content = createContent(10000);
+        final AmazonS3Client ranges = createRangeMockedClient(content);
+        AmazonS3Client client = createRangeMockedClient(content);
+
+        // count every range requested so far
+        final AtomicInteger requests = new AtomicInteger();
+        doAnswer(new Answer<S3Object>() {
+            @Override
+            public S3Object answer(InvocationOnMock invocation) throws Throwable {
+                requests.incrementAndGet();
+                return ranges.getObject((GetObjectRequest) invocation.getArguments()[0]);
+            }
+        }).when(client).getObject(any(GetObjectRequest.class));
+
+        // requested but not yet written can never go past the window
+        final AtomicInteger mostAhead = new AtomicInteger();
+        ByteArrayOutputStream output = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                super.write(b, off, len);
+                mostAhead.set(Math.max(mostAhead.get(), requests.get() * 100 - size()));
+            }
+        };
+
+        GetStream gs = new GetStream(client, "testBucket", "testKey", output, true);
+        gs.withChunkSize(100);
+        gs.withConcurrency(8);
+        gs.withReadAhead(300L);
+        gs.call();
+
+        Assert.assertArrayEquals(content, output.toByteArray());
+        Assert.assertTrue(mostAhead.get() <= 300);
+    }
+
+    @Test
+    public void retryFromLastReceivedByte() throws Exception {
+        byte[] content = createContent(1000);
+        AmazonS3Client client = createFlakyRangeMockedClient(content, 450);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        GetStream gs = new GetStream(client, "testBucket", "testKey", output, true);
+        gs.withChunkSize(1000);
+        gs.call();
+
+        Assert.assertArrayEquals(content, output.toByteArray());
+    }
+
+    @Test
+    public void multipartVerified() throws Exception {
+        byte[] content = createContent(1050);
+        AmazonS3Client client = createMultipartMockedClient(content, 100, true);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        GetStream gs = new GetStream(client, "testBucket", "testKey", output, true);
+        gs.withChunkSize(230);
+        gs.withConcurrency(3);
+        gs.call();
+
+        Assert.assertArrayEquals(content, output.toByteArray());
+    }
+
+    @Test
+    public void gunzip() throws Exception {
+        byte[] content = createContent(10000);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+        gzip.write(content);
+        gzip.close();
+        AmazonS3Client client = createRangeMockedClient(compressed.toByteArray());
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        GetStream gs = new GetStream(client, "testBucket", "testKey", output, true);
+        gs.withChunkSize(100);
+        gs.withConcurrency(3);
+        gs.withGunzip(true);
+        gs.call();
+
+        Assert.assertArrayEquals(content, output.toByteArray());
+    }
+
+    @Test
+    public void corruptFails() throws Exception {
+        byte[] content = createContent(1000);
+        AmazonS3Client client = createRangeMockedClient(content);
+
+        // flip a bit after the ETag was calculated
+        content[512] ^= 1;
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        GetStream gs = new GetStream(client, "testBucket", "testKey", output, true);
+        gs.withChunkSize(100);
+        gs.withConcurrency(3);
+        try {
+            gs.call();
+            Assert.fail("Expected the download to fail verification");
+        } catch (AmazonClientException e) {
+            // everything was already written by the time it could be verified
+            Assert.assertArrayEquals(content, output.toByteArray());
+        }
+    }
+}
@@ -1,13 +1,26 @@
 package com.github.rholder.esthree.command;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.github.rholder.esthree.journal.DownloadJournal;
 import com.github.rholder.esthree.progress.PrintingProgressListener;
 import com.github.rholder.esthree.progress.TimeProvider;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 
 import java.io.File;
+import java.util.Arrays;
 
+import static com.github.rholder.esthree.AmazonS3ClientMockUtils.createContent;
+import static com.github.rholder.esthree.AmazonS3ClientMockUtils.createFlakyRangeMockedClient;
 import static com.github.rholder.esthree.AmazonS3ClientMockUtils.createMockedClient;
+import static com.github.rholder.esthree.AmazonS3ClientMockUtils.createMultipartMockedClient;
+import static com.github.rholder.esthree.AmazonS3ClientMockUtils.createRangeMockedClient;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 public class GetTest {
     public static final int CHUNK_SIZE = 100;
@@ -36,4 +49,90 @@ public class GetTest {
         get.call();
     }
 
+    @Test
+    public void resumeFromJournal() throws Exception {
+        int checkpoints = 2;
+        byte[] content = createContent(Get.DEFAULT_CHECKPOINT_SIZE * checkpoints + 1000);
+        AmazonS3Client client = createRangeMockedClient(content);
+
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+
+        // pretend a previous attempt made it a little past the first checkpoint before dying
+        FileUtils.writeByteArrayToFile(tmpFile, Arrays.copyOf(content, Get.DEFAULT_CHECKPOINT_SIZE + 1234));
+        DownloadJournal journal = DownloadJournal.forFile(tmpFile);
+        journal.open(client.getObjectMetadata("testBucket", "testKey").getETag(), content.length, Get.DEFAULT_CHECKPOINT_SIZE);
+        journal.finished(0, Get.DEFAULT_CHECKPOINT_SIZE - 1);
+        journal.close();
+
+        Get get = new Get(client, "testBucket", "testKey", tmpFile, true);
+        get.call();
+
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(tmpFile));
+        Assert.assertFalse(journal.journalFile.exists());
+    }
+
+    @Test
+    public void retryFromLastReceivedByte() throws Exception {
+        byte[] content = createContent(1000);
+        AmazonS3Client client = createFlakyRangeMockedClient(content, 450);
+
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+
+        Get get = new Get(client, "testBucket", "testKey", tmpFile, true);
+        get.withIoSize(100);
+        get.call();
+
+        // the first 4 buffers made it to disk before the connection dropped
+        ArgumentCaptor<GetObjectRequest> requests = ArgumentCaptor.forClass(GetObjectRequest.class);
+        verify(client, times(2)).getObject(requests.capture());
+        Assert.assertEquals(400, requests.getAllValues().get(1).getRange()[0]);
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(tmpFile));
+    }
+
+    @Test
+    public void multipartVerified() throws Exception {
+        byte[] content = createContent(1050);
+        AmazonS3Client client = createMultipartMockedClient(content, 100, true);
+
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+
+        Get get = new Get(client, "testBucket", "testKey", tmpFile, true);
+        get.call();
+
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(tmpFile));
+    }
+
+    @Test
+    public void multipartInferredPartSize() throws Exception {
+        // 8MB parts are the first guess for 3 parts here, but it was really uploaded in 10MB parts
+        int partSize = 10 * 1024 * 1024;
+        byte[] content = createContent(2 * partSize + 1000);
+        AmazonS3Client client = createMultipartMockedClient(content, partSize, false);
+
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+
+        Get get = new Get(client, "testBucket", "testKey", tmpFile, true);
+        get.call();
+
+        Assert.assertArrayEquals(content, FileUtils.readFileToByteArray(tmpFile));
+    }
+
+    @Test(expected = AmazonClientException.class)
+    public void multipartCorrupt() throws Exception {
+        byte[] content = createContent(1050);
+        AmazonS3Client client = createMultipartMockedClient(content, 100, true);
+
+        // flip a bit after the ETag was calculated
+        content[512] ^= 1;
+
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+
+        Get get = new Get(client, "testBucket", "testKey", tmpFile, true);
+        get.call();
+    }
 }
@@ -0,0 +1,283 @@
+package com.github.rholder.esthree.command;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.github.rholder.esthree.util.ListEncoder;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+
+import static com.github.rholder.esthree.AmazonS3ClientMockUtils.UTF8_ORDER;
+import static com.github.rholder.esthree.AmazonS3ClientMockUtils.createBucketMockedClient;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.verify;
+
+public class LsRecursiveTest {
+
+    private static final String FORMAT = "%4$s %2$d";
+
+    @Test
+    public void sortedMatchesSingleListing() throws Exception {
+        AmazonS3Client client = createBucketMockedClient(objects(), 3);
+
+        String expected = expected("a/");
+        String actual = list(new LsRecursive(client, "beep", "a/", false).withConcurrency(4).withSorted(true));
+
+        Assert.assertEquals(expected, actual);
+        Assert.assertEquals(13, lines(actual).size());
+    }
+
+    @Test
+    public void arrivalOrderListsEveryKey() throws Exception {
+        AmazonS3Client client = createBucketMockedClient(objects(), 2);
+
+        List<String> expected = lines(expected(""));
+        List<String> actual = lines(list(new LsRecursive(client, "beep", null, false).withConcurrency(3)));
+
+        Collections.sort(actual);
+        Assert.assertEquals(expected, actual);
+    }
+
+    @Test
+    public void limitHoldsAcrossWorkers() throws Exception {
+        AmazonS3Client client = createBucketMockedClient(objects(), 2);
+
+        String sorted = list(new LsRecursive(client, "beep", null, false)
+                .withConcurrency(4)
+                .withSorted(true)
+                .withLimit(new BigInteger("5")));
+        Assert.assertEquals(lines(expected("")).subList(0, 5), lines(sorted));
+
+        String arrived = list(new LsRecursive(client, "beep", null, false)
+                .withConcurrency(4)
+                .withLimit(new BigInteger("5")));
+        Assert.assertEquals(5, lines(arrived).size());
+    }
+
+    @Test
+    public void failureStopsListing() throws Exception {
+        final AmazonS3Client objects = createBucketMockedClient(objects(), 2);
+        AmazonS3Client client = createBucketMockedClient(objects(), 2);
+        doAnswer(new Answer<ObjectListing>() {
+            @Override
+            public ObjectListing answer(InvocationOnMock invocation) throws Throwable {
+                ListObjectsRequest req = (ListObjectsRequest) invocation.getArguments()[0];
+                if ("a/b/".equals(req.getPrefix())) {
+                    AmazonS3Exception denied = new AmazonS3Exception("Access Denied");
+                    denied.setStatusCode(403);
+                    throw denied;
+                }
+                return objects.listObjects(req);
+            }
+        }).when(client).listObjects(any(ListObjectsRequest.class));
+
+        for (boolean sorted : new boolean[]{true, false}) {
+            try {
+                list(new LsRecursive(client, "beep", null, false).withConcurrency(2).withSorted(sorted));
+                Assert.fail("Expected the listing to fail");
+            } catch (ExecutionException e) {
+                Assert.assertEquals(403, ((AmazonS3Exception) e.getCause()).getStatusCode());
+            }
+        }
+    }
+
+    @Test
+    public void shardedSortedMatchesSingleListing() throws Exception {
+        Map<String, byte[]> objects = hashedObjects();
+        AmazonS3Client client = createBucketMockedClient(objects, 7);
+
+        String actual = list(new LsRecursive(client, "beep", "logs/", false)
+                .withConcurrency(8)
+                .withSharded(true)
+                .withSorted(true));
+        Assert.assertEquals(expected(objects, "logs/"), actual);
+    }
+
+    @Test
+    public void shardedListsEachKeyOnce() throws Exception {
+        Map<String, byte[]> objects = hashedObjects();
+        AmazonS3Client client = createBucketMockedClient(objects, 5);
+
+        for (String alphabet : new String[]{null, LsRecursive.HEX, "8"}) {
+            List<String> actual = lines(list(new LsRecursive(client, "beep", "logs/", false)
+                    .withConcurrency(6)
+                    .withSharded(true)
+                    .withAlphabet(alphabet)));
+            Collections.sort(actual);
+            Assert.assertEquals(lines(expected(objects, "logs/")), actual);
+        }
+    }
+
+    @Test
+    public void shardedSplitsWhileListing() throws Exception {
+        AmazonS3Client client = createBucketMockedClient(hashedObjects(), 10);
+        list(new LsRecursive(client, "beep", "logs/", false)
+                .withConcurrency(4)
+                .withSharded(true));
+
+        // some ranges started at keys that only split the ones before them
+        ArgumentCaptor<ListObjectsRequest> listed = ArgumentCaptor.forClass(ListObjectsRequest.class);
+        verify(client, atLeast(1)).listObjects(listed.capture());
+        int splits = 0;
+        for (ListObjectsRequest req : listed.getAllValues()) {
+            Assert.assertNull(req.getDelimiter());
+            if (req.getMarker() != null && !hashedObjects().containsKey(req.getMarker())) {
+                splits++;
+            }
+        }
+        Assert.assertTrue(splits > 0);
+    }
+
+    @Test
+    public void shardedListsEachUnicodeKeyOnce() throws Exception {
+        Map<String, byte[]> objects = unicodeObjects();
+        AmazonS3Client client = createBucketMockedClient(objects, 4);
+
+        // S3 lists emoji after everything in the BMP, which isn't how Strings sort
+        List<String> expected = new ArrayList<String>();
+        for (String key : objects.keySet()) {
+            if (key.startsWith("logs/")) {
+                expected.add(String.format(FORMAT, null, objects.get(key).length, "beep", key));
+            }
+        }
+        Collections.sort(expected, new Comparator<String>() {
+            public int compare(String a, String b) {
+                return UTF8_ORDER.compare(a.substring(0, a.lastIndexOf(' ')), b.substring(0, b.lastIndexOf(' ')));
+            }
+        });
+
+        for (int concurrency : new int[]{2, 8, 16}) {
+            List<String> sorted = lines(list(new LsRecursive(client, "beep", "logs/", false)
+                    .withConcurrency(concurrency)
+                    .withSharded(true)
+                    .withSorted(true)));
+            Assert.assertEquals(expected, sorted);
+
+            List<String> arrived = lines(list(new LsRecursive(client, "beep", "logs/", false)
+                    .withConcurrency(concurrency)
+                    .withSharded(true)
+                    .withAlphabet("a\u00e9\ue000\ud83d\ude00")));
+            Collections.sort(arrived);
+            List<String> all = new ArrayList<String>(expected);
+            Collections.sort(all);
+            Assert.assertEquals(all, arrived);
+        }
+    }
+
+    @Test
+    public void ndjsonOutput() throws Exception {
+        AmazonS3Client client = createBucketMockedClient(objects(), 2);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new LsRecursive(client, "beep", "a/b/", false)
+                .withSorted(true)
+                .withOutputFormat(ListEncoder.Format.NDJSON)
+                .withPrintStream(new PrintStream(output, true))
+                .call();
+        Assert.assertEquals(""
+                + "{\"bucket\":\"beep\",\"key\":\"a/b/\",\"size\":4,\"lastModified\":null,\"eTag\":null,\"storageClass\":null,\"owner\":null}\n"
+                + "{\"bucket\":\"beep\",\"key\":\"a/b/3.txt\",\"size\":9,\"lastModified\":null,\"eTag\":null,\"storageClass\":null,\"owner\":null}\n"
+                + "{\"bucket\":\"beep\",\"key\":\"a/b/c/4.txt\",\"size\":11,\"lastModified\":null,\"eTag\":null,\"storageClass\":null,\"owner\":null}\n"
+                + "{\"bucket\":\"beep\",\"key\":\"a/b/c/5.txt\",\"size\":11,\"lastModified\":null,\"eTag\":null,\"storageClass\":null,\"owner\":null}\n"
+                + "{\"bucket\":\"beep\",\"key\":\"a/b/d/6.txt\",\"size\":11,\"lastModified\":null,\"eTag\":null,\"storageClass\":null,\"owner\":null}\n",
+                output.toString("UTF-8"));
+    }
+
+    @Test
+    public void midpoint() {
+        Assert.assertEquals("b", LsRecursive.midpoint("a", "c"));
+        assertBetween("a", "b");
+        assertBetween("abc", "abd");
+        assertBetween("logs/3f", "logs/\u007f");
+        assertBetween("\u00e9t\u00e9", "\u00e9u");
+        assertBetween("logs/\ud83d\ude00", "logs/\udbff\udfff");
+        assertBetween("logs/\ufff0", "logs/\ud83d\ude00");
+        assertBetween("logs/\ud7ff", "logs/\ue001");
+        Assert.assertNull(LsRecursive.midpoint("a", "a\u0000"));
+    }
+
+    private static void assertBetween(String low, String high) {
+        String mid = LsRecursive.midpoint(low, high);
+        Assert.assertTrue(UTF8_ORDER.compare(mid, low) > 0);
+        Assert.assertTrue(UTF8_ORDER.compare(mid, high) < 0);
+        for (int i = 0; i < mid.length(); i++) {
+            // no lone surrogates
+            if (Character.isHighSurrogate(mid.charAt(i))) {
+                Assert.assertTrue(Character.isLowSurrogate(mid.charAt(++i)));
+            } else {
+                Assert.assertFalse(Character.isLowSurrogate(mid.charAt(i)));
+            }
+        }
+    }
+
+    private static String expected(String prefix) {
+        return expected(objects(), prefix);
+    }
+
+    private static String expected(Map<String, byte[]> objects, String prefix) {
+        StringBuilder expected = new StringBuilder();
+        for (Map.Entry<String, byte[]> e : new TreeMap<String, byte[]>(objects).entrySet()) {
+            if (e.getKey().startsWith(prefix)) {
+                expected.append(String.format(FORMAT, null, e.getValue().length, "beep", e.getKey())).append('\n');
+            }
+        }
+        return expected.toString();
+    }
+
+    private static String list(LsRecursive ls) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ls.withListFormat(FORMAT).withPrintStream(new PrintStream(output, true, "UTF-8")).call();
+        return output.toString("UTF-8");
+    }
+
+    private static List<String> lines(String output) {
+        return new ArrayList<String>(Arrays.asList(output.split("\n")));
+    }
+
+    private static Map<String, byte[]> hashedObjects() {
+        Map<String, byte[]> objects = new TreeMap<String, byte[]>();
+        for (long i = 0; i < 300; i++) {
+            objects.put(String.format("logs/%08x/part-0001", (i * 2654435761L) & 0xffffffffL), new byte[(int) i]);
+        }
+        objects.put("other.txt", new byte[1]);
+        return objects;
+    }
+
+    private static Map<String, byte[]> unicodeObjects() {
+        int[] starts = {'a', 0xe9, 0x4e2d, 0xe000, 0xffe0, 0x1f600, 0x10fff0};
+        Map<String, byte[]> objects = new TreeMap<String, byte[]>();
+        for (int i = 0; i < 350; i++) {
+            String c = new String(Character.toChars(starts[i % starts.length] + i / starts.length % 16));
+            objects.put(String.format("logs/%s%03d", c, i), new byte[i % 7]);
+        }
+        objects.put("other.txt", new byte[1]);
+        return objects;
+    }
+
+    private static Map<String, byte[]> objects() {
+        Map<String, byte[]> objects = new TreeMap<String, byte[]>();
+        for (String key : new String[]{"a.txt", "a/", "a/1.txt", "a/2.txt", "a/b/", "a/b/3.txt", "a/b/c/4.txt",
+                "a/b/c/5.txt", "a/b/d/6.txt", "a/b.txt", "a/b0/7.txt", "a/e/8.txt", "a/e/9.txt", "a/f.txt", "z/10.txt"}) {
+            objects.put(key, new byte[key.length()]);
+        }
+        return objects;
+    }
+}
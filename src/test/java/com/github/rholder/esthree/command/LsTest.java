@@ -0,0 +1,167 @@
+package com.github.rholder.esthree.command;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.github.rholder.esthree.cli.LsCommand;
+import com.github.rholder.esthree.util.ListEncoder;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.github.rholder.esthree.AmazonS3ClientMockUtils.createBucketMockedClient;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+
+public class LsTest {
+
+    @Test
+    public void defaultFormatsUnchanged() throws Exception {
+        AmazonS3Client client = createBucketMockedClient(objects(), 3);
+
+        // what every page printed before it was formatted any other way
+        StringBuilder expected = new StringBuilder();
+        String marker = null;
+        do {
+            ObjectListing o = client.listObjects(new ListObjectsRequest("beep", null, marker, "/", 1000));
+            for (String dir : o.getCommonPrefixes()) {
+                expected.append(String.format(LsCommand.DEFAULT_LIST_DIR_FORMAT, "DIR", o.getBucketName(), dir)).append('\n');
+            }
+            for (S3ObjectSummary os : o.getObjectSummaries()) {
+                expected.append(String.format(LsCommand.DEFAULT_LIST_FORMAT, os.getLastModified(), os.getSize(),
+                        os.getBucketName(), os.getKey(), os.getETag(), os.getOwner(), os.getStorageClass())).append('\n');
+            }
+            marker = o.getNextMarker();
+        } while (marker != null);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new Ls(client, "beep")
+                .withListFormat(LsCommand.DEFAULT_LIST_FORMAT)
+                .withListDirFormat(LsCommand.DEFAULT_LIST_DIR_FORMAT)
+                .withPrintStream(new PrintStream(output, true))
+                .call();
+        Assert.assertEquals(expected.toString(), output.toString());
+    }
+
+    @Test
+    public void nextPageFetchedWhilePrinting() throws Exception {
+        final AmazonS3Client objects = createBucketMockedClient(objects(), 2);
+        AmazonS3Client client = createBucketMockedClient(objects(), 2);
+        final CountDownLatch secondPage = new CountDownLatch(2);
+        doAnswer(new Answer<ObjectListing>() {
+            @Override
+            public ObjectListing answer(InvocationOnMock invocation) throws Throwable {
+                secondPage.countDown();
+                return objects.listObjects((ListObjectsRequest) invocation.getArguments()[0]);
+            }
+        }).when(client).listObjects(any(ListObjectsRequest.class));
+
+        // hold up printing the first line until the second page has been requested
+        final AtomicBoolean prefetched = new AtomicBoolean();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream printStream = new PrintStream(output, true) {
+            private boolean first = true;
+
+            @Override
+            public void println(String x) {
+                if (first) {
+                    first = false;
+                    try {
+                        prefetched.set(secondPage.await(5, TimeUnit.SECONDS));
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                super.println(x);
+            }
+        };
+
+        new Ls(client, "beep")
+                .withListFormat("%4$s")
+                .withListDirFormat("%3$s")
+                .withPrintStream(printStream)
+                .call();
+        Assert.assertTrue(prefetched.get());
+        Assert.assertEquals("a/\nb.txt\nc/\nd.txt\ne.txt\n", output.toString());
+    }
+
+    @Test
+    public void limitAcrossPages() throws Exception {
+        AmazonS3Client client = createBucketMockedClient(objects(), 2);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new Ls(client, "beep")
+                .withPrefix("a/")
+                .withLimit(new BigInteger("3"))
+                .withListFormat("%4$s")
+                .withListDirFormat("%3$s")
+                .withPrintStream(new PrintStream(output, true))
+                .call();
+        Assert.assertEquals("a/1.txt\na/2.txt\na/3.txt\n", output.toString());
+    }
+
+    @Test
+    public void compareKeys() {
+        // a supplementary character is a surrogate pair, which sorts below U+E000 as a String
+        Assert.assertTrue(Ls.compareKeys("\ud83d\ude00", "\uec1e") > 0);
+        Assert.assertTrue(Ls.compareKeys("\uec1e", "\ud83d\ude00") < 0);
+        Assert.assertTrue(Ls.compareKeys("\ud83d\ude00", "\ud83d\ude01") < 0);
+        Assert.assertTrue(Ls.compareKeys("a", "ab") < 0);
+        Assert.assertTrue(Ls.compareKeys("b", "ab") > 0);
+        Assert.assertEquals(0, Ls.compareKeys("\u00e9t\u00e9", "\u00e9t\u00e9"));
+    }
+
+    @Test
+    public void nextMarker() {
+        ObjectListing o = new ObjectListing();
+        o.getCommonPrefixes().add("a/");
+        o.getCommonPrefixes().add("c/");
+        S3ObjectSummary os = new S3ObjectSummary();
+        os.setKey("b.txt");
+        o.getObjectSummaries().add(os);
+        Assert.assertNull(Ls.nextMarker(o));
+
+        o.setTruncated(true);
+        Assert.assertEquals("c/", Ls.nextMarker(o));
+        os.setKey("d.txt");
+        Assert.assertEquals("d.txt", Ls.nextMarker(o));
+        o.setNextMarker("e.txt");
+        Assert.assertEquals("e.txt", Ls.nextMarker(o));
+    }
+
+    @Test
+    public void csvOutput() throws Exception {
+        AmazonS3Client client = createBucketMockedClient(objects(), 3);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new Ls(client, "beep")
+                .withOutputFormat(ListEncoder.Format.CSV)
+                .withPrintStream(new PrintStream(output, true))
+                .call();
+        Assert.assertEquals(ListEncoder.CSV_HEADER + "\n"
+                + "prefix,beep,a/,,,,,,\n"
+                + "prefix,beep,c/,,,,,,\n"
+                + "object,beep,b.txt,5,,,,,\n"
+                + "object,beep,d.txt,5,,,,,\n"
+                + "object,beep,e.txt,5,,,,,\n", output.toString("UTF-8"));
+    }
+
+    private static Map<String, byte[]> objects() {
+        Map<String, byte[]> objects = new TreeMap<String, byte[]>();
+        for (String key : new String[]{"a/1.txt", "a/2.txt", "a/3.txt", "a/4.txt", "b.txt", "c/5.txt", "d.txt", "e.txt"}) {
+            objects.put(key, new byte[key.length()]);
+        }
+        return objects;
+    }
+}
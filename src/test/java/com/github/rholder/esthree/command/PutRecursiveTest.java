@@ -0,0 +1,215 @@
+package com.github.rholder.esthree.command;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.github.rholder.esthree.journal.UploadJournal;
+import com.google.common.collect.Maps;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.github.rholder.esthree.AmazonS3ClientMockUtils.createContent;
+import static com.github.rholder.esthree.AmazonS3ClientMockUtils.createMultipartUploadMockedClient;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PutRecursiveTest {
+
+    @Test
+    public void uploadsTree() throws Exception {
+        File dir = createTree();
+        Map<String, byte[]> uploaded = new ConcurrentHashMap<String, byte[]>();
+        AmazonS3Client client = createPutMockedClient(uploaded, null);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int failed = new PutRecursive(client, "beep", "some/prefix", dir, Maps.<String, String>newHashMap(), false)
+                .withConcurrency(3)
+                .withPrintStream(new PrintStream(output, true))
+                .call();
+
+        Assert.assertEquals(0, failed);
+        Assert.assertEquals(new TreeMap<String, byte[]>(expected()).keySet(), new TreeMap<String, byte[]>(uploaded).keySet());
+        for (Map.Entry<String, byte[]> e : expected().entrySet()) {
+            Assert.assertArrayEquals(e.getValue(), uploaded.get(e.getKey()));
+        }
+        Assert.assertTrue(output.toString().startsWith("Uploaded 4 files, 1300 bytes in "));
+    }
+
+    @Test
+    public void noPrefix() throws Exception {
+        File dir = createTree();
+        Map<String, byte[]> uploaded = new ConcurrentHashMap<String, byte[]>();
+        AmazonS3Client client = createPutMockedClient(uploaded, null);
+
+        new PutRecursive(client, "beep", null, dir, Maps.<String, String>newHashMap(), false).call();
+
+        Assert.assertTrue(uploaded.containsKey("a.txt"));
+        Assert.assertTrue(uploaded.containsKey("sub/deeper/d.txt"));
+    }
+
+    @Test
+    public void bigFilesInParts() throws Exception {
+        File dir = createTree();
+        Map<String, byte[]> uploaded = new ConcurrentHashMap<String, byte[]>();
+        Map<Integer, byte[]> uploadedParts = new ConcurrentHashMap<Integer, byte[]>();
+        AmazonS3Client client = createMultipartUploadMockedClient(uploadedParts, 0);
+        answerPuts(client, uploaded, null);
+
+        byte[] big = createContent(1050);
+        FileUtils.writeByteArrayToFile(new File(dir, "sub/big.bin"), big);
+
+        int failed = new PutRecursive(client, "beep", "some/prefix/", dir, Maps.<String, String>newHashMap(), false)
+                .withPartSize(800L)
+                .withPartConcurrency(2)
+                .call();
+
+        Assert.assertEquals(0, failed);
+        ArgumentCaptor<CompleteMultipartUploadRequest> completed = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        verify(client, times(1)).completeMultipartUpload(completed.capture());
+        Assert.assertEquals("some/prefix/sub/big.bin", completed.getValue().getKey());
+        Assert.assertEquals(2, uploadedParts.size());
+
+        // everything else fits in a single request
+        Assert.assertEquals(expected().keySet(), uploaded.keySet());
+    }
+
+    @Test
+    public void memoryLimitSharedByAllFiles() throws Exception {
+        File dir = createTree();
+        for (int i = 0; i < 4; i++) {
+            FileUtils.writeByteArrayToFile(new File(dir, "big" + i + ".bin"), createContent(2500));
+        }
+        Map<String, byte[]> uploaded = new ConcurrentHashMap<String, byte[]>();
+        final AmazonS3Client parts = createMultipartUploadMockedClient(new ConcurrentHashMap<Integer, byte[]>(), 0);
+        AmazonS3Client client = createMultipartUploadMockedClient(new ConcurrentHashMap<Integer, byte[]>(), 0);
+        answerPuts(client, uploaded, null);
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger mostInFlight = new AtomicInteger();
+        doAnswer(new Answer<UploadPartResult>() {
+            @Override
+            public UploadPartResult answer(InvocationOnMock invocation) throws Throwable {
+                int now = inFlight.incrementAndGet();
+                synchronized (mostInFlight) {
+                    mostInFlight.set(Math.max(mostInFlight.get(), now));
+                }
+                try {
+                    Thread.sleep(10);
+                    return parts.uploadPart((UploadPartRequest) invocation.getArguments()[0]);
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            }
+        }).when(client).uploadPart(any(UploadPartRequest.class));
+
+        // every part takes at least a MB of the limit, so there's only ever room for one
+        int failed = new PutRecursive(client, "beep", "some/prefix/", dir, Maps.<String, String>newHashMap(), false)
+                .withConcurrency(4)
+                .withPartSize(800L)
+                .withPartConcurrency(4)
+                .withMemoryLimit(1024L * 1024)
+                .call();
+
+        Assert.assertEquals(0, failed);
+        verify(client, times(4)).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+        verify(client, times(16)).uploadPart(any(UploadPartRequest.class));
+        Assert.assertEquals(1, mostInFlight.get());
+    }
+
+    @Test
+    public void failuresCounted() throws Exception {
+        File dir = createTree();
+        Map<String, byte[]> uploaded = new ConcurrentHashMap<String, byte[]>();
+        AmazonS3Client client = createPutMockedClient(uploaded, "some/prefix/sub/b.txt");
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int failed = new PutRecursive(client, "beep", "some/prefix", dir, Maps.<String, String>newHashMap(), false)
+                .withPrintStream(new PrintStream(output, true))
+                .call();
+
+        // the rest still go up
+        Assert.assertEquals(1, failed);
+        Assert.assertEquals(3, uploaded.size());
+        Assert.assertFalse(uploaded.containsKey("some/prefix/sub/b.txt"));
+        Assert.assertTrue(output.toString().trim().endsWith(", 1 failed"));
+    }
+
+    /**
+     * Return a directory with a few small files in it, along with a journal
+     * that shouldn't be uploaded.
+     */
+    private static File createTree() throws IOException {
+        File dir = File.createTempFile("testDir", ".test");
+        dir.delete();
+        dir.mkdirs();
+        for (Map.Entry<String, byte[]> e : relativeContent().entrySet()) {
+            FileUtils.writeByteArrayToFile(new File(dir, e.getKey()), e.getValue());
+        }
+        FileUtils.writeStringToFile(new File(dir, "sub/b.txt" + UploadJournal.SUFFIX), "not a real journal");
+        FileUtils.forceDeleteOnExit(dir);
+        return dir;
+    }
+
+    private static Map<String, byte[]> relativeContent() {
+        Map<String, byte[]> content = new TreeMap<String, byte[]>();
+        content.put("a.txt", createContent(100));
+        content.put("sub/b.txt", createContent(200));
+        content.put("sub/c.txt", createContent(300));
+        content.put("sub/deeper/d.txt", createContent(700));
+        return content;
+    }
+
+    private static Map<String, byte[]> expected() {
+        Map<String, byte[]> expected = new TreeMap<String, byte[]>();
+        for (Map.Entry<String, byte[]> e : relativeContent().entrySet()) {
+            expected.put("some/prefix/" + e.getKey(), e.getValue());
+        }
+        return expected;
+    }
+
+    private static AmazonS3Client createPutMockedClient(Map<String, byte[]> uploaded, String failingKey) {
+        AmazonS3Client client = mock(AmazonS3Client.class);
+        answerPuts(client, uploaded, failingKey);
+        return client;
+    }
+
+    /**
+     * Keep the content of every file that's put by its key, refusing the given
+     * key every time.
+     */
+    private static void answerPuts(AmazonS3Client client, final Map<String, byte[]> uploaded, final String failingKey) {
+        when(client.putObject(any(PutObjectRequest.class))).thenAnswer(new Answer<PutObjectResult>() {
+            @Override
+            public PutObjectResult answer(InvocationOnMock invocation) throws Throwable {
+                PutObjectRequest req = (PutObjectRequest) invocation.getArguments()[0];
+                if (req.getKey().equals(failingKey)) {
+                    AmazonServiceException denied = new AmazonServiceException("Access Denied");
+                    denied.setStatusCode(403);
+                    throw denied;
+                }
+                uploaded.put(req.getKey(), FileUtils.readFileToByteArray(req.getFile()));
+                return new PutObjectResult();
+            }
+        });
+    }
+}
@@ -1,16 +1,48 @@
 package com.github.rholder.esthree.command;
 
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.util.BinaryUtils;
+import com.amazonaws.util.Md5Utils;
+import com.github.rholder.esthree.journal.UploadJournal;
+import com.github.rholder.esthree.plan.UploadPlanner;
 import com.google.common.collect.Maps;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.junit.Assert;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
 
+import static com.github.rholder.esthree.AmazonS3ClientMockUtils.createContent;
+import static com.github.rholder.esthree.AmazonS3ClientMockUtils.createMultipartMockedClient;
+import static com.github.rholder.esthree.AmazonS3ClientMockUtils.createMultipartUploadMockedClient;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -42,4 +74,435 @@ public class PutTest {
 
         verify(client, times(1)).putObject(any(PutObjectRequest.class));
     }
+
+    @Test
+    public void multipart() throws Exception {
+        byte[] content = createContent(1050);
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+        FileUtils.writeByteArrayToFile(tmpFile, content);
+
+        Map<Integer, byte[]> uploadedParts = new ConcurrentHashMap<Integer, byte[]>();
+        AmazonS3Client client = createMultipartUploadMockedClient(uploadedParts, 0);
+
+        Put put = new Put(client, "beep", "boop", tmpFile, Maps.<String, String>newHashMap(), false);
+        put.withPartSize(100L);
+        put.withConcurrency(3);
+        put.call();
+
+        verify(client, never()).putObject(any(PutObjectRequest.class));
+        verify(client, times(11)).uploadPart(any(UploadPartRequest.class));
+        Assert.assertArrayEquals(content, completedContent(client, uploadedParts));
+    }
+
+    @Test
+    public void multipartPlanned() throws Exception {
+        byte[] content = createContent(6 * 1024 * 1024);
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+        FileUtils.writeByteArrayToFile(tmpFile, content);
+
+        Map<Integer, byte[]> uploadedParts = new ConcurrentHashMap<Integer, byte[]>();
+        AmazonS3Client client = createMultipartUploadMockedClient(uploadedParts, 0);
+
+        // too big for a single request, but parts can't be any smaller than 5MB
+        UploadPlanner planner = new UploadPlanner(4);
+        Put put = new Put(client, "beep", "boop", tmpFile, Maps.<String, String>newHashMap(), false);
+        put.withPlanner(planner);
+        put.call();
+
+        verify(client, times(2)).uploadPart(any(UploadPartRequest.class));
+        Assert.assertEquals(Put.MIN_PART_SIZE, uploadedParts.get(1).length);
+        Assert.assertArrayEquals(content, completedContent(client, uploadedParts));
+        Assert.assertTrue(planner.getBytesPerSecond() > 0);
+    }
+
+    @Test
+    public void multipartPartRetried() throws Exception {
+        byte[] content = createContent(1050);
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+        FileUtils.writeByteArrayToFile(tmpFile, content);
+
+        Map<Integer, byte[]> uploadedParts = new ConcurrentHashMap<Integer, byte[]>();
+        AmazonS3Client client = createMultipartUploadMockedClient(uploadedParts, 1);
+
+        Put put = new Put(client, "beep", "boop", tmpFile, Maps.<String, String>newHashMap(), false);
+        put.withPartSize(300L);
+        put.withConcurrency(1);
+        put.call();
+
+        // only the part that failed is sent again
+        verify(client, times(5)).uploadPart(any(UploadPartRequest.class));
+        Assert.assertArrayEquals(content, completedContent(client, uploadedParts));
+    }
+
+    @Test
+    public void skipIfSameMultipart() throws Exception {
+        byte[] content = createContent(1050);
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+        FileUtils.writeByteArrayToFile(tmpFile, content);
+
+        AmazonS3Client client = createMultipartMockedClient(content, 300, true);
+        Put put = new Put(client, "beep", "boop", tmpFile, Maps.<String, String>newHashMap(), false);
+        put.withSkipIfSame(true);
+        put.call();
+
+        verify(client, never()).putObject(any(PutObjectRequest.class));
+        verify(client, never()).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void skipIfSameSinglePart() throws Exception {
+        byte[] content = createContent(1050);
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+        FileUtils.writeByteArrayToFile(tmpFile, content);
+
+        ObjectMetadata om = new ObjectMetadata();
+        om.setContentLength(content.length);
+        om.setHeader(Headers.ETAG, BinaryUtils.toHex(Md5Utils.computeMD5Hash(content)));
+        AmazonS3Client client = mock(AmazonS3Client.class);
+        when(client.getObjectMetadata("beep", "boop")).thenReturn(om);
+
+        Put put = new Put(client, "beep", "boop", tmpFile, Maps.<String, String>newHashMap(), false);
+        put.withSkipIfSame(true);
+        put.call();
+
+        verify(client, never()).putObject(any(PutObjectRequest.class));
+    }
+
+    @Test
+    public void skipIfSameChanged() throws Exception {
+        byte[] content = createContent(1050);
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+        byte[] changed = content.clone();
+        changed[500]++;
+        FileUtils.writeByteArrayToFile(tmpFile, changed);
+
+        AmazonS3Client client = createMultipartMockedClient(content, 300, true);
+        Put put = new Put(client, "beep", "boop", tmpFile, Maps.<String, String>newHashMap(), false);
+        put.withSkipIfSame(true);
+        put.call();
+
+        verify(client, times(1)).putObject(any(PutObjectRequest.class));
+    }
+
+    @Test
+    public void skipIfSameMissing() throws Exception {
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+        FileUtils.writeByteArrayToFile(tmpFile, createContent(1050));
+
+        AmazonServiceException notFound = new AmazonServiceException("Not Found");
+        notFound.setStatusCode(404);
+        AmazonS3Client client = mock(AmazonS3Client.class);
+        doThrow(notFound).when(client).getObjectMetadata("beep", "boop");
+
+        Put put = new Put(client, "beep", "boop", tmpFile, Maps.<String, String>newHashMap(), false);
+        put.withSkipIfSame(true);
+        put.call();
+
+        verify(client, times(1)).putObject(any(PutObjectRequest.class));
+    }
+
+    @Test
+    public void multipartMemoryMapped() throws Exception {
+        byte[] content = createContent(1050);
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+        FileUtils.writeByteArrayToFile(tmpFile, content);
+
+        Map<Integer, byte[]> uploadedParts = new ConcurrentHashMap<Integer, byte[]>();
+        AmazonS3Client client = createMultipartUploadMockedClient(uploadedParts, 1);
+
+        Put put = new Put(client, "beep", "boop", tmpFile, Maps.<String, String>newHashMap(), false);
+        put.withPartSize(300L);
+        put.withConcurrency(2);
+        put.withMemoryMap(true);
+        put.call();
+
+        // only the part that failed is sent again, from the same mapping
+        verify(client, times(5)).uploadPart(any(UploadPartRequest.class));
+        Assert.assertArrayEquals(content, completedContent(client, uploadedParts));
+    }
+
+    @Test
+    public void multipartAborted() throws Exception {
+        byte[] content = createContent(1050);
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+        FileUtils.writeByteArrayToFile(tmpFile, content);
+
+        Map<Integer, byte[]> uploadedParts = new ConcurrentHashMap<Integer, byte[]>();
+        AmazonS3Client client = createMultipartUploadMockedClient(uploadedParts, 0);
+        AmazonServiceException denied = new AmazonServiceException("Access Denied");
+        denied.setStatusCode(403);
+        doThrow(denied).when(client).uploadPart(any(UploadPartRequest.class));
+
+        Put put = new Put(client, "beep", "boop", tmpFile, Maps.<String, String>newHashMap(), false);
+        put.withPartSize(100L);
+        put.withResume(false);
+        try {
+            put.call();
+            Assert.fail("Expected the upload to fail");
+        } catch (ExecutionException e) {
+            // expected
+        }
+
+        verify(client, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+        ArgumentCaptor<AbortMultipartUploadRequest> aborted = ArgumentCaptor.forClass(AbortMultipartUploadRequest.class);
+        verify(client, times(1)).abortMultipartUpload(aborted.capture());
+        Assert.assertEquals("testUploadId", aborted.getValue().getUploadId());
+    }
+
+    @Test
+    public void multipartKeptForResume() throws Exception {
+        byte[] content = createContent(1050);
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+        FileUtils.writeByteArrayToFile(tmpFile, content);
+
+        Map<Integer, byte[]> uploadedParts = new ConcurrentHashMap<Integer, byte[]>();
+        AmazonS3Client client = createMultipartUploadMockedClient(uploadedParts, 0);
+        AmazonServiceException denied = new AmazonServiceException("Access Denied");
+        denied.setStatusCode(403);
+        doThrow(denied).when(client).uploadPart(any(UploadPartRequest.class));
+
+        Put put = new Put(client, "beep", "boop", tmpFile, Maps.<String, String>newHashMap(), false);
+        put.withPartSize(100L);
+        try {
+            put.call();
+            Assert.fail("Expected the upload to fail");
+        } catch (ExecutionException e) {
+            // expected
+        }
+
+        verify(client, never()).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+        UploadJournal journal = UploadJournal.forFile(tmpFile);
+        Assert.assertTrue(journal.load());
+        Assert.assertEquals("testUploadId", journal.getUploadId());
+        journal.delete();
+    }
+
+    @Test
+    public void multipartResumed() throws Exception {
+        byte[] content = createContent(1050);
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+        FileUtils.writeByteArrayToFile(tmpFile, content);
+
+        // pretend a previous run got the first 5 parts and part 7 up, but S3 lost part 7 since
+        Map<Integer, byte[]> uploadedParts = new ConcurrentHashMap<Integer, byte[]>();
+        UploadJournal journal = UploadJournal.forFile(tmpFile);
+        journal.start("beep", "boop", "testUploadId", 100, content.length, tmpFile.lastModified());
+        for (int partNumber = 1; partNumber <= 7; partNumber++) {
+            if (partNumber == 6) {
+                continue;
+            }
+            byte[] part = Arrays.copyOfRange(content, (partNumber - 1) * 100, partNumber * 100);
+            journal.finished(partNumber, BinaryUtils.toHex(Md5Utils.computeMD5Hash(part)));
+            if (partNumber != 7) {
+                uploadedParts.put(partNumber, part);
+            }
+        }
+        journal.close();
+        AmazonS3Client client = createMultipartUploadMockedClient(uploadedParts, 0);
+
+        Put put = new Put(client, "beep", "boop", tmpFile, Maps.<String, String>newHashMap(), false);
+        put.withPartSize(300L);
+        put.withConcurrency(2);
+        put.call();
+
+        // the part size of the previous run sticks, and only the missing parts go up
+        verify(client, never()).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+        verify(client, times(6)).uploadPart(any(UploadPartRequest.class));
+        Assert.assertArrayEquals(content, completedContent(client, uploadedParts));
+        Assert.assertFalse(journal.journalFile.exists());
+    }
+
+    @Test
+    public void staleJournalAborted() throws Exception {
+        byte[] content = createContent(1050);
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+        FileUtils.writeByteArrayToFile(tmpFile, content);
+
+        // the file was different when the previous upload started
+        UploadJournal journal = UploadJournal.forFile(tmpFile);
+        journal.start("beep", "boop", "oldUploadId", 100, content.length, tmpFile.lastModified() - 1000);
+        journal.finished(1, "d41d8cd98f00b204e9800998ecf8427e");
+        journal.close();
+
+        Map<Integer, byte[]> uploadedParts = new ConcurrentHashMap<Integer, byte[]>();
+        AmazonS3Client client = createMultipartUploadMockedClient(uploadedParts, 0);
+
+        Put put = new Put(client, "beep", "boop", tmpFile, Maps.<String, String>newHashMap(), false);
+        put.withPartSize(100L);
+        put.call();
+
+        ArgumentCaptor<AbortMultipartUploadRequest> aborted = ArgumentCaptor.forClass(AbortMultipartUploadRequest.class);
+        verify(client, times(1)).abortMultipartUpload(aborted.capture());
+        Assert.assertEquals("oldUploadId", aborted.getValue().getUploadId());
+        verify(client, times(11)).uploadPart(any(UploadPartRequest.class));
+        Assert.assertArrayEquals(content, completedContent(client, uploadedParts));
+    }
+
+    @Test
+    public void streamSinglePut() throws Exception {
+        byte[] content = createContent(99);
+        AmazonS3Client client = createMultipartUploadMockedClient(new ConcurrentHashMap<Integer, byte[]>(), 0);
+
+        Put put = new Put(client, "beep", "boop", null, Maps.<String, String>newHashMap(), false);
+        put.withInputStream(new ByteArrayInputStream(content));
+        put.withPartSize(100L);
+        put.call();
+
+        ArgumentCaptor<PutObjectRequest> req = ArgumentCaptor.forClass(PutObjectRequest.class);
+        verify(client, times(1)).putObject(req.capture());
+        verify(client, never()).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+        Assert.assertEquals(99, req.getValue().getMetadata().getContentLength());
+        Assert.assertArrayEquals(content, IOUtils.toByteArray(req.getValue().getInputStream()));
+    }
+
+    @Test
+    public void gzipFile() throws Exception {
+        byte[] content = createContent(1050);
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+        FileUtils.writeByteArrayToFile(tmpFile, content);
+        AmazonS3Client client = createMultipartUploadMockedClient(new ConcurrentHashMap<Integer, byte[]>(), 0);
+
+        Put put = new Put(client, "beep", "boop", tmpFile, Maps.<String, String>newHashMap(), false);
+        put.withGzip(true);
+        put.call();
+
+        ArgumentCaptor<PutObjectRequest> req = ArgumentCaptor.forClass(PutObjectRequest.class);
+        verify(client, times(1)).putObject(req.capture());
+        Assert.assertEquals("gzip", req.getValue().getMetadata().getContentEncoding());
+        Assert.assertArrayEquals(content, IOUtils.toByteArray(new GZIPInputStream(req.getValue().getInputStream())));
+    }
+
+    @Test
+    public void gzipStreamMultipart() throws Exception {
+        // random bytes don't compress, so there's more than one part of them
+        byte[] content = new byte[3 * 1024 * 1024];
+        new Random(42).nextBytes(content);
+        Map<Integer, byte[]> uploadedParts = new ConcurrentHashMap<Integer, byte[]>();
+        AmazonS3Client client = createMultipartUploadMockedClient(uploadedParts, 0);
+
+        Put put = new Put(client, "beep", "boop", null, Maps.<String, String>newHashMap(), false);
+        put.withInputStream(new ByteArrayInputStream(content));
+        put.withPartSize(1024L * 1024);
+        put.withGzip(true);
+        put.call();
+
+        ArgumentCaptor<InitiateMultipartUploadRequest> initiated = ArgumentCaptor.forClass(InitiateMultipartUploadRequest.class);
+        verify(client, times(1)).initiateMultipartUpload(initiated.capture());
+        Assert.assertEquals("gzip", initiated.getValue().getObjectMetadata().getContentEncoding());
+        Assert.assertTrue(uploadedParts.size() > 3);
+        byte[] compressed = completedContent(client, uploadedParts);
+        Assert.assertArrayEquals(content, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+    }
+
+    @Test
+    public void streamMultipart() throws Exception {
+        byte[] content = createContent(1050);
+
+        // hand the bytes out in dribs and drabs like a pipe would
+        InputStream input = new FilterInputStream(new ByteArrayInputStream(content)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 37));
+            }
+        };
+
+        Map<Integer, byte[]> uploadedParts = new ConcurrentHashMap<Integer, byte[]>();
+        AmazonS3Client client = createMultipartUploadMockedClient(uploadedParts, 1);
+
+        Put put = new Put(client, "beep", "boop", null, Maps.<String, String>newHashMap(), false);
+        put.withInputStream(input);
+        put.withPartSize(100L);
+        put.withConcurrency(3);
+        put.call();
+
+        verify(client, never()).putObject(any(PutObjectRequest.class));
+        verify(client, times(12)).uploadPart(any(UploadPartRequest.class));
+        Assert.assertArrayEquals(content, completedContent(client, uploadedParts));
+    }
+
+    @Test
+    public void streamBlocksOnPool() throws Exception {
+        byte[] content = createContent(1000);
+
+        // keep track of how far ahead of the finished uploads the stream gets read
+        final AtomicInteger read = new AtomicInteger();
+        final AtomicInteger mostAhead = new AtomicInteger();
+        final Map<Integer, byte[]> uploadedParts = new ConcurrentHashMap<Integer, byte[]>();
+        InputStream input = new FilterInputStream(new ByteArrayInputStream(content)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    mostAhead.set(Math.max(mostAhead.get(), read.addAndGet(n) - uploadedParts.size() * 100));
+                }
+                return n;
+            }
+        };
+
+        AmazonS3Client client = createMultipartUploadMockedClient(uploadedParts, 0);
+        Put put = new Put(client, "beep", "boop", null, Maps.<String, String>newHashMap(), false);
+        put.withInputStream(input);
+        put.withPartSize(100L);
+        put.withConcurrency(2);
+        put.call();
+
+        // two parts uploading and one more being read is as far as it can get
+        Assert.assertTrue(mostAhead.get() <= 300);
+        Assert.assertArrayEquals(content, completedContent(client, uploadedParts));
+    }
+
+    @Test
+    public void streamAborted() throws Exception {
+        Map<Integer, byte[]> uploadedParts = new ConcurrentHashMap<Integer, byte[]>();
+        AmazonS3Client client = createMultipartUploadMockedClient(uploadedParts, 0);
+        AmazonServiceException denied = new AmazonServiceException("Access Denied");
+        denied.setStatusCode(403);
+        doThrow(denied).when(client).uploadPart(any(UploadPartRequest.class));
+
+        Put put = new Put(client, "beep", "boop", null, Maps.<String, String>newHashMap(), false);
+        put.withInputStream(new ByteArrayInputStream(createContent(100000)));
+        put.withPartSize(100L);
+        put.withConcurrency(2);
+        try {
+            put.call();
+            Assert.fail("Expected the upload to fail");
+        } catch (AmazonServiceException e) {
+            // expected
+        } catch (ExecutionException e) {
+            // expected
+        }
+
+        verify(client, times(1)).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+        verify(client, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+    }
+
+    /**
+     * Put back together the content of the upload that was completed from the
+     * parts it listed.
+     */
+    private static byte[] completedContent(AmazonS3Client client, Map<Integer, byte[]> uploadedParts) throws IOException {
+        ArgumentCaptor<CompleteMultipartUploadRequest> completed = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        verify(client, times(1)).completeMultipartUpload(completed.capture());
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        int partNumber = 1;
+        for (PartETag partETag : completed.getValue().getPartETags()) {
+            Assert.assertEquals(partNumber++, partETag.getPartNumber());
+            content.write(uploadedParts.get(partETag.getPartNumber()));
+        }
+        return content.toByteArray();
+    }
 }
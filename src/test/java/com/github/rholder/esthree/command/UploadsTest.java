@@ -0,0 +1,111 @@
+package com.github.rholder.esthree.command;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ListMultipartUploadsRequest;
+import com.amazonaws.services.s3.model.MultipartUpload;
+import com.amazonaws.services.s3.model.MultipartUploadListing;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Date;
+
+import static com.github.rholder.esthree.cli.UploadsCommand.DEFAULT_LIST_FORMAT;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class UploadsTest {
+
+    @Test
+    public void listAcrossPages() throws Exception {
+        AmazonS3Client client = mockedUploads();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        new Uploads(client, "beep")
+                .withListFormat(DEFAULT_LIST_FORMAT)
+                .withPrintStream(new PrintStream(out, true))
+                .call();
+
+        String listed = out.toString();
+        Assert.assertTrue(listed.contains("old   s3://beep/foo.txt"));
+        Assert.assertTrue(listed.contains("new   s3://beep/bar.txt"));
+        verify(client, times(2)).listMultipartUploads(any(ListMultipartUploadsRequest.class));
+        verify(client, never()).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void abortOlderThan() throws Exception {
+        AmazonS3Client client = mockedUploads();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        new Uploads(client, "beep")
+                .withInitiatedBefore(new Date(5000))
+                .withAbort(true)
+                .withListFormat(DEFAULT_LIST_FORMAT)
+                .withPrintStream(new PrintStream(out, true))
+                .call();
+
+        ArgumentCaptor<AbortMultipartUploadRequest> aborted = ArgumentCaptor.forClass(AbortMultipartUploadRequest.class);
+        verify(client, times(1)).abortMultipartUpload(aborted.capture());
+        Assert.assertEquals("old", aborted.getValue().getUploadId());
+        Assert.assertEquals("foo.txt", aborted.getValue().getKey());
+        Assert.assertFalse(out.toString().contains("bar.txt"));
+    }
+
+    @Test
+    public void failedAbortIsNotReported() throws Exception {
+        AmazonS3Client client = mockedUploads();
+        AmazonS3Exception denied = new AmazonS3Exception("Access Denied");
+        denied.setStatusCode(403);
+        doThrow(denied).when(client).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try {
+            new Uploads(client, "beep")
+                    .withAbort(true)
+                    .withListFormat(DEFAULT_LIST_FORMAT)
+                    .withPrintStream(new PrintStream(out, true))
+                    .call();
+            Assert.fail("Expected the abort to fail");
+        } catch (Exception e) {
+            // nothing was claimed to be aborted
+        }
+        Assert.assertFalse(out.toString().contains("aborted"));
+    }
+
+    /**
+     * Return a client with an old upload on the first page of the listing and
+     * a new one on the second.
+     */
+    private static AmazonS3Client mockedUploads() {
+        MultipartUploadListing first = new MultipartUploadListing();
+        first.getMultipartUploads().add(upload("foo.txt", "old", 1000));
+        first.setTruncated(true);
+        first.setNextKeyMarker("foo.txt");
+        first.setNextUploadIdMarker("old");
+
+        MultipartUploadListing second = new MultipartUploadListing();
+        second.getMultipartUploads().add(upload("bar.txt", "new", 10000));
+
+        AmazonS3Client client = mock(AmazonS3Client.class);
+        when(client.listMultipartUploads(any(ListMultipartUploadsRequest.class))).thenReturn(first, second);
+        return client;
+    }
+
+    private static MultipartUpload upload(String key, String uploadId, long initiated) {
+        MultipartUpload upload = new MultipartUpload();
+        upload.setKey(key);
+        upload.setUploadId(uploadId);
+        upload.setInitiated(new Date(initiated));
+        return upload;
+    }
+}
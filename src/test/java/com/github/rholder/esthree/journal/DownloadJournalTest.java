@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Ray Holder
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rholder.esthree.journal;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+public class DownloadJournalTest {
+
+    @Test
+    public void reopenResumes() throws IOException {
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+
+        DownloadJournal journal = DownloadJournal.forFile(tmpFile);
+        Assert.assertFalse(journal.open("abc", 100, 10));
+        journal.finished(0, 9);
+        journal.finished(10, 19);
+        journal.finished(30, 39);
+        journal.close();
+
+        DownloadJournal reopened = DownloadJournal.forFile(tmpFile);
+        Assert.assertTrue(reopened.open("abc", 100, 10));
+        Assert.assertTrue(reopened.isFinished(10, 19));
+        Assert.assertFalse(reopened.isFinished(20, 29));
+        Assert.assertEquals(20, reopened.getFinishedPrefix());
+        Assert.assertEquals(30, reopened.getFinishedBytes());
+        reopened.delete();
+
+        Assert.assertFalse(reopened.journalFile.exists());
+    }
+
+    @Test
+    public void changedETagStartsOver() throws IOException {
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+
+        DownloadJournal journal = DownloadJournal.forFile(tmpFile);
+        journal.open("abc", 100, 10);
+        journal.finished(0, 9);
+        journal.close();
+
+        DownloadJournal reopened = DownloadJournal.forFile(tmpFile);
+        Assert.assertFalse(reopened.open("def", 100, 10));
+        Assert.assertFalse(reopened.isFinished(0, 9));
+        Assert.assertEquals(0, reopened.getFinishedPrefix());
+        reopened.delete();
+    }
+
+    @Test
+    public void tornRecordIgnored() throws IOException {
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+
+        DownloadJournal journal = DownloadJournal.forFile(tmpFile);
+        journal.open("abc", 100, 10);
+        journal.finished(0, 9);
+        journal.close();
+
+        // simulate dying halfway through appending a record
+        FileUtils.write(journal.journalFile, "part 10 1", true);
+
+        DownloadJournal reopened = DownloadJournal.forFile(tmpFile);
+        Assert.assertTrue(reopened.open("abc", 100, 10));
+        Assert.assertEquals(10, reopened.getFinishedPrefix());
+        Assert.assertFalse(reopened.isFinished(10, 19));
+        reopened.finished(10, 19);
+        reopened.close();
+
+        Assert.assertTrue(reopened.open("abc", 100, 10));
+        Assert.assertEquals(20, reopened.getFinishedPrefix());
+        reopened.delete();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 Ray Holder
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rholder.esthree.journal;
+
+import org.apache.commons.io.Charsets;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+public class UploadJournalTest {
+
+    @Test
+    public void reloadResumes() throws IOException {
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+
+        UploadJournal journal = UploadJournal.forFile(tmpFile);
+        Assert.assertFalse(journal.load());
+        journal.start("beep", "some key/with spaces.txt", "abc", 100, 1050, 1234);
+        journal.finished(1, "etag1");
+        journal.finished(3, "etag3");
+        journal.close();
+
+        UploadJournal reloaded = UploadJournal.forFile(tmpFile);
+        Assert.assertTrue(reloaded.load());
+        Assert.assertTrue(reloaded.matches("beep", "some key/with spaces.txt", 1050, 1234));
+        Assert.assertFalse(reloaded.matches("beep", "some key/with spaces.txt", 1050, 1235));
+        Assert.assertFalse(reloaded.matches("beep", "other.txt", 1050, 1234));
+        Assert.assertEquals("abc", reloaded.getUploadId());
+        Assert.assertEquals(100, reloaded.getPartSize());
+
+        Map<Integer, String> finished = reloaded.getFinished();
+        Assert.assertEquals(2, finished.size());
+        Assert.assertEquals("etag3", finished.get(3));
+
+        // only keep what S3 still has
+        reloaded.resume(Collections.singletonMap(3, "etag3"));
+        reloaded.finished(2, "etag2");
+        reloaded.close();
+
+        Assert.assertTrue(reloaded.load());
+        Assert.assertEquals(3, reloaded.getFinished().size());
+        reloaded.delete();
+
+        Assert.assertFalse(reloaded.journalFile.exists());
+    }
+
+    @Test
+    public void tornRecordIgnored() throws IOException {
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+
+        UploadJournal journal = UploadJournal.forFile(tmpFile);
+        journal.start("beep", "boop", "abc", 100, 1050, 1234);
+        journal.finished(1, "etag1");
+        journal.close();
+
+        // the process died halfway through recording part 2
+        FileUtils.writeStringToFile(journal.journalFile, "part 2 eta", Charsets.UTF_8, true);
+
+        UploadJournal reloaded = UploadJournal.forFile(tmpFile);
+        Assert.assertTrue(reloaded.load());
+        Assert.assertEquals(1, reloaded.getFinished().size());
+
+        reloaded.resume(reloaded.getFinished());
+        reloaded.finished(2, "etag2");
+        reloaded.close();
+
+        Assert.assertTrue(reloaded.load());
+        Assert.assertEquals("etag2", reloaded.getFinished().get(2));
+        reloaded.delete();
+    }
+
+    @Test
+    public void notAJournal() throws IOException {
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+
+        UploadJournal journal = UploadJournal.forFile(tmpFile);
+        FileUtils.writeStringToFile(journal.journalFile, "potato\n", Charsets.UTF_8);
+        Assert.assertFalse(journal.load());
+        journal.delete();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2014 Ray Holder
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rholder.esthree.plan;
+
+import com.github.rholder.esthree.journal.DownloadJournal;
+import com.github.rholder.moar.concurrent.partition.Part;
+import com.github.rholder.moar.concurrent.partition.Parts;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class ChunkPlannerTest {
+
+    @Test
+    public void fixedMatchesParts() {
+        ChunkPlanner planner = new ChunkPlanner(1050, 100);
+        for (Part expected : Parts.among(1050, 100)) {
+            Part part = planner.next();
+            Assert.assertEquals(expected.start, part.start);
+            Assert.assertEquals(expected.end, part.end);
+
+            // nothing changes without bounds
+            planner.record(100, 0, TimeUnit.SECONDS.toNanos(10), true);
+        }
+        Assert.assertNull(planner.next());
+    }
+
+    @Test
+    public void growsWhenFirstByteDominates() {
+        ChunkPlanner planner = new ChunkPlanner(Long.MAX_VALUE, 1000).withBounds(1000, 100000);
+
+        // 1000 bytes in 10 ms after a 100 ms wait, aiming for 1 s requests
+        planner.next();
+        planner.record(1000, TimeUnit.MILLISECONDS.toNanos(100), TimeUnit.MILLISECONDS.toNanos(110), false);
+        Assert.assertEquals(2000, planner.getChunkSize());
+        Assert.assertEquals(2000, size(planner.next()));
+
+        planner.record(2000, TimeUnit.MILLISECONDS.toNanos(100), TimeUnit.MILLISECONDS.toNanos(110), false);
+        Assert.assertEquals(4000, planner.getChunkSize());
+    }
+
+    @Test
+    public void shrinksWhenSlowOrRetried() {
+        ChunkPlanner planner = new ChunkPlanner(Long.MAX_VALUE, 80000).withBounds(1000, 100000);
+
+        // 80000 bytes in 40 s
+        planner.record(80000, TimeUnit.MILLISECONDS.toNanos(100), TimeUnit.SECONDS.toNanos(40), false);
+        Assert.assertEquals(40000, planner.getChunkSize());
+
+        planner.record(40000, TimeUnit.MILLISECONDS.toNanos(100), TimeUnit.MILLISECONDS.toNanos(200), true);
+        Assert.assertEquals(20000, planner.getChunkSize());
+
+        // never below the minimum
+        for (int i = 0; i < 10; i++) {
+            planner.record(1000, 0, TimeUnit.SECONDS.toNanos(1), true);
+        }
+        Assert.assertEquals(1000, planner.getChunkSize());
+    }
+
+    @Test
+    public void alignedToParts() {
+        ChunkPlanner planner = new ChunkPlanner(1050, 250).withAlignment(100);
+        List<Part> parts = drain(planner);
+        Assert.assertEquals(6, parts.size());
+        for (Part part : parts) {
+            Assert.assertEquals(0, part.start % 100);
+        }
+        Assert.assertEquals(1049, parts.get(5).end);
+    }
+
+    @Test
+    public void finishedRangesFromJournal() throws Exception {
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+        DownloadJournal journal = DownloadJournal.forFile(tmpFile);
+        journal.journalFile.deleteOnExit();
+        journal.open("etag", 1000, 0);
+        journal.finished(0, 149);
+        journal.finished(300, 349);
+
+        List<Part> parts = drain(new ChunkPlanner(1000, 200).withJournal(journal));
+        journal.delete();
+
+        long[][] expected = {{0, 149}, {150, 299}, {300, 349}, {350, 549}, {550, 749}, {750, 949}, {950, 999}};
+        Assert.assertEquals(expected.length, parts.size());
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals(expected[i][0], parts.get(i).start);
+            Assert.assertEquals(expected[i][1], parts.get(i).end);
+        }
+    }
+
+    private static long size(Part part) {
+        return part.end - part.start + 1;
+    }
+
+    private static List<Part> drain(ChunkPlanner planner) {
+        List<Part> parts = new ArrayList<Part>();
+        Part part;
+        while ((part = planner.next()) != null) {
+            parts.add(part);
+        }
+        return parts;
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2014 Ray Holder
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rholder.esthree.plan;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyTrackerTest {
+
+    @Test
+    public void noThresholdUntilEnoughSamples() {
+        LatencyTracker tracker = new LatencyTracker(95);
+        for (int i = 1; i < LatencyTracker.MIN_SAMPLES; i++) {
+            tracker.record(100, 1000);
+            Assert.assertNull(tracker.getThresholdNanos(100));
+        }
+        tracker.record(100, 1000);
+        Assert.assertEquals(Long.valueOf(1000), tracker.getThresholdNanos(100));
+    }
+
+    @Test
+    public void thresholdScalesWithSize() {
+        LatencyTracker tracker = new LatencyTracker(50);
+
+        // 1 through 10 ns per byte, in no particular order
+        for (int i : new int[]{7, 2, 9, 4, 1, 10, 3, 8, 5, 6}) {
+            tracker.record(1000, i * 1000);
+        }
+        Assert.assertEquals(Long.valueOf(500), tracker.getThresholdNanos(100));
+        Assert.assertEquals(Long.valueOf(5000), tracker.getThresholdNanos(1000));
+    }
+
+    @Test
+    public void oldSamplesAgeOut() {
+        LatencyTracker tracker = new LatencyTracker(100);
+        tracker.record(1, 1000000);
+        for (int i = 0; i < LatencyTracker.MAX_SAMPLES; i++) {
+            tracker.record(1, 10);
+        }
+        Assert.assertEquals(Long.valueOf(10), tracker.getThresholdNanos(1));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014 Ray Holder
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.rholder.esthree.plan;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.github.rholder.esthree.util.ETagUtils.MAX_PARTS;
+import static com.github.rholder.esthree.util.ETagUtils.MB;
+import static com.github.rholder.esthree.util.ETagUtils.MIN_PART_SIZE;
+
+public class UploadPlannerTest {
+
+    @Test
+    public void neverBelowMinimum() {
+        Assert.assertEquals(MIN_PART_SIZE, new UploadPlanner(4).getPartSize(20 * MB));
+        Assert.assertEquals(MIN_PART_SIZE, new UploadPlanner(4).getPartSize(6 * MB));
+    }
+
+    @Test
+    public void severalPartsPerThread() {
+        // 16 parts of 6.25MB become 15 even parts of a whole 7MB
+        Assert.assertEquals(7 * MB, new UploadPlanner(4).getPartSize(100 * MB));
+        Assert.assertEquals(13 * MB, new UploadPlanner(2).getPartSize(100 * MB));
+        Assert.assertEquals(25 * MB, new UploadPlanner(1).withPartsPerThread(4).getPartSize(100 * MB));
+    }
+
+    @Test
+    public void fitsWithinMaxParts() {
+        long contentLength = 1024 * 1024 * MB;
+        long partSize = new UploadPlanner(4).getPartSize(contentLength);
+        Assert.assertEquals(105 * MB, partSize);
+        Assert.assertTrue((contentLength + partSize - 1) / partSize <= MAX_PARTS);
+
+        // the maximum only applies as long as the file fits
+        Assert.assertEquals(64 * MB, new UploadPlanner(4).getPartSize(100 * 1024 * MB));
+        Assert.assertEquals(32 * MB, new UploadPlanner(4).withMaxPartSize(32 * MB).getPartSize(100 * 1024 * MB));
+    }
+
+    @Test
+    public void slowPartsShrink() {
+        UploadPlanner planner = new UploadPlanner(4);
+        Assert.assertEquals(64 * MB, planner.getPartSize(1024 * MB));
+
+        // 1MB/s per part keeps each part to about 10 seconds
+        planner.record(MB, TimeUnit.SECONDS.toNanos(1));
+        Assert.assertEquals(MB, planner.getBytesPerSecond());
+        Assert.assertEquals(10 * MB, planner.getPartSize(1024 * MB));
+    }
+
+    @Test
+    public void fastPartsGrow() {
+        UploadPlanner planner = new UploadPlanner(4);
+        Assert.assertEquals(7 * MB, planner.getPartSize(100 * MB));
+
+        // 100MB/s per part makes parts worth at least half a second
+        planner.record(100 * MB, TimeUnit.SECONDS.toNanos(1));
+        Assert.assertEquals(50 * MB, planner.getPartSize(100 * MB));
+    }
+
+    @Test
+    public void memoryLimit() throws Exception {
+        UploadPlanner planner = new UploadPlanner(4).withMemoryLimit(10 * MB);
+        planner.reserve(6 * MB);
+        Assert.assertFalse(planner.tryReserve(5 * MB));
+        Assert.assertTrue(planner.tryReserve(4 * MB));
+
+        // anything less than a MB still takes one
+        Assert.assertFalse(planner.tryReserve(1));
+        planner.release(6 * MB);
+        planner.release(4 * MB);
+
+        // a part bigger than the limit can go up on its own
+        Assert.assertTrue(planner.tryReserve(100 * MB));
+        Assert.assertFalse(planner.tryReserve(1));
+        planner.release(100 * MB);
+        Assert.assertTrue(planner.tryReserve(10 * MB));
+    }
+
+    @Test
+    public void noMemoryLimit() throws Exception {
+        UploadPlanner planner = new UploadPlanner(4);
+        planner.reserve(Long.MAX_VALUE);
+        Assert.assertTrue(planner.tryReserve(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void throughputSmoothed() {
+        UploadPlanner planner = new UploadPlanner(4);
+        planner.record(MB, TimeUnit.SECONDS.toNanos(1));
+        planner.record(11 * MB, TimeUnit.SECONDS.toNanos(1));
+        Assert.assertEquals(4 * MB, planner.getBytesPerSecond());
+    }
+}
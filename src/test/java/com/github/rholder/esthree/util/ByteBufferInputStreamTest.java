@@ -0,0 +1,61 @@
+/*
+ * Copyright 2014 Ray Holder
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rholder.esthree.util;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static com.github.rholder.esthree.AmazonS3ClientMockUtils.createContent;
+
+public class ByteBufferInputStreamTest {
+
+    @Test
+    public void readRemaining() throws Exception {
+        byte[] content = createContent(1000);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(content.length);
+        buffer.put(content).flip();
+        buffer.position(100);
+
+        InputStream input = new ByteBufferInputStream(buffer);
+        Assert.assertEquals(900, input.available());
+        Assert.assertArrayEquals(Arrays.copyOfRange(content, 100, 1000), IOUtils.toByteArray(input));
+        Assert.assertEquals(-1, input.read());
+
+        // the given buffer is left alone
+        Assert.assertEquals(100, buffer.position());
+    }
+
+    @Test
+    public void markAndReset() throws Exception {
+        byte[] content = createContent(1000);
+        InputStream input = new ByteBufferInputStream(ByteBuffer.wrap(content));
+        Assert.assertTrue(input.markSupported());
+
+        Assert.assertEquals(10, input.skip(10));
+        input.mark(0);
+        Assert.assertEquals(content[10] & 0xff, input.read());
+        IOUtils.toByteArray(input);
+
+        input.reset();
+        Assert.assertArrayEquals(Arrays.copyOfRange(content, 10, 1000), IOUtils.toByteArray(input));
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2014 Ray Holder
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rholder.esthree.util;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static com.github.rholder.esthree.AmazonS3ClientMockUtils.createContent;
+
+public class ChannelCopierTest {
+
+    @Test
+    public void copyAtPosition() throws Exception {
+        byte[] content = createContent(1000);
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+
+        final int[] received = {0};
+        final int[] updates = {0};
+        final int[] writes = {0};
+        final long[] lastPosition = {0};
+        RandomAccessFile output = new RandomAccessFile(tmpFile, "rw");
+        try {
+            long count = new ChannelCopier(300, 2).copy(new ByteArrayInputStream(content), output.getChannel(), 50,
+                    new ChannelCopier.Listener() {
+                        public void received(int bytes) {
+                            received[0] += bytes;
+                        }
+
+                        public void update(byte[] buffer, int offset, int length) {
+                            updates[0]++;
+                        }
+
+                        public void written(long position) {
+                            writes[0]++;
+                            lastPosition[0] = position;
+                        }
+                    });
+            Assert.assertEquals(1000, count);
+        } finally {
+            output.close();
+        }
+
+        // 3 full buffers and what's left over
+        Assert.assertEquals(1000, received[0]);
+        Assert.assertEquals(4, updates[0]);
+        Assert.assertEquals(4, writes[0]);
+        Assert.assertEquals(1050, lastPosition[0]);
+
+        byte[] written = FileUtils.readFileToByteArray(tmpFile);
+        Assert.assertEquals(1050, written.length);
+        Assert.assertArrayEquals(content, Arrays.copyOfRange(written, 50, 1050));
+    }
+
+    @Test
+    public void stageThreadsAreReused() throws Exception {
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+
+        final Set<Thread> threads = new HashSet<Thread>();
+        ChannelCopier copier = new ChannelCopier(100, 2);
+        RandomAccessFile output = new RandomAccessFile(tmpFile, "rw");
+        try {
+            for (int i = 0; i < 5; i++) {
+                copier.copy(new ByteArrayInputStream(createContent(1000)), output.getChannel(), i * 1000,
+                        new ChannelCopier.Listener() {
+                            public void received(int bytes) {
+                            }
+
+                            public void update(byte[] buffer, int offset, int length) {
+                                synchronized (threads) {
+                                    threads.add(Thread.currentThread());
+                                }
+                            }
+
+                            public void written(long position) {
+                                synchronized (threads) {
+                                    threads.add(Thread.currentThread());
+                                }
+                            }
+                        });
+            }
+        } finally {
+            output.close();
+        }
+
+        // every copy ran on the same hashing and writing threads
+        Assert.assertEquals(2, threads.size());
+        Assert.assertEquals(5000, tmpFile.length());
+    }
+
+    @Test(expected = IOException.class)
+    public void writeStageFailure() throws Exception {
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+
+        RandomAccessFile output = new RandomAccessFile(tmpFile, "rw");
+        try {
+            new ChannelCopier(100, 2).copy(new ByteArrayInputStream(createContent(100000)), output.getChannel(), 0,
+                    new ChannelCopier.Listener() {
+                        public void received(int bytes) {
+                        }
+
+                        public void update(byte[] buffer, int offset, int length) {
+                        }
+
+                        public void written(long position) throws IOException {
+                            throw new IOException("disk full");
+                        }
+                    });
+        } finally {
+            output.close();
+        }
+    }
+
+    @Test
+    public void readStageFailure() throws Exception {
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+
+        // hand out 250 bytes before the connection drops
+        final InputStream input = new ByteArrayInputStream(createContent(250));
+        InputStream failing = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = input.read(b, off, Math.min(len, 50));
+                if (n == -1) {
+                    throw new IOException("connection reset");
+                }
+                return n;
+            }
+        };
+
+        final int[] updated = {0};
+        RandomAccessFile output = new RandomAccessFile(tmpFile, "rw");
+        try {
+            new ChannelCopier(100, 2).copy(failing, output.getChannel(), 0, new ChannelCopier.Listener() {
+                public void received(int bytes) {
+                }
+
+                public void update(byte[] buffer, int offset, int length) {
+                    updated[0] += length;
+                }
+
+                public void written(long position) {
+                }
+            });
+            Assert.fail("Expected an IOException");
+        } catch (IOException e) {
+            Assert.assertEquals("connection reset", e.getMessage());
+        } finally {
+            output.close();
+        }
+
+        // the full buffers that were handed off still drained through the other stages
+        Assert.assertEquals(200, updated[0]);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 Ray Holder
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rholder.esthree.util;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.github.rholder.esthree.AmazonS3ClientMockUtils.createContent;
+import static com.github.rholder.esthree.AmazonS3ClientMockUtils.multipartETag;
+import static com.github.rholder.esthree.util.ETagUtils.MB;
+
+public class ETagUtilsTest {
+
+    @Test
+    public void partCount() {
+        Assert.assertFalse(ETagUtils.isMultipart("36a92cc94a9e0fa21f625f8bfb007adf"));
+        Assert.assertTrue(ETagUtils.isMultipart("36a92cc94a9e0fa21f625f8bfb007adf-42"));
+        Assert.assertEquals(42, ETagUtils.getPartCount("36a92cc94a9e0fa21f625f8bfb007adf-42"));
+    }
+
+    @Test
+    public void consistent() {
+        Assert.assertTrue(ETagUtils.isConsistent(100 * MB, 20, 5 * MB));
+        Assert.assertTrue(ETagUtils.isConsistent(100 * MB + 1, 21, 5 * MB));
+        Assert.assertFalse(ETagUtils.isConsistent(100 * MB, 21, 5 * MB));
+        Assert.assertFalse(ETagUtils.isConsistent(100 * MB, 20, 0));
+    }
+
+    @Test
+    public void candidatesMostLikelyFirst() {
+        List<Long> candidates = ETagUtils.getCandidatePartSizes(20 * MB + 1000, 3);
+        Assert.assertEquals(Arrays.asList(8 * MB, 10 * MB, 7 * MB, 20 * MB / 3 + 334), candidates);
+        for (Long partSize : candidates) {
+            Assert.assertTrue(ETagUtils.isConsistent(20 * MB + 1000, 3, partSize));
+        }
+    }
+
+    @Test
+    public void candidatesForLargeObject() {
+        // TransferManager sizes parts to stay within 10000 parts
+        long contentLength = 100000 * MB;
+        List<Long> candidates = ETagUtils.getCandidatePartSizes(contentLength, 10000);
+        Assert.assertEquals(10 * MB, (long) candidates.get(0));
+    }
+
+    @Test
+    public void findPartSizeInParallel() throws Exception {
+        byte[] content = createContent(1050);
+        File tmpFile = File.createTempFile("testFile", ".test");
+        tmpFile.deleteOnExit();
+        FileUtils.writeByteArrayToFile(tmpFile, content);
+
+        String etag = multipartETag(content, 300);
+        RandomAccessFile file = new RandomAccessFile(tmpFile, "r");
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            Assert.assertEquals(300L, (long) ETagUtils.findPartSize(file, content.length, etag, Arrays.asList(263L, 300L), executor));
+            Assert.assertNull(ETagUtils.findPartSize(file, content.length, etag, Arrays.asList(263L, 350L), executor));
+        } finally {
+            executor.shutdownNow();
+            file.close();
+        }
+    }
+}
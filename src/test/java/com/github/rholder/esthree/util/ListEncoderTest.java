@@ -0,0 +1,134 @@
+package com.github.rholder.esthree.util;
+
+import com.amazonaws.services.s3.model.Owner;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+public class ListEncoderTest {
+
+    private static final String[] KEYS = {
+            "plain.txt",
+            "with spaces, commas and \"quotes\".txt",
+            "back\\slash/new\nline\r\ttab\u0001\u001f\u007f",
+            "caf\u00e9 \u65e5\u672c \ud83d\ude00",
+            "lone \ud83d high and \ude00 low",
+            ""
+    };
+
+    @Test
+    public void ndjson() throws Exception {
+        // too small for most keys to fit at once, and big enough for all of them
+        ndjson(256);
+        ndjson(ListEncoder.DEFAULT_BUFFER_SIZE);
+    }
+
+    private void ndjson(int bufferSize) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ListEncoder encoder = new ListEncoder(output, ListEncoder.Format.NDJSON, bufferSize);
+        for (int i = 0; i < 100; i++) {
+            encoder.writeObject(summary(KEYS[i % KEYS.length], i));
+        }
+        encoder.writePrefix("bucket", "some \"dir\"/");
+        encoder.flush();
+
+        String[] lines = output.toString("UTF-8").split("\n");
+        Assert.assertEquals(101, lines.length);
+        ObjectMapper mapper = new ObjectMapper();
+        for (int i = 0; i < 100; i++) {
+            JsonNode node = mapper.readTree(lines[i]);
+            String key = KEYS[i % KEYS.length];
+            Assert.assertEquals("bucket", node.get("bucket").asText());
+            Assert.assertEquals(key, node.get("key").asText());
+            Assert.assertEquals(i * 1000L - 1, node.get("size").asLong());
+            Assert.assertEquals(iso(time(i)), node.get("lastModified").asText());
+            Assert.assertEquals("STANDARD", node.get("storageClass").asText());
+            if (i % 2 == 0) {
+                Assert.assertTrue(node.get("eTag").isNull());
+                Assert.assertTrue(node.get("owner").isNull());
+            } else {
+                Assert.assertEquals("d41d8cd98f00b204e9800998ecf8427e", node.get("eTag").asText());
+                Assert.assertEquals("id" + i, node.get("owner").get("id").asText());
+                Assert.assertEquals("name \"" + i + "\"", node.get("owner").get("displayName").asText());
+            }
+        }
+        Assert.assertEquals("some \"dir\"/", mapper.readTree(lines[100]).get("prefix").asText());
+    }
+
+    @Test
+    public void csv() throws Exception {
+        csv(256);
+        csv(ListEncoder.DEFAULT_BUFFER_SIZE);
+    }
+
+    private void csv(int bufferSize) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ListEncoder encoder = new ListEncoder(output, ListEncoder.Format.CSV, bufferSize);
+        encoder.writeObject(summary(KEYS[0], 0));
+        encoder.writeObject(summary(KEYS[1], 1));
+        encoder.writeObject(summary(KEYS[2], 2));
+        encoder.writeObject(summary(KEYS[3], 3));
+        encoder.writePrefix("bucket", "a,b/");
+        encoder.flush();
+
+        Assert.assertEquals(ListEncoder.CSV_HEADER + "\n"
+                        + "object,bucket,plain.txt,-1,1970-01-01T00:00:00.000Z,,STANDARD,,\n"
+                        + "object,bucket,\"with spaces, commas and \"\"quotes\"\".txt\",999," + iso(time(1)) + ",d41d8cd98f00b204e9800998ecf8427e,STANDARD,id1,\"name \"\"1\"\"\"\n"
+                        + "object,bucket,\"back\\slash/new\nline\r\ttab\u0001\u001f\u007f\",1999," + iso(time(2)) + ",,STANDARD,,\n"
+                        + "object,bucket,caf\u00e9 \u65e5\u672c \ud83d\ude00,2999," + iso(time(3)) + ",d41d8cd98f00b204e9800998ecf8427e,STANDARD,id3,\"name \"\"3\"\"\"\n"
+                        + "prefix,bucket,\"a,b/\",,,,,,\n",
+                output.toString("UTF-8"));
+    }
+
+    @Test
+    public void emptyCsvStillHasAHeader() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new ListEncoder(output, ListEncoder.Format.CSV).flush();
+        Assert.assertEquals(ListEncoder.CSV_HEADER + "\n", output.toString("UTF-8"));
+    }
+
+    @Test
+    public void times() throws Exception {
+        long[] times = {0, 1, -1, 1445412480123L, 951782400000L, 4107542399999L, -12219292800000L, 253402300799999L};
+        for (long time : times) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            ListEncoder encoder = new ListEncoder(output, ListEncoder.Format.NDJSON);
+            S3ObjectSummary os = new S3ObjectSummary();
+            os.setLastModified(new Date(time));
+            encoder.writeObject(os);
+            encoder.flush();
+            Assert.assertEquals(iso(time), new ObjectMapper().readTree(output.toString("UTF-8")).get("lastModified").asText());
+        }
+    }
+
+    private static S3ObjectSummary summary(String key, int i) {
+        S3ObjectSummary os = new S3ObjectSummary();
+        os.setBucketName("bucket");
+        os.setKey(key);
+        os.setSize(i * 1000L - 1);
+        os.setLastModified(new Date(time(i)));
+        os.setStorageClass("STANDARD");
+        if (i % 2 == 1) {
+            os.setETag("d41d8cd98f00b204e9800998ecf8427e");
+            os.setOwner(new Owner("id" + i, "name \"" + i + "\""));
+        }
+        return os;
+    }
+
+    private static long time(int i) {
+        return i * 86400000L * 37 + i * 3723004L;
+    }
+
+    private static String iso(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(time));
+    }
+}
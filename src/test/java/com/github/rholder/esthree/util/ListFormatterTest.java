@@ -0,0 +1,109 @@
+package com.github.rholder.esthree.util;
+
+import com.amazonaws.services.s3.model.Owner;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.github.rholder.esthree.cli.LsCommand;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.IllegalFormatException;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+public class ListFormatterTest {
+
+    private static final String[] FORMATS = {
+            LsCommand.DEFAULT_LIST_FORMAT,
+            "%4$s",
+            "%4$-30s|%2$-12s|%1$tR",
+            "%s %s %s %s",
+            "%1$tF %<tR %2$,d %4$S %5$s %6$s %7$s",
+            "%2$d bytes, %2$x in hex, %2$10.3s%n",
+            "100%% of %3$s/%4$s %1$tc %1$30tF",
+            "%1$tT %1$tF%%",
+            "%8$s"
+    };
+
+    @Test
+    public void sameAsStringFormat() {
+        List<S3ObjectSummary> summaries = summaries();
+        Locale locale = Locale.getDefault();
+        TimeZone timeZone = TimeZone.getDefault();
+        try {
+            for (Locale l : new Locale[]{Locale.US, Locale.GERMANY, new Locale("th", "TH", "TH"), new Locale("ar", "SA"), new Locale("hi", "IN")}) {
+                for (String zone : new String[]{"UTC", "America/New_York", "Asia/Kolkata"}) {
+                    Locale.setDefault(l);
+                    TimeZone.setDefault(TimeZone.getTimeZone(zone));
+                    for (String format : FORMATS) {
+                        ListFormatter formatter = new ListFormatter(format);
+                        for (S3ObjectSummary os : summaries) {
+                            Assert.assertEquals(format + " in " + l + " " + zone, expected(format, os), actual(formatter, os));
+                        }
+                    }
+                }
+            }
+        } finally {
+            Locale.setDefault(locale);
+            TimeZone.setDefault(timeZone);
+        }
+    }
+
+    @Test
+    public void directories() {
+        ListFormatter formatter = new ListFormatter(LsCommand.DEFAULT_LIST_DIR_FORMAT);
+        for (String dir : new String[]{"", "a/", "some/really/long/directory/name/that/goes/past/the/width/"}) {
+            Assert.assertEquals(String.format(LsCommand.DEFAULT_LIST_DIR_FORMAT, "DIR", "bucket", dir),
+                    formatter.format("DIR", "bucket", dir));
+        }
+    }
+
+    @Test
+    public void unparseableFormatFailsTheSameWay() {
+        S3ObjectSummary os = summaries().get(0);
+        for (String format : new String[]{"%q", "%-s", "abc %", "%<s", "%0$s", "%99999999999$s"}) {
+            Assert.assertEquals(format, expected(format, os), actual(new ListFormatter(format), os));
+        }
+    }
+
+    private static String expected(String format, S3ObjectSummary os) {
+        try {
+            return String.format(format, os.getLastModified(), os.getSize(), os.getBucketName(), os.getKey(),
+                    os.getETag(), os.getOwner(), os.getStorageClass());
+        } catch (IllegalFormatException e) {
+            return e.getClass().getName();
+        }
+    }
+
+    private static String actual(ListFormatter formatter, S3ObjectSummary os) {
+        try {
+            return formatter.format(os);
+        } catch (IllegalFormatException e) {
+            return e.getClass().getName();
+        }
+    }
+
+    private static List<S3ObjectSummary> summaries() {
+        List<S3ObjectSummary> summaries = new ArrayList<S3ObjectSummary>();
+        long[] times = {0L, 1445412480000L, 1445412480000L + 59999, 1445412540000L, 1457852400000L, 1478411999000L,
+                253402300799000L, 253402300800000L, -62135596800000L};
+        long[] sizes = {0, 7, 123456789, Long.MAX_VALUE, -1};
+        for (int i = 0; i < times.length; i++) {
+            S3ObjectSummary os = new S3ObjectSummary();
+            os.setBucketName("bucket");
+            os.setKey(i % 2 == 0 ? "some/key-" + i + ".txt" : "k\u00e9y " + i);
+            os.setLastModified(new Date(times[i]));
+            os.setSize(sizes[i % sizes.length]);
+            os.setETag(i % 3 == 0 ? null : "d41d8cd98f00b204e9800998ecf8427e");
+            os.setOwner(i % 2 == 0 ? null : new Owner("id" + i, "name" + i));
+            os.setStorageClass("STANDARD");
+            summaries.add(os);
+        }
+
+        // nothing is known about it at all
+        summaries.add(new S3ObjectSummary());
+        return summaries;
+    }
+}
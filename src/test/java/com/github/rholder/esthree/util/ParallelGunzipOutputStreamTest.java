@@ -0,0 +1,157 @@
+package com.github.rholder.esthree.util;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+import static com.github.rholder.esthree.AmazonS3ClientMockUtils.createContent;
+
+public class ParallelGunzipOutputStreamTest {
+
+    @Test
+    public void roundTrip() throws Exception {
+        byte[] content = createContent(10500);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            byte[] compressed = IOUtils.toByteArray(new ParallelGzipInputStream(new ByteArrayInputStream(content), executor, 2)
+                    .withBlockSize(1000));
+
+            // written a few bytes at a time, so members straddle every write
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            ParallelGunzipOutputStream gunzip = new ParallelGunzipOutputStream(output, executor, 2);
+            for (int i = 0; i < compressed.length; i += 37) {
+                gunzip.write(compressed, i, Math.min(37, compressed.length - i));
+            }
+            gunzip.finish();
+            Assert.assertArrayEquals(content, output.toByteArray());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void standardMembers() throws Exception {
+        byte[] content = createContent(5000);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // two members without a size, one of them with a file name
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            compressed.write(gzip(Arrays.copyOfRange(content, 0, 2000)));
+            byte[] named = gzip(Arrays.copyOfRange(content, 2000, 5000));
+            named[3] = 0x08;
+            compressed.write(named, 0, 10);
+            compressed.write("content.txt\0".getBytes("UTF-8"));
+            compressed.write(named, 10, named.length - 10);
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            ParallelGunzipOutputStream gunzip = new ParallelGunzipOutputStream(output, executor, 2);
+            byte[] bytes = compressed.toByteArray();
+            for (byte b : bytes) {
+                gunzip.write(b);
+            }
+            gunzip.finish();
+            Assert.assertArrayEquals(content, output.toByteArray());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void mixedMembers() throws Exception {
+        byte[] content = createContent(3000);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            compressed.write(IOUtils.toByteArray(new ParallelGzipInputStream(
+                    new ByteArrayInputStream(Arrays.copyOfRange(content, 0, 1000)), executor, 2).withBlockSize(300)));
+            compressed.write(gzip(Arrays.copyOfRange(content, 1000, 2000)));
+            compressed.write(IOUtils.toByteArray(new ParallelGzipInputStream(
+                    new ByteArrayInputStream(Arrays.copyOfRange(content, 2000, 3000)), executor, 2).withBlockSize(300)));
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            ParallelGunzipOutputStream gunzip = new ParallelGunzipOutputStream(output, executor, 1);
+            gunzip.write(compressed.toByteArray());
+            gunzip.finish();
+            Assert.assertArrayEquals(content, output.toByteArray());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void truncated() throws Exception {
+        byte[] content = createContent(1000);
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        try {
+            byte[] compressed = IOUtils.toByteArray(new ParallelGzipInputStream(new ByteArrayInputStream(content), executor, 2)
+                    .withBlockSize(300));
+
+            ParallelGunzipOutputStream gunzip = new ParallelGunzipOutputStream(new ByteArrayOutputStream(), executor, 2);
+            gunzip.write(compressed, 0, compressed.length - 1);
+            try {
+                gunzip.finish();
+                Assert.fail("Expected a truncated stream to fail");
+            } catch (IOException e) {
+                Assert.assertEquals("Unexpected end of gzip stream", e.getMessage());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void corrupt() throws Exception {
+        byte[] content = createContent(1000);
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        try {
+            byte[] compressed = IOUtils.toByteArray(new ParallelGzipInputStream(new ByteArrayInputStream(content), executor, 2)
+                    .withBlockSize(300));
+
+            // the stored checksum of the last member no longer matches
+            compressed[compressed.length - 8] ^= 1;
+
+            ParallelGunzipOutputStream gunzip = new ParallelGunzipOutputStream(new ByteArrayOutputStream(), executor, 2);
+            gunzip.write(compressed);
+            try {
+                gunzip.finish();
+                Assert.fail("Expected a corrupt stream to fail");
+            } catch (IOException e) {
+                Assert.assertTrue(e.getMessage().startsWith("Corrupt gzip member"));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void notGzip() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        try {
+            ParallelGunzipOutputStream gunzip = new ParallelGunzipOutputStream(new ByteArrayOutputStream(), executor, 2);
+            try {
+                gunzip.write(createContent(100));
+                Assert.fail("Expected plain content to fail");
+            } catch (IOException e) {
+                Assert.assertEquals("Not in gzip format", e.getMessage());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        gzip.write(content);
+        gzip.close();
+        return bytes.toByteArray();
+    }
+}
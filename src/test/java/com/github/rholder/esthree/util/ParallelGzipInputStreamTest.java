@@ -0,0 +1,79 @@
+package com.github.rholder.esthree.util;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import static com.github.rholder.esthree.AmazonS3ClientMockUtils.createContent;
+
+public class ParallelGzipInputStreamTest {
+
+    @Test
+    public void roundTrip() throws Exception {
+        byte[] content = createContent(1050);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            byte[] compressed = IOUtils.toByteArray(new ParallelGzipInputStream(new ByteArrayInputStream(content), executor, 2)
+                    .withBlockSize(100));
+
+            // one member per block
+            int members = 0;
+            for (int i = 0; i + 2 < compressed.length; i++) {
+                if (compressed[i] == 0x1f && compressed[i + 1] == (byte) 0x8b && compressed[i + 2] == 8) {
+                    members++;
+                }
+            }
+            Assert.assertTrue(members >= 11);
+            Assert.assertArrayEquals(content, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void exactBlocks() throws Exception {
+        byte[] content = createContent(1000);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            byte[] compressed = IOUtils.toByteArray(new ParallelGzipInputStream(new ByteArrayInputStream(content), executor, 4)
+                    .withBlockSize(100));
+            Assert.assertArrayEquals(content, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void empty() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        try {
+            InputStream input = new ParallelGzipInputStream(new ByteArrayInputStream(new byte[0]), executor, 1);
+            Assert.assertEquals(0, IOUtils.toByteArray(new GZIPInputStream(input)).length);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void sourceFailure() throws Exception {
+        InputStream failing = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Broken pipe");
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        try {
+            IOUtils.toByteArray(new ParallelGzipInputStream(failing, executor, 1));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}